@@ -1,11 +1,17 @@
 package bdmmflow;
 
+import bdmmflow.benchmark.BenchmarkRun;
 import bdmmflow.extinctionSystem.ExtinctionProbabilities;
 import bdmmflow.extinctionSystem.ExtinctionProbabilitiesODESystem;
 import bdmmflow.flowSystems.*;
 import bdmmflow.intervals.Interval;
-import bdmmflow.intervals.IntervalODESystem;
+import bdmmflow.intervals.IntervalFingerprints;
+import bdmmflow.intervals.IntervalIndex;
 import bdmmflow.intervals.IntervalUtils;
+import bdmmflow.utils.CacheStatistics;
+import bdmmflow.utils.ForkJoinPools;
+import bdmmflow.utils.MatrixKernel;
+import bdmmflow.utils.MatrixKernels;
 import bdmmflow.utils.Result;
 import bdmmflow.utils.Utils;
 import bdmmprime.parameterization.Parameterization;
@@ -15,19 +21,23 @@ import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.TraitSet;
 import beast.base.evolution.tree.Tree;
 import beast.base.evolution.tree.TreeInterface;
+import beast.base.inference.CalculationNode;
+import beast.base.inference.StateNode;
 import beast.base.inference.parameter.RealParameter;
 import org.apache.commons.math.special.Gamma;
 import org.apache.commons.math3.exception.NumberIsTooSmallException;
 import org.apache.commons.math3.linear.SingularMatrixException;
-import org.apache.commons.math3.ode.ContinuousOutputModel;
 
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
-import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.CompletionException;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import java.util.stream.DoubleStream;
+import java.util.stream.IntStream;
 
 @Citation(value = "Kuehnert D, Stadler T, Vaughan TG, Drummond AJ. (2016). " +
         "A General and Efficient Algorithm for the Likelihood of Diversification and Discrete-Trait Evolutionary Models, \n" +
@@ -42,6 +52,9 @@ import java.util.stream.DoubleStream;
 )
 public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
 
+    public static final String DORMAND_PRINCE_INTEGRATOR = "dormandPrince";
+    public static final String MAGNUS_INTEGRATOR = "magnus";
+
     public Input<Parameterization> parameterizationInput = new Input<>(
             "parameterization",
             "BDMM parameterization",
@@ -66,7 +79,8 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
     );
 
     public Input<TraitSet> typeTraitSetInput = new Input<>("typeTraitSet",
-            "Trait set specifying sample trait values.");
+            "Trait set specifying sample trait values. It is read once when the distribution is initialized and " +
+                    "treated as fixed.");
 
     public Input<Boolean> conditionOnSurvivalInput = new Input<>("conditionOnSurvival",
             "Condition on at least one surviving lineage. (Default true.)",
@@ -99,6 +113,36 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
             false
     );
 
+    public Input<Boolean> useCoupledIntegrationInput = new Input<>(
+            "useCoupledIntegration",
+            "Whether to integrate the extinction probabilities and the flow together in a single sweep. " +
+                    "This avoids interpolating the extinction probabilities, but cannot be parallelized.",
+            false
+    );
+
+    public Input<String> flowIntegratorInput = new Input<>(
+            "flowIntegrator",
+            "The integrator for the flow ODE. Either 'dormandPrince' or 'magnus'. The Magnus integrator uses " +
+                    "matrix exponentials, which allows larger steps for stiff models, e.g. with high migration " +
+                    "rates. It is only available for the standard flow.",
+            DORMAND_PRINCE_INTEGRATOR
+    );
+
+    public Input<String> matrixBackendInput = new Input<>(
+            "matrixBackend",
+            "The backend for the dense matrix operations. Either 'scalar' or 'vector'. The vector backend uses " +
+                    "SIMD instructions and requires the JVM option --add-modules jdk.incubator.vector, " +
+                    "otherwise the scalar backend is used.",
+            MatrixKernels.SCALAR
+    );
+
+    public Input<Boolean> useSparseKernelInput = new Input<>(
+            "useSparseKernel",
+            "Whether to use the sparse kernel for the flow system matrix if the migration and cross-birth " +
+                    "rates are sparse enough. Only takes effect for at least 8 types.",
+            true
+    );
+
     public Input<Integer> seedInput = new Input<>(
             "seed",
             "The random seed used in the analysis.",
@@ -115,7 +159,7 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
             "minimalSubtreeSizeForParallelization",
             "the minimal absolute size the two children " +
                     "subtrees of a node must have to start parallel " +
-                    "calculations on the children. ",
+                    "calculations on the children, measured in edges of average estimated cost. ",
             64);
 
     public Input<Double> maxConditioningNumberInput = new Input<>(
@@ -130,7 +174,33 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
             false
     );
 
+    public Input<Integer> flowCacheSizeInput = new Input<>(
+            "flowCacheSize",
+            "The maximal number of megabytes that the interpolated flow matrices and factorizations of all " +
+                    "intervals take together. Each entry takes about 8 n^2 bytes for n types.",
+            IFlow.DEFAULT_CACHE_MEGABYTES
+    );
+
+    public Input<Boolean> deduplicateLeavesInput = new Input<>(
+            "deduplicateLeaves",
+            "Whether leaves with the same time, type and sampling share a single boundary vector.",
+            true
+    );
+
+    public Input<Integer> threadCountInput = new Input<>(
+            "threadCount",
+            "The number of threads used by the parallel computations. 0 uses one thread per available processor.",
+            0
+    );
+
+    public Input<String> executorNameInput = new Input<>(
+            "executorName",
+            "If set, the threads are taken from the shared executor with this name, which is created by the first " +
+                    "distribution that uses it. Distributions that use the same name share their threads."
+    );
+
     private Parameterization parameterization;
+    private IntervalIndex parameterizationIntervalIndex;
 
     private String initialMatrixStrategy;
 
@@ -149,23 +219,114 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
 
     double maxConditioningNumber;
     boolean useLoucaPennellIntervals;
+    boolean useSparseKernel;
+    boolean deduplicateLeaves;
+    int flowCacheSize;
+    int threadCount;
 
     boolean useInverseFlow;
+    boolean useCoupledIntegration;
+    boolean useMagnusIntegrator;
+    MatrixKernel matrixKernel;
     int seed;
 
     boolean parallelize;
-    double minimalProportionForParallelization = 0.05;
     int minimalSubtreeSizeForParallelization;
 
+    /**
+     * The number of tasks per worker thread the tree traversal should at least be split into, such that idle
+     * workers find subtrees to steal.
+     */
+    static final int TASKS_PER_WORKER = 8;
+
     ForkJoinPool forkJoinPool;
-    int[] subtreeSizes;
-    double parallelizeSubtreeSizeThreshold;
+    double[] subtreeCosts;
+    double parallelizeSubtreeCostThreshold;
+
+    /**
+     * The subtrees that are evaluated as separate fork/join tasks, given by the node numbers of their roots. Every
+     * task evaluates its own nodes in post-order and joins the tasks of the nested subtrees when it reaches their
+     * parents. The arrays are indexed by node number and only the entries of the task roots of the last evaluation
+     * are valid, which are listed in `taskRoots`.
+     */
+    boolean[] isTaskRoot;
+    int[][] taskNodes;
+    int[][] nestedTaskRoots;
+    SubtreeLikelihoodTask[] subtreeTasks;
+    int[] taskRoots;
+    int numTaskRoots;
+
+    /**
+     * Scratch arrays indexed by node number, which are kept between evaluations to avoid allocating them for every
+     * evaluation.
+     */
+    int[] taskOwners;
+    int[] taskNodeCounts;
+    int[] nestedTaskCounts;
+    int[] traversalStack;
+    int[] preparedNodeNrs;
+    double[] preparedEdgeStartTimes;
+    double[] preparedEdgeEndTimes;
+
+    /**
+     * The per-type likelihoods at the start of the edge leading to each node and their log scaling factors. They
+     * are kept between evaluations, and only the nodes marked in `needsUpdate` are recomputed.
+     * <p>
+     * Every node has two preallocated buffers. A recomputed node always writes to the buffer that is not stored,
+     * such that restore only has to swap the buffer indices back.
+     */
+    double[][][] edgeStartLikelihoodBuffers;
+    double[][] logScalingFactorBuffers;
+    int[] currentBufferIndices;
+    int[] storedBufferIndices;
+    boolean[] needsUpdate;
+
+    /**
+     * The nodes marked in `needsUpdate` in post-order, of which the first `numUpdatedNodes` entries are valid. Only
+     * these nodes are visited when traversing the tree.
+     */
+    int[] updateOrder;
+
+    /**
+     * Whether the partial likelihoods are up to date with the tree of the last evaluation, and the flow and the
+     * interval fingerprints they were computed with.
+     */
+    boolean partialsAreValid = false;
+    IFlow partialsFlow;
+    IntervalFingerprints partialsFingerprints;
+    boolean storedPartialsAreValid = false;
+    IFlow storedPartialsFlow;
+    IntervalFingerprints storedPartialsFingerprints;
+
+    EvaluationPlan plan;
+    List<Interval> intervals;
+
+    /**
+     * The fingerprints of the current intervals, and of the intervals the current extinction probabilities and
+     * flow were integrated with. Comparing them shows which intervals have to be integrated again.
+     */
+    IntervalFingerprints intervalFingerprints;
 
     int numTypes;
 
-    double[] logScalingFactors;
     boolean[] isRhoSampled;
 
+    double[][] leafLikelihoods;
+    double[] leafLogScalingFactors;
+    double leafDeduplicationRatio;
+
+    /**
+     * The number of intervals whose extinction probabilities and flow were taken from the previous evaluation
+     * instead of being integrated again, in the last evaluation.
+     */
+    int numReusedExtinctionIntervals;
+    int numReusedFlowIntervals;
+
+    /**
+     * The number of nodes whose partial likelihoods were recomputed in the last evaluation.
+     */
+    int numUpdatedNodes;
+
     int totalNumEvaluations = 0;
     int numEvaluationsSinceReset = 0;
     int numFailedEvaluationsSinceReset = 0;
@@ -176,9 +337,14 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
 
     IFlow storedFlow;
     ExtinctionProbabilities storedExtinctionProbabilities;
+    List<Interval> storedIntervals;
+    IntervalIndex storedParameterizationIntervalIndex;
+    IntervalFingerprints storedIntervalFingerprints;
+    IntervalFingerprints storedFlowFingerprints;
 
     IFlow currentFlow;
     ExtinctionProbabilities currentExtinctionProbabilities;
+    IntervalFingerprints currentFlowFingerprints;
 
     @Override
     public void initAndValidate() {
@@ -200,8 +366,21 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
         this.parallelize = this.parallelizeInput.get();
         this.minimalSubtreeSizeForParallelization = minimalSubtreeSizeForParallelizationInput.get();
         this.useInverseFlow = this.useInverseFlowInput.get();
+        this.useCoupledIntegration = this.useCoupledIntegrationInput.get();
+        this.useMagnusIntegrator = switch (this.flowIntegratorInput.get()) {
+            case DORMAND_PRINCE_INTEGRATOR -> false;
+            case MAGNUS_INTEGRATOR -> true;
+            default -> throw new RuntimeException(
+                    "Error: flow integrator not known."
+            );
+        };
+        this.matrixKernel = MatrixKernels.get(this.matrixBackendInput.get());
         this.maxConditioningNumber = this.maxConditioningNumberInput.get();
         this.useLoucaPennellIntervals = this.useLoucaPennellIntervalsInput.get();
+        this.useSparseKernel = this.useSparseKernelInput.get();
+        this.deduplicateLeaves = this.deduplicateLeavesInput.get();
+        this.flowCacheSize = this.flowCacheSizeInput.get();
+        this.threadCount = this.threadCountInput.get();
 
         // reset cache
 
@@ -236,6 +415,36 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
             );
         }
 
+        // validate integration mode
+
+        if (this.useInverseFlow && this.useCoupledIntegration) {
+            throw new RuntimeException(
+                    "Error: the inverse flow cannot be integrated together with the extinction probabilities."
+            );
+        }
+
+        if (this.useMagnusIntegrator && (this.useInverseFlow || this.useCoupledIntegration)) {
+            throw new RuntimeException(
+                    "Error: the Magnus integrator is only available for the standard flow."
+            );
+        }
+
+        // validate cache size
+
+        if (this.flowCacheSize < 1) {
+            throw new RuntimeException(
+                    "Error: the flow cache size must be positive."
+            );
+        }
+
+        // validate thread count
+
+        if (this.threadCount < 0) {
+            throw new RuntimeException(
+                    "Error: the thread count must not be negative."
+            );
+        }
+
         // check that we don't have birth events with two different birth types
 
 //        if (this.parameterization.hasCrossBirthRates3()) {
@@ -246,9 +455,33 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
 
         // initialize utils
 
-        this.logScalingFactors = new double[this.tree.getNodeCount()];
+        this.edgeStartLikelihoodBuffers = new double[2][this.tree.getNodeCount()][this.numTypes];
+        this.logScalingFactorBuffers = new double[2][this.tree.getNodeCount()];
+        this.currentBufferIndices = new int[this.tree.getNodeCount()];
+        this.storedBufferIndices = new int[this.tree.getNodeCount()];
+        this.needsUpdate = new boolean[this.tree.getNodeCount()];
+        this.updateOrder = new int[this.tree.getNodeCount()];
+        this.traversalStack = new int[this.tree.getNodeCount()];
+        this.preparedNodeNrs = new int[this.tree.getNodeCount()];
+        this.preparedEdgeStartTimes = new double[this.tree.getNodeCount()];
+        this.preparedEdgeEndTimes = new double[this.tree.getNodeCount()];
+        this.subtreeCosts = new double[this.tree.getNodeCount()];
+        this.isTaskRoot = new boolean[this.tree.getNodeCount()];
+        this.taskNodes = new int[this.tree.getNodeCount()][];
+        this.nestedTaskRoots = new int[this.tree.getNodeCount()][];
+        this.subtreeTasks = new SubtreeLikelihoodTask[this.tree.getNodeCount()];
+        this.taskRoots = new int[this.tree.getNodeCount()];
+        this.taskOwners = new int[this.tree.getNodeCount()];
+        this.taskNodeCounts = new int[this.tree.getNodeCount()];
+        this.nestedTaskCounts = new int[this.tree.getNodeCount()];
+        this.leafLikelihoods = new double[this.tree.getNodeCount()][];
+        this.leafLogScalingFactors = new double[this.tree.getNodeCount()];
         this.initializeIsRhoSampled();
-        this.forkJoinPool = new ForkJoinPool();
+        this.plan = new EvaluationPlan(this.tree, this.resolveTipTypes());
+        int parallelism = ForkJoinPools.getParallelism(this.threadCount);
+        this.forkJoinPool = this.executorNameInput.get() == null
+                ? ForkJoinPools.create("bdmmflow", parallelism)
+                : ForkJoinPools.getShared(this.executorNameInput.get(), parallelism);
 
         // initialize bdmm prime as a fallback if we detect numerical issues
 
@@ -287,29 +520,113 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
     }
 
     /**
-     * Initialized the `subtreeSizes` array with the number of nodes in the subtree of
-     * each node.
+     * Resolves the types of all leaves once, such that the likelihood calculation does not need to look up the
+     * type names.
+     */
+    private int[] resolveTipTypes() {
+        int[] tipTypes = new int[this.tree.getNodeCount()];
+        for (Node node : this.tree.getNodesAsArray()) {
+            if (node.isLeaf()) {
+                tipTypes[node.getNr()] = this.getNodeType(node);
+            }
+        }
+        return tipTypes;
+    }
+
+    /**
+     * Initializes the `subtreeCosts` array with the estimated cost of integrating over all edges in the subtree of
+     * each node that is updated, and derives the cost above which both children of a node are traversed in
+     * parallel. Subtrees that are not updated cost nothing.
      */
-    private void initializeSubtreeSizes() {
-        this.subtreeSizes = new int[this.tree.getNodeCount()];
-        initializeSubtreeSizes(tree.getRoot());
-        this.parallelizeSubtreeSizeThreshold = Math.max(
-                this.subtreeSizes[tree.getRoot().getNr()] * this.minimalProportionForParallelization,
-                this.minimalSubtreeSizeForParallelization
+    private void initializeSubtreeCosts(IFlow flow) {
+        for (int k = 0; k < this.numUpdatedNodes; k++) {
+            int nodeNr = this.updateOrder[k];
+
+            // direct ancestors are handled at their parent and have no edge of their own
+            double subtreeCost = this.plan.isDirectAncestor(nodeNr)
+                    ? 0.0
+                    : flow.estimateEdgeCost(nodeNr, this.plan.getEdgeStartTime(nodeNr), this.plan.getNodeTime(nodeNr));
+            if (!this.plan.isLeaf(nodeNr)) {
+                subtreeCost += this.getSubtreeCost(this.plan.getLeftChild(nodeNr));
+                subtreeCost += this.getSubtreeCost(this.plan.getRightChild(nodeNr));
+            }
+
+            this.subtreeCosts[nodeNr] = subtreeCost;
+        }
+
+        double rootCost = this.getSubtreeCost(this.plan.getRootNr());
+        double averageEdgeCost = rootCost / this.plan.getNodeCount();
+        this.parallelizeSubtreeCostThreshold = averageEdgeCost * Math.max(
+                this.minimalSubtreeSizeForParallelization,
+                (double) this.plan.getNodeCount() / (TASKS_PER_WORKER * this.forkJoinPool.getParallelism())
         );
     }
 
+    private double getSubtreeCost(int nodeNr) {
+        return this.needsUpdate[nodeNr] ? this.subtreeCosts[nodeNr] : 0.0;
+    }
+
     /**
-     * Initialized the `subtreeSizes` array with the number of nodes in the subtree of
-     * `node`.
+     * Splits the updated nodes into the subtrees that are evaluated as separate tasks. Both children of a node
+     * become task roots if their subtree costs exceed the threshold, and every node belongs to the task of its
+     * closest task root ancestor.
      */
-    private int initializeSubtreeSizes(Node node) {
-        int subtreeSize = 1;
-        for (Node child : node.getChildren()) {
-            subtreeSize += this.initializeSubtreeSizes(child);
+    private void initializeSubtreeTasks(IFlow flow, ExtinctionProbabilities extinctionProbabilities) {
+        int rootNr = this.plan.getRootNr();
+
+        for (int k = 0; k < this.numTaskRoots; k++) {
+            this.isTaskRoot[this.taskRoots[k]] = false;
+        }
+        this.numTaskRoots = 0;
+        this.isTaskRoot[rootNr] = true;
+
+        // in reverse post-order, every parent is visited before its children
+        for (int k = this.numUpdatedNodes - 1; k >= 0; k--) {
+            int nodeNr = this.updateOrder[k];
+
+            if (this.isTaskRoot[nodeNr]) {
+                this.taskOwners[nodeNr] = nodeNr;
+                this.taskRoots[this.numTaskRoots++] = nodeNr;
+                this.taskNodeCounts[nodeNr] = 0;
+                this.nestedTaskCounts[nodeNr] = 0;
+                if (nodeNr != rootNr) {
+                    this.nestedTaskCounts[this.taskOwners[this.plan.getParent(nodeNr)]]++;
+                }
+            } else {
+                this.taskOwners[nodeNr] = this.taskOwners[this.plan.getParent(nodeNr)];
+            }
+            this.taskNodeCounts[this.taskOwners[nodeNr]]++;
+
+            if (!this.plan.isLeaf(nodeNr)) {
+                int left = this.plan.getLeftChild(nodeNr);
+                int right = this.plan.getRightChild(nodeNr);
+                if (this.parallelizeSubtreeCostThreshold < this.getSubtreeCost(left)
+                        && this.parallelizeSubtreeCostThreshold < this.getSubtreeCost(right)) {
+                    this.isTaskRoot[left] = true;
+                    this.isTaskRoot[right] = true;
+                }
+            }
+        }
+
+        for (int k = 0; k < this.numTaskRoots; k++) {
+            int nodeNr = this.taskRoots[k];
+            this.taskNodes[nodeNr] = new int[this.taskNodeCounts[nodeNr]];
+            this.nestedTaskRoots[nodeNr] = new int[this.nestedTaskCounts[nodeNr]];
+            this.subtreeTasks[nodeNr] = new SubtreeLikelihoodTask(nodeNr, flow, extinctionProbabilities);
+            this.taskNodeCounts[nodeNr] = 0;
+            this.nestedTaskCounts[nodeNr] = 0;
+        }
+
+        for (int k = 0; k < this.numUpdatedNodes; k++) {
+            int nodeNr = this.updateOrder[k];
+            int owner = this.taskOwners[nodeNr];
+            this.taskNodes[owner][this.taskNodeCounts[owner]++] = nodeNr;
+
+            if (this.isTaskRoot[nodeNr] && nodeNr != rootNr) {
+                int parentOwner = this.taskOwners[this.plan.getParent(nodeNr)];
+                this.nestedTaskRoots[parentOwner][this.nestedTaskCounts[parentOwner]++] = nodeNr;
+            }
         }
-        this.subtreeSizes[node.getNr()] = subtreeSize;
-        return subtreeSize;
     }
 
     /**
@@ -330,45 +647,83 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
             return Double.NEGATIVE_INFINITY;
         }
 
-        // set up subtrees for parallelization
+        // pick up the inputs that are not part of the parameterization, the start type prior probabilities only
+        // enter at the root
 
-        this.initializeSubtreeSizes();
+        this.startTypePriorProbs = this.startTypePriorProbsInput.get().getDoubleValues();
 
-        // set up intervals
+        double finalSampleOffset = this.finalSampleOffsetInput.get().getArrayValue();
+        boolean finalSampleOffsetChanged = finalSampleOffset != this.finalSampleOffset;
+        if (finalSampleOffsetChanged) {
+            this.finalSampleOffset = finalSampleOffset;
+            this.initializeIsRhoSampled();
+        }
+
+        // set up intervals and bring the evaluation plan up to date. the node times only move if the intervals or
+        // the process length changed, changes of the rates are handled per interval when integrating the ODEs, and
+        // changes of the removal probabilities only affect the sampled nodes
+
+        boolean nodeTimesChanged = this.intervals == null;
+        if (this.intervals == null || this.parameterization.isDirtyCalculation()) {
+            IntervalFingerprints previousFingerprints = this.intervalFingerprints;
+            this.intervals = IntervalUtils.getIntervals(this.parameterization);
+            this.parameterizationIntervalIndex = IntervalIndex.fromParameterization(this.parameterization);
+            this.intervalFingerprints = new IntervalFingerprints(this.parameterization, this.intervals);
+            nodeTimesChanged |= !this.intervalFingerprints.hasSameIntervals(previousFingerprints);
+        }
+        this.plan.update(
+                this.parameterization,
+                this.parameterizationIntervalIndex,
+                this.finalSampleOffset,
+                nodeTimesChanged || finalSampleOffsetChanged
+        );
 
-        List<Interval> intervals = IntervalUtils.getIntervals(this.parameterization);
+        List<Interval> intervals = this.intervals;
 
         // integrate over the extinction probabilities ODE and the flow ODE
 
-        ExtinctionProbabilities extinctionProbabilities = null;
-        IFlow flow = null;
+        ExtinctionProbabilities extinctionProbabilities;
+        IFlow flow;
         try {
-            extinctionProbabilities = this.calculateExtinctionProbabilities(intervals);
-            flow = this.calculateFlow(intervals, extinctionProbabilities);
+            // all parallel stages run in the pool of this distribution
+            flow = ForkJoinPools.invoke(this.forkJoinPool, () -> {
+                if (this.useCoupledIntegration) {
+                    return this.calculateCoupledFlow(intervals);
+                }
+
+                int firstReusableInterval = this.intervalFingerprints.getFirstReusableInterval(
+                        this.currentFlowFingerprints
+                );
+                return this.calculateFlow(
+                        intervals,
+                        this.calculateExtinctionProbabilities(intervals, firstReusableInterval),
+                        firstReusableInterval
+                );
+            });
+            extinctionProbabilities = this.currentExtinctionProbabilities;
         } catch (NumberIsTooSmallException | SingularMatrixException | IllegalStateException e) {
             this.numFailedEvaluationsSinceReset++;
             this.resetCache();
             return this.bdmmPrime.calculateTreeLogLikelihood(dummyTree);
         }
 
-        // recursively traverse the tree to calculate the root likelihood per state
+        // traverse the tree to calculate the root likelihood per state, reusing the unchanged subtrees
 
-        Node root = this.tree.getRoot();
         double[] rootLikelihoodPerState;
 
         try {
-            rootLikelihoodPerState = this.calculateSubTreeLikelihood(
-                    root,
-                    0,
-                    this.parameterization.getNodeTime(root, this.finalSampleOffset),
-                    flow,
-                    extinctionProbabilities
+            rootLikelihoodPerState = ForkJoinPools.invoke(
+                    this.forkJoinPool,
+                    () -> this.calculateRootLikelihood(flow, extinctionProbabilities)
             );
-        } catch (CompletionException | SingularMatrixException | IllegalStateException exception) {
+        } catch (SingularMatrixException | IllegalStateException exception) {
             this.numFailedEvaluationsSinceReset++;
             return this.bdmmPrime.calculateTreeLogLikelihood(dummyTree);
         }
 
+        this.logCacheStatistics(flow);
+        this.logPoolStatistics();
+
         // get tree likelihood by a weighted average of the root likelihood per state
 
         double treeLikelihood = 0.0;
@@ -387,7 +742,7 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
 
         // turn the likelihood into log likelihood and correct for scaling
 
-        double logTreeLikelihood = Math.log(treeLikelihood) + this.logScalingFactors[root.getNr()];
+        double logTreeLikelihood = Math.log(treeLikelihood) + this.getLogScalingFactor(this.plan.getRootNr());
 
         // convert from oriented to labeled tree likelihood
 
@@ -401,6 +756,124 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
         return logTreeLikelihood;
     }
 
+    /**
+     * Calculates the per-type likelihood at the root by traversing the tree. Must be called from a thread of the
+     * pool, such that the subtrees can be forked.
+     * <p>
+     * If the flow is the same as in the last evaluation, only the nodes whose edge changed, the leaves in the
+     * intervals whose removal probabilities changed and their ancestors are recomputed, and the partial likelihoods
+     * of all other subtrees are reused.
+     */
+    private double[] calculateRootLikelihood(IFlow flow, ExtinctionProbabilities extinctionProbabilities) {
+        boolean updateAll = !this.partialsAreValid
+                || flow != this.partialsFlow
+                || !this.intervalFingerprints.hasSameIntervals(this.partialsFingerprints);
+        boolean[] changedRemovalIntervals = updateAll || this.intervalFingerprints == this.partialsFingerprints
+                ? null
+                : this.intervalFingerprints.getChangedRemovalIntervals(this.partialsFingerprints);
+
+        // the partials are only valid again once the traversal completed
+        this.partialsAreValid = false;
+
+        if (this.markNodesToUpdate(updateAll, changedRemovalIntervals)) {
+            this.calculateLeafLikelihoods(extinctionProbabilities);
+        }
+        this.prepareEdges(flow);
+
+        double[] rootLikelihood;
+        if (this.parallelize && this.needsUpdate[this.plan.getRootNr()]) {
+            this.initializeSubtreeCosts(flow);
+            this.initializeSubtreeTasks(flow, extinctionProbabilities);
+            rootLikelihood = this.subtreeTasks[this.plan.getRootNr()].compute().getOrThrow();
+        } else {
+            for (int k = 0; k < this.numUpdatedNodes; k++) {
+                this.calculateEdgeLikelihood(this.updateOrder[k], flow, extinctionProbabilities);
+            }
+            rootLikelihood = this.getEdgeStartLikelihood(this.plan.getRootNr());
+        }
+
+        this.partialsFlow = flow;
+        this.partialsFingerprints = this.intervalFingerprints;
+        this.partialsAreValid = true;
+        return rootLikelihood;
+    }
+
+    /**
+     * Marks the nodes in `needsUpdate` whose partial likelihoods have to be recomputed, which are all nodes if
+     * updateAll is set and otherwise the nodes whose edge changed, the leaves in the given parameterization
+     * intervals and their ancestors. A direct ancestor is a leaf at the time of its parent, such that the parent
+     * is marked with it. The marked nodes are listed in `updateOrder`, such that only they are visited.
+     *
+     * @param changedRemovalIntervals the parameterization intervals whose removal probabilities changed, or null.
+     * @return whether any leaf has to be recomputed.
+     */
+    private boolean markNodesToUpdate(boolean updateAll, boolean[] changedRemovalIntervals) {
+        for (int k = 0; k < this.numUpdatedNodes; k++) {
+            this.needsUpdate[this.updateOrder[k]] = false;
+        }
+
+        if (updateAll) {
+            Arrays.fill(this.needsUpdate, true);
+        } else {
+            for (int k = 0; k < this.plan.getChangedNodeCount(); k++) {
+                this.markNodeAndAncestors(this.plan.getChangedNode(k));
+            }
+            if (changedRemovalIntervals != null) {
+                for (int nodeNr = 0; nodeNr < this.plan.getNodeCount(); nodeNr++) {
+                    if (this.plan.isLeaf(nodeNr) && changedRemovalIntervals[this.plan.getIntervalIndex(nodeNr)]) {
+                        this.markNodeAndAncestors(nodeNr);
+                    }
+                }
+            }
+        }
+
+        // the marked nodes contain all their ancestors, such that they are reached from the root. they are visited
+        // in reverse post-order with the right child first and then reversed
+        int numNodesToUpdate = 0;
+        boolean updateLeaves = false;
+        int stackSize = 0;
+        if (this.needsUpdate[this.plan.getRootNr()]) {
+            this.traversalStack[stackSize++] = this.plan.getRootNr();
+        }
+
+        while (0 < stackSize) {
+            int nodeNr = this.traversalStack[--stackSize];
+            this.updateOrder[numNodesToUpdate++] = nodeNr;
+
+            if (this.plan.isLeaf(nodeNr)) {
+                updateLeaves = true;
+            } else {
+                if (this.needsUpdate[this.plan.getLeftChild(nodeNr)]) {
+                    this.traversalStack[stackSize++] = this.plan.getLeftChild(nodeNr);
+                }
+                if (this.needsUpdate[this.plan.getRightChild(nodeNr)]) {
+                    this.traversalStack[stackSize++] = this.plan.getRightChild(nodeNr);
+                }
+            }
+        }
+
+        for (int i = 0, j = numNodesToUpdate - 1; i < j; i++, j--) {
+            int nodeNr = this.updateOrder[i];
+            this.updateOrder[i] = this.updateOrder[j];
+            this.updateOrder[j] = nodeNr;
+        }
+
+        this.numUpdatedNodes = numNodesToUpdate;
+        BenchmarkRun.logMetric("updatedNodes", String.valueOf(numNodesToUpdate));
+        return updateLeaves;
+    }
+
+    /**
+     * Marks the given node and its ancestors in `needsUpdate`, stopping at the first ancestor that is marked
+     * already, whose ancestors are marked as well.
+     */
+    private void markNodeAndAncestors(int nodeNr) {
+        while (nodeNr != -1 && !this.needsUpdate[nodeNr]) {
+            this.needsUpdate[nodeNr] = true;
+            nodeNr = this.plan.getParent(nodeNr);
+        }
+    }
+
     /**
      * Returns true if the input values are invalid or have a density of 0.
      */
@@ -484,15 +957,25 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
      *
      * @return a wrapper class that allows to query the extinction probabilities at any given time.
      */
-    private ExtinctionProbabilities calculateExtinctionProbabilities(List<Interval> intervals) {
+    private ExtinctionProbabilities calculateExtinctionProbabilities(
+            List<Interval> intervals,
+            int firstReusableInterval
+    ) {
         if (!this.parameterization.isDirtyCalculation() && this.currentExtinctionProbabilities != null) {
             // the parameterization hasn't changed, which means the extinction probabilities are still the same
+            this.setNumReusedExtinctionIntervals(intervals.size());
+            return this.currentExtinctionProbabilities;
+        }
+
+        if (firstReusableInterval == 0) {
+            // none of the values the ODE depends on changed
+            this.setNumReusedExtinctionIntervals(intervals.size());
             return this.currentExtinctionProbabilities;
         }
 
         // initialize ODE system
 
-        IntervalODESystem system = new ExtinctionProbabilitiesODESystem(
+        ExtinctionProbabilitiesODESystem system = new ExtinctionProbabilitiesODESystem(
                 this.parameterization,
                 intervals,
                 this.absoluteTolerance,
@@ -508,37 +991,50 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
             initialState[i] = 1 - this.parameterization.getRhoValues()[endInterval][i];
         }
 
-        List<double[]> initialStates = List.of(initialState);
-
-        // integrate
+        // integrate, continuing the current extinction probabilities in the unchanged intervals
 
-        ContinuousOutputModel[] integrationResults = system.integrateBackwards(
-                initialStates, intervals, false, parallelize
+        ExtinctionProbabilities extinctionProbabilities = system.integrateBackwards(
+                initialState, this.currentExtinctionProbabilities, firstReusableInterval
+        );
+        this.setNumReusedExtinctionIntervals(
+                this.currentExtinctionProbabilities == null ? 0 : intervals.size() - firstReusableInterval
         );
-
-        ExtinctionProbabilities extinctionProbabilities = new ExtinctionProbabilities(integrationResults, this.parameterization.getNTypes());
         this.currentExtinctionProbabilities = extinctionProbabilities;
         return extinctionProbabilities;
     }
 
+    private void setNumReusedExtinctionIntervals(int numReusedIntervals) {
+        this.numReusedExtinctionIntervals = numReusedIntervals;
+        BenchmarkRun.logMetric("reusedExtinctionIntervals", String.valueOf(numReusedIntervals));
+    }
+
     /**
      * Precomputes the flow ODE.
      *
      * @param intervals
      * @param extinctionProbabilities the precomputed extinction probabilities.
+     * @param firstReusableInterval   the first interval from which on the current flow is still valid.
      * @return a wrapper class that allows to query the flow at any given time.
      */
-    private IFlow calculateFlow(List<Interval> intervals, ExtinctionProbabilities extinctionProbabilities) {
+    private IFlow calculateFlow(
+            List<Interval> intervals,
+            ExtinctionProbabilities extinctionProbabilities,
+            int firstReusableInterval
+    ) {
         if (!this.parameterization.isDirtyCalculation() && this.currentFlow != null) {
             // the parameterization hasn't changed, which means the flow is still the same
+            this.setNumReusedFlowIntervals(intervals.size());
             return this.currentFlow;
         }
 
-        IFlowODESystem system;
+        if (firstReusableInterval == 0) {
+            // none of the values the ODE depends on changed
+            this.setNumReusedFlowIntervals(intervals.size());
+            return this.currentFlow;
+        }
 
-        // we use the sum of heights as seed, this makes it deterministic for identical trees
-        DoubleStream heights = Arrays.stream(this.tree.getNodesAsArray()).mapToDouble(node -> node.getHeight());
-        int heightSum = (int) Math.floor(10_000 * heights.sum());
+        IFlowODESystem system;
+        int heightSum = this.getFlowSeed();
 
         if (this.useInverseFlow) {
             system = new InverseFlowODESystem(
@@ -549,7 +1045,22 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
                     this.relativeTolerance,
                     heightSum,
                     this.maxConditioningNumber,
-                    this.useLoucaPennellIntervals
+                    this.useLoucaPennellIntervals,
+                    this.matrixKernel,
+                    this.useSparseKernel
+            );
+        } else if (this.useMagnusIntegrator) {
+            system = new MagnusFlowODESystem(
+                    this.parameterization,
+                    extinctionProbabilities,
+                    intervals,
+                    this.absoluteTolerance,
+                    this.relativeTolerance,
+                    heightSum,
+                    this.maxConditioningNumber,
+                    this.useLoucaPennellIntervals,
+                    this.matrixKernel,
+                    this.useSparseKernel
             );
         } else {
             system = new FlowODESystem(
@@ -560,21 +1071,100 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
                     this.relativeTolerance,
                     heightSum,
                     this.maxConditioningNumber,
-                    this.useLoucaPennellIntervals
+                    this.useLoucaPennellIntervals,
+                    this.matrixKernel,
+                    this.useSparseKernel
             );
         }
 
+        // the flow of the unchanged intervals can be reused unless the initial states are random
+        boolean reuseFlow = system instanceof FlowODESystem
+                && !this.isStochastic()
+                && FlowODESystem.canReuseIntervals(this.currentFlow);
+
         extinctionProbabilities.validateProbabilities(true);
+        IFlow flow = reuseFlow
+                ? ((FlowODESystem) system).calculateFlowIntegral(
+                        initialMatrixStrategy,
+                        this.parallelize,
+                        this.currentFlow,
+                        firstReusableInterval
+                )
+                : system.calculateFlowIntegral(
+                        initialMatrixStrategy,
+                        this.parallelize
+                );
+        extinctionProbabilities.validateProbabilities(false);
+        // the first reusable interval is integrated again, see FlowODESystem.calculateFlowIntegral
+        this.setNumReusedFlowIntervals(reuseFlow ? Math.max(0, intervals.size() - firstReusableInterval - 1) : 0);
+
+        flow.setCacheSize(this.flowCacheSize * 1024L * 1024L);
+        this.currentFlow = flow;
+        this.currentFlowFingerprints = this.intervalFingerprints;
+        return flow;
+    }
+
+    private void setNumReusedFlowIntervals(int numReusedIntervals) {
+        this.numReusedFlowIntervals = numReusedIntervals;
+        BenchmarkRun.logMetric("reusedFlowIntervals", String.valueOf(numReusedIntervals));
+    }
+
+    /**
+     * Integrates over the flow ODE and the extinction probabilities ODE in a single sweep. The resulting
+     * extinction probabilities are stored in currentExtinctionProbabilities.
+     *
+     * @param intervals
+     * @return a wrapper class that allows to query the flow at any given time.
+     */
+    private IFlow calculateCoupledFlow(List<Interval> intervals) {
+        // none of the values the ODEs depend on changed if the parameterization is clean or only the removal
+        // probabilities changed
+        boolean isUnchanged = !this.parameterization.isDirtyCalculation()
+                || this.intervalFingerprints.getFirstReusableInterval(this.currentFlowFingerprints) == 0;
+
+        if (isUnchanged && this.currentFlow != null && this.currentExtinctionProbabilities != null) {
+            this.setNumReusedExtinctionIntervals(intervals.size());
+            this.setNumReusedFlowIntervals(intervals.size());
+            return this.currentFlow;
+        }
+
+        // the coupled system integrates over all intervals at once
+        this.setNumReusedExtinctionIntervals(0);
+        this.setNumReusedFlowIntervals(0);
+
+        CoupledFlowODESystem system = new CoupledFlowODESystem(
+                this.parameterization,
+                intervals,
+                this.absoluteTolerance,
+                this.relativeTolerance,
+                this.getFlowSeed(),
+                this.maxConditioningNumber,
+                this.useLoucaPennellIntervals,
+                this.matrixKernel,
+                this.useSparseKernel
+        );
+
         IFlow flow = system.calculateFlowIntegral(
                 initialMatrixStrategy,
                 this.parallelize
         );
-        extinctionProbabilities.validateProbabilities(false);
 
+        flow.setCacheSize(this.flowCacheSize * 1024L * 1024L);
+        this.currentExtinctionProbabilities = system.getExtinctionProbabilities();
         this.currentFlow = flow;
+        this.currentFlowFingerprints = this.intervalFingerprints;
         return flow;
     }
 
+    /**
+     * Returns the seed for the flow initial states.
+     * We use the sum of heights as seed, this makes it deterministic for identical trees.
+     */
+    private int getFlowSeed() {
+        DoubleStream heights = IntStream.range(0, this.plan.getNodeCount()).mapToDouble(this.plan::getHeight);
+        return (int) Math.floor(10_000 * heights.sum());
+    }
+
     /**
      * Calculates the probability density factor due to the way the tree is conditioned.
      * <p>
@@ -591,7 +1181,7 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
         if (this.conditionOnRoot) {
             double[] extinctionAtRoot = extinctionProbabilities.getProbability(0);
 
-            int startInterval = this.parameterization.getIntervalIndex(0);
+            int startInterval = this.parameterizationIntervalIndex.findRightClosed(0);
 
             for (int type1 = 0; type1 < parameterization.getNTypes(); type1++) {
                 for (int type2 = 0; type2 < parameterization.getNTypes(); type2++) {
@@ -617,30 +1207,66 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
         return conditionDensity;
     }
 
+    /**
+     * Lets the flow precompute the flow matrices and factorizations of all edges that are recomputed, in parallel
+     * if enabled. The following traversal then only operates the cached flows.
+     */
+    private void prepareEdges(IFlow flow) {
+        int edgeCount = 0;
+
+        for (int k = 0; k < this.numUpdatedNodes; k++) {
+            int nodeNr = this.updateOrder[k];
+            // direct ancestors are handled at their parent and have no edge of their own
+            if (this.plan.isDirectAncestor(nodeNr)) continue;
+
+            this.preparedNodeNrs[edgeCount] = nodeNr;
+            this.preparedEdgeStartTimes[edgeCount] = this.plan.getEdgeStartTime(nodeNr);
+            this.preparedEdgeEndTimes[edgeCount] = this.plan.getNodeTime(nodeNr);
+            edgeCount++;
+        }
+
+        flow.prepareEdges(
+                this.preparedNodeNrs,
+                this.preparedEdgeStartTimes,
+                this.preparedEdgeEndTimes,
+                edgeCount,
+                this.parallelize
+        );
+    }
+
     /**
      * Calculates the per-type likelihood of the subtree of the given node including the edge leading to the
-     * node.
+     * node, and stores it in the unstored buffer of the node. The tree is traversed iteratively in post-order,
+     * such that the likelihoods of the children are always available. Direct ancestors have no edge of their own
+     * and are skipped, they are handled at their parent. Nodes that do not need an update keep their likelihood
+     * from the last evaluation.
      */
-    private double[] calculateSubTreeLikelihood(
-            Node node,
-            double timeEdgeStart,
-            double timeEdgeEnd,
+    private void calculateEdgeLikelihood(
+            int nodeNr,
             IFlow flow,
             ExtinctionProbabilities extinctionProbabilities
     ) {
+        if (this.plan.isDirectAncestor(nodeNr) || !this.needsUpdate[nodeNr]) return;
+
+        int buffer = 1 - this.storedBufferIndices[nodeNr];
+        this.currentBufferIndices[nodeNr] = buffer;
+
         double[] likelihoodEdgeEnd;
 
-        if (node.isLeaf()) {
-            likelihoodEdgeEnd = calculateLeafLikelihood(node, timeEdgeEnd, extinctionProbabilities);
-        } else if (node.getChild(0).isDirectAncestor() || node.getChild(1).isDirectAncestor()) {
-            likelihoodEdgeEnd = calculateDirectAncestorWithChildLikelihood(node, timeEdgeEnd, flow, extinctionProbabilities);
+        if (this.plan.isLeaf(nodeNr)) {
+            likelihoodEdgeEnd = this.leafLikelihoods[nodeNr];
+            this.setLogScalingFactor(nodeNr, this.leafLogScalingFactors[nodeNr]);
+        } else if (this.plan.isDirectAncestor(this.plan.getLeftChild(nodeNr))
+                || this.plan.isDirectAncestor(this.plan.getRightChild(nodeNr))) {
+            likelihoodEdgeEnd = calculateDirectAncestorWithChildLikelihood(nodeNr, flow, extinctionProbabilities);
         } else {
-            likelihoodEdgeEnd = calculateInternalEdgeLikelihood(node, timeEdgeEnd, flow, extinctionProbabilities);
+            likelihoodEdgeEnd = calculateInternalEdgeLikelihood(nodeNr, flow, extinctionProbabilities);
         }
 
         IntegrationResult likelihoodEdgeStart = flow.integrateUsingFlow(
-                timeEdgeStart,
-                timeEdgeEnd,
+                nodeNr,
+                this.plan.getEdgeStartTime(nodeNr),
+                this.plan.getNodeTime(nodeNr),
                 likelihoodEdgeEnd
         );
 
@@ -652,23 +1278,202 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
             }
         }
 
-        this.logScalingFactors[node.getNr()] += likelihoodEdgeStart.logScalingFactor();
-        return likelihoodEdgeStart.result();
+        this.logScalingFactorBuffers[buffer][nodeNr] += likelihoodEdgeStart.logScalingFactor();
+        System.arraycopy(
+                likelihoodEdgeStart.result(), 0, this.edgeStartLikelihoodBuffers[buffer][nodeNr], 0, this.numTypes
+        );
+    }
+
+    /**
+     * Returns the current likelihood at the start of the edge leading to the given node.
+     */
+    private double[] getEdgeStartLikelihood(int nodeNr) {
+        return this.edgeStartLikelihoodBuffers[this.currentBufferIndices[nodeNr]][nodeNr];
+    }
+
+    private double getLogScalingFactor(int nodeNr) {
+        return this.logScalingFactorBuffers[this.currentBufferIndices[nodeNr]][nodeNr];
+    }
+
+    private void setLogScalingFactor(int nodeNr, double logScalingFactor) {
+        this.logScalingFactorBuffers[this.currentBufferIndices[nodeNr]][nodeNr] = logScalingFactor;
+    }
+
+    /**
+     * Returns the likelihood at the start of the edge leading to the given child. If the child is the root of a
+     * nested task, the task is joined first, which runs other tasks instead of blocking.
+     */
+    private double[] getChildLikelihood(int childNr) {
+        if (this.parallelize && this.isTaskRoot[childNr]) {
+            return this.subtreeTasks[childNr].join().getOrThrow();
+        }
+        return this.getEdgeStartLikelihood(childNr);
+    }
+
+    /**
+     * Calculates the likelihood of a subtree including the edge leading to it as a fork/join task. The nested
+     * tasks are forked first, the most expensive one first such that idle workers steal the deep parts of the
+     * tree. Errors are returned instead of thrown, and all nested tasks are joined before the task completes, such
+     * that a task that fails never leaves other tasks running in the background.
+     */
+    private class SubtreeLikelihoodTask extends RecursiveTask<Result<double[]>> {
+        private static final long serialVersionUID = 1L;
+
+        final int nodeNr;
+        final IFlow flow;
+        final ExtinctionProbabilities extinctionProbabilities;
+
+        SubtreeLikelihoodTask(int nodeNr, IFlow flow, ExtinctionProbabilities extinctionProbabilities) {
+            this.nodeNr = nodeNr;
+            this.flow = flow;
+            this.extinctionProbabilities = extinctionProbabilities;
+        }
+
+        @Override
+        protected Result<double[]> compute() {
+            int[] nestedRoots = IntStream.of(nestedTaskRoots[this.nodeNr])
+                    .boxed()
+                    .sorted(Comparator.comparingDouble(nestedRoot -> -subtreeCosts[nestedRoot]))
+                    .mapToInt(Integer::intValue)
+                    .toArray();
+            for (int nestedRoot : nestedRoots) {
+                subtreeTasks[nestedRoot].fork();
+            }
+
+            Result<double[]> result = Result.of(() -> {
+                for (int taskNodeNr : taskNodes[this.nodeNr]) {
+                    calculateEdgeLikelihood(taskNodeNr, this.flow, this.extinctionProbabilities);
+                }
+                return getEdgeStartLikelihood(this.nodeNr);
+            });
+
+            for (int nestedRoot : nestedRoots) {
+                subtreeTasks[nestedRoot].join();
+            }
+            return result;
+        }
+    }
+
+    private record LeafGroup(double time, int type, boolean isRhoSampled) {}
+
+    /**
+     * Calculates the rescaled likelihoods at the end of the leaf edges that are updated. The likelihoods of the
+     * other leaves are not read before their edge is updated. Leaves that share their time, type and sampling
+     * share a single boundary vector, which is computed once per group.
+     */
+    private void calculateLeafLikelihoods(ExtinctionProbabilities extinctionProbabilities) {
+        Map<LeafGroup, Integer> groupRepresentatives = new HashMap<>();
+        int numLeaves = 0;
+        int numDistinctLeaves = 0;
+
+        for (int k = 0; k < this.numUpdatedNodes; k++) {
+            int nodeNr = this.updateOrder[k];
+            if (!this.plan.isLeaf(nodeNr) || this.plan.isDirectAncestor(nodeNr)) continue;
+
+            double time = this.plan.getNodeTime(nodeNr);
+            LeafGroup group = new LeafGroup(time, this.plan.getTipType(nodeNr), this.isRhoSampled[nodeNr]);
+            numLeaves++;
+
+            Integer representative = this.deduplicateLeaves ? groupRepresentatives.putIfAbsent(group, nodeNr) : null;
+            if (representative == null) {
+                numDistinctLeaves++;
+                this.leafLikelihoods[nodeNr] = this.calculateLeafLikelihood(nodeNr, time, extinctionProbabilities);
+                this.leafLogScalingFactors[nodeNr] = Utils.rescale(this.leafLikelihoods[nodeNr]);
+            } else {
+                this.leafLikelihoods[nodeNr] = this.leafLikelihoods[representative];
+                this.leafLogScalingFactors[nodeNr] = this.leafLogScalingFactors[representative];
+            }
+        }
+
+        this.leafDeduplicationRatio = numLeaves == 0 ? 1.0 : 1.0 * numDistinctLeaves / numLeaves;
+        BenchmarkRun.logMetric("leafDeduplicationRatio", String.valueOf(this.leafDeduplicationRatio));
+    }
+
+    /**
+     * Logs the accumulated hit, miss and eviction counts of the caches of the given flow.
+     */
+    private void logCacheStatistics(IFlow flow) {
+        CacheStatistics statistics = flow.getCacheStatistics();
+        BenchmarkRun.logMetric("flowCacheHits", String.valueOf(statistics.hits()));
+        BenchmarkRun.logMetric("flowCacheMisses", String.valueOf(statistics.misses()));
+        BenchmarkRun.logMetric("flowCacheEvictions", String.valueOf(statistics.evictions()));
+    }
+
+    /**
+     * Logs the size of the thread pool and the number of tasks stolen between its workers so far.
+     */
+    private void logPoolStatistics() {
+        ForkJoinPools.PoolStatistics statistics = this.getPoolStatistics();
+        BenchmarkRun.logMetric("poolParallelism", String.valueOf(statistics.parallelism()));
+        BenchmarkRun.logMetric("poolSize", String.valueOf(statistics.poolSize()));
+        BenchmarkRun.logMetric("poolStealCount", String.valueOf(statistics.stealCount()));
+    }
+
+    /**
+     * Returns the utilization statistics of the thread pool used by this distribution.
+     */
+    public ForkJoinPools.PoolStatistics getPoolStatistics() {
+        return ForkJoinPools.getStatistics(this.forkJoinPool);
+    }
+
+    /**
+     * Returns the number of distinct leaf boundary vectors per leaf in the last evaluation, which is 1 if no
+     * boundary vector could be shared.
+     */
+    public double getLeafDeduplicationRatio() {
+        return this.leafDeduplicationRatio;
+    }
+
+    /**
+     * Returns the number of intervals whose extinction probabilities were reused in the last evaluation.
+     */
+    public int getNumReusedExtinctionIntervals() {
+        return this.numReusedExtinctionIntervals;
+    }
+
+    /**
+     * Returns the number of intervals whose flow was reused in the last evaluation, counted before the intervals
+     * are split up for numerical stability.
+     */
+    public int getNumReusedFlowIntervals() {
+        return this.numReusedFlowIntervals;
     }
 
     /**
-     * Calculates the likelihood of a single leaf node including the edge leading to it.
+     * Returns the number of nodes whose partial likelihoods were recomputed in the last evaluation.
+     */
+    public int getNumUpdatedNodes() {
+        return this.numUpdatedNodes;
+    }
+
+    /**
+     * Returns the number of tree nodes that were read again to update the evaluation plan in the last evaluation.
+     */
+    public int getNumReadTreeNodes() {
+        return this.plan.getNumReadNodes();
+    }
+
+    /**
+     * Returns the number of likelihood calculations since the initialization, which does not count the
+     * evaluations that BEAST skipped as no input changed.
+     */
+    public int getNumEvaluations() {
+        return this.totalNumEvaluations;
+    }
+
+    /**
+     * Calculates the likelihood at the end of the edge leading to a single leaf node. The result is not rescaled.
      */
     private double[] calculateLeafLikelihood(
-            Node node,
+            int nodeNr,
             double timeEdgeEnd,
             ExtinctionProbabilities extinctionProbabilities
     ) {
 
-        int intervalEdgeEnd = this.parameterization.getIntervalIndex(timeEdgeEnd);
+        int intervalEdgeEnd = this.plan.getIntervalIndex(nodeNr);
         double[] extinctionProbabilityEdgeEnd = extinctionProbabilities.getProbability(timeEdgeEnd);
 
-        int nodeType = this.getNodeType(node);
+        int nodeType = this.plan.getTipType(nodeNr);
 
         double[] likelihoodEdgeEnd = new double[this.parameterization.getNTypes()];
 
@@ -680,7 +1485,7 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
                 if (parameterization.getTypeSet().ambiguityExcludesType(nodeType, type))
                     continue;
 
-                if (isRhoSampled[node.getNr()]) {
+                if (isRhoSampled[nodeNr]) {
                     likelihoodEdgeEnd[type] = this.parameterization.getRhoValues()[intervalEdgeEnd][type];
                     // in this case, the other boundary conditions are handled by the ODE system in
                     // FlowODESystem and ExtinctionProbabilitiesODESystem
@@ -695,7 +1500,7 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
         } else {
             // we know the state and only set its end likelihood
 
-            if (isRhoSampled[node.getNr()]) {
+            if (isRhoSampled[nodeNr]) {
                 likelihoodEdgeEnd[nodeType] = this.parameterization.getRhoValues()[intervalEdgeEnd][nodeType];
                 // in this case, the other boundary conditions are handled by the ODE system in
                 // FlowODESystem and ExtinctionProbabilitiesODESystem
@@ -707,8 +1512,6 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
             }
         }
 
-        this.logScalingFactors[node.getNr()] = Utils.rescale(likelihoodEdgeEnd);
-
         return likelihoodEdgeEnd;
     }
 
@@ -716,35 +1519,28 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
      * Calculates the likelihood of a node that has a direct ancestor as a child; including the edge leading to it.
      */
     private double[] calculateDirectAncestorWithChildLikelihood(
-            Node node,
-            double timeEdgeEnd,
+            int nodeNr,
             IFlow flow,
             ExtinctionProbabilities extinctionProbabilities
     ) {
-        int intervalEdgeEnd = this.parameterization.getIntervalIndex(timeEdgeEnd);
+        int intervalEdgeEnd = this.plan.getIntervalIndex(nodeNr);
 
         // find the direct ancestor and the child
 
-        Node directAncestor = node.getChild(0).isDirectAncestor() ?
-                node.getChild(0) : node.getChild(1);
-        Node child = node.getChild(0).isDirectAncestor() ?
-                node.getChild(1) : node.getChild(0);
+        int directAncestor = this.plan.isDirectAncestor(this.plan.getLeftChild(nodeNr)) ?
+                this.plan.getLeftChild(nodeNr) : this.plan.getRightChild(nodeNr);
+        int child = this.plan.isDirectAncestor(this.plan.getLeftChild(nodeNr)) ?
+                this.plan.getRightChild(nodeNr) : this.plan.getLeftChild(nodeNr);
 
         // calculate the subtree likelihood of the child
 
-        double[] likelihoodChild = this.calculateSubTreeLikelihood(
-                child,
-                timeEdgeEnd,
-                this.parameterization.getNodeTime(child, this.finalSampleOffset),
-                flow,
-                extinctionProbabilities
-        );
+        double[] likelihoodChild = this.getChildLikelihood(child);
 
         // calculate the likelihood at the edge end
 
         double[] likelihoodEdgeEnd = new double[this.parameterization.getNTypes()];
 
-        int daNodeType = this.getNodeType(directAncestor);
+        int daNodeType = this.plan.getTipType(directAncestor);
 
         if (parameterization.getTypeSet().isAmbiguousTypeIndex(daNodeType)) {
             // the direct ancestor is in an ambiguous state, we set the end likelihoods for all states
@@ -754,7 +1550,7 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
                 if (parameterization.getTypeSet().ambiguityExcludesType(daNodeType, type))
                     continue;
 
-                if (isRhoSampled[directAncestor.getNr()]) {
+                if (isRhoSampled[directAncestor]) {
                     likelihoodEdgeEnd[type] = this.parameterization.getRhoValues()[intervalEdgeEnd][type];
                 } else {
                     likelihoodEdgeEnd[type] = this.parameterization.getSamplingRates()[intervalEdgeEnd][type];
@@ -767,7 +1563,7 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
         } else {
             // we know the direct ancestor state and set the likelihood edge enf only for this type
 
-            if (isRhoSampled[directAncestor.getNr()]) {
+            if (isRhoSampled[directAncestor]) {
                 likelihoodEdgeEnd[daNodeType] = this.parameterization.getRhoValues()[intervalEdgeEnd][daNodeType];
             } else {
                 likelihoodEdgeEnd[daNodeType] = this.parameterization.getSamplingRates()[intervalEdgeEnd][daNodeType];
@@ -777,65 +1573,29 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
                     * likelihoodChild[daNodeType];
         }
 
-        this.logScalingFactors[node.getNr()] = Utils.rescale(likelihoodEdgeEnd, this.logScalingFactors[child.getNr()]);
+        this.setLogScalingFactor(nodeNr, Utils.rescale(likelihoodEdgeEnd, this.getLogScalingFactor(child)));
 
         return likelihoodEdgeEnd;
     }
 
     /**
-     * Calculates the likelihood of the subtree of the given internal node including the edge leading to it.
+     * Calculates the likelihood at the end of the edge leading to the given internal node from the likelihoods of
+     * its two subtrees.
      */
     private double[] calculateInternalEdgeLikelihood(
-            Node node,
-            double timeEdgeEnd,
+            int nodeNr,
             IFlow flow,
             ExtinctionProbabilities extinctionProbabilities
     ) {
-        int intervalEdgeEnd = this.parameterization.getIntervalIndex(timeEdgeEnd);
-
-        Node child1 = node.getChild(0);
-        Node child2 = node.getChild(1);
-
-        // calculate the likelihood of the two subtrees
-
-        double[] likelihoodChild1;
-        double[] likelihoodChild2;
-
-        if (parallelize && subtreeSizes[child1.getNr()] > this.parallelizeSubtreeSizeThreshold
-                && subtreeSizes[child2.getNr()] > this.parallelizeSubtreeSizeThreshold) {
-            CompletableFuture<Result<double[]>> futureLikelihoodChild1 = CompletableFuture.supplyAsync(() ->
-                    Result.of(() -> this.calculateSubTreeLikelihood(
-                        child1,
-                        timeEdgeEnd,
-                        this.parameterization.getNodeTime(child1, this.finalSampleOffset),
-                        flow,
-                        extinctionProbabilities
-                    )), this.forkJoinPool
-            );
-            likelihoodChild2 = this.calculateSubTreeLikelihood(
-                    child2,
-                    timeEdgeEnd,
-                    this.parameterization.getNodeTime(child2, this.finalSampleOffset),
-                    flow,
-                    extinctionProbabilities
-            );
-            likelihoodChild1 = futureLikelihoodChild1.join().getOrThrow();
-        } else {
-            likelihoodChild1 = this.calculateSubTreeLikelihood(
-                    child1,
-                    timeEdgeEnd,
-                    this.parameterization.getNodeTime(child1, this.finalSampleOffset),
-                    flow,
-                    extinctionProbabilities
-            );
-            likelihoodChild2 = this.calculateSubTreeLikelihood(
-                    child2,
-                    timeEdgeEnd,
-                    this.parameterization.getNodeTime(child2, this.finalSampleOffset),
-                    flow,
-                    extinctionProbabilities
-            );
-        }
+        int intervalEdgeEnd = this.plan.getIntervalIndex(nodeNr);
+
+        int child1 = this.plan.getLeftChild(nodeNr);
+        int child2 = this.plan.getRightChild(nodeNr);
+
+        // get the likelihoods of the two subtrees
+
+        double[] likelihoodChild1 = this.getChildLikelihood(child1);
+        double[] likelihoodChild2 = this.getChildLikelihood(child2);
 
         // combine the child likelihoods to get the likelihood at the edge end
 
@@ -856,10 +1616,10 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
             }
         }
 
-        this.logScalingFactors[node.getNr()] = Utils.rescale(
+        this.setLogScalingFactor(nodeNr, Utils.rescale(
                 likelihoodEdgeEnd,
-                this.logScalingFactors[child1.getNr()] + this.logScalingFactors[child2.getNr()]
-        );
+                this.getLogScalingFactor(child1) + this.getLogScalingFactor(child2)
+        ));
 
         return likelihoodEdgeEnd;
     }
@@ -893,21 +1653,71 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
 
     /** Caching **/
 
+    /**
+     * Returns whether any input of the likelihood changed. Otherwise, BEAST keeps the last log likelihood.
+     * Tree-only changes keep the flow and the partial likelihoods of the unchanged subtrees, see
+     * calculateTreeLogLikelihood.
+     */
     @Override
     public boolean requiresRecalculation() {
-        return true;
+        return this.parameterization.isDirtyCalculation()
+                || this.tree.somethingIsDirty()
+                || isDirty(this.startTypePriorProbsInput.get())
+                || isDirty(this.finalSampleOffsetInput.get());
+    }
+
+    /**
+     * Returns whether the given input value changed in the current proposal. Values that are neither state nor
+     * calculation nodes are constant.
+     */
+    private static boolean isDirty(Object value) {
+        if (value instanceof StateNode stateNode) {
+            return stateNode.somethingIsDirty();
+        }
+        if (value instanceof CalculationNode calculationNode) {
+            return calculationNode.isDirtyCalculation();
+        }
+        return false;
+    }
+
+    @Override
+    public void store() {
+        System.arraycopy(this.currentBufferIndices, 0, this.storedBufferIndices, 0, this.currentBufferIndices.length);
+        this.storedPartialsAreValid = this.partialsAreValid;
+        this.storedPartialsFlow = this.partialsFlow;
+        this.storedPartialsFingerprints = this.partialsFingerprints;
+        this.plan.store();
+        super.store();
     }
 
     @Override
     public void accept() {
         this.storedExtinctionProbabilities = this.currentExtinctionProbabilities;
         this.storedFlow = this.currentFlow;
+        this.storedFlowFingerprints = this.currentFlowFingerprints;
+        this.storedIntervals = this.intervals;
+        this.storedParameterizationIntervalIndex = this.parameterizationIntervalIndex;
+        this.storedIntervalFingerprints = this.intervalFingerprints;
+        super.accept();
     }
 
     @Override
     public void restore() {
         this.currentExtinctionProbabilities = this.storedExtinctionProbabilities;
         this.currentFlow = this.storedFlow;
+        this.currentFlowFingerprints = this.storedFlowFingerprints;
+        this.intervals = this.storedIntervals;
+        this.parameterizationIntervalIndex = this.storedParameterizationIntervalIndex;
+        this.intervalFingerprints = this.storedIntervalFingerprints;
+
+        int[] bufferIndices = this.currentBufferIndices;
+        this.currentBufferIndices = this.storedBufferIndices;
+        this.storedBufferIndices = bufferIndices;
+        this.partialsAreValid = this.storedPartialsAreValid;
+        this.partialsFlow = this.storedPartialsFlow;
+        this.partialsFingerprints = this.storedPartialsFingerprints;
+        this.plan.restore();
+        super.restore();
     }
 
     public void resetCache() {
@@ -915,6 +1725,13 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
         this.storedExtinctionProbabilities = null;
         this.currentFlow = null;
         this.storedFlow = null;
+        this.currentFlowFingerprints = null;
+        this.storedFlowFingerprints = null;
+        this.intervals = null;
+        this.storedIntervals = null;
+        this.plan.invalidate();
+        this.partialsAreValid = false;
+        this.storedPartialsAreValid = false;
     }
 
     @Override
@@ -0,0 +1,398 @@
+package bdmmflow;
+
+import bdmmflow.intervals.IntervalIndex;
+import bdmmprime.parameterization.Parameterization;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeInterface;
+
+/**
+ * A compiled form of the tree for the likelihood calculation. It holds the structure of the tree, the node times,
+ * the parameterization intervals of the nodes and the resolved tip types in flat arrays indexed by node number,
+ * such that the likelihood calculation does not have to touch Node objects or resolve type names.
+ * <p>
+ * The plan is updated before every evaluation. Unless the parameterization changed, only the dirty nodes of the
+ * tree and their parents are read again, and the post-order is only recomputed when it is used after the
+ * topology changed. The nodes whose edge changed in the last update are marked and listed, such that the
+ * likelihood calculation can reuse the partial likelihoods of all other subtrees without visiting them.
+ * <p>
+ * Like the tree, the plan can be stored before a proposal and restored if the proposal is rejected. Storing only
+ * starts a new journal, and an update saves the values of a node into it before changing them for the first time,
+ * such that a proposal only copies the nodes it changes and restoring writes just these back.
+ */
+public class EvaluationPlan {
+    final TreeInterface tree;
+    final int nodeCount;
+
+    /**
+     * The types of the leaves, indexed by node number.
+     */
+    final int[] tipTypes;
+
+    int rootNr;
+
+    /**
+     * The node numbers in post-order, such that every node comes after its children. It is only valid if
+     * isPostOrderValid is set, and recomputed on first use otherwise.
+     */
+    final int[] postOrder;
+    boolean isPostOrderValid = false;
+
+    /**
+     * The number of the parent of every node, or -1 at the root.
+     */
+    final int[] parents;
+
+    /**
+     * The numbers of the two children of every node, or -1 at leaves.
+     */
+    final int[] leftChildren;
+    final int[] rightChildren;
+
+    final boolean[] isDirectAncestor;
+
+    final double[] heights;
+    final double[] nodeTimes;
+
+    /**
+     * The index of the parameterization interval every node time lies in, see IntervalIndex.findRightClosed.
+     */
+    final int[] intervalIndices;
+
+    /**
+     * Whether the edge leading to a node changed in the last update, i.e. the node time, the parent or the time of
+     * the parent. All nodes are marked after a full update.
+     */
+    final boolean[] hasChangedEdge;
+
+    /**
+     * The numbers of the nodes marked in hasChangedEdge, the first changedNodeCount entries are valid.
+     */
+    final int[] changedNodes;
+    int changedNodeCount = 0;
+
+    boolean isValid = false;
+
+    /**
+     * The number of nodes that were read from the tree in the last update.
+     */
+    int numReadNodes = 0;
+
+    /**
+     * The nodes that were changed since the last store, whose values before the first change are saved in the
+     * stored arrays. The entries of the stored arrays of all other nodes are not valid.
+     */
+    final boolean[] isJournaled;
+    final int[] journaledNodes;
+    int journaledNodeCount = 0;
+    boolean hasTopologyChanged = false;
+
+    int storedRootNr;
+    final int[] storedParents;
+    final int[] storedLeftChildren;
+    final int[] storedRightChildren;
+    final boolean[] storedIsDirectAncestor;
+    final double[] storedHeights;
+    final double[] storedNodeTimes;
+    final int[] storedIntervalIndices;
+    boolean storedIsPostOrderValid = false;
+    boolean storedIsValid = false;
+
+    /**
+     * @param tipTypes the resolved types of the leaves, indexed by node number.
+     */
+    public EvaluationPlan(TreeInterface tree, int[] tipTypes) {
+        this.tree = tree;
+        this.nodeCount = tree.getNodeCount();
+        this.tipTypes = tipTypes;
+
+        this.postOrder = new int[this.nodeCount];
+        this.parents = new int[this.nodeCount];
+        this.leftChildren = new int[this.nodeCount];
+        this.rightChildren = new int[this.nodeCount];
+        this.isDirectAncestor = new boolean[this.nodeCount];
+        this.heights = new double[this.nodeCount];
+        this.nodeTimes = new double[this.nodeCount];
+        this.intervalIndices = new int[this.nodeCount];
+        this.hasChangedEdge = new boolean[this.nodeCount];
+        this.changedNodes = new int[this.nodeCount];
+
+        this.isJournaled = new boolean[this.nodeCount];
+        this.journaledNodes = new int[this.nodeCount];
+        this.storedParents = new int[this.nodeCount];
+        this.storedLeftChildren = new int[this.nodeCount];
+        this.storedRightChildren = new int[this.nodeCount];
+        this.storedIsDirectAncestor = new boolean[this.nodeCount];
+        this.storedHeights = new double[this.nodeCount];
+        this.storedNodeTimes = new double[this.nodeCount];
+        this.storedIntervalIndices = new int[this.nodeCount];
+    }
+
+    /**
+     * Brings the plan up to date with the tree and the parameterization.
+     *
+     * @param parameterizationChanged whether the parameterization changed since the last update, which moves all
+     *                                node times and intervals.
+     */
+    public void update(
+            Parameterization parameterization,
+            IntervalIndex intervalIndex,
+            double finalSampleOffset,
+            boolean parameterizationChanged
+    ) {
+        boolean updateAll = !this.isValid || parameterizationChanged;
+        this.clearChangedEdges();
+        this.numReadNodes = 0;
+        if (!updateAll && !this.tree.somethingIsDirty()) {
+            return;
+        }
+
+        for (Node node : this.tree.getNodesAsArray()) {
+            if (!updateAll && node.isDirty() == Tree.IS_CLEAN) continue;
+
+            // a node whose children changed got a new child, which is dirty itself, such that it suffices to read
+            // the parents of the dirty nodes again
+            this.readStructure(node);
+            if (!updateAll && !node.isRoot()) {
+                this.readStructure(node.getParent());
+            }
+
+            int nodeNr = node.getNr();
+            this.journal(nodeNr);
+            this.numReadNodes++;
+            double previousNodeTime = this.nodeTimes[nodeNr];
+            this.heights[nodeNr] = node.getHeight();
+            this.nodeTimes[nodeNr] = parameterization.getNodeTime(node, finalSampleOffset);
+            this.intervalIndices[nodeNr] = intervalIndex.findRightClosed(this.nodeTimes[nodeNr]);
+
+            this.markChangedEdge(nodeNr);
+            if (!this.isLeaf(nodeNr) && previousNodeTime != this.nodeTimes[nodeNr]) {
+                // the edges to the children start at this node
+                this.markChangedEdge(this.leftChildren[nodeNr]);
+                this.markChangedEdge(this.rightChildren[nodeNr]);
+            }
+        }
+
+        this.rootNr = this.tree.getRoot().getNr();
+        this.isValid = true;
+    }
+
+    /**
+     * Unmarks the nodes whose edge changed in the last update.
+     */
+    void clearChangedEdges() {
+        for (int k = 0; k < this.changedNodeCount; k++) {
+            this.hasChangedEdge[this.changedNodes[k]] = false;
+        }
+        this.changedNodeCount = 0;
+    }
+
+    void markChangedEdge(int nodeNr) {
+        if (!this.hasChangedEdge[nodeNr]) {
+            this.hasChangedEdge[nodeNr] = true;
+            this.changedNodes[this.changedNodeCount++] = nodeNr;
+        }
+    }
+
+    /**
+     * Forces the next update to re-read the whole tree, e.g. after the tree was restored.
+     */
+    public void invalidate() {
+        this.isValid = false;
+    }
+
+    /**
+     * Stores the current plan, which only starts a new journal.
+     */
+    public void store() {
+        for (int k = 0; k < this.journaledNodeCount; k++) {
+            this.isJournaled[this.journaledNodes[k]] = false;
+        }
+        this.journaledNodeCount = 0;
+        this.hasTopologyChanged = false;
+
+        this.storedRootNr = this.rootNr;
+        this.storedIsPostOrderValid = this.isPostOrderValid;
+        this.storedIsValid = this.isValid;
+    }
+
+    /**
+     * Restores the stored plan by writing back the values of the nodes that changed since the last store.
+     */
+    public void restore() {
+        for (int k = 0; k < this.journaledNodeCount; k++) {
+            int nodeNr = this.journaledNodes[k];
+            this.parents[nodeNr] = this.storedParents[nodeNr];
+            this.leftChildren[nodeNr] = this.storedLeftChildren[nodeNr];
+            this.rightChildren[nodeNr] = this.storedRightChildren[nodeNr];
+            this.isDirectAncestor[nodeNr] = this.storedIsDirectAncestor[nodeNr];
+            this.heights[nodeNr] = this.storedHeights[nodeNr];
+            this.nodeTimes[nodeNr] = this.storedNodeTimes[nodeNr];
+            this.intervalIndices[nodeNr] = this.storedIntervalIndices[nodeNr];
+            this.isJournaled[nodeNr] = false;
+        }
+        this.journaledNodeCount = 0;
+
+        // the post-order may have been recomputed for the changed topology in the meantime
+        this.rootNr = this.storedRootNr;
+        this.isPostOrderValid = this.storedIsPostOrderValid && !this.hasTopologyChanged;
+        this.isValid = this.storedIsValid;
+        this.hasTopologyChanged = false;
+    }
+
+    /**
+     * Saves the values of the given node before they are changed for the first time since the last store.
+     */
+    void journal(int nodeNr) {
+        if (this.isJournaled[nodeNr]) return;
+
+        this.storedParents[nodeNr] = this.parents[nodeNr];
+        this.storedLeftChildren[nodeNr] = this.leftChildren[nodeNr];
+        this.storedRightChildren[nodeNr] = this.rightChildren[nodeNr];
+        this.storedIsDirectAncestor[nodeNr] = this.isDirectAncestor[nodeNr];
+        this.storedHeights[nodeNr] = this.heights[nodeNr];
+        this.storedNodeTimes[nodeNr] = this.nodeTimes[nodeNr];
+        this.storedIntervalIndices[nodeNr] = this.intervalIndices[nodeNr];
+        this.isJournaled[nodeNr] = true;
+        this.journaledNodes[this.journaledNodeCount++] = nodeNr;
+    }
+
+    /**
+     * Reads the parent, the children and whether the given node is a direct ancestor again. The node is marked as
+     * changed if it got a new parent or became or stopped being a direct ancestor, and the post-order is
+     * recomputed on its next use if the topology changed.
+     */
+    void readStructure(Node node) {
+        int nodeNr = node.getNr();
+        int parent = node.isRoot() ? -1 : node.getParent().getNr();
+        int leftChild = node.isLeaf() ? -1 : node.getChild(0).getNr();
+        int rightChild = node.isLeaf() ? -1 : node.getChild(1).getNr();
+        boolean isDirectAncestor = node.isDirectAncestor();
+        this.journal(nodeNr);
+
+        if (this.parents[nodeNr] != parent || this.isDirectAncestor[nodeNr] != isDirectAncestor) {
+            this.markChangedEdge(nodeNr);
+        }
+        if (this.parents[nodeNr] != parent
+                || this.leftChildren[nodeNr] != leftChild
+                || this.rightChildren[nodeNr] != rightChild) {
+            this.isPostOrderValid = false;
+            this.hasTopologyChanged = true;
+        }
+
+        this.parents[nodeNr] = parent;
+        this.leftChildren[nodeNr] = leftChild;
+        this.rightChildren[nodeNr] = rightChild;
+        this.isDirectAncestor[nodeNr] = isDirectAncestor;
+    }
+
+    /**
+     * Computes the post-order iteratively, by visiting the nodes in reverse pre-order with the right child first.
+     */
+    void updatePostOrder() {
+        int[] stack = new int[this.nodeCount];
+        int stackSize = 0;
+        int position = this.nodeCount;
+        stack[stackSize++] = this.rootNr;
+
+        while (0 < stackSize) {
+            int nodeNr = stack[--stackSize];
+            this.postOrder[--position] = nodeNr;
+
+            if (this.leftChildren[nodeNr] != -1) {
+                stack[stackSize++] = this.leftChildren[nodeNr];
+                stack[stackSize++] = this.rightChildren[nodeNr];
+            }
+        }
+
+        this.isPostOrderValid = true;
+    }
+
+    public int getNodeCount() {
+        return this.nodeCount;
+    }
+
+    public int getRootNr() {
+        return this.rootNr;
+    }
+
+    public boolean isLeaf(int nodeNr) {
+        return this.leftChildren[nodeNr] == -1;
+    }
+
+    public boolean isRoot(int nodeNr) {
+        return this.parents[nodeNr] == -1;
+    }
+
+    public boolean isDirectAncestor(int nodeNr) {
+        return this.isDirectAncestor[nodeNr];
+    }
+
+    public int getParent(int nodeNr) {
+        return this.parents[nodeNr];
+    }
+
+    public int getLeftChild(int nodeNr) {
+        return this.leftChildren[nodeNr];
+    }
+
+    public int getRightChild(int nodeNr) {
+        return this.rightChildren[nodeNr];
+    }
+
+    public int getPostOrder(int index) {
+        if (!this.isPostOrderValid) {
+            this.updatePostOrder();
+        }
+        return this.postOrder[index];
+    }
+
+    public double getHeight(int nodeNr) {
+        return this.heights[nodeNr];
+    }
+
+    public double getNodeTime(int nodeNr) {
+        return this.nodeTimes[nodeNr];
+    }
+
+    /**
+     * Returns the time at the start of the edge leading to the given node, which is 0 for the root.
+     */
+    public double getEdgeStartTime(int nodeNr) {
+        return this.isRoot(nodeNr) ? 0 : this.nodeTimes[this.parents[nodeNr]];
+    }
+
+    public int getIntervalIndex(int nodeNr) {
+        return this.intervalIndices[nodeNr];
+    }
+
+    public boolean hasChangedEdge(int nodeNr) {
+        return this.hasChangedEdge[nodeNr];
+    }
+
+    /**
+     * Returns the number of nodes whose edge changed in the last update.
+     */
+    public int getChangedNodeCount() {
+        return this.changedNodeCount;
+    }
+
+    /**
+     * Returns the number of the k-th node whose edge changed in the last update, in no particular order.
+     */
+    public int getChangedNode(int k) {
+        return this.changedNodes[k];
+    }
+
+    /**
+     * Returns the number of nodes that were read from the tree in the last update, which are all nodes after the
+     * parameterization changed and otherwise the dirty nodes.
+     */
+    public int getNumReadNodes() {
+        return this.numReadNodes;
+    }
+
+    public int getTipType(int nodeNr) {
+        return this.tipTypes[nodeNr];
+    }
+}
@@ -0,0 +1,89 @@
+package bdmmflow.benchmark;
+
+import bdmmflow.BirthDeathMigrationDistribution;
+import bdmmprime.parameterization.Parameterization;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.parameter.RealParameter;
+
+/**
+ * Compares the Dormand-Prince and the Magnus integrator of the flow ODE on sampled models with increasing
+ * migration rates, which make the flow ODE stiff. Every likelihood is computed once to warm up and timed on a
+ * second, uncached evaluation.
+ */
+public class FlowIntegratorBenchmark {
+
+    static final double[] MIGRATION_RATE_SCALES = new double[]{1.0, 10.0, 100.0, 1000.0};
+    static final int NUM_TRIALS = 20;
+
+    public static void main(String[] args) {
+        ParameterizationSampler sampler = new ParameterizationSampler();
+
+        System.out.println("migration_scale,n,dormand_prince_ms,magnus_ms,dormand_prince_logp,magnus_logp");
+
+        for (double scale : MIGRATION_RATE_SCALES) {
+            sampler.migrationRateScale = scale;
+
+            for (int i = 0; i < NUM_TRIALS; i++) {
+                Parameterization parameterization = sampler.sampleParameterization();
+                RealParameter startTypePriorProbs = sampler.sampleStartTypePriorProbs(parameterization);
+                Tree tree = Benchmark.simulateTree(parameterization, startTypePriorProbs);
+
+                BenchmarkRun dormandPrinceRun = runFlowBenchmark(
+                        tree, parameterization, startTypePriorProbs,
+                        BirthDeathMigrationDistribution.DORMAND_PRINCE_INTEGRATOR
+                );
+                BenchmarkRun magnusRun = runFlowBenchmark(
+                        tree, parameterization, startTypePriorProbs,
+                        BirthDeathMigrationDistribution.MAGNUS_INTEGRATOR
+                );
+
+                System.out.printf(
+                        "%.0f,%d,%.3f,%.3f,%.10f,%.10f%n",
+                        scale,
+                        parameterization.getNTypes(),
+                        dormandPrinceRun.duration / 1e6,
+                        magnusRun.duration / 1e6,
+                        dormandPrinceRun.likelihood,
+                        magnusRun.likelihood
+                );
+            }
+        }
+    }
+
+    static BenchmarkRun runFlowBenchmark(
+            Tree tree, Parameterization parameterization, RealParameter startTypePriorProbs, String flowIntegrator
+    ) {
+        BirthDeathMigrationDistribution density = new BirthDeathMigrationDistribution();
+        density.initByName(
+                "parameterization", parameterization,
+                "tree", tree,
+                "startTypePriorProbs", startTypePriorProbs,
+                "typeLabel", "type",
+                "initialMatrixStrategy", "average_inverse",
+                "flowIntegrator", flowIntegrator,
+                "parallelize", false
+        );
+        density.initAndValidate();
+        density.calculateLogP();
+
+        // a fresh density does not reuse the flow of the warm-up evaluation
+        density = new BirthDeathMigrationDistribution();
+        density.initByName(
+                "parameterization", parameterization,
+                "tree", tree,
+                "startTypePriorProbs", startTypePriorProbs,
+                "typeLabel", "type",
+                "initialMatrixStrategy", "average_inverse",
+                "flowIntegrator", flowIntegrator,
+                "parallelize", false
+        );
+        density.initAndValidate();
+
+        long start = System.nanoTime();
+        double likelihood = density.calculateLogP();
+        long duration = System.nanoTime() - start;
+
+        return new BenchmarkRun(duration, likelihood);
+    }
+
+}
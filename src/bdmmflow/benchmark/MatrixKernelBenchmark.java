@@ -0,0 +1,109 @@
+package bdmmflow.benchmark;
+
+import bdmmflow.utils.MatrixKernel;
+import bdmmflow.utils.MatrixKernels;
+
+import java.util.Random;
+
+/**
+ * Compares the scalar and the vector matrix backend on the operations of the flow integration: the flow ODE
+ * right-hand side (the time-varying system matrix update followed by the matrix product) and the matrix-vector
+ * product used when integrating over an edge.
+ * <p>
+ * Run with --add-modules jdk.incubator.vector, otherwise only the scalar backend is measured.
+ */
+public class MatrixKernelBenchmark {
+
+    static final int[] DIMENSIONS = new int[]{4, 10, 30};
+    static final long TARGET_NANOS = 500_000_000L;
+
+    public static void main(String[] args) {
+        MatrixKernel scalarKernel = MatrixKernels.get(MatrixKernels.SCALAR);
+        MatrixKernel vectorKernel = MatrixKernels.isVectorBackendAvailable()
+                ? MatrixKernels.get(MatrixKernels.VECTOR)
+                : null;
+
+        System.out.println("n,operation,scalar_ns,vector_ns,speedup");
+
+        for (int n : DIMENSIONS) {
+            Random random = new Random(n);
+            double[] system = randomArray(random, n * n);
+            double[] crossBirth = randomArray(random, n * n);
+            double[] flow = randomArray(random, n * n);
+            double[] extinction = randomArray(random, n);
+            double[] vector = randomArray(random, n);
+
+            double[] result = new double[n * n];
+            double[] buffer = new double[n];
+
+            Runnable[] scalarOperations = getOperations(scalarKernel, n, system, crossBirth, flow, extinction, vector, result, buffer);
+            Runnable[] vectorOperations = vectorKernel == null
+                    ? null
+                    : getOperations(vectorKernel, n, system, crossBirth, flow, extinction, vector, result, buffer);
+            String[] names = new String[]{"rhs", "matvec"};
+
+            for (int i = 0; i < names.length; i++) {
+                double scalarNanos = measure(scalarOperations[i]);
+                if (vectorOperations == null) {
+                    System.out.printf("%d,%s,%.1f,,%n", n, names[i], scalarNanos);
+                } else {
+                    double vectorNanos = measure(vectorOperations[i]);
+                    System.out.printf(
+                            "%d,%s,%.1f,%.1f,%.2f%n", n, names[i], scalarNanos, vectorNanos, scalarNanos / vectorNanos
+                    );
+                }
+            }
+        }
+    }
+
+    static Runnable[] getOperations(
+            MatrixKernel kernel, int n, double[] system, double[] crossBirth, double[] flow,
+            double[] extinction, double[] vector, double[] result, double[] buffer
+    ) {
+        Runnable rhs = () -> {
+            kernel.operate(crossBirth, extinction, buffer, n);
+            for (int i = 0; i < n; i++) {
+                system[i * n + i] -= buffer[i] * 1e-9;
+            }
+            for (int j = 0; j < n; j++) {
+                kernel.addScaledProduct(-1e-9, crossBirth, j * n, extinction, system, j * n, n);
+            }
+            kernel.multiply(system, flow, result, n);
+        };
+        Runnable matVec = () -> kernel.operate(flow, vector, buffer, n);
+
+        return new Runnable[]{rhs, matVec};
+    }
+
+    /**
+     * Returns the mean time of a single operation in nanoseconds after a warm-up phase.
+     */
+    static double measure(Runnable operation) {
+        // warm up, such that the JIT compiler has compiled the kernel
+        for (int i = 0; i < 100_000; i++) {
+            operation.run();
+        }
+
+        long iterations = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            for (int i = 0; i < 1_000; i++) {
+                operation.run();
+            }
+            iterations += 1_000;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < TARGET_NANOS);
+
+        return (double) elapsed / iterations;
+    }
+
+    static double[] randomArray(Random random, int length) {
+        double[] array = new double[length];
+        for (int i = 0; i < length; i++) {
+            array[i] = random.nextDouble();
+        }
+        return array;
+    }
+
+}
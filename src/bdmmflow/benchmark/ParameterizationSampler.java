@@ -11,6 +11,11 @@ public class ParameterizationSampler {
 
     Random random = new Random();
 
+    /**
+     * The factor applied to the sampled migration rates. Large factors give stiff flow ODEs.
+     */
+    double migrationRateScale = 1.0;
+
     public Parameterization sampleParameterization() {
         Parameterization parameterization = new CanonicalParameterization();
 
@@ -21,7 +26,7 @@ public class ParameterizationSampler {
         double[] deathRates = Arrays.stream(birthRates).map(x -> x * this.random.nextDouble()).toArray();
         double[] samplingRates = sampleUniformDoubles(numTypes, 0.05, 0.5);
         double[] removalProbabilities = sampleUniformDoubles(numTypes, 0.0, 1.0);
-        double[] migrationRates = sampleUniformDoubles(numTypes*(numTypes-1), 0.0, 0.5);
+        double[] migrationRates = sampleUniformDoubles(numTypes*(numTypes-1), 0.0, 0.5 * this.migrationRateScale);
 
         new TypeSet(numTypes);
 
@@ -0,0 +1,75 @@
+package bdmmflow.benchmark;
+
+import bdmmflow.utils.SmallMatrices;
+import bdmmflow.utils.SmallQRDecomposition;
+import bdmmflow.utils.Utils;
+import org.apache.commons.math3.linear.*;
+
+import java.util.Random;
+
+import static bdmmflow.benchmark.MatrixKernelBenchmark.measure;
+import static bdmmflow.benchmark.MatrixKernelBenchmark.randomArray;
+
+/**
+ * Compares the small-matrix routines on column-major arrays with the commons-math matrices they replace, for the
+ * operations of integrating over an edge: the matrix-matrix and matrix-vector products, and factorizing the flow
+ * followed by a solve, by a QR decomposition as for the flow and by an LU decomposition as for the initial states.
+ */
+public class SmallMatrixBenchmark {
+
+    static final int[] DIMENSIONS = new int[]{2, 3, 4, 8, 16};
+
+    public static void main(String[] args) {
+        System.out.println("n,operation,commons_ns,small_ns,speedup");
+
+        for (int n : DIMENSIONS) {
+            Random random = new Random(n);
+            double[] left = randomArray(random, n * n);
+            double[] right = randomArray(random, n * n);
+            double[] vector = randomArray(random, n);
+            for (int i = 0; i < n; i++) {
+                // keep the matrix well-conditioned, like a flow over a short edge
+                left[i * n + i] += n;
+            }
+
+            RealMatrix leftMatrix = Utils.toMatrix(left, n);
+            RealMatrix rightMatrix = Utils.toMatrix(right, n);
+            double[] product = new double[n * n];
+            double[] image = new double[n];
+            int[] pivots = new int[n];
+            double[] lu = new double[n * n];
+            // keeps the results of the allocating operations alive
+            Object[] sink = new Object[1];
+
+            Runnable[] commonsOperations = new Runnable[]{
+                    () -> sink[0] = leftMatrix.multiply(rightMatrix),
+                    () -> sink[0] = leftMatrix.operate(vector),
+                    () -> sink[0] = new QRDecomposition(Utils.toMatrix(left, n), 1e-10).getSolver()
+                            .solve(new ArrayRealVector(vector)).toArray(),
+                    () -> sink[0] = new LUDecomposition(Utils.toMatrix(left, n)).getSolver()
+                            .solve(new ArrayRealVector(vector)).toArray()
+            };
+            Runnable[] smallOperations = new Runnable[]{
+                    () -> SmallMatrices.multiply(left, right, product, n),
+                    () -> SmallMatrices.operate(left, vector, image, n),
+                    () -> sink[0] = new SmallQRDecomposition(left, n, 1e-10).solve(vector),
+                    () -> {
+                        System.arraycopy(left, 0, lu, 0, n * n);
+                        System.arraycopy(vector, 0, image, 0, n);
+                        SmallMatrices.decomposeLU(lu, pivots, n);
+                        SmallMatrices.solveLU(lu, pivots, image, 0, n);
+                    }
+            };
+            String[] names = new String[]{"matmat", "matvec", "qr_solve", "lu_solve"};
+
+            for (int i = 0; i < names.length; i++) {
+                double commonsNanos = measure(commonsOperations[i]);
+                double smallNanos = measure(smallOperations[i]);
+                System.out.printf(
+                        "%d,%s,%.1f,%.1f,%.2f%n", n, names[i], commonsNanos, smallNanos, commonsNanos / smallNanos
+                );
+            }
+        }
+    }
+
+}
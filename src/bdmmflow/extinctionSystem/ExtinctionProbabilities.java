@@ -1,95 +1,77 @@
 package bdmmflow.extinctionSystem;
 
-import org.apache.commons.math3.ode.ContinuousOutputModel;
+import bdmmflow.integration.IDenseOutput;
+import bdmmflow.intervals.IntervalIndex;
 
 /**
  * This class is a lightweight wrapper of the integration output of ExtinctionProbabilitiesODESystem. It allows
  * to conveniently query the extinction probability at a given time.
+ * <p>
+ * Querying a dense output does not mutate it, which makes all queries thread-safe without any locking.
  */
 public class ExtinctionProbabilities {
-    ContinuousOutputModel[] outputModels;
+    IDenseOutput[] outputModels;
+    IntervalIndex outputModelIndex;
     boolean validateProbabilities = false;
     int n;
 
-    public ExtinctionProbabilities(ContinuousOutputModel[] outputModels, int n) {
+    /**
+     * The exact integration states at the start of every interval, which allow to continue the integration, or
+     * null if they are not known.
+     */
+    double[][] intervalStartStates;
+
+    public ExtinctionProbabilities(IDenseOutput[] outputModels, int n) {
+        this(outputModels, n, null);
+    }
+
+    public ExtinctionProbabilities(IDenseOutput[] outputModels, int n, double[][] intervalStartStates) {
         this.outputModels = outputModels;
+        this.outputModelIndex = IntervalIndex.fromBackwardOutputs(outputModels);
         this.n = n;
+        this.intervalStartStates = intervalStartStates;
     }
 
     /**
-     * Returns the extinction probability for the given output model at the given time.
+     * Returns the extinction probability at the given time.
      * Note that this method is thread-safe.
+     * @param time the time.
+     * @return the extinction probability at the given time.
      */
-    public double[] getProbability(ContinuousOutputModel output, double time) {
-        double[] state = new double[this.n];
-
-        synchronized (output) {
-            output.setInterpolatedTime(time);
-            double[] interpolatedState = output.getInterpolatedState();
-            System.arraycopy(interpolatedState, 0, state, 0, this.n);
-        }
-
-        if (this.validateProbabilities) {
-            // check that all are valid probabilities
-            // (interpolation can give rise to values outside [0, 1]
-
-            for (int i = 0; i < state.length; i++) {
-                if (state[i] < -0.01 || 1.01 < state[i]) {
-                    throw new IllegalStateException("Invalid extinction probability found.");
-                }
-            }
-        }
-
-        return state;
+    public double[] getProbability(double time) {
+        return this.getProbability(time, new double[this.n]);
     }
 
     /**
-     * Returns the extinction probability for the given output model at the given time.
-     * Note that this method is not thread-safe.
+     * Writes the extinction probability at the given time into the given buffer and returns it.
+     * Note that this method is thread-safe and does not allocate.
+     * @param time the time.
+     * @param buffer the array of length n to write the extinction probabilities into.
+     * @return the given buffer.
      */
-    public double[] unsafeGetProbability(ContinuousOutputModel output, double time) {
-        output.setInterpolatedTime(time);
-        double[] state = output.getInterpolatedState();
+    public double[] getProbability(double time, double[] buffer) {
+        this.outputModels[this.getOutputModelIndex(time)].getState(time, 0, this.n, buffer);
 
         if (this.validateProbabilities) {
             // check that all are valid probabilities
             // (interpolation can give rise to values outside [0, 1]
 
-            for (int i = 0; i < state.length; i++) {
-                if (state[i] < -0.01 || 1.01 < state[i]) {
+            for (int i = 0; i < this.n; i++) {
+                if (buffer[i] < -0.01 || 1.01 < buffer[i]) {
                     throw new IllegalStateException("Invalid extinction probability found.");
                 }
             }
         }
 
-        return state;
-    }
-
-    /**
-     * Returns the extinction probability at the given time.
-     * Note that this method is thread-safe.
-     * @param time the time.
-     * @return the extinction probability at the given time.
-     */
-    public double[] getProbability(double time) {
-        return this.getProbability(this.getOutputModel(time), time);
+        return buffer;
     }
 
     /**
-     * Returns the continuous output model for the given time.
+     * Returns the index of the output model for the given time.
      */
-    public ContinuousOutputModel getOutputModel(double time) {
-        if (time > this.outputModels[0].getInitialTime()) {
-            return this.outputModels[0];
-        }
-
-        for (ContinuousOutputModel model : this.outputModels) {
-            if (model.getInitialTime() >= time && time > model.getFinalTime()) {
-                return model;
-            }
-        }
-
-        return this.outputModels[this.outputModels.length - 1];
+    int getOutputModelIndex(double time) {
+        // every output model covers (finalTime, initialTime] of the backwards integration
+        return this.outputModels.length - 1 - this.outputModelIndex.findRightClosed(time);
     }
 
     /**
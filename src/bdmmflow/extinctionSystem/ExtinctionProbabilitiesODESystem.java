@@ -1,5 +1,7 @@
 package bdmmflow.extinctionSystem;
 
+import bdmmflow.integration.IDenseOutput;
+import bdmmflow.integration.JacobianEquations;
 import bdmmflow.intervals.Interval;
 import bdmmflow.intervals.IntervalODESystem;
 import bdmmprime.parameterization.Parameterization;
@@ -9,7 +11,7 @@ import java.util.List;
 /**
  * This class represents the ODE system for extinction probabilities.
  */
-public class ExtinctionProbabilitiesODESystem extends IntervalODESystem {
+public class ExtinctionProbabilitiesODESystem extends IntervalODESystem implements JacobianEquations {
 
     private final double[][] birthRates;
     private final double[][] deathRates;
@@ -31,6 +33,54 @@ public class ExtinctionProbabilitiesODESystem extends IntervalODESystem {
         this.currentInterval = intervals.size() - 1;
     }
 
+    /**
+     * Integrates the extinction probabilities backwards in time from the given state at the present, like
+     * integrateBackwards without restarts.
+     * <p>
+     * If earlier extinction probabilities are given, the intervals from firstReusableInterval on are taken from
+     * them, and the integration continues from their exact state at the start of that interval. The result is
+     * then identical to integrating over all intervals, as long as the parameterization did not change in the
+     * reused intervals, see IntervalFingerprints.
+     */
+    public ExtinctionProbabilities integrateBackwards(
+            double[] initialState,
+            ExtinctionProbabilities previous,
+            int firstReusableInterval
+    ) {
+        int intervalCount = this.intervals.size();
+        IDenseOutput[] outputModels = new IDenseOutput[intervalCount];
+        double[][] intervalStartStates = new double[intervalCount][];
+
+        double[] state;
+        if (previous == null || previous.intervalStartStates == null || intervalCount <= firstReusableInterval) {
+            firstReusableInterval = intervalCount;
+            state = initialState.clone();
+        } else {
+            // the outputs are stored in reverse order, starting with the last interval
+            int reusedCount = intervalCount - firstReusableInterval;
+            System.arraycopy(previous.outputModels, 0, outputModels, 0, reusedCount);
+            System.arraycopy(
+                    previous.intervalStartStates, firstReusableInterval,
+                    intervalStartStates, firstReusableInterval, reusedCount
+            );
+
+            state = previous.intervalStartStates[firstReusableInterval].clone();
+            this.currentInterval = firstReusableInterval;
+        }
+
+        for (int i = firstReusableInterval - 1; i >= 0; i--) {
+            Interval interval = this.intervals.get(i);
+
+            this.handleParameterizationIntervalBoundaryIfNecessary(interval.end(), state);
+            outputModels[intervalCount - interval.interval() - 1] = this.integrate(
+                    state, interval.end(), interval.start(), interval
+            );
+            intervalStartStates[i] = state.clone();
+        }
+
+        return new ExtinctionProbabilities(outputModels, this.parameterization.getNTypes(), intervalStartStates);
+    }
+
     @Override
     public int getDimension() {
         return this.parameterization.getNTypes();
@@ -42,13 +92,22 @@ public class ExtinctionProbabilitiesODESystem extends IntervalODESystem {
             throw new IllegalStateException("NaN detected during integration.");
         }
 
+        this.computeDerivatives(this.currentInterval, y, yDot);
+    }
+
+    /**
+     * Computes the derivatives of the extinction probabilities for the given parameterization interval.
+     * Only the first n entries of y and yDot are accessed, such that this can also be used for ODE systems
+     * which contain the extinction probabilities as part of a larger state.
+     */
+    public void computeDerivatives(int interval, double[] y, double[] yDot) {
         for (int i = 0; i < this.parameterization.getNTypes(); i++) {
             yDot[i] = (
-                    this.birthRates[this.currentInterval][i]
-                            + this.deathRates[this.currentInterval][i]
-                            + this.samplingRates[this.currentInterval][i]
-                            - this.birthRates[this.currentInterval][i] * y[i]
-            )* y[i] - this.deathRates[this.currentInterval][i];
+                    this.birthRates[interval][i]
+                            + this.deathRates[interval][i]
+                            + this.samplingRates[interval][i]
+                            - this.birthRates[interval][i] * y[i]
+            )* y[i] - this.deathRates[interval][i];
 
             for (int j = 0; j < this.parameterization.getNTypes(); j++) {
                 if (i == j) {
@@ -56,13 +115,35 @@ public class ExtinctionProbabilitiesODESystem extends IntervalODESystem {
                 }
 
                 yDot[i] += (
-                        this.crossBirthRates[this.currentInterval][i][j] * (y[i] - y[i] * y[j])
-                                + this.migrationRates[this.currentInterval][i][j] * (y[i] - y[j])
+                        this.crossBirthRates[interval][i][j] * (y[i] - y[i] * y[j])
+                                + this.migrationRates[interval][i][j] * (y[i] - y[j])
                 );
             }
         }
     }
 
+    @Override
+    public void computeJacobian(double t, double[] y, double[] jacobian) {
+        int n = this.parameterization.getNTypes();
+        int interval = this.currentInterval;
+
+        for (int i = 0; i < n; i++) {
+            jacobian[i * n + i] = this.birthRates[interval][i]
+                    + this.deathRates[interval][i]
+                    + this.samplingRates[interval][i]
+                    - 2 * this.birthRates[interval][i] * y[i];
+
+            for (int j = 0; j < n; j++) {
+                if (i == j) {
+                    continue;
+                }
+
+                jacobian[i * n + i] += this.crossBirthRates[interval][i][j] * (1 - y[j]) + this.migrationRates[interval][i][j];
+                jacobian[j * n + i] = -this.crossBirthRates[interval][i][j] * y[i] - this.migrationRates[interval][i][j];
+            }
+        }
+    }
+
     @Override
     protected void handleParameterizationIntervalBoundary(double boundaryTime, int oldInterval, int newInterval, double[] state) {
         super.handleParameterizationIntervalBoundary(boundaryTime, oldInterval, newInterval, state);
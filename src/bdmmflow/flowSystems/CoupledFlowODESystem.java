@@ -0,0 +1,344 @@
+package bdmmflow.flowSystems;
+
+import bdmmflow.extinctionSystem.ExtinctionProbabilities;
+import bdmmflow.extinctionSystem.ExtinctionProbabilitiesODESystem;
+import bdmmflow.integration.DenseOutput;
+import bdmmflow.integration.IDenseOutput;
+import bdmmflow.intervals.Interval;
+import bdmmflow.utils.MatrixKernel;
+import bdmmflow.utils.Utils;
+import bdmmprime.parameterization.Parameterization;
+import org.apache.commons.math3.linear.MatrixUtils;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.SingularValueDecomposition;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class represents the backwards-in-time flow ODE integrated together with the extinction probabilities.
+ * <p>
+ * The state is [E(t), flow(t)] of dimension n + n^2, where the flow is stored in column-major order starting at
+ * index n. Because the extinction probabilities are part of the state, the system matrix is built directly from
+ * the current state instead of interpolating a previously integrated extinction probability output at every
+ * step. Both parts share a single step size controller.
+ * <p>
+ * The integration is a single sequential sweep from the end of the process to the start. The flow is restarted
+ * at each sub-interval, whose length is chosen during the sweep based on the system matrix at the sub-interval
+ * end. After calculateFlowIntegral, the extinction probabilities can be queried using getExtinctionProbabilities.
+ */
+public class CoupledFlowODESystem extends FlowODESystem {
+
+    /**
+     * The number of fixed Runge-Kutta steps used to predict the extinction probabilities over a sub-interval.
+     */
+    static final int PREDICTION_STEPS = 8;
+
+    final ExtinctionProbabilitiesODESystem extinctionSystem;
+
+    /**
+     * The parameterization interval of the sub-interval which is currently integrated.
+     */
+    int currentParameterizationInterval;
+
+    /**
+     * Scratch space for the flow part of the state. The sweep is sequential, so no per-thread buffers are needed.
+     */
+    final double[] flowBuffer;
+    final double[] flowDerivativeBuffer;
+
+    ExtinctionProbabilities integratedExtinctionProbabilities;
+
+    public CoupledFlowODESystem(
+            Parameterization parameterization,
+            List<Interval> intervals,
+            double absoluteTolerance,
+            double relativeTolerance,
+            int seed,
+            double maxConditionNumber,
+            boolean useLoucaPennellIntervals,
+            MatrixKernel kernel,
+            boolean useSparseKernel) {
+        super(
+                parameterization, null, intervals, absoluteTolerance, relativeTolerance,
+                seed, maxConditionNumber, useLoucaPennellIntervals, kernel, useSparseKernel
+        );
+
+        int n = this.parameterization.getNTypes();
+
+        // the extinction probabilities are integrated with a lower tolerance, as in the separate integration
+
+        this.extinctionSystem = new ExtinctionProbabilitiesODESystem(
+                parameterization, intervals, absoluteTolerance, relativeTolerance / 10.0
+        );
+
+        this.vectorAbsoluteTolerance = new double[this.getDimension()];
+        this.vectorRelativeTolerance = new double[this.getDimension()];
+        Arrays.fill(this.vectorAbsoluteTolerance, absoluteTolerance);
+        Arrays.fill(this.vectorRelativeTolerance, 0, n, relativeTolerance / 10.0);
+        Arrays.fill(this.vectorRelativeTolerance, n, this.getDimension(), relativeTolerance);
+
+        this.flowBuffer = new double[n * n];
+        this.flowDerivativeBuffer = new double[n * n];
+    }
+
+    @Override
+    public int getDimension() {
+        int n = this.parameterization.getNTypes();
+        return n + n * n;
+    }
+
+    @Override
+    public void computeDerivatives(double t, double[] y, double[] yDot) {
+        if (Double.isNaN(t)) {
+            throw new IllegalStateException("NaN detected during integration.");
+        }
+
+        int n = this.parameterization.getNTypes();
+
+        this.extinctionSystem.computeDerivatives(this.currentParameterizationInterval, y, yDot);
+
+        double[] systemMatrix = this.systemMatrixBuffer.get();
+        this.buildSystemMatrix(this.currentParameterizationInterval, y, systemMatrix);
+
+        System.arraycopy(y, n, this.flowBuffer, 0, n * n);
+        this.multiplySystemMatrix(systemMatrix, this.flowBuffer, this.flowDerivativeBuffer);
+        System.arraycopy(this.flowDerivativeBuffer, 0, yDot, n, n * n);
+    }
+
+    /**
+     * Calculates the flow integral together with the extinction probabilities in a single backwards sweep.
+     * <p>
+     * The sub-interval lengths and the average_inverse initial states depend on the extinction probabilities
+     * ahead of the current time, which are not integrated yet. They are computed from a cheap prediction of
+     * the extinction probabilities over the sub-interval.
+     *
+     * @return the calculated flow.
+     */
+    @Override
+    public IFlow calculateFlowIntegral(String initialMatrixStrategy, boolean parallelize) {
+        int n = this.parameterization.getNTypes();
+        int endInterval = this.parameterization.getTotalIntervalCount() - 1;
+
+        InitialState fixedInitialState = initialMatrixStrategy.equals("average_inverse")
+                ? null
+                : this.getInitialStates(initialMatrixStrategy, List.of(this.intervals.get(0))).get(0);
+
+        double[] state = new double[this.getDimension()];
+        for (int i = 0; i < n; i++) {
+            state[i] = 1 - this.parameterization.getRhoValues()[endInterval][i];
+        }
+
+        List<DenseOutput> outputModels = new ArrayList<>();
+        List<InitialState> initialStates = new ArrayList<>();
+        List<Interval> subIntervals = new ArrayList<>();
+
+        for (int k = this.intervals.size() - 1; k >= 0; k--) {
+            Interval currentOldInterval = this.intervals.get(k);
+            this.currentParameterizationInterval = currentOldInterval.parameterizationInterval();
+
+            double currentIntervalEnd = currentOldInterval.end();
+            boolean isBoundary = this.isParameterizationIntervalBoundary(currentIntervalEnd);
+            int rhoInterval = this.getCurrentParameterizationInterval(currentIntervalEnd);
+
+            if (isBoundary) {
+                // include rho sampling effects on the extinction probabilities
+                for (int i = 0; i < n; i++) {
+                    state[i] *= (1 - this.parameterization.getRhoValues()[rhoInterval][i]);
+                }
+            }
+
+            while (true) {
+                double[] endExtinctionProbabilities = Arrays.copyOf(state, n);
+                double newIntervalStart = this.getSubIntervalStart(
+                        endExtinctionProbabilities, currentIntervalEnd, currentOldInterval.start()
+                );
+                Interval subInterval = new Interval(
+                        0, currentOldInterval.parameterizationInterval(), newIntervalStart, currentIntervalEnd
+                );
+
+                InitialState initialState = fixedInitialState != null
+                        ? fixedInitialState
+                        : this.getAverageInverseInitialState(endExtinctionProbabilities, subInterval);
+                System.arraycopy(initialState.initialState(), 0, state, n, n * n);
+
+                if (isBoundary && currentIntervalEnd == currentOldInterval.end()) {
+                    // include rho sampling effects on the flow
+                    for (int i = 0; i < n; i++) {
+                        for (int j = 0; j < n; j++) {
+                            state[n + i * n + j] *= (1 - this.parameterization.getRhoValues()[rhoInterval][i]);
+                        }
+                    }
+                }
+
+                outputModels.add(this.integrateWithRungeKutta(state, subInterval.end(), subInterval.start()));
+                initialStates.add(initialState);
+                subIntervals.add(subInterval);
+
+                this.validateExtinctionProbabilities(state);
+
+                if (newIntervalStart == currentOldInterval.start()) {
+                    // we reached the end of the current old interval
+                    break;
+                }
+                currentIntervalEnd = newIntervalStart;
+            }
+        }
+
+        // the sweep collects everything from the end to the start, but the intervals and initial states
+        // are expected in order of time
+
+        Collections.reverse(initialStates);
+        Collections.reverse(subIntervals);
+        for (int i = 0; i < subIntervals.size(); i++) {
+            Interval interval = subIntervals.get(i);
+            subIntervals.set(i, new Interval(i, interval.parameterizationInterval(), interval.start(), interval.end()));
+        }
+        this.intervals = subIntervals;
+
+        DenseOutput[] rawOutputs = outputModels.toArray(new DenseOutput[0]);
+
+        IDenseOutput[] extinctionOutputs = new IDenseOutput[rawOutputs.length];
+        for (int i = 0; i < rawOutputs.length; i++) {
+            extinctionOutputs[i] = rawOutputs[i].select(0, n);
+        }
+        this.integratedExtinctionProbabilities = new ExtinctionProbabilities(extinctionOutputs, n);
+
+        IDenseOutput[] flowOutputs = this.compactOutputs(rawOutputs, n, n * n, parallelize);
+        return new Flow(flowOutputs, n, initialStates, 1 < rawOutputs.length, this.kernel);
+    }
+
+    /**
+     * Returns the extinction probabilities integrated during the last call of calculateFlowIntegral.
+     */
+    public ExtinctionProbabilities getExtinctionProbabilities() {
+        return this.integratedExtinctionProbabilities;
+    }
+
+    /**
+     * Predicts the extinction probabilities at time t from the ones at time end using a few classical Runge-Kutta
+     * steps. The prediction is only used to choose sub-intervals and initial states, which is why a low accuracy
+     * suffices. Its cost is negligible compared to the flow integration.
+     */
+    double[] predictExtinctionProbabilities(double[] endExtinctionProbabilities, double end, double t) {
+        int n = this.parameterization.getNTypes();
+        double h = (t - end) / PREDICTION_STEPS;
+
+        double[] y = Arrays.copyOf(endExtinctionProbabilities, n);
+        double[] stage = new double[n];
+        double[] k1 = new double[n];
+        double[] k2 = new double[n];
+        double[] k3 = new double[n];
+        double[] k4 = new double[n];
+
+        for (int step = 0; step < PREDICTION_STEPS; step++) {
+            this.extinctionSystem.computeDerivatives(this.currentParameterizationInterval, y, k1);
+            for (int i = 0; i < n; i++) stage[i] = y[i] + h / 2.0 * k1[i];
+            this.extinctionSystem.computeDerivatives(this.currentParameterizationInterval, stage, k2);
+            for (int i = 0; i < n; i++) stage[i] = y[i] + h / 2.0 * k2[i];
+            this.extinctionSystem.computeDerivatives(this.currentParameterizationInterval, stage, k3);
+            for (int i = 0; i < n; i++) stage[i] = y[i] + h * k3[i];
+            this.extinctionSystem.computeDerivatives(this.currentParameterizationInterval, stage, k4);
+
+            for (int i = 0; i < n; i++) {
+                y[i] += h / 6.0 * (k1[i] + 2 * k2[i] + 2 * k3[i] + k4[i]);
+            }
+        }
+
+        return y;
+    }
+
+    /**
+     * Builds the system matrix of the current parameterization interval at time t, using the predicted
+     * extinction probabilities.
+     */
+    RealMatrix buildPredictedSystemMatrix(double[] endExtinctionProbabilities, double end, double t) {
+        int n = this.parameterization.getNTypes();
+        double[] system = new double[n * n];
+        this.buildSystemMatrix(
+                this.currentParameterizationInterval,
+                this.predictExtinctionProbabilities(endExtinctionProbabilities, end, t),
+                system
+        );
+        return Utils.toMatrix(system, n);
+    }
+
+    /**
+     * Returns the start of the next sub-interval ending at end. This uses the same heuristics as
+     * FlowODESystem.splitUpIntervals, but on predicted extinction probabilities.
+     */
+    double getSubIntervalStart(double[] endExtinctionProbabilities, double end, double minStart) {
+        double logMaxConditionNumber = Math.log(this.maxConditionNumber);
+
+        RealMatrix endSystemMatrix = this.buildPredictedSystemMatrix(endExtinctionProbabilities, end, end);
+
+        double maxIntervalSize;
+        if (this.useLoucaPennellIntervals) {
+            SingularValueDecomposition decomposition = new SingularValueDecomposition(endSystemMatrix);
+            double maxSingularValue = Arrays.stream(decomposition.getSingularValues()).max().orElseThrow();
+            maxIntervalSize = logMaxConditionNumber / (2.0 * maxSingularValue);
+        } else {
+            RealMatrix midSystemMatrix = this.buildPredictedSystemMatrix(
+                    endExtinctionProbabilities, end, (end + minStart) / 2
+            );
+            RealMatrix startSystemMatrix = this.buildPredictedSystemMatrix(
+                    endExtinctionProbabilities, end, minStart
+            );
+
+            maxIntervalSize = end - minStart;
+            maxIntervalSize = Math.min(maxIntervalSize, logMaxConditionNumber / Utils.getHermitianSpread(endSystemMatrix));
+            maxIntervalSize = Math.min(maxIntervalSize, logMaxConditionNumber / Utils.getHermitianSpread(midSystemMatrix));
+            maxIntervalSize = Math.min(maxIntervalSize, logMaxConditionNumber / Utils.getHermitianSpread(startSystemMatrix));
+        }
+
+        double start = Math.max(end - maxIntervalSize, minStart);
+        return bdmmprime.util.Utils.equalWithPrecision(start, minStart) ? minStart : start;
+    }
+
+    /**
+     * Computes the average_inverse initial state of FlowODESystem for the given sub-interval, using
+     * predicted extinction probabilities.
+     */
+    InitialState getAverageInverseInitialState(double[] endExtinctionProbabilities, Interval interval) {
+        int n = this.parameterization.getNTypes();
+        double h = interval.end() - interval.start();
+
+        RealMatrix startA = this.buildPredictedSystemMatrix(endExtinctionProbabilities, interval.end(), interval.start());
+        RealMatrix midA = this.buildPredictedSystemMatrix(
+                endExtinctionProbabilities, interval.end(), (interval.start() + interval.end()) / 2.0
+        );
+        RealMatrix threeQuarterA = this.buildPredictedSystemMatrix(
+                endExtinctionProbabilities, interval.end(), interval.start() + 3.0 * h / 4.0
+        );
+        RealMatrix endA = this.buildPredictedSystemMatrix(endExtinctionProbabilities, interval.end(), interval.end());
+
+        RealMatrix startInvX = Utils.expm(
+                startA.add(midA.scalarMultiply(4)).add(endA).scalarMultiply(h / 6.0)
+        );
+        RealMatrix midInvX = Utils.expm(
+                midA.add(threeQuarterA.scalarMultiply(4)).add(endA).scalarMultiply(h / 2.0 / 6.0)
+        );
+        RealMatrix endInvX = MatrixUtils.createRealIdentityMatrix(n);
+
+        RealMatrix averageInvX = startInvX.add(midInvX.scalarMultiply(4)).add(endInvX).scalarMultiply(1.0 / 6.0);
+
+        double[] array = new double[n * n];
+        Utils.fillArray(averageInvX, array);
+
+        return new InitialState(array, MatrixUtils.inverse(averageInvX));
+    }
+
+    /**
+     * Throws if the extinction probabilities in the given state are no valid probabilities.
+     */
+    void validateExtinctionProbabilities(double[] state) {
+        for (int i = 0; i < this.parameterization.getNTypes(); i++) {
+            if (state[i] < -0.01 || 1.01 < state[i]) {
+                throw new IllegalStateException("Invalid extinction probability found.");
+            }
+        }
+    }
+
+}
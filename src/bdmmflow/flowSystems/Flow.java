@@ -1,11 +1,18 @@
 package bdmmflow.flowSystems;
 
+import bdmmflow.integration.IDenseOutput;
+import bdmmflow.intervals.Interval;
+import bdmmflow.intervals.IntervalIndex;
+import bdmmflow.utils.CacheStatistics;
+import bdmmflow.utils.LinearSystemSolver;
+import bdmmflow.utils.MatrixKernel;
+import bdmmflow.utils.Result;
 import bdmmflow.utils.Utils;
-import org.apache.commons.math3.linear.*;
-import org.apache.commons.math3.ode.ContinuousOutputModel;
 
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
 
 /**
  * This class is a lightweight wrapper of the result of the Flow ODE integration. It allows to easily query the
@@ -13,24 +20,76 @@ import java.util.concurrent.ConcurrentHashMap;
  * It supports intervals and also reset of the initial state at each interval start.
  */
 public class Flow implements IFlow {
-    ContinuousOutputModel[] outputModels;
+    IDenseOutput[] outputModels;
+    IntervalIndex intervalIndex;
 
     List<InitialState> initialStates;
     boolean wasInitialStateResetAtEachInterval;
     int n;
 
-    ConcurrentHashMap<Double, RealMatrix>[] flowCache;
+    /**
+     * The intervals the flow was integrated over in time order, or null if they are not known. They allow a later
+     * integration to reuse the outputs of the unchanged intervals, see FlowODESystem.calculateFlowIntegral.
+     */
+    List<Interval> intervals;
 
-    public Flow(ContinuousOutputModel[] outputModels, int n, List<InitialState> initialStates, boolean wasInitialStateResetAtEachInterval) {
+    /**
+     * The backend for the matrix-vector products when operating the flow.
+     */
+    MatrixKernel kernel;
+
+    /**
+     * The cached flows as column-major arrays, bounded for all intervals together.
+     */
+    IntervalCache<double[]> flowCache;
+
+    /**
+     * The factorizations of the flow at the node times, indexed by node number. An entry is only valid for the
+     * time it was computed at, such that it survives proposals that move other nodes. As the cache lives in this
+     * flow, it is discarded together with it whenever the flow is recalculated.
+     */
+    volatile NodeFactorization[] nodeFactorizations = new NodeFactorization[0];
+
+    record NodeFactorization(double time, LinearSystemSolver solver) {}
+
+    /**
+     * The products of the interval transfer matrices, which allow to cross any number of intervals with two
+     * matrix-vector products.
+     */
+    volatile TransferProductTable transferProducts;
+
+    public Flow(IDenseOutput[] outputModels, int n, List<InitialState> initialStates, boolean wasInitialStateResetAtEachInterval, MatrixKernel kernel) {
+        this(outputModels, n, initialStates, wasInitialStateResetAtEachInterval, kernel, null);
+    }
+
+    public Flow(IDenseOutput[] outputModels, int n, List<InitialState> initialStates, boolean wasInitialStateResetAtEachInterval, MatrixKernel kernel, List<Interval> intervals) {
         this.outputModels = outputModels;
+        this.intervals = intervals;
+        this.intervalIndex = IntervalIndex.fromBackwardOutputs(outputModels);
+        this.kernel = kernel;
         this.n = n;
         this.wasInitialStateResetAtEachInterval = wasInitialStateResetAtEachInterval;
         this.initialStates = initialStates;
 
-        this.flowCache = new ConcurrentHashMap[outputModels.length];
-        for (int i = 0; i < outputModels.length; i++) {
-            this.flowCache[i] = new ConcurrentHashMap<>();
-        }
+        this.flowCache = new IntervalCache<>(
+                outputModels,
+                IntervalCache.getMaxSize(DEFAULT_CACHE_MEGABYTES * 1024L * 1024L, n)
+        );
+    }
+
+    @Override
+    public void setCacheSize(long maxBytes) {
+        this.flowCache.setMaxSize(IntervalCache.getMaxSize(maxBytes, this.n));
+    }
+
+    @Override
+    public long getCachedBytes() {
+        return (long) this.flowCache.size() * Double.BYTES * this.n * this.n;
+    }
+
+    @Override
+    public CacheStatistics getCacheStatistics() {
+        return this.flowCache.getStatistics();
     }
 
     /**
@@ -44,28 +103,140 @@ public class Flow implements IFlow {
     @Override
     public IntegrationResult integrateUsingFlow(double timeStart, double timeEnd, double[] endState) {
         int intervalEnd = this.getLeftInterval(timeEnd);
-        RealMatrix flowMatrixEnd = this.getFlow(intervalEnd, timeEnd);
+        LinearSystemSolver linearSolver = this.factorize(intervalEnd, timeEnd);
+
+        double[] solution = linearSolver.solve(endState);
+        return this.operateFlow(timeStart, intervalEnd, solution);
+    }
+
+    /**
+     * Allows to integrate over the edge leading to the given node using the pre-computed flow. The factorization
+     * of the flow at the node time is cached for the node.
+     *
+     * @param nodeNr    the number of the node closer to the leaves.
+     * @param timeStart the time of the node closer to the root.
+     * @param timeEnd   the time of the node closer to the leaves.
+     * @param endState  the initial state at the node closer to the leaves.
+     * @return the integration result at the time of the node closer to the root.
+     */
+    @Override
+    public IntegrationResult integrateUsingFlow(int nodeNr, double timeStart, double timeEnd, double[] endState) {
+        int intervalEnd = this.getLeftInterval(timeEnd);
+        LinearSystemSolver linearSolver = this.getNodeFactorization(nodeNr, intervalEnd, timeEnd);
+
+        double[] solution = linearSolver.solve(endState);
+        return this.operateFlow(timeStart, intervalEnd, solution);
+    }
 
-        RealVector likelihoodVectorEnd = Utils.toVector(endState);
+    /**
+     * Factorizes the flow at the end of every edge and evaluates it at the start of every edge and at the
+     * interval ends, filling the caches used by integrateUsingFlow.
+     */
+    @Override
+    public void prepareEdges(int[] nodeNrs, double[] edgeStartTimes, double[] edgeEndTimes, int edgeCount, boolean parallelize) {
+        if (edgeCount == 0) return;
 
-        DecompositionSolver linearSolver = new QRDecomposition(flowMatrixEnd, 1e-10).getSolver();
+        this.getNodeFactorizations(IntStream.range(0, edgeCount).map(k -> nodeNrs[k]).max().getAsInt());
 
-        RealVector solution = null;
-        try {
-            solution = linearSolver.solve(likelihoodVectorEnd);
-        } catch (SingularMatrixException e) {
-            // we fall back to an SVD least-squares solver
-            SingularValueDecomposition svd = new SingularValueDecomposition(flowMatrixEnd);
+        if (1 < this.outputModels.length) {
+            this.getTransferProducts();
+        }
 
-            if (Double.isInfinite(svd.getConditionNumber())) {
-                throw new IllegalStateException("Infinite condition number found.");
+        // edges ending at the same time, e.g. tips of the same sampling event, share their factorization
+        int[] edgesByEndTime = IntStream.range(0, edgeCount)
+                .boxed()
+                .sorted(Comparator.comparingDouble(k -> edgeEndTimes[k]))
+                .mapToInt(Integer::intValue)
+                .toArray();
+        int[] groupStarts = IntStream.rangeClosed(0, edgeCount)
+                .filter(k -> k == 0 || k == edgeCount
+                        || edgeEndTimes[edgesByEndTime[k - 1]] != edgeEndTimes[edgesByEndTime[k]])
+                .toArray();
+
+        IntStream groups = IntStream.range(0, groupStarts.length - 1);
+        Result.throwIfFailure((parallelize ? groups.parallel() : groups).mapToObj(g -> Result.of(() -> {
+            int firstNodeNr = nodeNrs[edgesByEndTime[groupStarts[g]]];
+            double time = edgeEndTimes[edgesByEndTime[groupStarts[g]]];
+            this.getNodeFactorization(firstNodeNr, this.getLeftInterval(time), time);
+
+            NodeFactorization[] factorizations = this.nodeFactorizations;
+            for (int k = groupStarts[g] + 1; k < groupStarts[g + 1]; k++) {
+                factorizations[nodeNrs[edgesByEndTime[k]]] = factorizations[firstNodeNr];
             }
+            return null;
+        })));
+
+        IntStream edges = IntStream.range(0, edgeCount);
+        Result.throwIfFailure((parallelize ? edges.parallel() : edges).mapToObj(k -> Result.of(() -> {
+            this.getFlowArray(this.getRightInterval(edgeStartTimes[k]), edgeStartTimes[k]);
+            return null;
+        })));
+    }
+
+    /**
+     * Estimates the cost of integrating over an edge as the solve and the final matrix-vector product, the
+     * factorization if it is not cached for the node, the evaluation of the flow if it is not cached and the two
+     * products with the transfer table if the edge crosses intervals.
+     */
+    @Override
+    public double estimateEdgeCost(int nodeNr, double timeStart, double timeEnd) {
+        int intervalEnd = this.getLeftInterval(timeEnd);
+        int intervalStart = this.getRightInterval(timeStart);
+        double cost = 3.0;
 
-            linearSolver = svd.getSolver();
-            solution = linearSolver.solve(likelihoodVectorEnd);
+        NodeFactorization[] factorizations = this.nodeFactorizations;
+        if (factorizations.length <= nodeNr || factorizations[nodeNr] == null || factorizations[nodeNr].time() != timeEnd) {
+            cost += this.n;
+        }
+        if (!this.flowCache.containsKey(intervalStart, timeStart)) {
+            cost += FLOW_EVALUATION_COST;
+        }
+        if (intervalEnd < intervalStart) {
+            cost += 2.0;
         }
 
-        return this.operateFlow(timeStart, intervalEnd, solution);
+        return cost;
+    }
+
+    /**
+     * Returns the cached factorization of the flow at the given node, and computes it if the node time changed.
+     */
+    LinearSystemSolver getNodeFactorization(int nodeNr, int interval, double time) {
+        NodeFactorization[] factorizations = this.getNodeFactorizations(nodeNr);
+        NodeFactorization factorization = factorizations[nodeNr];
+
+        if (factorization == null || factorization.time() != time) {
+            factorization = new NodeFactorization(time, this.factorize(interval, time));
+            factorizations[nodeNr] = factorization;
+        }
+
+        return factorization.solver();
+    }
+
+    /**
+     * Returns a solver for the flow at the given time.
+     */
+    LinearSystemSolver factorize(int interval, double time) {
+        return Utils.factorize(this.getFlowArray(interval, time), this.n);
+    }
+
+    /**
+     * Returns the factorization cache, grown such that it contains the given node number.
+     */
+    NodeFactorization[] getNodeFactorizations(int nodeNr) {
+        NodeFactorization[] factorizations = this.nodeFactorizations;
+        if (nodeNr < factorizations.length) {
+            return factorizations;
+        }
+
+        synchronized (this) {
+            factorizations = this.nodeFactorizations;
+            if (factorizations.length <= nodeNr) {
+                factorizations = Arrays.copyOf(factorizations, Math.max(nodeNr + 1, 2 * factorizations.length));
+                this.nodeFactorizations = factorizations;
+            }
+            return factorizations;
+        }
     }
 
     /**
@@ -77,46 +248,71 @@ public class Flow implements IFlow {
      * @param time               the time for which to query the flow from.
      * @param startingAtInterval where to start the accumulation of the flow if initial state resetting
      *                           was used.
-     * @param vector             the vector to multiply the flow with.
+     * @param vector             the vector to multiply the flow with. It is used as scratch space and overwritten.
      * @return the flow at the given time multiplied with the vector.
      */
-    public IntegrationResult operateFlow(double time, int startingAtInterval, RealVector vector) {
+    public IntegrationResult operateFlow(double time, int startingAtInterval, double[] vector) {
         int timeInterval = this.getRightInterval(time);
 
-        RealVector accumulatedVector = vector;
+        double[] accumulatedVector = vector;
+        double[] product = new double[this.n];
         double logScalingFactor = Utils.rescale(accumulatedVector, 0.0);
 
-        for (int i = startingAtInterval; i < timeInterval ; i++) {
-            RealMatrix flowEnd = this.getFlow(i, this.outputModels[i].getFinalTime());
-
-            accumulatedVector = flowEnd.operate(accumulatedVector);
-            logScalingFactor = Utils.rescale(accumulatedVector, logScalingFactor);
-
-            accumulatedVector = this.initialStates.get(this.initialStates.size() - i - 2).inverse().operate(accumulatedVector);
+        if (startingAtInterval < timeInterval) {
+            // the intervals in between are crossed with their precomputed transfer product
+            logScalingFactor += this.getTransferProducts().apply(
+                    startingAtInterval, timeInterval - 1, accumulatedVector, product
+            );
             logScalingFactor = Utils.rescale(accumulatedVector, logScalingFactor);
         }
 
-        accumulatedVector = this.getFlow(timeInterval, time).operate(accumulatedVector);
-        logScalingFactor = Utils.rescale(accumulatedVector, logScalingFactor);
+        this.kernel.operate(this.getFlowArray(timeInterval, time), accumulatedVector, product, this.n);
+        logScalingFactor = Utils.rescale(product, logScalingFactor);
 
-        return new IntegrationResult(accumulatedVector.toArray(), logScalingFactor);
+        return new IntegrationResult(product, logScalingFactor);
     }
 
-    RealMatrix getFlow(int interval, double time) {
-        RealMatrix flow = this.flowCache[interval].get(time);
-
-        if (flow == null) {
-            ContinuousOutputModel output = this.outputModels[interval];
+    /**
+     * Returns the products of the transfer matrices P_i^-1 F_i of the intervals, where F_i is the flow at the end
+     * of interval i and P_i the initial state of the following interval. They are computed on first use.
+     */
+    TransferProductTable getTransferProducts() {
+        TransferProductTable transferProducts = this.transferProducts;
+        if (transferProducts != null) {
+            return transferProducts;
+        }
 
-            synchronized (output) {
-                output.setInterpolatedTime(time);
-                flow = Utils.toMatrix(output.getInterpolatedState(), n);
+        synchronized (this) {
+            if (this.transferProducts == null) {
+                double[][] transferMatrices = new double[this.outputModels.length - 1][];
+                double[] inverse = new double[this.n * this.n];
+
+                for (int i = 0; i < transferMatrices.length; i++) {
+                    Utils.fillArray(this.initialStates.get(this.initialStates.size() - i - 2).inverse(), inverse);
+                    transferMatrices[i] = new double[this.n * this.n];
+                    this.kernel.multiply(
+                            inverse,
+                            this.getFlowArray(i, this.outputModels[i].getFinalTime()),
+                            transferMatrices[i],
+                            this.n
+                    );
+                }
+
+                this.transferProducts = new TransferProductTable(transferMatrices, this.n, this.kernel);
             }
-
-            this.flowCache[interval].put(time, flow);
+            return this.transferProducts;
         }
+    }
 
-        return flow;
+    /**
+     * Returns the flow at the given time as a column-major array.
+     */
+    double[] getFlowArray(int interval, double time) {
+        return this.flowCache.computeIfAbsent(
+                interval,
+                time,
+                k -> this.outputModels[interval].getState(time, 0, this.n * this.n, new double[this.n * this.n])
+        );
     }
 
     /**
@@ -126,19 +322,8 @@ public class Flow implements IFlow {
      * @return the interval.
      */
     public int getLeftInterval(double time) {
-        if (this.outputModels[0].getInitialTime() < time) {
-            return 0;
-        }
-
-        for (int i = 0; i < this.outputModels.length; i++) {
-            ContinuousOutputModel model = this.outputModels[i];
-
-            if (model.getFinalTime() < time && time <= model.getInitialTime()) {
-                return i;
-            }
-        }
-
-        return this.outputModels.length - 1;
+        // the output models of the backwards integration cover (finalTime, initialTime]
+        return this.outputModels.length - 1 - this.intervalIndex.findRightClosed(time);
     }
 
     /**
@@ -148,18 +333,7 @@ public class Flow implements IFlow {
      * @return the interval.
      */
     public int getRightInterval(double time) {
-        if (this.outputModels[0].getInitialTime() <= time) {
-            return 0;
-        }
-
-        for (int i = 0; i < this.outputModels.length; i++) {
-            ContinuousOutputModel model = this.outputModels[i];
-
-            if (model.getFinalTime() <= time && time < model.getInitialTime()) {
-                return i;
-            }
-        }
-
-        return this.outputModels.length - 1;
+        // the output models of the backwards integration cover [finalTime, initialTime)
+        return this.outputModels.length - 1 - this.intervalIndex.findLeftClosed(time);
     }
 }
@@ -1,12 +1,13 @@
 package bdmmflow.flowSystems;
 
 import bdmmflow.extinctionSystem.ExtinctionProbabilities;
+import bdmmflow.integration.IDenseOutput;
 import bdmmflow.intervals.Interval;
 import bdmmflow.intervals.IntervalODESystem;
+import bdmmflow.utils.MatrixKernel;
 import bdmmflow.utils.Utils;
 import bdmmprime.parameterization.Parameterization;
 import org.apache.commons.math3.linear.*;
-import org.apache.commons.math3.ode.ContinuousOutputModel;
 
 
 import java.util.ArrayList;
@@ -20,7 +21,49 @@ import java.util.stream.Collectors;
 public class FlowODESystem extends IntervalODESystem implements IFlowODESystem {
     final ExtinctionProbabilities extinctionProbabilities;
 
-    final RealMatrix[] timeInvariantSystemMatrices;
+    final double[][] timeInvariantSystemMatrices;
+
+    /**
+     * Per-thread scratch space for the system matrix, such that computing the derivatives does not allocate.
+     */
+    final ThreadLocal<double[]> systemMatrixBuffer = ThreadLocal.withInitial(
+            () -> new double[this.parameterization.getNTypes() * this.parameterization.getNTypes()]
+    );
+
+    /**
+     * The sparsity pattern of the system matrix if the rates are sparse enough, null otherwise.
+     */
+    final SparseSystemMatrix sparseSystemMatrix;
+
+    /**
+     * Per-thread scratch space for the non-zero values of the sparse system matrix.
+     */
+    final ThreadLocal<double[]> sparseValuesBuffer;
+
+    /**
+     * The backend for the dense matrix operations.
+     */
+    final MatrixKernel kernel;
+
+    /**
+     * The cross-birth rates of every interval as column-major matrices, such that the time-varying part of
+     * the system matrix can be computed with the matrix kernel.
+     */
+    final double[][] crossBirthRateMatrices;
+
+    /**
+     * Per-thread scratch space for the cross-birth rates multiplied with the extinction probabilities.
+     */
+    final ThreadLocal<double[]> crossBirthBuffer = ThreadLocal.withInitial(
+            () -> new double[this.parameterization.getNTypes()]
+    );
+
+    /**
+     * Per-thread scratch space for the extinction probabilities used to build the system matrix.
+     */
+    final ThreadLocal<double[]> extinctionProbabilityBuffer = ThreadLocal.withInitial(
+            () -> new double[this.parameterization.getNTypes()]
+    );
 
     final double[][] birthRates;
     final double[][] deathRates;
@@ -40,9 +83,12 @@ public class FlowODESystem extends IntervalODESystem implements IFlowODESystem {
             double relativeTolerance,
             int seed,
             double maxConditionNumber,
-            boolean useLoucaPennellIntervals) {
+            boolean useLoucaPennellIntervals,
+            MatrixKernel kernel,
+            boolean useSparseKernel) {
         super(parameterization, intervals, absoluteTolerance, relativeTolerance);
         this.extinctionProbabilities = extinctionProbabilities;
+        this.kernel = kernel;
 
         this.birthRates = this.parameterization.getBirthRates();
         this.deathRates = this.parameterization.getDeathRates();
@@ -54,11 +100,23 @@ public class FlowODESystem extends IntervalODESystem implements IFlowODESystem {
         this.seed = seed;
         this.maxConditionNumber = maxConditionNumber;
 
-        this.timeInvariantSystemMatrices = new RealMatrix[this.parameterization.getTotalIntervalCount()];
+        this.crossBirthRateMatrices = new double[this.parameterization.getTotalIntervalCount()][];
+        for (int i = 0; i < this.parameterization.getTotalIntervalCount(); i++) {
+            this.crossBirthRateMatrices[i] = Utils.toColumnMajor(this.crossBirthRates[i]);
+        }
+
+        this.timeInvariantSystemMatrices = new double[this.parameterization.getTotalIntervalCount()][];
 
         for (int i = 0; i < this.parameterization.getTotalIntervalCount(); i++) {
             this.timeInvariantSystemMatrices[i] = this.buildTimeInvariantSystemMatrix(i);
         }
+
+        this.sparseSystemMatrix = useSparseKernel ? SparseSystemMatrix.buildIfSparse(
+                this.migrationRates, this.crossBirthRates, this.parameterization.getNTypes()
+        ) : null;
+        this.sparseValuesBuffer = this.sparseSystemMatrix == null ? null : ThreadLocal.withInitial(
+                () -> new double[this.sparseSystemMatrix.getNonZeroCount()]
+        );
     }
 
     @Override
@@ -67,29 +125,19 @@ public class FlowODESystem extends IntervalODESystem implements IFlowODESystem {
     }
 
     /**
-     * Builds the time-invariant part of the system matrix for a given interval. This can be reused.
+     * Builds the time-invariant part of the system matrix for a given interval in column-major order.
+     * This can be reused.
      */
-    RealMatrix buildTimeInvariantSystemMatrix(int interval) {
-        RealMatrix system = new BlockRealMatrix(parameterization.getNTypes(), parameterization.getNTypes());
-
-        for (int i = 0; i < parameterization.getNTypes(); i++) {
-            system.addToEntry(
-                    i,
-                    i,
-                    this.deathRates[interval][i] + this.samplingRates[interval][i]
-            );
+    double[] buildTimeInvariantSystemMatrix(int interval) {
+        int n = parameterization.getNTypes();
+        double[] system = new double[n * n];
 
-            for (int j = 0; j < parameterization.getNTypes(); j++) {
-                system.addToEntry(
-                        i,
-                        i,
-                        this.migrationRates[interval][i][j] + this.crossBirthRates[interval][i][j]
-                );
-                system.addToEntry(
-                        i,
-                        j,
-                        -this.migrationRates[interval][i][j]
-                );
+        for (int i = 0; i < n; i++) {
+            system[i * n + i] += this.deathRates[interval][i] + this.samplingRates[interval][i];
+
+            for (int j = 0; j < n; j++) {
+                system[i * n + i] += this.migrationRates[interval][i][j] + this.crossBirthRates[interval][i][j];
+                system[j * n + i] -= this.migrationRates[interval][i][j];
             }
         }
 
@@ -97,47 +145,67 @@ public class FlowODESystem extends IntervalODESystem implements IFlowODESystem {
     }
 
     /**
-     * Builds the time-varying part of the system matrix for a given interval. This has to be computed for every
-     * time step.
+     * Adds the time-varying part of the system matrix (in column-major order) for a given interval and the given
+     * extinction probabilities. This has to be computed for every time step.
      */
-    void addTimeVaryingSystemMatrix(double t, RealMatrix system) {
-        ContinuousOutputModel extinctionOutputModel = this.extinctionProbabilities.getOutputModel(t);
+    void addTimeVaryingSystemMatrix(int interval, double[] extinctProbabilities, double[] system) {
+        int n = parameterization.getNTypes();
+        double[] crossBirthRateMatrix = this.crossBirthRateMatrices[interval];
 
-        double[] extinctProbabilities = this.extinctionProbabilities.getProbability(extinctionOutputModel, t);
-        int interval = this.getCurrentParameterizationInterval(t);
+        double[] crossBirthTimesExtinction = this.crossBirthBuffer.get();
+        this.kernel.operate(crossBirthRateMatrix, extinctProbabilities, crossBirthTimesExtinction, n);
 
-        for (int i = 0; i < parameterization.getNTypes(); i++) {
-            system.addToEntry(
-                    i,
-                    i,
-                    -2 * this.birthRates[interval][i] * extinctProbabilities[i] + this.birthRates[interval][i]
-            );
-
-            for (int j = 0; j < parameterization.getNTypes(); j++) {
-                system.addToEntry(
-                        i,
-                        i,
-                        -this.crossBirthRates[interval][i][j] * extinctProbabilities[j]
-                );
+        for (int i = 0; i < n; i++) {
+            system[i * n + i] += -2 * this.birthRates[interval][i] * extinctProbabilities[i] + this.birthRates[interval][i]
+                    - crossBirthTimesExtinction[i];
+        }
 
-                system.addToEntry(
-                        i,
-                        j,
-                        -this.crossBirthRates[interval][i][j] * extinctProbabilities[i]
-                );
-            }
+        for (int j = 0; j < n; j++) {
+            this.kernel.addScaledProduct(-1.0, crossBirthRateMatrix, j * n, extinctProbabilities, system, j * n, n);
         }
+    }
+
+    /**
+     * Builds the system matrix for a given time point into the given column-major array.
+     */
+    void buildSystemMatrix(double t, double[] system) {
+        double[] extinctProbabilities = this.extinctionProbabilities.getProbability(
+                t, this.extinctionProbabilityBuffer.get()
+        );
+        this.buildSystemMatrix(this.getCurrentParameterizationInterval(t), extinctProbabilities, system);
+    }
 
+    /**
+     * Builds the system matrix for a given parameterization interval and the given extinction probabilities
+     * into the given column-major array. Only the first n entries of extinctProbabilities are read.
+     */
+    void buildSystemMatrix(int interval, double[] extinctProbabilities, double[] system) {
+        double[] timeInvariantSystemMatrix = this.timeInvariantSystemMatrices[interval];
+        System.arraycopy(timeInvariantSystemMatrix, 0, system, 0, timeInvariantSystemMatrix.length);
+        this.addTimeVaryingSystemMatrix(interval, extinctProbabilities, system);
     }
 
     /**
      * Builds the system matrix for a given time point.
      */
     RealMatrix buildSystemMatrix(double t) {
-        int interval = this.parameterization.getIntervalIndex(t);
-        RealMatrix systemMatrix = this.timeInvariantSystemMatrices[interval].copy();
-        this.addTimeVaryingSystemMatrix(t, systemMatrix);
-        return systemMatrix;
+        int n = this.parameterization.getNTypes();
+        double[] system = new double[n * n];
+        this.buildSystemMatrix(t, system);
+        return Utils.toMatrix(system, n);
+    }
+
+    /**
+     * Computes yDot = A * y for the given column-major system matrix A, using the sparse kernel if possible.
+     */
+    void multiplySystemMatrix(double[] systemMatrix, double[] y, double[] yDot) {
+        if (this.sparseSystemMatrix != null) {
+            double[] values = this.sparseValuesBuffer.get();
+            this.sparseSystemMatrix.gather(systemMatrix, values);
+            this.sparseSystemMatrix.multiplyLeft(values, y, yDot);
+        } else {
+            this.kernel.multiply(systemMatrix, y, yDot, this.parameterization.getNTypes());
+        }
     }
 
     @Override
@@ -146,12 +214,9 @@ public class FlowODESystem extends IntervalODESystem implements IFlowODESystem {
             throw new IllegalStateException("NaN detected during integration.");
         }
 
-        int numTypes = this.parameterization.getNTypes();
-
-        RealMatrix yMatrix = Utils.toMatrix(y, numTypes);
-        RealMatrix systemMatrix = this.buildSystemMatrix(t);
-        RealMatrix yDotMatrix = systemMatrix.multiply(yMatrix);
-        Utils.fillArray(yDotMatrix, yDot);
+        double[] systemMatrix = this.systemMatrixBuffer.get();
+        this.buildSystemMatrix(t, systemMatrix);
+        this.multiplySystemMatrix(systemMatrix, y, yDot);
     }
 
     @Override
@@ -187,7 +252,7 @@ public class FlowODESystem extends IntervalODESystem implements IFlowODESystem {
                     );
                 }
 
-                RealMatrix inverse = MatrixUtils.inverse(matrix);
+                RealMatrix inverse = Utils.inverse(matrix);
                 List<InitialState> initialStates = new ArrayList<>();
                 for (Interval ignored : intervals) {
                     double[] array = new double[this.parameterization.getNTypes() * this.parameterization.getNTypes()];
@@ -232,7 +297,7 @@ public class FlowODESystem extends IntervalODESystem implements IFlowODESystem {
                 double[] array = new double[this.parameterization.getNTypes() * this.parameterization.getNTypes()];
                 Utils.fillArray(averageInvX, array);
 
-                RealMatrix inverse = MatrixUtils.inverse(averageInvX);
+                RealMatrix inverse = Utils.inverse(averageInvX);
 
                 return new InitialState(array, inverse);
             }).toList();
@@ -257,19 +322,105 @@ public class FlowODESystem extends IntervalODESystem implements IFlowODESystem {
 
         List<InitialState> initialStates = this.getInitialStates(initialMatrixStrategy, this.intervals);
 
-        ContinuousOutputModel[] rawOutputs = this.integrateBackwards(
+        IDenseOutput[] rawOutputs = this.integrateBackwards(
                 initialStates.stream().map(InitialState::initialState).toList(),
                 this.intervals,
                 resetInitialStateAtIntervalBoundaries,
                 parallelize
         );
 
+        int n = this.parameterization.getNTypes();
+        IDenseOutput[] outputs = this.compactOutputs(rawOutputs, 0, n * n, parallelize);
+
         return new Flow(
-                rawOutputs,
-                this.parameterization.getNTypes(),
+                outputs,
+                n,
                 initialStates,
-                resetInitialStateAtIntervalBoundaries
+                resetInitialStateAtIntervalBoundaries,
+                this.kernel,
+                this.intervals
+        );
+    }
+
+    /**
+     * Calculates the flow integral like calculateFlowIntegral, but takes the outputs of the intervals from
+     * firstReusableInterval on from the given earlier flow. This requires that the parameterization and the
+     * extinction probabilities did not change in these intervals, see IntervalFingerprints, and that the initial
+     * states do not depend on the seed.
+     * <p>
+     * The initial state is reset at every interval, but the derivatives at the older boundary of an interval use the
+     * rates of the neighbouring interval, which may have changed. The first reusable interval is therefore integrated
+     * again, and the outputs are only taken from the intervals after it. The result is then identical to integrating
+     * over all intervals.
+     *
+     * @param firstReusableInterval the index of the first reusable interval before splitting.
+     */
+    public IFlow calculateFlowIntegral(
+            String initialMatrixStrategy,
+            boolean parallelize,
+            IFlow previousFlow,
+            int firstReusableInterval
+    ) {
+        // the first reusable interval reads the rates of the changed interval before it at its boundary
+        int firstReusedInterval = firstReusableInterval + 1;
+        if (!canReuseIntervals(previousFlow) || this.intervals.size() <= firstReusedInterval) {
+            return this.calculateFlowIntegral(initialMatrixStrategy, parallelize);
+        }
+        Flow previous = (Flow) previousFlow;
+
+        int firstReusedParameterizationInterval = this.intervals.get(firstReusedInterval).parameterizationInterval();
+        List<Interval> reusedIntervals = previous.intervals.stream()
+                .filter(interval -> firstReusedParameterizationInterval <= interval.parameterizationInterval())
+                .toList();
+
+        // split up and integrate the changed intervals only
+
+        this.intervals = new ArrayList<>(this.intervals.subList(0, firstReusedInterval));
+        this.splitUpIntervals();
+        List<Interval> changedIntervals = this.intervals;
+
+        List<InitialState> changedInitialStates = this.getInitialStates(initialMatrixStrategy, changedIntervals);
+
+        IDenseOutput[] rawOutputs = this.integrateBackwards(
+                changedInitialStates.stream().map(InitialState::initialState).toList(),
+                changedIntervals,
+                true,
+                parallelize
         );
+
+        int n = this.parameterization.getNTypes();
+        IDenseOutput[] changedOutputs = this.compactOutputs(rawOutputs, 0, n * n, parallelize);
+
+        // append the reused intervals, whose outputs come first as they are stored in reverse order
+
+        List<Interval> intervals = new ArrayList<>(changedIntervals);
+        for (Interval interval : reusedIntervals) {
+            intervals.add(new Interval(
+                    intervals.size(), interval.parameterizationInterval(), interval.start(), interval.end()
+            ));
+        }
+        this.intervals = intervals;
+
+        List<InitialState> initialStates = new ArrayList<>(changedInitialStates);
+        initialStates.addAll(previous.initialStates.subList(
+                previous.initialStates.size() - reusedIntervals.size(), previous.initialStates.size()
+        ));
+
+        IDenseOutput[] outputs = new IDenseOutput[intervals.size()];
+        System.arraycopy(previous.outputModels, 0, outputs, 0, reusedIntervals.size());
+        System.arraycopy(changedOutputs, 0, outputs, reusedIntervals.size(), changedOutputs.length);
+
+        return new Flow(outputs, n, initialStates, true, this.kernel, intervals);
+    }
+
+    /**
+     * Returns whether calculateFlowIntegral can take the outputs of unchanged intervals from the given flow, which
+     * requires that it knows its intervals and was restarted at each of them.
+     */
+    public static boolean canReuseIntervals(IFlow previousFlow) {
+        return previousFlow instanceof Flow previous
+                && previous.intervals != null
+                && previous.wasInitialStateResetAtEachInterval;
     }
 
     /**
@@ -1,11 +1,76 @@
 package bdmmflow.flowSystems;
 
+import bdmmflow.utils.CacheStatistics;
 import org.apache.commons.math3.linear.RealMatrix;
 
 public interface IFlow {
+    /**
+     * The default number of megabytes that the cached flow matrices and factorizations of all intervals take together.
+     */
+    int DEFAULT_CACHE_MEGABYTES = 16;
+
+    /**
+     * The estimated cost of evaluating the dense output of the flow at a time that is not cached, in units of
+     * matrix-vector products.
+     */
+    double FLOW_EVALUATION_COST = 8.0;
+
     IntegrationResult integrateUsingFlow(
             double timeStart,
             double timeEnd,
             double[] endState
     );
+
+    /**
+     * Integrates over the edge leading to the node with the given number. Implementations may cache work that
+     * only depends on the node and its time, such that it can be reused when only other parts of the tree change.
+     */
+    default IntegrationResult integrateUsingFlow(
+            int nodeNr,
+            double timeStart,
+            double timeEnd,
+            double[] endState
+    ) {
+        return this.integrateUsingFlow(timeStart, timeEnd, endState);
+    }
+
+    /**
+     * Precomputes everything the integration over the given edges needs, such that a following tree traversal
+     * only performs matrix-vector products and solves. The edges are given by the numbers of the nodes they lead
+     * to and their start and end times, of which the first edgeCount entries are used.
+     */
+    default void prepareEdges(int[] nodeNrs, double[] edgeStartTimes, double[] edgeEndTimes, int edgeCount, boolean parallelize) {
+    }
+
+    /**
+     * Estimates the cost of integrating over the given edge in units of matrix-vector products, taking into account
+     * which flows and factorizations are already cached and how many intervals the edge crosses. The estimate is
+     * used to balance the parallel tree traversal.
+     */
+    default double estimateEdgeCost(int nodeNr, double timeStart, double timeEnd) {
+        return 1.0;
+    }
+
+    /**
+     * Bounds the number of bytes that the flow matrices and factorizations cached for all intervals take together,
+     * counting 8 n^2 bytes per entry. Once the caches are full, rarely used entries are evicted. Only the values at
+     * the interval boundaries are kept in addition, which are at most four per interval.
+     */
+    default void setCacheSize(long maxBytes) {
+    }
+
+    /**
+     * Returns the number of bytes taken by the cached flow matrices and factorizations that are bounded by
+     * setCacheSize.
+     */
+    default long getCachedBytes() {
+        return 0;
+    }
+
+    /**
+     * Returns the hit, miss and eviction counts of the caches of this flow.
+     */
+    default CacheStatistics getCacheStatistics() {
+        return CacheStatistics.EMPTY;
+    }
 }
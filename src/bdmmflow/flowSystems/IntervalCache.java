@@ -0,0 +1,96 @@
+package bdmmflow.flowSystems;
+
+import bdmmflow.integration.IDenseOutput;
+import bdmmflow.utils.CacheStatistics;
+import bdmmflow.utils.DoubleKeyCache;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.DoubleFunction;
+
+/**
+ * Caches values that depend on an interval of a flow and a time, like the flow matrices and their factorizations,
+ * with a single bound for all intervals.
+ * <p>
+ * A time strictly inside an interval determines the interval, such that the values at these times share one
+ * bounded DoubleKeyCache. Only at the boundaries of the intervals, the values of the two neighbouring intervals
+ * differ. They are kept per interval in addition to the bounded cache, which are at most two values per interval
+ * and thus less than the dense output of the interval takes.
+ */
+class IntervalCache<V> {
+    final IDenseOutput[] outputModels;
+    final DoubleKeyCache<V> cache;
+
+    /**
+     * The values at the initial and the final time of every output model.
+     */
+    final AtomicReferenceArray<V> boundaryValues;
+
+    IntervalCache(IDenseOutput[] outputModels, int maxSize) {
+        this.outputModels = outputModels;
+        this.cache = new DoubleKeyCache<>(maxSize);
+        this.boundaryValues = new AtomicReferenceArray<>(2 * outputModels.length);
+    }
+
+    /**
+     * Returns the value cached for the given interval and time, or computes, caches and returns it.
+     */
+    V computeIfAbsent(int interval, double time, DoubleFunction<? extends V> function) {
+        int boundaryIndex = this.getBoundaryIndex(interval, time);
+        if (boundaryIndex < 0) {
+            return this.cache.computeIfAbsent(time, function);
+        }
+
+        V value = this.boundaryValues.get(boundaryIndex);
+        if (value == null) {
+            // concurrent callers compute the same value, the first one is kept
+            this.boundaryValues.compareAndSet(boundaryIndex, null, function.apply(time));
+            value = this.boundaryValues.get(boundaryIndex);
+        }
+        return value;
+    }
+
+    /**
+     * Returns whether a value is cached for the given interval and time, without counting a hit or a miss.
+     */
+    boolean containsKey(int interval, double time) {
+        int boundaryIndex = this.getBoundaryIndex(interval, time);
+        return boundaryIndex < 0
+                ? this.cache.containsKey(time)
+                : this.boundaryValues.get(boundaryIndex) != null;
+    }
+
+    /**
+     * Returns the index of the given time in boundaryValues, or -1 if it lies strictly inside the interval.
+     */
+    int getBoundaryIndex(int interval, double time) {
+        IDenseOutput output = this.outputModels[interval];
+        if (time == output.getInitialTime()) return 2 * interval;
+        if (time == output.getFinalTime()) return 2 * interval + 1;
+        return -1;
+    }
+
+    /**
+     * Bounds the number of values at the inner times of all intervals together.
+     */
+    void setMaxSize(int maxSize) {
+        this.cache.setMaxSize(maxSize);
+    }
+
+    /**
+     * Returns the number of values at the inner times of all intervals, which is bounded by setMaxSize.
+     */
+    int size() {
+        return this.cache.size();
+    }
+
+    CacheStatistics getStatistics() {
+        return this.cache.getStatistics();
+    }
+
+    /**
+     * Returns the number of entries of n x n matrices that fit into the given number of bytes, and at least one.
+     */
+    static int getMaxSize(long maxBytes, int n) {
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxBytes / (Double.BYTES * (long) n * n)));
+    }
+}
@@ -1,11 +1,15 @@
 package bdmmflow.flowSystems;
 
+import bdmmflow.integration.IDenseOutput;
+import bdmmflow.intervals.IntervalIndex;
+import bdmmflow.utils.CacheStatistics;
+import bdmmflow.utils.LinearSystemSolver;
+import bdmmflow.utils.MatrixKernel;
+import bdmmflow.utils.Result;
 import bdmmflow.utils.Utils;
-import org.apache.commons.math3.linear.*;
-import org.apache.commons.math3.ode.ContinuousOutputModel;
 
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
 
 /**
  * This class is a lightweight wrapper of the result of the Inverse Flow ODE integration. It allows to easily query the
@@ -17,61 +21,124 @@ import java.util.concurrent.ConcurrentHashMap;
  * It supports intervals and also reset of the initial state at each interval start.
  */
 public class InverseFlow implements IFlow {
-    ContinuousOutputModel[] outputModels;
+    IDenseOutput[] outputModels;
+    IntervalIndex intervalIndex;
 
     List<InitialState> initialStates;
     boolean wasInitialStateResetAtEachInterval;
     int n;
 
-    ConcurrentHashMap<Double, RealMatrix>[] flowCache;
-    ConcurrentHashMap<Double, DecompositionSolver>[] decompositionCache;
+    /**
+     * The backend for the matrix-vector products when operating the flow.
+     */
+    MatrixKernel kernel;
+
+    /**
+     * The cached flows as column-major arrays and their factorizations, bounded for all intervals together. Each
+     * of the two caches gets half of the bytes.
+     */
+    IntervalCache<double[]> flowCache;
+    IntervalCache<LinearSystemSolver> decompositionCache;
+
+    /**
+     * The products of the interval transfer matrices, which allow to cross any number of intervals with two
+     * matrix-vector products.
+     */
+    volatile TransferProductTable transferProducts;
 
-    public InverseFlow(ContinuousOutputModel[] outputModels, int n, List<InitialState> initialStates, boolean useIntervals) {
+    public InverseFlow(IDenseOutput[] outputModels, int n, List<InitialState> initialStates, boolean useIntervals, MatrixKernel kernel) {
         this.outputModels = outputModels;
+        this.intervalIndex = IntervalIndex.fromForwardOutputs(outputModels);
+        this.kernel = kernel;
         this.initialStates = initialStates;
 
         this.n = n;
         this.wasInitialStateResetAtEachInterval = useIntervals;
 
-        this.flowCache = new ConcurrentHashMap[outputModels.length];
-        this.decompositionCache = new ConcurrentHashMap[outputModels.length];
-        for (int i = 0; i < outputModels.length; i++) {
-            this.flowCache[i] = new ConcurrentHashMap<>();
-            this.decompositionCache[i] = new ConcurrentHashMap<>();
-        }
+        int maxSize = IntervalCache.getMaxSize(DEFAULT_CACHE_MEGABYTES * 1024L * 1024L / 2, n);
+        this.flowCache = new IntervalCache<>(outputModels, maxSize);
+        this.decompositionCache = new IntervalCache<>(outputModels, maxSize);
+    }
+
+    @Override
+    public void setCacheSize(long maxBytes) {
+        int maxSize = IntervalCache.getMaxSize(maxBytes / 2, this.n);
+        this.flowCache.setMaxSize(maxSize);
+        this.decompositionCache.setMaxSize(maxSize);
+    }
+
+    @Override
+    public long getCachedBytes() {
+        return (long) (this.flowCache.size() + this.decompositionCache.size()) * Double.BYTES * this.n * this.n;
+    }
+
+    @Override
+    public CacheStatistics getCacheStatistics() {
+        return this.flowCache.getStatistics().plus(this.decompositionCache.getStatistics());
     }
 
     @Override
     public IntegrationResult integrateUsingFlow(double timeStart, double timeEnd, double[] endState) {
         int interval = this.getLeftInterval(timeStart);
+        LinearSystemSolver linearSolver = this.getFactorization(interval, timeStart);
 
-        DecompositionSolver linearSolver = this.decompositionCache[interval].computeIfAbsent(
-                timeStart,
-                k -> new QRDecomposition(
-                        this.getFlow(interval, timeStart), 1e-10
-                ).getSolver()
-        );
+        ScaledVector likelihoodVectorIntervalEnd = this.operateFlow(timeEnd, interval, endState);
+
+        double[] likelihoodVectorStart = linearSolver.solve(likelihoodVectorIntervalEnd.vector());
+        return new IntegrationResult(likelihoodVectorStart, likelihoodVectorIntervalEnd.logScalingFactor);
+    }
 
-        RealVector likelihoodVectorEnd = new ArrayRealVector(endState);
-        ScaledVector likelihoodVectorIntervalEnd = this.operateFlow(timeEnd, interval, likelihoodVectorEnd);
+    /**
+     * Factorizes the inverse flow at the start of every edge and evaluates it at the end of every edge and at the
+     * interval ends, filling the caches used by integrateUsingFlow.
+     */
+    @Override
+    public void prepareEdges(int[] nodeNrs, double[] edgeStartTimes, double[] edgeEndTimes, int edgeCount, boolean parallelize) {
+        if (this.wasInitialStateResetAtEachInterval && 1 < this.outputModels.length) {
+            this.getTransferProducts();
+        }
 
-        RealVector likelihoodVectorStart = null;
-        try {
-            likelihoodVectorStart = linearSolver.solve(likelihoodVectorIntervalEnd.vector());
-        } catch (SingularMatrixException e) {
-            // we fall back to an SVD least-squares solver
-            SingularValueDecomposition svd = new SingularValueDecomposition(this.getFlow(interval, timeStart));
+        IntStream edges = IntStream.range(0, edgeCount);
+        Result.throwIfFailure((parallelize ? edges.parallel() : edges).mapToObj(k -> Result.of(() -> {
+            this.getFactorization(this.getLeftInterval(edgeStartTimes[k]), edgeStartTimes[k]);
+            this.getFlowArray(this.getRightInterval(edgeEndTimes[k]), edgeEndTimes[k]);
+            return null;
+        })));
+    }
 
-            if (Double.isInfinite(svd.getConditionNumber())) {
-                throw new IllegalStateException("Infinite condition number found.");
-            }
+    /**
+     * Estimates the cost of integrating over an edge as the matrix-vector product and the solve, the
+     * factorization and the evaluation of the inverse flow if they are not cached and the two products with the
+     * transfer table if the edge crosses intervals.
+     */
+    @Override
+    public double estimateEdgeCost(int nodeNr, double timeStart, double timeEnd) {
+        int intervalStart = this.getLeftInterval(timeStart);
+        int intervalEnd = this.getRightInterval(timeEnd);
+        double cost = 3.0;
 
-            linearSolver = svd.getSolver();
-            this.decompositionCache[interval].put(timeStart, linearSolver);
-            likelihoodVectorStart = linearSolver.solve(likelihoodVectorIntervalEnd.vector());
+        if (!this.decompositionCache.containsKey(intervalStart, timeStart)) {
+            cost += this.n;
+        }
+        if (!this.flowCache.containsKey(intervalEnd, timeEnd)) {
+            cost += FLOW_EVALUATION_COST;
+        }
+        if (this.wasInitialStateResetAtEachInterval && intervalStart != intervalEnd) {
+            cost += 2.0;
         }
 
-        return new IntegrationResult(likelihoodVectorStart.toArray(), likelihoodVectorIntervalEnd.logScalingFactor);
+        return cost;
+    }
+
+    /**
+     * Returns a cached solver for the inverse flow at the given time.
+     */
+    LinearSystemSolver getFactorization(int interval, double time) {
+        return this.decompositionCache.computeIfAbsent(
+                interval,
+                time,
+                k -> Utils.factorize(this.getFlowArray(interval, time), this.n)
+        );
     }
 
     /**
@@ -86,45 +153,73 @@ public class InverseFlow implements IFlow {
      * @param vector             the vector to multiply the flow with.
      * @return the flow at the given time multiplied with the vector.
      */
-    public ScaledVector operateFlow(double time, int startingAtInterval, RealVector vector) {
+    public ScaledVector operateFlow(double time, int startingAtInterval, double[] vector) {
         int timeInterval = this.getRightInterval(time);
 
+        double[] accumulatedVector = new double[this.n];
+        this.kernel.operate(this.getFlowArray(timeInterval, time), vector, accumulatedVector, this.n);
+
         if (!this.wasInitialStateResetAtEachInterval || startingAtInterval == timeInterval)
-            return new ScaledVector(this.getFlow(timeInterval, time).operate(vector), 0.0);
+            return new ScaledVector(accumulatedVector, 0.0);
 
-        RealVector accumulatedVector = this.getFlow(timeInterval, time).operate(vector);
         double logScalingFactor = Utils.rescale(accumulatedVector, 0.0);
 
-        for (int i = timeInterval - 1; i >= startingAtInterval; i--) {
-            RealMatrix flowEnd = this.getFlow(i, this.outputModels[i].getFinalTime());
-
-            accumulatedVector = this.initialStates.get(i + 1).inverse().operate(accumulatedVector);
-            logScalingFactor = Utils.rescale(accumulatedVector, logScalingFactor);
-
-            accumulatedVector = flowEnd.operate(accumulatedVector);
-            logScalingFactor = Utils.rescale(accumulatedVector, logScalingFactor);
-        }
+        // the intervals in between are crossed with their precomputed transfer product
+        int lastInterval = this.outputModels.length - 2;
+        logScalingFactor += this.getTransferProducts().apply(
+                lastInterval - (timeInterval - 1), lastInterval - startingAtInterval, accumulatedVector, new double[this.n]
+        );
+        logScalingFactor = Utils.rescale(accumulatedVector, logScalingFactor);
 
         return new ScaledVector(accumulatedVector, logScalingFactor);
     }
 
-    private record ScaledVector(RealVector vector, double logScalingFactor) {};
+    private record ScaledVector(double[] vector, double logScalingFactor) {};
 
-    RealMatrix getFlow(int interval, double time) {
-        RealMatrix flow = this.flowCache[interval].get(time);
-
-        if (flow == null) {
-            ContinuousOutputModel output = this.outputModels[interval];
+    /**
+     * Returns the products of the transfer matrices F_i P_{i+1}^-1 of the intervals, where F_i is the inverse flow
+     * at the end of interval i and P_{i+1} the initial state of the following interval. As the intervals are
+     * crossed backwards, the transfer matrices are stored from the last interval to the first. They are computed
+     * on first use.
+     */
+    TransferProductTable getTransferProducts() {
+        TransferProductTable transferProducts = this.transferProducts;
+        if (transferProducts != null) {
+            return transferProducts;
+        }
 
-            synchronized (output) {
-                output.setInterpolatedTime(time);
-                flow = Utils.toMatrix(output.getInterpolatedState(), n);
+        synchronized (this) {
+            if (this.transferProducts == null) {
+                int lastInterval = this.outputModels.length - 2;
+                double[][] transferMatrices = new double[lastInterval + 1][];
+                double[] inverse = new double[this.n * this.n];
+
+                for (int i = 0; i <= lastInterval; i++) {
+                    Utils.fillArray(this.initialStates.get(i + 1).inverse(), inverse);
+                    transferMatrices[lastInterval - i] = new double[this.n * this.n];
+                    this.kernel.multiply(
+                            this.getFlowArray(i, this.outputModels[i].getFinalTime()),
+                            inverse,
+                            transferMatrices[lastInterval - i],
+                            this.n
+                    );
+                }
+
+                this.transferProducts = new TransferProductTable(transferMatrices, this.n, this.kernel);
             }
-
-            this.flowCache[interval].put(time, flow);
+            return this.transferProducts;
         }
+    }
 
-        return flow;
+    /**
+     * Returns the flow at the given time as a column-major array.
+     */
+    double[] getFlowArray(int interval, double time) {
+        return this.flowCache.computeIfAbsent(
+                interval,
+                time,
+                k -> this.outputModels[interval].getState(time, 0, this.n * this.n, new double[this.n * this.n])
+        );
     }
 
     /**
@@ -134,19 +229,8 @@ public class InverseFlow implements IFlow {
      * @return the interval.
      */
     public int getLeftInterval(double time) {
-        if (time < this.outputModels[0].getInitialTime()) {
-            return 0;
-        }
-
-        for (int i = 0; i < this.outputModels.length; i++) {
-            ContinuousOutputModel model = this.outputModels[i];
-
-            if (model.getInitialTime() <= time && time < model.getFinalTime()) {
-                return i;
-            }
-        }
-
-        return this.outputModels.length - 1;
+        // the output models of the forwards integration cover [initialTime, finalTime)
+        return this.intervalIndex.findLeftClosed(time);
     }
 
     /**
@@ -156,18 +240,7 @@ public class InverseFlow implements IFlow {
      * @return the interval.
      */
     public int getRightInterval(double time) {
-        if (time <= this.outputModels[0].getInitialTime()) {
-            return 0;
-        }
-
-        for (int i = 0; i < this.outputModels.length; i++) {
-            ContinuousOutputModel model = this.outputModels[i];
-
-            if (model.getInitialTime() < time && time <= model.getFinalTime()) {
-                return i;
-            }
-        }
-
-        return this.outputModels.length - 1;
+        // the output models of the forwards integration cover (initialTime, finalTime]
+        return this.intervalIndex.findRightClosed(time);
     }
 }
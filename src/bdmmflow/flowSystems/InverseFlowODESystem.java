@@ -1,12 +1,13 @@
 package bdmmflow.flowSystems;
 
 import bdmmflow.extinctionSystem.ExtinctionProbabilities;
+import bdmmflow.integration.IDenseOutput;
 import bdmmflow.intervals.Interval;
 import bdmmflow.intervals.IntervalODESystem;
+import bdmmflow.utils.MatrixKernel;
 import bdmmflow.utils.Utils;
 import bdmmprime.parameterization.Parameterization;
 import org.apache.commons.math3.linear.*;
-import org.apache.commons.math3.ode.ContinuousOutputModel;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -21,7 +22,47 @@ import static bdmmflow.utils.Utils.*;
 public class InverseFlowODESystem extends IntervalODESystem implements IFlowODESystem {
     final ExtinctionProbabilities extinctionProbabilities;
 
-    final RealMatrix[] timeInvariantSystemMatrices;
+    final double[][] timeInvariantSystemMatrices;
+
+    /**
+     * Per-thread scratch space for the system matrix, such that computing the derivatives does not allocate.
+     */
+    final ThreadLocal<double[]> systemMatrixBuffer = ThreadLocal.withInitial(() -> new double[this.getDimension()]);
+
+    /**
+     * The sparsity pattern of the system matrix if the rates are sparse enough, null otherwise.
+     */
+    final SparseSystemMatrix sparseSystemMatrix;
+
+    /**
+     * Per-thread scratch space for the non-zero values of the sparse system matrix.
+     */
+    final ThreadLocal<double[]> sparseValuesBuffer;
+
+    /**
+     * The backend for the dense matrix operations.
+     */
+    final MatrixKernel kernel;
+
+    /**
+     * The cross-birth rates of every interval as column-major matrices, such that the time-varying part of
+     * the system matrix can be computed with the matrix kernel.
+     */
+    final double[][] crossBirthRateMatrices;
+
+    /**
+     * Per-thread scratch space for the cross-birth rates multiplied with the extinction probabilities.
+     */
+    final ThreadLocal<double[]> crossBirthBuffer = ThreadLocal.withInitial(
+            () -> new double[this.parameterization.getNTypes()]
+    );
+
+    /**
+     * Per-thread scratch space for the extinction probabilities used to build the system matrix.
+     */
+    final ThreadLocal<double[]> extinctionProbabilityBuffer = ThreadLocal.withInitial(
+            () -> new double[this.parameterization.getNTypes()]
+    );
 
     final double[][] birthRates;
     final double[][] deathRates;
@@ -42,9 +83,12 @@ public class InverseFlowODESystem extends IntervalODESystem implements IFlowODES
             double relativeTolerance,
             int seed,
             double maxConditionNumber,
-            boolean useLoucaPennellIntervals) {
+            boolean useLoucaPennellIntervals,
+            MatrixKernel kernel,
+            boolean useSparseKernel) {
         super(parameterization, intervals, absoluteTolerance, relativeTolerance);
         this.extinctionProbabilities = extinctionProbabilities;
+        this.kernel = kernel;
 
         this.birthRates = this.parameterization.getBirthRates();
         this.deathRates = this.parameterization.getDeathRates();
@@ -56,11 +100,23 @@ public class InverseFlowODESystem extends IntervalODESystem implements IFlowODES
         this.maxConditionNumber = maxConditionNumber;
         this.useLoucaPennellIntervals = useLoucaPennellIntervals;
 
-        this.timeInvariantSystemMatrices = new RealMatrix[this.parameterization.getTotalIntervalCount()];
+        this.crossBirthRateMatrices = new double[this.parameterization.getTotalIntervalCount()][];
+        for (int i = 0; i < this.parameterization.getTotalIntervalCount(); i++) {
+            this.crossBirthRateMatrices[i] = Utils.toColumnMajor(this.crossBirthRates[i]);
+        }
+
+        this.timeInvariantSystemMatrices = new double[this.parameterization.getTotalIntervalCount()][];
 
         for (int i = 0; i < this.parameterization.getTotalIntervalCount(); i++) {
             this.timeInvariantSystemMatrices[i] = this.buildTimeInvariantSystemMatrix(i);
         }
+
+        this.sparseSystemMatrix = useSparseKernel ? SparseSystemMatrix.buildIfSparse(
+                this.migrationRates, this.crossBirthRates, this.parameterization.getNTypes()
+        ) : null;
+        this.sparseValuesBuffer = this.sparseSystemMatrix == null ? null : ThreadLocal.withInitial(
+                () -> new double[this.sparseSystemMatrix.getNonZeroCount()]
+        );
     }
 
     @Override
@@ -69,29 +125,19 @@ public class InverseFlowODESystem extends IntervalODESystem implements IFlowODES
     }
 
     /**
-     * Builds the time-invariant part of the system matrix for a given interval. This can be reused.
+     * Builds the time-invariant part of the system matrix for a given interval in column-major order.
+     * This can be reused.
      */
-    RealMatrix buildTimeInvariantSystemMatrix(int interval) {
-        RealMatrix system = new BlockRealMatrix(parameterization.getNTypes(), parameterization.getNTypes());
-
-        for (int i = 0; i < parameterization.getNTypes(); i++) {
-            system.addToEntry(
-                    i,
-                    i,
-                    -this.deathRates[interval][i] - this.samplingRates[interval][i] - this.birthRates[interval][i]
-            );
+    double[] buildTimeInvariantSystemMatrix(int interval) {
+        int n = parameterization.getNTypes();
+        double[] system = new double[n * n];
 
-            for (int j = 0; j < parameterization.getNTypes(); j++) {
-                system.addToEntry(
-                        i,
-                        i,
-                        -this.migrationRates[interval][i][j] - this.crossBirthRates[interval][i][j]
-                );
-                system.addToEntry(
-                        i,
-                        j,
-                        this.migrationRates[interval][i][j]
-                );
+        for (int i = 0; i < n; i++) {
+            system[i * n + i] += -this.deathRates[interval][i] - this.samplingRates[interval][i] - this.birthRates[interval][i];
+
+            for (int j = 0; j < n; j++) {
+                system[i * n + i] += -this.migrationRates[interval][i][j] - this.crossBirthRates[interval][i][j];
+                system[j * n + i] += this.migrationRates[interval][i][j];
             }
         }
 
@@ -99,48 +145,45 @@ public class InverseFlowODESystem extends IntervalODESystem implements IFlowODES
     }
 
     /**
-     * Builds the time-varying part of the system matrix for a given interval. This has to be computed for every
-     * time step.
+     * Adds the time-varying part of the system matrix (in column-major order) for a given interval. This has
+     * to be computed for every time step.
      */
-    void addTimeVaryingSystemMatrix(double t, RealMatrix system) {
-        ContinuousOutputModel extinctionOutputModel = this.extinctionProbabilities.getOutputModel(t);
-
-        synchronized (extinctionOutputModel) {
-            double[] extinctProbabilities = this.extinctionProbabilities.unsafeGetProbability(extinctionOutputModel, t);
-            int interval = getCurrentParameterizationInterval(t);
-
-            for (int i = 0; i < parameterization.getNTypes(); i++) {
-                system.addToEntry(
-                        i,
-                        i,
-                        2 * this.birthRates[interval][i] * extinctProbabilities[i]
-                );
+    void addTimeVaryingSystemMatrix(double t, double[] system) {
+        double[] extinctProbabilities = this.extinctionProbabilities.getProbability(
+                t, this.extinctionProbabilityBuffer.get()
+        );
+        int interval = getCurrentParameterizationInterval(t);
+        int n = parameterization.getNTypes();
+        double[] crossBirthRateMatrix = this.crossBirthRateMatrices[interval];
 
-                for (int j = 0; j < parameterization.getNTypes(); j++) {
-                    system.addToEntry(
-                            i,
-                            i,
-                            this.crossBirthRates[interval][i][j] * extinctProbabilities[j]
-                    );
+        double[] crossBirthTimesExtinction = this.crossBirthBuffer.get();
+        this.kernel.operate(crossBirthRateMatrix, extinctProbabilities, crossBirthTimesExtinction, n);
 
-                    system.addToEntry(
-                            i,
-                            j,
-                            this.crossBirthRates[interval][i][j] * extinctProbabilities[i]
-                    );
-                }
-            }
+        for (int i = 0; i < n; i++) {
+            system[i * n + i] += 2 * this.birthRates[interval][i] * extinctProbabilities[i] + crossBirthTimesExtinction[i];
+        }
+
+        for (int j = 0; j < n; j++) {
+            this.kernel.addScaledProduct(1.0, crossBirthRateMatrix, j * n, extinctProbabilities, system, j * n, n);
         }
     }
 
+    /**
+     * Builds the system matrix for a given time point into the given column-major array.
+     */
+    void buildSystemMatrix(double t, double[] system) {
+        int interval = this.getCurrentParameterizationInterval(t);
+        System.arraycopy(this.timeInvariantSystemMatrices[interval], 0, system, 0, system.length);
+        this.addTimeVaryingSystemMatrix(t, system);
+    }
+
     /**
      * Builds the system matrix for a given time point.
      */
     RealMatrix buildSystemMatrix(double t) {
-        int interval = this.parameterization.getIntervalIndex(t);
-        RealMatrix systemMatrix = this.timeInvariantSystemMatrices[interval].copy();
-        this.addTimeVaryingSystemMatrix(t, systemMatrix);
-        return systemMatrix;
+        double[] system = new double[this.getDimension()];
+        this.buildSystemMatrix(t, system);
+        return toMatrix(system, this.parameterization.getNTypes());
     }
 
     @Override
@@ -149,13 +192,16 @@ public class InverseFlowODESystem extends IntervalODESystem implements IFlowODES
             throw new IllegalStateException("NaN detected during integration.");
         }
 
-        int numTypes = this.parameterization.getNTypes();
-
-        RealMatrix yMatrix = toMatrix(y, numTypes);
-        RealMatrix systemMatrix = this.buildSystemMatrix(t);
+        double[] systemMatrix = this.systemMatrixBuffer.get();
+        this.buildSystemMatrix(t, systemMatrix);
 
-        RealMatrix yDotMatrix = yMatrix.multiply(systemMatrix);
-        fillArray(yDotMatrix, yDot);
+        if (this.sparseSystemMatrix != null) {
+            double[] values = this.sparseValuesBuffer.get();
+            this.sparseSystemMatrix.gather(systemMatrix, values);
+            this.sparseSystemMatrix.multiplyRight(values, y, yDot);
+        } else {
+            this.kernel.multiply(y, systemMatrix, yDot, this.parameterization.getNTypes());
+        }
     }
 
     @Override
@@ -191,7 +237,7 @@ public class InverseFlowODESystem extends IntervalODESystem implements IFlowODES
                     );
                 }
 
-                RealMatrix inverse = MatrixUtils.inverse(matrix);
+                RealMatrix inverse = Utils.inverse(matrix);
                 List<InitialState> initialStates = new ArrayList<>();
                 for (Interval ignored : intervals) {
                     double[] array = new double[this.parameterization.getNTypes() * this.parameterization.getNTypes()];
@@ -236,7 +282,7 @@ public class InverseFlowODESystem extends IntervalODESystem implements IFlowODES
                 double[] array = new double[this.parameterization.getNTypes() * this.parameterization.getNTypes()];
                 Utils.fillArray(averageInvX, array);
 
-                RealMatrix inverse = MatrixUtils.inverse(averageInvX);
+                RealMatrix inverse = Utils.inverse(averageInvX);
 
                 return new InitialState(array, inverse);
             }).toList();
@@ -268,7 +314,7 @@ public class InverseFlowODESystem extends IntervalODESystem implements IFlowODES
                 double[] array = new double[this.parameterization.getNTypes() * this.parameterization.getNTypes()];
                 Utils.fillArray(averageInvX, array);
 
-                RealMatrix inverse = MatrixUtils.inverse(averageInvX);
+                RealMatrix inverse = Utils.inverse(averageInvX);
 
                 return new InitialState(array, inverse);
             }).toList();
@@ -292,17 +338,21 @@ public class InverseFlowODESystem extends IntervalODESystem implements IFlowODES
 
         List<InitialState> initialStates = this.getInitialStates(initialMatrixStrategy, this.intervals);
 
-        ContinuousOutputModel[] rawOutputs = this.integrateForwards(
+        IDenseOutput[] rawOutputs = this.integrateForwards(
                 initialStates.stream().map(InitialState::initialState).toList(),
                 this.intervals,
                 resetInitialStateAtIntervalBoundaries,
                 parallelize
         );
+        int n = this.parameterization.getNTypes();
+        IDenseOutput[] outputs = this.compactOutputs(rawOutputs, 0, n * n, parallelize);
+
         return new InverseFlow(
-                rawOutputs,
-                this.parameterization.getNTypes(),
+                outputs,
+                n,
                 initialStates,
-                resetInitialStateAtIntervalBoundaries
+                resetInitialStateAtIntervalBoundaries,
+                this.kernel
         );
     }
 
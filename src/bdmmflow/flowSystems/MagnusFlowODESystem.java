@@ -0,0 +1,76 @@
+package bdmmflow.flowSystems;
+
+import bdmmflow.extinctionSystem.ExtinctionProbabilities;
+import bdmmflow.integration.IDenseOutput;
+import bdmmflow.integration.MagnusIntegrator;
+import bdmmflow.intervals.Interval;
+import bdmmflow.utils.MatrixKernel;
+import bdmmprime.parameterization.Parameterization;
+
+import java.util.List;
+
+/**
+ * This class represents the classical backwards-in-time flow ODE, integrated with the fourth-order Magnus method
+ * instead of an explicit Runge-Kutta method.
+ * <p>
+ * The flow ODE is linear, so every Magnus step is a matrix exponential of the averaged system matrix. The steps
+ * stay stable for stiff system matrices, for example with high migration rates, where the explicit methods are
+ * restricted to small steps. If the Magnus integration fails, the interval is integrated with the Runge-Kutta
+ * methods of IntervalODESystem instead.
+ */
+public class MagnusFlowODESystem extends FlowODESystem {
+
+    /**
+     * The integrators keep their work buffers between integrations, so every thread reuses its own.
+     */
+    final ThreadLocal<MagnusIntegrator> integrators = ThreadLocal.withInitial(
+            () -> new MagnusIntegrator(this.parameterization.getNTypes(), this.kernel)
+    );
+
+    public MagnusFlowODESystem(
+            Parameterization parameterization,
+            ExtinctionProbabilities extinctionProbabilities,
+            List<Interval> intervals,
+            double absoluteTolerance,
+            double relativeTolerance,
+            int seed,
+            double maxConditionNumber,
+            boolean useLoucaPennellIntervals,
+            MatrixKernel kernel,
+            boolean useSparseKernel) {
+        super(
+                parameterization, extinctionProbabilities, intervals, absoluteTolerance, relativeTolerance,
+                seed, maxConditionNumber, useLoucaPennellIntervals, kernel, useSparseKernel
+        );
+    }
+
+    @Override
+    protected IDenseOutput integrate(double[] initialState, double start, double end, Interval interval) {
+        MagnusIntegrator integrator = this.integrators.get();
+        if (integrator.isIntegrating()) {
+            integrator = new MagnusIntegrator(this.parameterization.getNTypes(), this.kernel);
+        }
+        integrator.setStepBounds(this.integrationMinStep, this.integrationMaxStep);
+        integrator.setTolerances(this.absoluteTolerance, this.relativeTolerance);
+
+        // the interval lies within a single parameterization interval, which also applies at its boundaries
+        int parameterizationInterval = interval.parameterizationInterval();
+
+        try {
+            return integrator.integrate(
+                    (t, systemMatrix) -> this.buildSystemMatrix(
+                            parameterizationInterval,
+                            this.extinctionProbabilities.getProbability(t, this.extinctionProbabilityBuffer.get()),
+                            systemMatrix
+                    ),
+                    start,
+                    initialState,
+                    end
+            );
+        } catch (IllegalStateException e) {
+            // NaN was found during integration, we fall back to the Runge-Kutta methods
+            return this.integrateWithRungeKutta(initialState, start, end);
+        }
+    }
+
+}
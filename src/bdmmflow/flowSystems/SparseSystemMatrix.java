@@ -0,0 +1,137 @@
+package bdmmflow.flowSystems;
+
+import java.util.Arrays;
+
+/**
+ * This class stores the sparsity pattern of a flow system matrix in compressed sparse row (CSR) format.
+ * <p>
+ * The pattern is fixed for a given parameterization, as it only depends on which migration and cross-birth
+ * rates are non-zero. The values change at every time step and are passed in separately, such that one
+ * instance can be shared between threads.
+ */
+public class SparseSystemMatrix {
+
+    /**
+     * The maximal fraction of non-zero entries for which the sparse kernel is used.
+     */
+    static final double MAX_DENSITY = 0.25;
+
+    /**
+     * The minimal number of types for which the sparse kernel is used. For smaller systems, the dense
+     * kernel is always faster.
+     */
+    static final int MIN_DIMENSION = 8;
+
+    final int n;
+    final int[] rowPointers;
+    final int[] columnIndices;
+
+    /**
+     * @param pattern the sparsity pattern as a column-major n x n array, true for non-zero entries.
+     * @param n       the number of rows and columns.
+     */
+    SparseSystemMatrix(boolean[] pattern, int n) {
+        this.n = n;
+        this.rowPointers = new int[n + 1];
+
+        int nonZeroCount = 0;
+        for (boolean isNonZero : pattern) {
+            if (isNonZero) nonZeroCount++;
+        }
+        this.columnIndices = new int[nonZeroCount];
+
+        int current = 0;
+        for (int i = 0; i < n; i++) {
+            this.rowPointers[i] = current;
+            for (int j = 0; j < n; j++) {
+                if (pattern[j * n + i]) {
+                    this.columnIndices[current++] = j;
+                }
+            }
+        }
+        this.rowPointers[n] = current;
+    }
+
+    /**
+     * Returns a sparse system matrix if the given migration and cross-birth rates are sparse enough that the
+     * sparse kernel pays off, and null otherwise. The pattern covers all parameterization intervals.
+     */
+    public static SparseSystemMatrix buildIfSparse(double[][][] migrationRates, double[][][] crossBirthRates, int n) {
+        if (n < MIN_DIMENSION) return null;
+
+        boolean[] pattern = new boolean[n * n];
+        for (int i = 0; i < n; i++) {
+            pattern[i * n + i] = true;
+        }
+
+        for (int interval = 0; interval < migrationRates.length; interval++) {
+            for (int i = 0; i < n; i++) {
+                for (int j = 0; j < n; j++) {
+                    if (migrationRates[interval][i][j] != 0.0 || crossBirthRates[interval][i][j] != 0.0) {
+                        pattern[j * n + i] = true;
+                    }
+                }
+            }
+        }
+
+        SparseSystemMatrix matrix = new SparseSystemMatrix(pattern, n);
+        if (MAX_DENSITY * n * n < matrix.getNonZeroCount()) return null;
+
+        return matrix;
+    }
+
+    public int getNonZeroCount() {
+        return this.columnIndices.length;
+    }
+
+    /**
+     * Gathers the values at the non-zero positions of the given dense column-major matrix.
+     */
+    void gather(double[] dense, double[] values) {
+        for (int i = 0; i < this.n; i++) {
+            for (int k = this.rowPointers[i]; k < this.rowPointers[i + 1]; k++) {
+                values[k] = dense[this.columnIndices[k] * this.n + i];
+            }
+        }
+    }
+
+    /**
+     * Computes result = A * right, where A is this sparse matrix with the given values and right and result
+     * are dense column-major n x n matrices.
+     */
+    void multiplyLeft(double[] values, double[] right, double[] result) {
+        for (int j = 0; j < this.n; j++) {
+            int offset = j * this.n;
+
+            for (int i = 0; i < this.n; i++) {
+                double sum = 0.0;
+                for (int k = this.rowPointers[i]; k < this.rowPointers[i + 1]; k++) {
+                    sum += values[k] * right[offset + this.columnIndices[k]];
+                }
+                result[offset + i] = sum;
+            }
+        }
+    }
+
+    /**
+     * Computes result = left * A, where A is this sparse matrix with the given values and left and result
+     * are dense column-major n x n matrices.
+     */
+    void multiplyRight(double[] values, double[] left, double[] result) {
+        Arrays.fill(result, 0, this.n * this.n, 0.0);
+
+        for (int i = 0; i < this.n; i++) {
+            int leftOffset = i * this.n;
+
+            for (int k = this.rowPointers[i]; k < this.rowPointers[i + 1]; k++) {
+                double value = values[k];
+                int resultOffset = this.columnIndices[k] * this.n;
+
+                for (int row = 0; row < this.n; row++) {
+                    result[resultOffset + row] += left[leftOffset + row] * value;
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,121 @@
+package bdmmflow.flowSystems;
+
+import bdmmflow.utils.MatrixKernel;
+
+/**
+ * This class precomputes the products of a sequence of transfer matrices A_0, ..., A_{m-1}, such that any
+ * contiguous product A_last ... A_first can be applied to a vector with at most two matrix-vector products.
+ * <p>
+ * The products are stored in a disjoint sparse table: on level h, the indices are split into blocks of size 2^h,
+ * and every index stores the product from itself to the middle of its block. Two indices first < last are
+ * separated on the level of the highest bit in which they differ, where the product of the range is the right
+ * part of the block up to last times the left part from first. Building the table takes m log(m) matrix
+ * products.
+ * <p>
+ * All stored matrices are scaled to a maximal absolute entry of 1, the logarithms of the scaling factors are kept
+ * separately.
+ */
+public class TransferProductTable {
+    final int n;
+    final MatrixKernel kernel;
+
+    /**
+     * The products per level as column-major arrays, where level 0 holds the transfer matrices themselves.
+     */
+    final double[][][] products;
+    final double[][] logScalingFactors;
+
+    /**
+     * @param transferMatrices the column-major transfer matrices in the order in which they are applied.
+     */
+    public TransferProductTable(double[][] transferMatrices, int n, MatrixKernel kernel) {
+        this.n = n;
+        this.kernel = kernel;
+
+        int m = transferMatrices.length;
+        int levels = 1;
+        while ((1 << (levels - 1)) < m) {
+            levels++;
+        }
+
+        this.products = new double[levels][m][];
+        this.logScalingFactors = new double[levels][m];
+
+        for (int i = 0; i < m; i++) {
+            this.products[0][i] = transferMatrices[i].clone();
+            this.logScalingFactors[0][i] = rescaleMatrix(this.products[0][i]);
+        }
+
+        for (int h = 1; h < levels; h++) {
+            int half = 1 << (h - 1);
+
+            for (int middle = half; middle < m; middle += 2 * half) {
+                // left part: the products A_{middle-1} ... A_i
+                this.copy(h, middle - 1);
+                for (int i = middle - 2; i >= middle - half; i--) {
+                    this.multiply(h, i, h, i + 1, 0, i);
+                }
+
+                // right part: the products A_j ... A_middle
+                this.copy(h, middle);
+                for (int j = middle + 1; j < Math.min(middle + half, m); j++) {
+                    this.multiply(h, j, 0, j, h, j - 1);
+                }
+            }
+        }
+    }
+
+    private void copy(int level, int index) {
+        this.products[level][index] = this.products[0][index].clone();
+        this.logScalingFactors[level][index] = this.logScalingFactors[0][index];
+    }
+
+    /**
+     * Stores the product of two stored matrices, given by their levels and indices, on the given level and index.
+     */
+    private void multiply(int level, int index, int leftLevel, int leftIndex, int rightLevel, int rightIndex) {
+        double[] product = new double[this.n * this.n];
+        this.kernel.multiply(this.products[leftLevel][leftIndex], this.products[rightLevel][rightIndex], product, this.n);
+
+        this.products[level][index] = product;
+        this.logScalingFactors[level][index] = this.logScalingFactors[leftLevel][leftIndex]
+                + this.logScalingFactors[rightLevel][rightIndex]
+                + rescaleMatrix(product);
+    }
+
+    /**
+     * Computes A_last ... A_first * vector and writes it into vector, using work as scratch space.
+     *
+     * @return the logarithm of the factor by which the result has to be scaled.
+     */
+    public double apply(int first, int last, double[] vector, double[] work) {
+        if (first == last) {
+            this.kernel.operate(this.products[0][first], vector, work, this.n);
+            System.arraycopy(work, 0, vector, 0, this.n);
+            return this.logScalingFactors[0][first];
+        }
+
+        int level = Integer.SIZE - Integer.numberOfLeadingZeros(first ^ last);
+
+        this.kernel.operate(this.products[level][first], vector, work, this.n);
+        this.kernel.operate(this.products[level][last], work, vector, this.n);
+        return this.logScalingFactors[level][first] + this.logScalingFactors[level][last];
+    }
+
+    /**
+     * Scales the matrix in-place to a maximal absolute entry of 1 and returns the log of the scaling factor.
+     */
+    static double rescaleMatrix(double[] matrix) {
+        double max = 0.0;
+        for (double value : matrix) {
+            max = Math.max(max, Math.abs(value));
+        }
+
+        if (max == 0.0 || !Double.isFinite(max)) return 0.0;
+
+        for (int i = 0; i < matrix.length; i++) {
+            matrix[i] /= max;
+        }
+        return Math.log(max);
+    }
+}
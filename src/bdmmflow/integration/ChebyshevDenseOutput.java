@@ -0,0 +1,286 @@
+package bdmmflow.integration;
+
+import java.util.Arrays;
+
+/**
+ * This class stores a compact approximation of a DenseOutput as a piecewise Chebyshev expansion.
+ * <p>
+ * The integrated time interval is split into segments, and every component is approximated by a Chebyshev
+ * expansion of fixed degree on every segment. Segments are bisected until the approximation matches the dense
+ * output within the given tolerances. Smooth solutions, such as the flows, typically need far fewer segments
+ * than the integrator needed steps, and every segment only stores the coefficients, no states.
+ * <p>
+ * The segment boundaries and all coefficients are stored in a single contiguous array. The output is
+ * immutable, so it can be queried by multiple threads without locking.
+ */
+public class ChebyshevDenseOutput implements IDenseOutput {
+
+    static final int DEGREE = 8;
+    static final int COEFFICIENT_COUNT = DEGREE + 1;
+
+    /**
+     * The maximal number of bisections of the integrated time interval.
+     */
+    static final int MAX_DEPTH = 10;
+
+    /**
+     * NODE_COSINES[k][j] = cos(k * pi * (j + 0.5) / COEFFICIENT_COUNT) for the Chebyshev nodes
+     * x_j = cos(pi * (j + 0.5) / COEFFICIENT_COUNT).
+     */
+    static final double[][] NODE_COSINES = new double[COEFFICIENT_COUNT][COEFFICIENT_COUNT];
+
+    static {
+        for (int k = 0; k < COEFFICIENT_COUNT; k++) {
+            for (int j = 0; j < COEFFICIENT_COUNT; j++) {
+                NODE_COSINES[k][j] = Math.cos(k * Math.PI * (j + 0.5) / COEFFICIENT_COUNT);
+            }
+        }
+    }
+
+    final int dimension;
+    final int segmentCount;
+
+    /**
+     * The segment boundaries in integration direction (segmentCount + 1 entries), followed by the coefficients.
+     * Coefficient k of component i on segment s is stored at
+     * segmentCount + 1 + (s * dimension + i) * COEFFICIENT_COUNT + k.
+     */
+    final double[] data;
+
+    ChebyshevDenseOutput(int dimension, int segmentCount, double[] data) {
+        this.dimension = dimension;
+        this.segmentCount = segmentCount;
+        this.data = data;
+    }
+
+    /**
+     * Approximates the components offset, ..., offset + length - 1 of the given dense output. The error of every
+     * component on a segment is at most absoluteTolerance + relativeTolerance * (maximal magnitude of the
+     * component on the segment) at the checked points. If a segment does not reach this accuracy after MAX_DEPTH
+     * bisections, or the approximation does not need less memory than the dense output, the selected components
+     * of the dense output are returned instead.
+     */
+    public static IDenseOutput fit(
+            DenseOutput output, int offset, int length, double absoluteTolerance, double relativeTolerance
+    ) {
+        Fitter fitter = new Fitter(output, offset, length, absoluteTolerance, relativeTolerance);
+        fitter.fitSegment(output.getInitialTime(), output.getFinalTime(), 0);
+
+        if (fitter.hasInaccurateSegment || output.getStoredValueCount(length) <= fitter.getStoredValueCount()) {
+            return output.select(offset, length);
+        }
+
+        return fitter.build();
+    }
+
+    @Override
+    public int getDimension() {
+        return this.dimension;
+    }
+
+    public int getSegmentCount() {
+        return this.segmentCount;
+    }
+
+    @Override
+    public double getInitialTime() {
+        return this.data[0];
+    }
+
+    @Override
+    public double getFinalTime() {
+        return this.data[this.segmentCount];
+    }
+
+    /**
+     * Writes the components offset, ..., offset + length - 1 of the approximated state at the given time into the
+     * first length entries of the given buffer and returns it. Times outside of the integrated range are
+     * extrapolated from the first or the last segment.
+     */
+    @Override
+    public double[] getState(double time, int offset, int length, double[] buffer) {
+        int segment = this.findSegment(time);
+
+        double start = this.data[segment];
+        double end = this.data[segment + 1];
+        double x = (2 * time - start - end) / (end - start);
+        double twoX = 2 * x;
+
+        int coefficientOffset = this.segmentCount + 1 + segment * this.dimension * COEFFICIENT_COUNT;
+
+        for (int i = offset; i < offset + length; i++) {
+            int componentOffset = coefficientOffset + i * COEFFICIENT_COUNT;
+
+            // Clenshaw recurrence
+            double b1 = 0.0;
+            double b2 = 0.0;
+            for (int k = DEGREE; k > 0; k--) {
+                double b0 = twoX * b1 - b2 + this.data[componentOffset + k];
+                b2 = b1;
+                b1 = b0;
+            }
+            buffer[i - offset] = x * b1 - b2 + this.data[componentOffset];
+        }
+
+        return buffer;
+    }
+
+    /**
+     * Returns the segment containing the given time, where times on a boundary are assigned to the earlier segment.
+     */
+    int findSegment(double time) {
+        boolean isForward = this.data[0] < this.data[this.segmentCount];
+
+        int low = 0;
+        int high = this.segmentCount - 1;
+
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            boolean isAfterSegment = isForward ? this.data[mid + 1] < time : time < this.data[mid + 1];
+
+            if (isAfterSegment) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        return low;
+    }
+
+    /**
+     * Collects the segments while bisecting the time interval of a dense output.
+     */
+    static class Fitter {
+        final DenseOutput output;
+        final int offset;
+        final int length;
+        final double absoluteTolerance;
+        final double relativeTolerance;
+
+        int segmentCount = 0;
+        boolean hasInaccurateSegment = false;
+        double[] boundaries = new double[9];
+        double[] coefficients;
+
+        final double[][] values;
+        final double[] scale;
+        final double[] expected;
+        final double[] actual;
+
+        Fitter(DenseOutput output, int offset, int length, double absoluteTolerance, double relativeTolerance) {
+            this.output = output;
+            this.offset = offset;
+            this.length = length;
+            this.absoluteTolerance = absoluteTolerance;
+            this.relativeTolerance = relativeTolerance;
+
+            this.boundaries[0] = output.getInitialTime();
+            this.coefficients = new double[8 * length * COEFFICIENT_COUNT];
+
+            this.values = new double[COEFFICIENT_COUNT][length];
+            this.scale = new double[length];
+            this.expected = new double[length];
+            this.actual = new double[length];
+        }
+
+        void fitSegment(double start, double end, int depth) {
+            // the approximation is discarded anyway, so the remaining segments need not be fitted
+            if (this.hasInaccurateSegment) return;
+
+            ChebyshevDenseOutput segment = this.fitSingleSegment(start, end);
+
+            if (!this.isAccurate(segment, start, end)) {
+                if (depth == MAX_DEPTH) {
+                    this.hasInaccurateSegment = true;
+                    return;
+                }
+
+                double middle = 0.5 * (start + end);
+                this.fitSegment(start, middle, depth + 1);
+                this.fitSegment(middle, end, depth + 1);
+                return;
+            }
+
+            if (this.boundaries.length == this.segmentCount + 1) {
+                this.boundaries = Arrays.copyOf(this.boundaries, 2 * this.segmentCount + 1);
+                this.coefficients = Arrays.copyOf(this.coefficients, 2 * this.segmentCount * this.length * COEFFICIENT_COUNT);
+            }
+
+            System.arraycopy(
+                    segment.data, 2,
+                    this.coefficients, this.segmentCount * this.length * COEFFICIENT_COUNT,
+                    this.length * COEFFICIENT_COUNT
+            );
+            this.segmentCount++;
+            this.boundaries[this.segmentCount] = end;
+        }
+
+        /**
+         * Interpolates the dense output at the Chebyshev nodes of the given segment.
+         */
+        ChebyshevDenseOutput fitSingleSegment(double start, double end) {
+            Arrays.fill(this.scale, 0.0);
+
+            for (int j = 0; j < COEFFICIENT_COUNT; j++) {
+                double x = Math.cos(Math.PI * (j + 0.5) / COEFFICIENT_COUNT);
+                double time = 0.5 * (start + end) + 0.5 * (end - start) * x;
+                this.output.getState(time, this.offset, this.length, this.values[j]);
+
+                for (int i = 0; i < this.length; i++) {
+                    this.scale[i] = Math.max(this.scale[i], Math.abs(this.values[j][i]));
+                }
+            }
+
+            double[] data = new double[2 + this.length * COEFFICIENT_COUNT];
+            data[0] = start;
+            data[1] = end;
+
+            for (int i = 0; i < this.length; i++) {
+                for (int k = 0; k < COEFFICIENT_COUNT; k++) {
+                    double sum = 0.0;
+                    for (int j = 0; j < COEFFICIENT_COUNT; j++) {
+                        sum += this.values[j][i] * NODE_COSINES[k][j];
+                    }
+                    data[2 + i * COEFFICIENT_COUNT + k] = (k == 0 ? 1.0 : 2.0) * sum / COEFFICIENT_COUNT;
+                }
+            }
+
+            return new ChebyshevDenseOutput(this.length, 1, data);
+        }
+
+        /**
+         * Checks the approximation at the Chebyshev extrema of the segment, which include its boundaries and lie
+         * between the interpolation nodes.
+         */
+        boolean isAccurate(ChebyshevDenseOutput segment, double start, double end) {
+            for (int j = 0; j <= COEFFICIENT_COUNT; j++) {
+                double x = Math.cos(Math.PI * j / COEFFICIENT_COUNT);
+                double time = j == 0 ? end : (j == COEFFICIENT_COUNT ? start : 0.5 * (start + end) + 0.5 * (end - start) * x);
+
+                this.output.getState(time, this.offset, this.length, this.expected);
+                segment.getState(time, 0, this.length, this.actual);
+
+                for (int i = 0; i < this.length; i++) {
+                    double tolerance = this.absoluteTolerance + this.relativeTolerance * this.scale[i];
+                    if (!(Math.abs(this.expected[i] - this.actual[i]) <= tolerance)) return false;
+                }
+            }
+            return true;
+        }
+
+        long getStoredValueCount() {
+            return this.segmentCount + 1 + (long) this.segmentCount * this.length * COEFFICIENT_COUNT;
+        }
+
+        ChebyshevDenseOutput build() {
+            double[] data = new double[this.segmentCount + 1 + this.segmentCount * this.length * COEFFICIENT_COUNT];
+            System.arraycopy(this.boundaries, 0, data, 0, this.segmentCount + 1);
+            System.arraycopy(
+                    this.coefficients, 0, data, this.segmentCount + 1, this.segmentCount * this.length * COEFFICIENT_COUNT
+            );
+            return new ChebyshevDenseOutput(this.length, this.segmentCount, data);
+        }
+    }
+
+}
@@ -0,0 +1,197 @@
+package bdmmflow.integration;
+
+import java.util.Arrays;
+
+/**
+ * This class stores the dense output of an integration by an EmbeddedRungeKuttaIntegrator in flat arrays.
+ * <p>
+ * For every step, the state at the step boundaries and the coefficients of the interpolation polynomial are
+ * stored. Within a step from t_0 to t_1 = t_0 + h, the state at theta = (t - t_0) / h is given by
+ * <p>
+ * y(theta) = y(t_0) + theta * h * (c_0 + eta * (c_1 + theta * (c_2 + eta * (c_3 + ...)))) with eta = 1 - theta,
+ * <p>
+ * which is evaluated from the end of the step for theta > 0.5. This is the same representation as the step
+ * interpolators of commons-math use, but without any per-step objects.
+ * <p>
+ * Interpolation does not mutate the output, so it can be queried by multiple threads at the same time.
+ */
+public class DenseOutput implements IDenseOutput {
+
+    static final int INITIAL_STEP_CAPACITY = 16;
+
+    final int dimension;
+    final int coefficientCount;
+    final boolean isForward;
+
+    int stepCount = 0;
+
+    /**
+     * The times of the step boundaries, stepCount + 1 entries.
+     */
+    double[] times;
+
+    /**
+     * The states at the step boundaries, (stepCount + 1) * dimension entries.
+     */
+    double[] states;
+
+    /**
+     * The interpolation coefficients of every step, stepCount * coefficientCount * dimension entries. Coefficient
+     * k of component i of step s is stored at (s * coefficientCount + k) * dimension + i.
+     */
+    double[] coefficients;
+
+    DenseOutput(int dimension, int coefficientCount, boolean isForward, double initialTime, double[] initialState) {
+        this.dimension = dimension;
+        this.coefficientCount = coefficientCount;
+        this.isForward = isForward;
+
+        this.times = new double[INITIAL_STEP_CAPACITY + 1];
+        this.states = new double[(INITIAL_STEP_CAPACITY + 1) * dimension];
+        this.coefficients = new double[INITIAL_STEP_CAPACITY * coefficientCount * dimension];
+
+        this.times[0] = initialTime;
+        System.arraycopy(initialState, 0, this.states, 0, dimension);
+    }
+
+    /**
+     * Appends a step ending at the given time with the given state and returns the offset at which the
+     * interpolation coefficients of the step have to be written.
+     */
+    int appendStep(double time, double[] state) {
+        if (this.times.length == this.stepCount + 1) {
+            int capacity = 2 * this.stepCount;
+            this.times = Arrays.copyOf(this.times, capacity + 1);
+            this.states = Arrays.copyOf(this.states, (capacity + 1) * this.dimension);
+            this.coefficients = Arrays.copyOf(this.coefficients, capacity * this.coefficientCount * this.dimension);
+        }
+
+        int step = this.stepCount++;
+        this.times[step + 1] = time;
+        System.arraycopy(state, 0, this.states, (step + 1) * this.dimension, this.dimension);
+
+        return step * this.coefficientCount * this.dimension;
+    }
+
+    /**
+     * Returns a copy of this output which only contains the components offset, ..., offset + length - 1.
+     */
+    public DenseOutput select(int offset, int length) {
+        DenseOutput selection = new DenseOutput(
+                length, this.coefficientCount, this.isForward, this.getInitialTime(), new double[length]
+        );
+        selection.stepCount = this.stepCount;
+        selection.times = Arrays.copyOf(this.times, this.stepCount + 1);
+        selection.states = new double[(this.stepCount + 1) * length];
+        selection.coefficients = new double[this.stepCount * this.coefficientCount * length];
+
+        for (int step = 0; step <= this.stepCount; step++) {
+            System.arraycopy(this.states, step * this.dimension + offset, selection.states, step * length, length);
+        }
+        for (int row = 0; row < this.stepCount * this.coefficientCount; row++) {
+            System.arraycopy(
+                    this.coefficients, row * this.dimension + offset, selection.coefficients, row * length, length
+            );
+        }
+
+        return selection;
+    }
+
+    /**
+     * Returns the number of doubles needed to store the steps for the given number of components.
+     */
+    long getStoredValueCount(int length) {
+        return (long) (this.stepCount + 1) * (1 + length) + (long) this.stepCount * this.coefficientCount * length;
+    }
+
+    @Override
+    public int getDimension() {
+        return this.dimension;
+    }
+
+    public int getStepCount() {
+        return this.stepCount;
+    }
+
+    @Override
+    public double getInitialTime() {
+        return this.times[0];
+    }
+
+    @Override
+    public double getFinalTime() {
+        return this.times[this.stepCount];
+    }
+
+    /**
+     * Writes the components offset, ..., offset + length - 1 of the interpolated state at the given time into
+     * the first length entries of the given buffer and returns it. Times outside of the integrated range are
+     * extrapolated from the first or the last step.
+     */
+    @Override
+    public double[] getState(double time, int offset, int length, double[] buffer) {
+        int step = this.findStep(time);
+
+        double previousTime = this.times[step];
+        double currentTime = this.times[step + 1];
+        double h = currentTime - previousTime;
+        double oneMinusThetaH = currentTime - time;
+        double theta = h == 0 ? 0 : (h - oneMinusThetaH) / h;
+        double eta = 1 - theta;
+
+        int n = this.dimension;
+        int last = this.coefficientCount - 1;
+        int coefficientOffset = step * this.coefficientCount * n;
+
+        if (theta <= 0.5) {
+            // evaluate from the start of the step
+            int stateOffset = step * n;
+            double thetaH = theta * h;
+
+            for (int i = offset; i < offset + length; i++) {
+                double sum = this.coefficients[coefficientOffset + last * n + i];
+                for (int k = last; k > 0; k--) {
+                    sum = this.coefficients[coefficientOffset + (k - 1) * n + i] + ((k & 1) == 1 ? eta : theta) * sum;
+                }
+                buffer[i - offset] = this.states[stateOffset + i] + thetaH * sum;
+            }
+        } else {
+            // evaluate from the end of the step
+            int stateOffset = (step + 1) * n;
+
+            for (int i = offset; i < offset + length; i++) {
+                double sum = this.coefficients[coefficientOffset + last * n + i];
+                for (int k = last; k > 1; k--) {
+                    sum = this.coefficients[coefficientOffset + (k - 1) * n + i] + ((k & 1) == 1 ? eta : theta) * sum;
+                }
+                sum = this.coefficients[coefficientOffset + i] - theta * sum;
+                buffer[i - offset] = this.states[stateOffset + i] - oneMinusThetaH * sum;
+            }
+        }
+
+        return buffer;
+    }
+
+    /**
+     * Returns the first step whose end is not before the given time in integration direction. Times on a step
+     * boundary are assigned to the earlier step, such that they are evaluated at its end.
+     */
+    int findStep(double time) {
+        int low = 0;
+        int high = this.stepCount - 1;
+
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            boolean isAfterStep = this.isForward ? this.times[mid + 1] < time : time < this.times[mid + 1];
+
+            if (isAfterStep) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        return low;
+    }
+
+}
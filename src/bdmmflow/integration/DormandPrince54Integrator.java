@@ -0,0 +1,114 @@
+package bdmmflow.integration;
+
+import org.apache.commons.math3.util.FastMath;
+
+/**
+ * This class implements the Dormand-Prince 5(4) method with the same coefficients, error estimator and
+ * dense output of order 4 as the commons-math DormandPrince54Integrator.
+ */
+public class DormandPrince54Integrator extends EmbeddedRungeKuttaIntegrator {
+
+    static final double[] C = {
+            1.0 / 5.0, 3.0 / 10.0, 4.0 / 5.0, 8.0 / 9.0, 1.0, 1.0
+    };
+
+    static final double[][] A = {
+            {1.0 / 5.0},
+            {3.0 / 40.0, 9.0 / 40.0},
+            {44.0 / 45.0, -56.0 / 15.0, 32.0 / 9.0},
+            {19372.0 / 6561.0, -25360.0 / 2187.0, 64448.0 / 6561.0, -212.0 / 729.0},
+            {9017.0 / 3168.0, -355.0 / 33.0, 46732.0 / 5247.0, 49.0 / 176.0, -5103.0 / 18656.0},
+            {35.0 / 384.0, 0.0, 500.0 / 1113.0, 125.0 / 192.0, -2187.0 / 6784.0, 11.0 / 84.0}
+    };
+
+    static final double[] B = {
+            35.0 / 384.0, 0.0, 500.0 / 1113.0, 125.0 / 192.0, -2187.0 / 6784.0, 11.0 / 84.0, 0.0
+    };
+
+    // error estimator coefficients, element 2 is zero
+
+    static final double E1 = 71.0 / 57600.0;
+    static final double E3 = -71.0 / 16695.0;
+    static final double E4 = 71.0 / 1920.0;
+    static final double E5 = -17253.0 / 339200.0;
+    static final double E6 = 22.0 / 525.0;
+    static final double E7 = -1.0 / 40.0;
+
+    // dense output coefficients
+
+    static final double A70 = 35.0 / 384.0;
+    static final double A72 = 500.0 / 1113.0;
+    static final double A73 = 125.0 / 192.0;
+    static final double A74 = -2187.0 / 6784.0;
+    static final double A75 = 11.0 / 84.0;
+
+    static final double D0 = -12715105075.0 / 11282082432.0;
+    static final double D2 = 87487479700.0 / 32700410799.0;
+    static final double D3 = -10690763975.0 / 1880347072.0;
+    static final double D4 = 701980252875.0 / 199316789632.0;
+    static final double D5 = -1453857185.0 / 822651844.0;
+    static final double D6 = 69997945.0 / 29380423.0;
+
+    public DormandPrince54Integrator() {
+        super(C, A, B);
+    }
+
+    @Override
+    public int getOrder() {
+        return 5;
+    }
+
+    @Override
+    protected double getStabilityBoundary() {
+        return 3.25;
+    }
+
+    @Override
+    protected int getCoefficientCount() {
+        return 4;
+    }
+
+    @Override
+    protected double estimateError(double[][] yDotK, double[] y0, double[] y1, double h, int dimension) {
+        double error = 0;
+
+        for (int j = 0; j < dimension; j++) {
+            double errSum = E1 * yDotK[0][j] + E3 * yDotK[2][j] +
+                    E4 * yDotK[3][j] + E5 * yDotK[4][j] +
+                    E6 * yDotK[5][j] + E7 * yDotK[6][j];
+
+            double tolerance = this.getTolerance(j, FastMath.max(FastMath.abs(y0[j]), FastMath.abs(y1[j])));
+            double ratio = h * errSum / tolerance;
+            error += ratio * ratio;
+        }
+
+        return FastMath.sqrt(error / dimension);
+    }
+
+    @Override
+    protected void computeDenseCoefficients(
+            double previousTime, double h, double[] y1, int dimension, double[] coefficients, int offset
+    ) {
+        double[][] yDotK = this.yDotK;
+
+        for (int i = 0; i < dimension; i++) {
+            double yDot0 = yDotK[0][i];
+            double yDot2 = yDotK[2][i];
+            double yDot3 = yDotK[3][i];
+            double yDot4 = yDotK[4][i];
+            double yDot5 = yDotK[5][i];
+            double yDot6 = yDotK[6][i];
+
+            double v1 = A70 * yDot0 + A72 * yDot2 + A73 * yDot3 + A74 * yDot4 + A75 * yDot5;
+            double v2 = yDot0 - v1;
+            double v3 = v1 - v2 - yDot6;
+            double v4 = D0 * yDot0 + D2 * yDot2 + D3 * yDot3 + D4 * yDot4 + D5 * yDot5 + D6 * yDot6;
+
+            coefficients[offset + i] = v1;
+            coefficients[offset + dimension + i] = v2;
+            coefficients[offset + 2 * dimension + i] = v3;
+            coefficients[offset + 3 * dimension + i] = v4;
+        }
+    }
+
+}
@@ -0,0 +1,306 @@
+package bdmmflow.integration;
+
+import org.apache.commons.math3.util.FastMath;
+
+/**
+ * This class implements the Dormand-Prince 8(5,3) method with the same coefficients, error estimator and
+ * dense output of order 7 as the commons-math DormandPrince853Integrator.
+ * <p>
+ * The dense output needs three additional stages per step, which commons-math evaluates when the step is
+ * handed to the step handlers. They are evaluated directly after accepting the step here.
+ */
+public class DormandPrince853Integrator extends EmbeddedRungeKuttaIntegrator {
+
+    static final double[] C = {
+        (12.0 - 2.0 * FastMath.sqrt(6.0)) / 135.0, (6.0 - FastMath.sqrt(6.0)) / 45.0, (6.0 - FastMath.sqrt(6.0)) / 30.0,
+        (6.0 + FastMath.sqrt(6.0)) / 30.0, 1.0/3.0, 1.0/4.0, 4.0/13.0, 127.0/195.0, 3.0/5.0,
+        6.0/7.0, 1.0, 1.0
+    };
+
+    static final double[][] A = {
+
+        // k2
+        {(12.0 - 2.0 * FastMath.sqrt(6.0)) / 135.0},
+
+        // k3
+        {(6.0 - FastMath.sqrt(6.0)) / 180.0, (6.0 - FastMath.sqrt(6.0)) / 60.0},
+
+        // k4
+        {(6.0 - FastMath.sqrt(6.0)) / 120.0, 0.0, (6.0 - FastMath.sqrt(6.0)) / 40.0},
+
+        // k5
+        {(462.0 + 107.0 * FastMath.sqrt(6.0)) / 3000.0, 0.0,
+          (-402.0 - 197.0 * FastMath.sqrt(6.0)) / 1000.0, (168.0 + 73.0 * FastMath.sqrt(6.0)) / 375.0},
+
+        // k6
+        {1.0 / 27.0, 0.0, 0.0, (16.0 + FastMath.sqrt(6.0)) / 108.0, (16.0 - FastMath.sqrt(6.0)) / 108.0},
+
+        // k7
+        {19.0 / 512.0, 0.0, 0.0, (118.0 + 23.0 * FastMath.sqrt(6.0)) / 1024.0,
+          (118.0 - 23.0 * FastMath.sqrt(6.0)) / 1024.0, -9.0 / 512.0},
+
+        // k8
+        {13772.0 / 371293.0, 0.0, 0.0, (51544.0 + 4784.0 * FastMath.sqrt(6.0)) / 371293.0,
+          (51544.0 - 4784.0 * FastMath.sqrt(6.0)) / 371293.0, -5688.0 / 371293.0, 3072.0 / 371293.0},
+
+        // k9
+        {58656157643.0 / 93983540625.0, 0.0, 0.0,
+          (-1324889724104.0 - 318801444819.0 * FastMath.sqrt(6.0)) / 626556937500.0,
+          (-1324889724104.0 + 318801444819.0 * FastMath.sqrt(6.0)) / 626556937500.0,
+          96044563816.0 / 3480871875.0, 5682451879168.0 / 281950621875.0,
+          -165125654.0 / 3796875.0},
+
+        // k10
+        {8909899.0 / 18653125.0, 0.0, 0.0,
+          (-4521408.0 - 1137963.0 * FastMath.sqrt(6.0)) / 2937500.0,
+          (-4521408.0 + 1137963.0 * FastMath.sqrt(6.0)) / 2937500.0,
+          96663078.0 / 4553125.0, 2107245056.0 / 137915625.0,
+          -4913652016.0 / 147609375.0, -78894270.0 / 3880452869.0},
+
+        // k11
+        {-20401265806.0 / 21769653311.0, 0.0, 0.0,
+          (354216.0 + 94326.0 * FastMath.sqrt(6.0)) / 112847.0,
+          (354216.0 - 94326.0 * FastMath.sqrt(6.0)) / 112847.0,
+          -43306765128.0 / 5313852383.0, -20866708358144.0 / 1126708119789.0,
+          14886003438020.0 / 654632330667.0, 35290686222309375.0 / 14152473387134411.0,
+          -1477884375.0 / 485066827.0},
+
+        // k12
+        {39815761.0 / 17514443.0, 0.0, 0.0,
+          (-3457480.0 - 960905.0 * FastMath.sqrt(6.0)) / 551636.0,
+          (-3457480.0 + 960905.0 * FastMath.sqrt(6.0)) / 551636.0,
+          -844554132.0 / 47026969.0, 8444996352.0 / 302158619.0,
+          -2509602342.0 / 877790785.0, -28388795297996250.0 / 3199510091356783.0,
+          226716250.0 / 18341897.0, 1371316744.0 / 2131383595.0},
+
+        // k13 should be for interpolation only, but since it is the same
+        // stage as the first evaluation of the next step, we perform it
+        // here at no cost by specifying this is an fsal method
+        {104257.0/1920240.0, 0.0, 0.0, 0.0, 0.0, 3399327.0/763840.0,
+          66578432.0/35198415.0, -1674902723.0/288716400.0,
+          54980371265625.0/176692375811392.0, -734375.0/4826304.0,
+          171414593.0/851261400.0, 137909.0/3084480.0}
+
+    };
+
+    static final double[] B = {
+        104257.0 / 1920240.0, 0.0, 0.0, 0.0, 0.0, 3399327.0 / 763840.0, 66578432.0 / 35198415.0,
+        -1674902723.0 / 288716400.0, 54980371265625.0 / 176692375811392.0, -734375.0 / 4826304.0,
+        171414593.0 / 851261400.0, 137909.0 / 3084480.0, 0.0
+    };
+
+    // error estimator coefficients, elements 2 to 5 are zero
+
+    static final double E1_01 =         116092271.0 / 8848465920.0;
+    static final double E1_06 =          -1871647.0 / 1527680.0;
+    static final double E1_07 =         -69799717.0 / 140793660.0;
+    static final double E1_08 =     1230164450203.0 / 739113984000.0;
+    static final double E1_09 = -1980813971228885.0 / 5654156025964544.0;
+    static final double E1_10 =         464500805.0 / 1389975552.0;
+    static final double E1_11 =     1606764981773.0 / 19613062656000.0;
+    static final double E1_12 =           -137909.0 / 6168960.0;
+    static final double E2_01 =           -364463.0 / 1920240.0;
+    static final double E2_06 =           3399327.0 / 763840.0;
+    static final double E2_07 =          66578432.0 / 35198415.0;
+    static final double E2_08 =       -1674902723.0 / 288716400.0;
+    static final double E2_09 =   -74684743568175.0 / 176692375811392.0;
+    static final double E2_10 =           -734375.0 / 4826304.0;
+    static final double E2_11 =         171414593.0 / 851261400.0;
+    static final double E2_12 =             69869.0 / 3084480.0;
+
+    // dense output coefficients
+
+    static final double B_01 =         104257.0 / 1920240.0;
+    static final double B_06 =        3399327.0 / 763840.0;
+    static final double B_07 =       66578432.0 / 35198415.0;
+    static final double B_08 =    -1674902723.0 / 288716400.0;
+    static final double B_09 = 54980371265625.0 / 176692375811392.0;
+    static final double B_10 =        -734375.0 / 4826304.0;
+    static final double B_11 =      171414593.0 / 851261400.0;
+    static final double B_12 =         137909.0 / 3084480.0;
+    static final double C14    = 1.0 / 10.0;
+    static final double K14_01 =       13481885573.0 / 240030000000.0      - B_01;
+    static final double K14_06 =                 0.0                       - B_06;
+    static final double K14_07 =      139418837528.0 / 549975234375.0      - B_07;
+    static final double K14_08 =   -11108320068443.0 / 45111937500000.0    - B_08;
+    static final double K14_09 = -1769651421925959.0 / 14249385146080000.0 - B_09;
+    static final double K14_10 =          57799439.0 / 377055000.0         - B_10;
+    static final double K14_11 =      793322643029.0 / 96734250000000.0    - B_11;
+    static final double K14_12 =        1458939311.0 / 192780000000.0      - B_12;
+    static final double K14_13 =             -4149.0 / 500000.0;
+    static final double C15    = 1.0 / 5.0;
+    static final double K15_01 =     1595561272731.0 / 50120273500000.0    - B_01;
+    static final double K15_06 =      975183916491.0 / 34457688031250.0    - B_06;
+    static final double K15_07 =    38492013932672.0 / 718912673015625.0   - B_07;
+    static final double K15_08 = -1114881286517557.0 / 20298710767500000.0 - B_08;
+    static final double K15_09 =                 0.0                       - B_09;
+    static final double K15_10 =                 0.0                       - B_10;
+    static final double K15_11 =    -2538710946863.0 / 23431227861250000.0 - B_11;
+    static final double K15_12 =        8824659001.0 / 23066716781250.0    - B_12;
+    static final double K15_13 =      -11518334563.0 / 33831184612500.0;
+    static final double K15_14 =        1912306948.0 / 13532473845.0;
+    static final double C16    = 7.0 / 9.0;
+    static final double K16_01 =      -13613986967.0 / 31741908048.0       - B_01;
+    static final double K16_06 =       -4755612631.0 / 1012344804.0        - B_06;
+    static final double K16_07 =    42939257944576.0 / 5588559685701.0     - B_07;
+    static final double K16_08 =    77881972900277.0 / 19140370552944.0    - B_08;
+    static final double K16_09 =    22719829234375.0 / 63689648654052.0    - B_09;
+    static final double K16_10 =                 0.0                       - B_10;
+    static final double K16_11 =                 0.0                       - B_11;
+    static final double K16_12 =                 0.0                       - B_12;
+    static final double K16_13 =       -1199007803.0 / 857031517296.0;
+    static final double K16_14 =      157882067000.0 / 53564469831.0;
+    static final double K16_15 =     -290468882375.0 / 31741908048.0;
+
+    static final double[][] D = {
+
+        {-17751989329.0 / 2106076560.0, 4272954039.0 / 7539864640.0,
+          -118476319744.0 / 38604839385.0, 755123450731.0 / 316657731600.0,
+          3692384461234828125.0 / 1744130441634250432.0, -4612609375.0 / 5293382976.0,
+          2091772278379.0 / 933644586600.0, 2136624137.0 / 3382989120.0,
+          -126493.0 / 1421424.0, 98350000.0 / 5419179.0,
+          -18878125.0 / 2053168.0, -1944542619.0 / 438351368.0},
+
+        {32941697297.0 / 3159114840.0, 456696183123.0 / 1884966160.0,
+          19132610714624.0 / 115814518155.0, -177904688592943.0 / 474986597400.0,
+          -4821139941836765625.0 / 218016305204281304.0, 30702015625.0 / 3970037232.0,
+          -85916079474274.0 / 2800933759800.0, -5919468007.0 / 634310460.0,
+          2479159.0 / 157936.0, -18750000.0 / 602131.0,
+          -19203125.0 / 2053168.0, 15700361463.0 / 438351368.0},
+
+        {12627015655.0 / 631822968.0, -72955222965.0 / 188496616.0,
+          -13145744952320.0 / 69488710893.0, 30084216194513.0 / 56998391688.0,
+          -296858761006640625.0 / 25648977082856624.0, 569140625.0 / 82709109.0,
+          -18684190637.0 / 18672891732.0, 69644045.0 / 89549712.0,
+          -11847025.0 / 4264272.0, -978650000.0 / 16257537.0,
+          519371875.0 / 6159504.0, 5256837225.0 / 438351368.0},
+
+        {-450944925.0 / 17550638.0, -14532122925.0 / 94248308.0,
+          -595876966400.0 / 2573655959.0, 188748653015.0 / 527762886.0,
+          2545485458115234375.0 / 27252038150535163.0, -1376953125.0 / 36759604.0,
+          53995596795.0 / 518691437.0, 210311225.0 / 7047894.0,
+          -1718875.0 / 39484.0, 58000000.0 / 602131.0,
+          -1546875.0 / 39484.0, -1262172375.0 / 8429834.0}
+
+    };
+
+    /**
+     * The rows of the additional stages 14 to 16 over all 16 stages.
+     */
+    static final double[][] A_DENSE = {
+            {K14_01, 0.0, 0.0, 0.0, 0.0, K14_06, K14_07, K14_08, K14_09, K14_10, K14_11, K14_12, K14_13},
+            {K15_01, 0.0, 0.0, 0.0, 0.0, K15_06, K15_07, K15_08, K15_09, K15_10, K15_11, K15_12, K15_13, K15_14},
+            {K16_01, 0.0, 0.0, 0.0, 0.0, K16_06, K16_07, K16_08, K16_09, K16_10, K16_11, K16_12, K16_13, K16_14, K16_15}
+    };
+    static final double[] C_DENSE = {C14, C15, C16};
+
+    final int[][] aDenseIndices;
+    final double[][] aDenseValues;
+
+    public DormandPrince853Integrator() {
+        super(C, A, B);
+
+        this.aDenseIndices = new int[A_DENSE.length][];
+        this.aDenseValues = new double[A_DENSE.length][];
+        for (int k = 0; k < A_DENSE.length; k++) {
+            this.aDenseIndices[k] = getNonZeroIndices(A_DENSE[k]);
+            this.aDenseValues[k] = getValues(A_DENSE[k], this.aDenseIndices[k]);
+        }
+    }
+
+    @Override
+    public int getOrder() {
+        return 8;
+    }
+
+    @Override
+    protected double getStabilityBoundary() {
+        return 6.1;
+    }
+
+    @Override
+    protected int getCoefficientCount() {
+        return 7;
+    }
+
+    @Override
+    protected int getStageBufferCount() {
+        return this.stages + 3;
+    }
+
+    @Override
+    protected double estimateError(double[][] yDotK, double[] y0, double[] y1, double h, int dimension) {
+        double error1 = 0;
+        double error2 = 0;
+
+        for (int j = 0; j < dimension; j++) {
+            double errSum1 = E1_01 * yDotK[0][j] + E1_06 * yDotK[5][j] +
+                    E1_07 * yDotK[6][j] + E1_08 * yDotK[7][j] +
+                    E1_09 * yDotK[8][j] + E1_10 * yDotK[9][j] +
+                    E1_11 * yDotK[10][j] + E1_12 * yDotK[11][j];
+            double errSum2 = E2_01 * yDotK[0][j] + E2_06 * yDotK[5][j] +
+                    E2_07 * yDotK[6][j] + E2_08 * yDotK[7][j] +
+                    E2_09 * yDotK[8][j] + E2_10 * yDotK[9][j] +
+                    E2_11 * yDotK[10][j] + E2_12 * yDotK[11][j];
+
+            double tolerance = this.getTolerance(j, FastMath.max(FastMath.abs(y0[j]), FastMath.abs(y1[j])));
+            double ratio1 = errSum1 / tolerance;
+            error1 += ratio1 * ratio1;
+            double ratio2 = errSum2 / tolerance;
+            error2 += ratio2 * ratio2;
+        }
+
+        double den = error1 + 0.01 * error2;
+        if (den <= 0.0) {
+            den = 1.0;
+        }
+
+        return FastMath.abs(h) * error1 / FastMath.sqrt(dimension * den);
+    }
+
+    @Override
+    protected void computeDenseCoefficients(
+            double previousTime, double h, double[] y1, int dimension, double[] coefficients, int offset
+    ) {
+        double[][] yDotK = this.yDotK;
+
+        // the additional stages 14 to 16
+        for (int k = 0; k < A_DENSE.length; k++) {
+            this.computeStageState(y1, this.aDenseIndices[k], this.aDenseValues[k], h, this.yTmp, dimension);
+            this.equations.computeDerivatives(previousTime + C_DENSE[k] * h, this.yTmp, yDotK[this.stages + k]);
+        }
+
+        for (int i = 0; i < dimension; i++) {
+            double yDot1 = yDotK[0][i];
+            double yDot6 = yDotK[5][i];
+            double yDot7 = yDotK[6][i];
+            double yDot8 = yDotK[7][i];
+            double yDot9 = yDotK[8][i];
+            double yDot10 = yDotK[9][i];
+            double yDot11 = yDotK[10][i];
+            double yDot12 = yDotK[11][i];
+            double yDot13 = yDotK[12][i];
+            double yDot14 = yDotK[13][i];
+            double yDot15 = yDotK[14][i];
+            double yDot16 = yDotK[15][i];
+
+            double v0 = B_01 * yDot1 + B_06 * yDot6 + B_07 * yDot7 +
+                    B_08 * yDot8 + B_09 * yDot9 + B_10 * yDot10 +
+                    B_11 * yDot11 + B_12 * yDot12;
+            double v1 = yDot1 - v0;
+            double v2 = v0 - v1 - yDot13;
+
+            coefficients[offset + i] = v0;
+            coefficients[offset + dimension + i] = v1;
+            coefficients[offset + 2 * dimension + i] = v2;
+            for (int k = 0; k < D.length; k++) {
+                coefficients[offset + (k + 3) * dimension + i] =
+                        D[k][0] * yDot1 + D[k][1] * yDot6 + D[k][2] * yDot7 +
+                        D[k][3] * yDot8 + D[k][4] * yDot9 + D[k][5] * yDot10 +
+                        D[k][6] * yDot11 + D[k][7] * yDot12 + D[k][8] * yDot13 +
+                        D[k][9] * yDot14 + D[k][10] * yDot15 + D[k][11] * yDot16;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,428 @@
+package bdmmflow.integration;
+
+import org.apache.commons.math3.exception.NumberIsTooSmallException;
+import org.apache.commons.math3.exception.util.LocalizedFormats;
+import org.apache.commons.math3.ode.FirstOrderDifferentialEquations;
+import org.apache.commons.math3.util.FastMath;
+import org.apache.commons.math3.util.Precision;
+
+/**
+ * This class is an adaptive embedded Runge-Kutta integrator specialized for the interval ODE systems.
+ * <p>
+ * It follows the step size control of the commons-math EmbeddedRungeKuttaIntegrator, but all stage buffers
+ * are allocated once and reused for every integration, and the dense output is recorded into a flat
+ * DenseOutput instead of a list of step interpolators. An instance must only be used by one thread at a time.
+ */
+public abstract class EmbeddedRungeKuttaIntegrator {
+
+    static final double SAFETY = 0.9;
+    static final double MIN_REDUCTION = 0.2;
+    static final double MAX_GROWTH = 10.0;
+
+    /**
+     * The stiffness detection of Hairer's DOP853: the problem is considered stiff after this many accepted steps
+     * at the stability boundary, unless they are interrupted by enough steps within it.
+     */
+    static final int STIFF_STEP_LIMIT = 15;
+    static final int NON_STIFF_STEP_LIMIT = 6;
+
+    final int stages;
+    final double[] c;
+    final double exponent;
+
+    /**
+     * The non-zero entries of the rows of the Butcher tableau and of the weights, such that the stage sums
+     * skip the zero coefficients.
+     */
+    final int[][] aIndices;
+    final double[][] aValues;
+    final int[] bIndices;
+    final double[] bValues;
+
+    double minStep;
+    double maxStep;
+    double scalarAbsoluteTolerance;
+    double scalarRelativeTolerance;
+    double[] vectorAbsoluteTolerance;
+    double[] vectorRelativeTolerance;
+    boolean detectStiffness = false;
+
+    int capacity = 0;
+    double[] y;
+    double[] yTmp;
+    double[] scale;
+    double[][] yDotK;
+    double[] stiffnessState;
+
+    FirstOrderDifferentialEquations equations;
+    boolean isIntegrating = false;
+
+    /**
+     * @param c the time fractions of the stages 2 to s.
+     * @param a the Butcher tableau of the stages 2 to s.
+     * @param b the weights of the stages. The last stage has to be evaluated at the end of the step with the
+     *          same weights (first same as last).
+     */
+    protected EmbeddedRungeKuttaIntegrator(double[] c, double[][] a, double[] b) {
+        this.stages = c.length + 1;
+        this.c = c;
+        this.exponent = -1.0 / this.getOrder();
+
+        this.aIndices = new int[a.length][];
+        this.aValues = new double[a.length][];
+        for (int k = 0; k < a.length; k++) {
+            this.aIndices[k] = getNonZeroIndices(a[k]);
+            this.aValues[k] = getValues(a[k], this.aIndices[k]);
+        }
+        this.bIndices = getNonZeroIndices(b);
+        this.bValues = getValues(b, this.bIndices);
+    }
+
+    /**
+     * Returns the order of the method, which determines the step size control.
+     */
+    public abstract int getOrder();
+
+    /**
+     * Returns the largest h * lambda on the negative real axis for which the method is stable.
+     */
+    protected abstract double getStabilityBoundary();
+
+    /**
+     * Returns the number of interpolation coefficients the method stores per component and step.
+     */
+    protected abstract int getCoefficientCount();
+
+    /**
+     * Returns the number of stage derivative buffers, which can exceed the number of stages if the dense output
+     * needs additional stages.
+     */
+    protected int getStageBufferCount() {
+        return this.stages;
+    }
+
+    /**
+     * Estimates the normalized error of the step from y0 to y1. A value below 1 means the step is accepted.
+     */
+    protected abstract double estimateError(double[][] yDotK, double[] y0, double[] y1, double h, int dimension);
+
+    /**
+     * Computes the interpolation coefficients of the accepted step from previousTime to previousTime + h ending
+     * in state y1 and writes them to coefficients starting at offset. The derivatives of the stages are still
+     * available in this.yDotK and this.yTmp can be used as a scratch buffer.
+     */
+    protected abstract void computeDenseCoefficients(
+            double previousTime, double h, double[] y1, int dimension, double[] coefficients, int offset
+    );
+
+    public void setStepBounds(double minStep, double maxStep) {
+        this.minStep = FastMath.abs(minStep);
+        this.maxStep = FastMath.abs(maxStep);
+    }
+
+    public void setTolerances(double absoluteTolerance, double relativeTolerance) {
+        this.scalarAbsoluteTolerance = absoluteTolerance;
+        this.scalarRelativeTolerance = relativeTolerance;
+        this.vectorAbsoluteTolerance = null;
+        this.vectorRelativeTolerance = null;
+    }
+
+    public void setTolerances(double[] absoluteTolerance, double[] relativeTolerance) {
+        this.vectorAbsoluteTolerance = absoluteTolerance;
+        this.vectorRelativeTolerance = relativeTolerance;
+    }
+
+    /**
+     * Sets whether the integration is aborted with a StiffnessDetectedException if the problem becomes stiff.
+     */
+    public void setStiffnessDetection(boolean detectStiffness) {
+        this.detectStiffness = detectStiffness;
+    }
+
+    /**
+     * Returns true while an integration is running on this instance.
+     */
+    public boolean isIntegrating() {
+        return this.isIntegrating;
+    }
+
+    /**
+     * Integrates the equations from t0 to t starting at y0. The state at t is written back to y0.
+     *
+     * @return the dense output of the integration.
+     */
+    public DenseOutput integrate(FirstOrderDifferentialEquations equations, double t0, double[] y0, double t) {
+        this.isIntegrating = true;
+        try {
+            return this.doIntegrate(equations, t0, y0, t);
+        } finally {
+            this.equations = null;
+            this.isIntegrating = false;
+        }
+    }
+
+    private DenseOutput doIntegrate(FirstOrderDifferentialEquations equations, double t0, double[] y0, double t) {
+        double threshold = 1000 * FastMath.ulp(FastMath.max(FastMath.abs(t0), FastMath.abs(t)));
+        double dt = FastMath.abs(t0 - t);
+        if (dt <= threshold) {
+            throw new NumberIsTooSmallException(LocalizedFormats.TOO_SMALL_INTEGRATION_INTERVAL, dt, threshold, false);
+        }
+
+        int n = equations.getDimension();
+        this.ensureCapacity(n);
+        this.equations = equations;
+
+        boolean forward = t > t0;
+        double[] y = this.y;
+        double[] yTmp = this.yTmp;
+        System.arraycopy(y0, 0, y, 0, n);
+        System.arraycopy(y0, 0, yTmp, 0, n);
+
+        DenseOutput output = new DenseOutput(n, this.getCoefficientCount(), forward, t0, y0);
+
+        double stepStart = t0;
+        double stepSize = 0;
+        double hNew = 0;
+        boolean firstTime = true;
+        boolean isLastStep;
+        int stiffSteps = 0;
+        int nonStiffSteps = 0;
+
+        do {
+            // iterate over the step size until the local normalized error is smaller than 1
+            double error = 10;
+            while (error >= 1.0) {
+
+                if (firstTime) {
+                    this.equations.computeDerivatives(stepStart, y, this.yDotK[0]);
+
+                    for (int i = 0; i < n; i++) {
+                        this.scale[i] = this.getTolerance(i, FastMath.abs(y[i]));
+                    }
+                    hNew = this.initializeStep(forward, stepStart, y, this.yDotK[0], yTmp, this.yDotK[1], n);
+                    firstTime = false;
+                }
+
+                stepSize = hNew;
+                if (forward ? stepStart + stepSize >= t : stepStart + stepSize <= t) {
+                    stepSize = t - stepStart;
+                }
+
+                // next stages
+                for (int k = 1; k < this.stages; k++) {
+                    this.computeStageState(y, this.aIndices[k - 1], this.aValues[k - 1], stepSize, yTmp, n);
+                    this.equations.computeDerivatives(stepStart + this.c[k - 1] * stepSize, yTmp, this.yDotK[k]);
+
+                    if (this.detectStiffness && k == this.stages - 2) {
+                        // the second to last stage is evaluated at the end of the step as well
+                        System.arraycopy(yTmp, 0, this.stiffnessState, 0, n);
+                    }
+                }
+
+                // estimate the state at the end of the step
+                this.computeStageState(y, this.bIndices, this.bValues, stepSize, yTmp, n);
+
+                error = this.estimateError(this.yDotK, y, yTmp, stepSize, n);
+                if (error >= 1.0) {
+                    // reject the step and attempt to reduce the error by step size control
+                    double factor = FastMath.min(MAX_GROWTH, FastMath.max(MIN_REDUCTION, SAFETY * FastMath.pow(error, this.exponent)));
+                    hNew = this.filterStep(stepSize * factor, forward, false);
+                }
+            }
+
+            // the step is accepted
+            double currentTime = stepStart + stepSize;
+            System.arraycopy(yTmp, 0, y, 0, n);
+
+            if (this.detectStiffness) {
+                if (this.getStabilityBoundary() < this.estimateStiffness(stepSize, y, n)) {
+                    nonStiffSteps = 0;
+                    if (++stiffSteps == STIFF_STEP_LIMIT) {
+                        throw new StiffnessDetectedException(currentTime);
+                    }
+                } else if (0 < stiffSteps && ++nonStiffSteps == NON_STIFF_STEP_LIMIT) {
+                    stiffSteps = 0;
+                }
+            }
+
+            int offset = output.appendStep(currentTime, y);
+            this.computeDenseCoefficients(stepStart, currentTime - stepStart, y, n, output.coefficients, offset);
+
+            isLastStep = Precision.equals(currentTime, t, 1);
+            stepStart = currentTime;
+            System.arraycopy(y, 0, yTmp, 0, n);
+
+            if (!isLastStep) {
+                // the last stage is evaluated at the end of the step and is reused as the first stage of the next
+                double[] firstStage = this.yDotK[0];
+                this.yDotK[0] = this.yDotK[this.stages - 1];
+                this.yDotK[this.stages - 1] = firstStage;
+
+                // step size control for the next step
+                double factor = FastMath.min(MAX_GROWTH, FastMath.max(MIN_REDUCTION, SAFETY * FastMath.pow(error, this.exponent)));
+                double scaledH = stepSize * factor;
+                double nextT = stepStart + scaledH;
+                boolean nextIsLast = forward ? nextT >= t : nextT <= t;
+                hNew = this.filterStep(scaledH, forward, nextIsLast);
+
+                double filteredNextT = stepStart + hNew;
+                boolean filteredNextIsLast = forward ? filteredNextT >= t : filteredNextT <= t;
+                if (filteredNextIsLast) {
+                    hNew = t - stepStart;
+                }
+            }
+        } while (!isLastStep);
+
+        System.arraycopy(y, 0, y0, 0, n);
+        return output;
+    }
+
+    /**
+     * Estimates h * lambda for the dominant eigenvalue lambda of the Jacobian from the two stages at the end of
+     * the accepted step, which ends in state y1.
+     */
+    double estimateStiffness(double h, double[] y1, int n) {
+        double[] lastDerivative = this.yDotK[this.stages - 1];
+        double[] previousDerivative = this.yDotK[this.stages - 2];
+
+        double numerator = 0;
+        double denominator = 0;
+        for (int j = 0; j < n; j++) {
+            double derivativeDifference = lastDerivative[j] - previousDerivative[j];
+            numerator += derivativeDifference * derivativeDifference;
+            double stateDifference = y1[j] - this.stiffnessState[j];
+            denominator += stateDifference * stateDifference;
+        }
+
+        return denominator > 0 ? FastMath.abs(h) * FastMath.sqrt(numerator / denominator) : 0;
+    }
+
+    /**
+     * Computes yTmp = y + h * sum_l a_l * yDotK[l] over the given non-zero coefficients.
+     */
+    void computeStageState(double[] y, int[] indices, double[] values, double h, double[] yTmp, int n) {
+        for (int j = 0; j < n; j++) {
+            double sum = values[0] * this.yDotK[indices[0]][j];
+            for (int l = 1; l < indices.length; l++) {
+                sum += values[l] * this.yDotK[indices[l]][j];
+            }
+            yTmp[j] = y[j] + h * sum;
+        }
+    }
+
+    /**
+     * Returns the absolute tolerance of the given component at the given magnitude.
+     */
+    double getTolerance(int i, double yScale) {
+        return this.vectorAbsoluteTolerance == null
+                ? this.scalarAbsoluteTolerance + this.scalarRelativeTolerance * yScale
+                : this.vectorAbsoluteTolerance[i] + this.vectorRelativeTolerance[i] * yScale;
+    }
+
+    /**
+     * Estimates the initial step size in the same way as the commons-math AdaptiveStepsizeIntegrator.
+     */
+    double initializeStep(boolean forward, double t0, double[] y0, double[] yDot0, double[] y1, double[] yDot1, int n) {
+        // very rough first guess: h = 0.01 * ||y/scale|| / ||y'/scale||
+        double ratio;
+        double yOnScale2 = 0;
+        double yDotOnScale2 = 0;
+        for (int j = 0; j < n; j++) {
+            ratio = y0[j] / this.scale[j];
+            yOnScale2 += ratio * ratio;
+            ratio = yDot0[j] / this.scale[j];
+            yDotOnScale2 += ratio * ratio;
+        }
+
+        double h = (yOnScale2 < 1.0e-10) || (yDotOnScale2 < 1.0e-10)
+                ? 1.0e-6
+                : 0.01 * FastMath.sqrt(yOnScale2 / yDotOnScale2);
+        if (!forward) {
+            h = -h;
+        }
+
+        // perform an Euler step using the preceding rough guess
+        for (int j = 0; j < n; j++) {
+            y1[j] = y0[j] + h * yDot0[j];
+        }
+        this.equations.computeDerivatives(t0 + h, y1, yDot1);
+
+        // estimate the second derivative of the solution
+        double yDDotOnScale = 0;
+        for (int j = 0; j < n; j++) {
+            ratio = (yDot1[j] - yDot0[j]) / this.scale[j];
+            yDDotOnScale += ratio * ratio;
+        }
+        yDDotOnScale = FastMath.sqrt(yDDotOnScale) / h;
+
+        // step size is computed such that h^order * max(||y'/tol||, ||y''/tol||) = 0.01
+        double maxInv2 = FastMath.max(FastMath.sqrt(yDotOnScale2), yDDotOnScale);
+        double h1 = maxInv2 < 1.0e-15
+                ? FastMath.max(1.0e-6, 0.001 * FastMath.abs(h))
+                : FastMath.pow(0.01 / maxInv2, 1.0 / this.getOrder());
+        h = FastMath.min(100.0 * FastMath.abs(h), h1);
+        h = FastMath.max(h, 1.0e-12 * FastMath.abs(t0));
+        h = FastMath.max(h, this.minStep);
+        h = FastMath.min(h, this.maxStep);
+
+        return forward ? h : -h;
+    }
+
+    /**
+     * Restricts the given step size to the step bounds.
+     */
+    double filterStep(double h, boolean forward, boolean acceptSmall) {
+        double filteredH = h;
+        if (FastMath.abs(h) < this.minStep) {
+            if (acceptSmall) {
+                filteredH = forward ? this.minStep : -this.minStep;
+            } else {
+                throw new NumberIsTooSmallException(
+                        LocalizedFormats.MINIMAL_STEPSIZE_REACHED_DURING_INTEGRATION, FastMath.abs(h), this.minStep, true
+                );
+            }
+        }
+
+        if (filteredH > this.maxStep) {
+            filteredH = this.maxStep;
+        } else if (filteredH < -this.maxStep) {
+            filteredH = -this.maxStep;
+        }
+
+        return filteredH;
+    }
+
+    void ensureCapacity(int dimension) {
+        if (dimension <= this.capacity) return;
+
+        this.capacity = dimension;
+        this.y = new double[dimension];
+        this.yTmp = new double[dimension];
+        this.scale = new double[dimension];
+        this.yDotK = new double[this.getStageBufferCount()][dimension];
+        this.stiffnessState = new double[dimension];
+    }
+
+    static int[] getNonZeroIndices(double[] row) {
+        int count = 0;
+        for (double value : row) {
+            if (value != 0.0) count++;
+        }
+
+        int[] indices = new int[count];
+        int current = 0;
+        for (int l = 0; l < row.length; l++) {
+            if (row[l] != 0.0) indices[current++] = l;
+        }
+        return indices;
+    }
+
+    static double[] getValues(double[] row, int[] indices) {
+        double[] values = new double[indices.length];
+        for (int l = 0; l < indices.length; l++) {
+            values[l] = row[indices[l]];
+        }
+        return values;
+    }
+
+}
@@ -0,0 +1,35 @@
+package bdmmflow.integration;
+
+/**
+ * This interface represents the continuous output of an integration over a time interval. Implementations are
+ * immutable once built, so the state can be queried by multiple threads without locking.
+ */
+public interface IDenseOutput {
+
+    int getDimension();
+
+    double getInitialTime();
+
+    double getFinalTime();
+
+    /**
+     * Writes the components offset, ..., offset + length - 1 of the state at the given time into the first
+     * length entries of the given buffer and returns it.
+     */
+    double[] getState(double time, int offset, int length, double[] buffer);
+
+    /**
+     * Writes the state at the given time into the given buffer and returns it.
+     */
+    default double[] getState(double time, double[] buffer) {
+        return this.getState(time, 0, this.getDimension(), buffer);
+    }
+
+    /**
+     * Returns the state at the given time.
+     */
+    default double[] getState(double time) {
+        return this.getState(time, new double[this.getDimension()]);
+    }
+
+}
@@ -0,0 +1,17 @@
+package bdmmflow.integration;
+
+import org.apache.commons.math3.ode.FirstOrderDifferentialEquations;
+
+/**
+ * This interface represents an ODE system which can compute the exact Jacobian of its derivatives, such that it
+ * can be integrated with the RosenbrockIntegrator.
+ */
+public interface JacobianEquations extends FirstOrderDifferentialEquations {
+
+    /**
+     * Writes the Jacobian d yDot / d y at the given time and state into the given array in column-major order,
+     * i.e. the derivative of component i with respect to component j is stored at j * dimension + i.
+     */
+    void computeJacobian(double t, double[] y, double[] jacobian);
+
+}
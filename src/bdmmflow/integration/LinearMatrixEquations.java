@@ -0,0 +1,15 @@
+package bdmmflow.integration;
+
+/**
+ * This interface represents a linear matrix ODE Y'(t) = A(t) Y(t), where the state Y and the system matrix A
+ * are flat n x n matrices in column-major order.
+ */
+@FunctionalInterface
+public interface LinearMatrixEquations {
+
+    /**
+     * Writes the system matrix A(t) into the given column-major array.
+     */
+    void computeSystemMatrix(double t, double[] systemMatrix);
+
+}
@@ -0,0 +1,133 @@
+package bdmmflow.integration;
+
+import bdmmflow.utils.MatrixKernel;
+
+import java.util.Arrays;
+
+/**
+ * This class stores the steps of an integration by the MagnusIntegrator.
+ * <p>
+ * Polynomial interpolation between the steps would restrict the steps of stiff systems to the time scale of the
+ * fastest mode again. Instead, the state at a time between two steps is computed by a Magnus step from the
+ * state at the start of the step, which is as accurate as the steps themselves. The system matrices are
+ * evaluated again for this, so the equations must stay valid and thread-safe as long as the output is used.
+ * <p>
+ * The output is not mutated by queries, so it can be queried by multiple threads at the same time.
+ */
+public class MagnusDenseOutput implements IDenseOutput {
+
+    static final int INITIAL_STEP_CAPACITY = 16;
+
+    final int n;
+    final boolean isForward;
+    final LinearMatrixEquations equations;
+    final MatrixKernel kernel;
+
+    int stepCount = 0;
+
+    /**
+     * The times of the step boundaries, stepCount + 1 entries.
+     */
+    double[] times;
+
+    /**
+     * The states at the step boundaries, (stepCount + 1) * n * n entries.
+     */
+    double[] states;
+
+    MagnusDenseOutput(
+            int n, boolean isForward, LinearMatrixEquations equations, MatrixKernel kernel,
+            double initialTime, double[] initialState
+    ) {
+        this.n = n;
+        this.isForward = isForward;
+        this.equations = equations;
+        this.kernel = kernel;
+
+        this.times = new double[INITIAL_STEP_CAPACITY + 1];
+        this.states = new double[(INITIAL_STEP_CAPACITY + 1) * n * n];
+
+        this.times[0] = initialTime;
+        System.arraycopy(initialState, 0, this.states, 0, n * n);
+    }
+
+    void appendStep(double time, double[] state) {
+        int dimension = this.n * this.n;
+
+        if (this.times.length == this.stepCount + 1) {
+            int capacity = 2 * this.stepCount;
+            this.times = Arrays.copyOf(this.times, capacity + 1);
+            this.states = Arrays.copyOf(this.states, (capacity + 1) * dimension);
+        }
+
+        this.stepCount++;
+        this.times[this.stepCount] = time;
+        System.arraycopy(state, 0, this.states, this.stepCount * dimension, dimension);
+    }
+
+    @Override
+    public int getDimension() {
+        return this.n * this.n;
+    }
+
+    public int getStepCount() {
+        return this.stepCount;
+    }
+
+    @Override
+    public double getInitialTime() {
+        return this.times[0];
+    }
+
+    @Override
+    public double getFinalTime() {
+        return this.times[this.stepCount];
+    }
+
+    /**
+     * Writes the components offset, ..., offset + length - 1 of the state at the given time into the first
+     * length entries of the given buffer and returns it. Times outside of the integrated range are
+     * extrapolated from the first or the last step.
+     */
+    @Override
+    public double[] getState(double time, int offset, int length, double[] buffer) {
+        int dimension = this.n * this.n;
+        int step = this.findStep(time);
+
+        if (time == this.times[step + 1]) {
+            System.arraycopy(this.states, (step + 1) * dimension + offset, buffer, 0, length);
+            return buffer;
+        }
+
+        double[] start = Arrays.copyOfRange(this.states, step * dimension, (step + 1) * dimension);
+        double[] state = new double[dimension];
+        new MagnusIntegrator(this.n, this.kernel).step(
+                this.equations, this.times[step], time - this.times[step], start, state
+        );
+
+        System.arraycopy(state, offset, buffer, 0, length);
+        return buffer;
+    }
+
+    /**
+     * Returns the first step whose end is not before the given time in integration direction.
+     */
+    int findStep(double time) {
+        int low = 0;
+        int high = this.stepCount - 1;
+
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            boolean isAfterStep = this.isForward ? this.times[mid + 1] < time : time < this.times[mid + 1];
+
+            if (isAfterStep) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        return low;
+    }
+
+}
@@ -0,0 +1,215 @@
+package bdmmflow.integration;
+
+import bdmmflow.utils.MatrixExponential;
+import bdmmflow.utils.MatrixKernel;
+import org.apache.commons.math3.exception.NumberIsTooSmallException;
+import org.apache.commons.math3.exception.util.LocalizedFormats;
+import org.apache.commons.math3.util.FastMath;
+import org.apache.commons.math3.util.Precision;
+
+/**
+ * This class integrates linear matrix ODEs Y' = A(t) Y with the fourth-order Magnus method
+ * <p>
+ * Y(t + h) = exp(h / 2 (A_1 + A_2) + sqrt(3) h^2 / 12 [A_2, A_1]) Y(t),
+ * <p>
+ * where A_1 and A_2 are the system matrices at the two Gauss-Legendre nodes of the step. As the step is
+ * an exact matrix exponential, its stability does not depend on the stiffness of A, such that stiff systems
+ * can be integrated with steps that are only limited by the variation of A(t).
+ * <p>
+ * The local error is estimated by step doubling: every step is computed once with size h and once as two
+ * half steps, and the half steps are kept. An instance must only be used by one thread at a time.
+ */
+public class MagnusIntegrator {
+
+    static final int ORDER = 4;
+    static final double SAFETY = 0.9;
+    static final double MIN_REDUCTION = 0.2;
+    static final double MAX_GROWTH = 5.0;
+
+    static final double SQRT_3 = Math.sqrt(3.0);
+    static final double GAUSS_OFFSET = SQRT_3 / 6.0;
+
+    final int n;
+    final MatrixKernel kernel;
+    final MatrixExponential exponential;
+
+    double minStep;
+    double maxStep;
+    double absoluteTolerance;
+    double relativeTolerance;
+
+    final double[] firstSystemMatrix;
+    final double[] secondSystemMatrix;
+    final double[] magnusExponent;
+    final double[] commutator;
+    final double[] stepExponential;
+
+    final double[] y;
+    final double[] yFull;
+    final double[] yHalf;
+    final double[] yEnd;
+
+    boolean isIntegrating = false;
+
+    public MagnusIntegrator(int n, MatrixKernel kernel) {
+        this.n = n;
+        this.kernel = kernel;
+        this.exponential = new MatrixExponential(n, kernel);
+
+        this.firstSystemMatrix = new double[n * n];
+        this.secondSystemMatrix = new double[n * n];
+        this.magnusExponent = new double[n * n];
+        this.commutator = new double[n * n];
+        this.stepExponential = new double[n * n];
+
+        this.y = new double[n * n];
+        this.yFull = new double[n * n];
+        this.yHalf = new double[n * n];
+        this.yEnd = new double[n * n];
+    }
+
+    public void setStepBounds(double minStep, double maxStep) {
+        this.minStep = FastMath.abs(minStep);
+        this.maxStep = FastMath.abs(maxStep);
+    }
+
+    public void setTolerances(double absoluteTolerance, double relativeTolerance) {
+        this.absoluteTolerance = absoluteTolerance;
+        this.relativeTolerance = relativeTolerance;
+    }
+
+    /**
+     * Returns whether this integrator is currently running an integration.
+     */
+    public boolean isIntegrating() {
+        return this.isIntegrating;
+    }
+
+    /**
+     * Integrates the given system from t0 to t, starting at y0. The state at t is written into y0.
+     *
+     * @return the dense output of the integration, which evaluates the system again between the steps.
+     */
+    public MagnusDenseOutput integrate(LinearMatrixEquations equations, double t0, double[] y0, double t) {
+        this.isIntegrating = true;
+        try {
+            return this.integrateSteps(equations, t0, y0, t);
+        } finally {
+            this.isIntegrating = false;
+        }
+    }
+
+    MagnusDenseOutput integrateSteps(LinearMatrixEquations equations, double t0, double[] y0, double t) {
+        int dimension = this.n * this.n;
+        boolean forward = t > t0;
+
+        double[] y = this.y;
+        System.arraycopy(y0, 0, y, 0, dimension);
+        MagnusDenseOutput output = new MagnusDenseOutput(this.n, forward, equations, this.kernel, t0, y0);
+
+        // the first step is limited by the time scale of the system, such that the error estimate is reliable
+        equations.computeSystemMatrix(t0, this.firstSystemMatrix);
+        double initialStep = FastMath.min(this.maxStep, 1.0 / MatrixExponential.oneNorm(this.firstSystemMatrix, this.n));
+
+        double stepStart = t0;
+        double hNew = forward
+                ? FastMath.min(initialStep, t - t0)
+                : FastMath.max(-initialStep, t - t0);
+        boolean isLastStep;
+
+        do {
+            double stepSize;
+            double error;
+
+            while (true) {
+                stepSize = hNew;
+                if (forward ? stepStart + stepSize >= t : stepStart + stepSize <= t) {
+                    stepSize = t - stepStart;
+                }
+                double halfStepSize = 0.5 * stepSize;
+
+                this.step(equations, stepStart, stepSize, y, this.yFull);
+                this.step(equations, stepStart, halfStepSize, y, this.yHalf);
+                this.step(equations, stepStart + halfStepSize, halfStepSize, this.yHalf, this.yEnd);
+
+                error = this.estimateError(y);
+                if (!Double.isFinite(error)) {
+                    throw new IllegalStateException("NaN detected during integration.");
+                }
+                if (error < 1.0) break;
+
+                // reject the step and attempt to reduce the error by step size control
+                double factor = FastMath.max(MIN_REDUCTION, SAFETY * FastMath.pow(error, -1.0 / (ORDER + 1)));
+                hNew = stepSize * factor;
+                if (FastMath.abs(hNew) < this.minStep) {
+                    throw new NumberIsTooSmallException(
+                            LocalizedFormats.MINIMAL_STEPSIZE_REACHED_DURING_INTEGRATION,
+                            FastMath.abs(hNew), this.minStep, true
+                    );
+                }
+            }
+
+            // the step is accepted, we keep both half steps
+            double endTime = stepStart + stepSize;
+            output.appendStep(stepStart + 0.5 * stepSize, this.yHalf);
+            output.appendStep(endTime, this.yEnd);
+            System.arraycopy(this.yEnd, 0, y, 0, dimension);
+
+            isLastStep = Precision.equals(endTime, t, 1);
+            stepStart = endTime;
+
+            double factor = FastMath.min(
+                    MAX_GROWTH,
+                    FastMath.max(MIN_REDUCTION, SAFETY * FastMath.pow(error, -1.0 / (ORDER + 1)))
+            );
+            hNew = forward
+                    ? FastMath.min(this.maxStep, stepSize * factor)
+                    : FastMath.max(-this.maxStep, stepSize * factor);
+        } while (!isLastStep);
+
+        System.arraycopy(y, 0, y0, 0, dimension);
+        return output;
+    }
+
+    /**
+     * Computes a single Magnus step of size h from the given state.
+     */
+    void step(LinearMatrixEquations equations, double time, double h, double[] state, double[] result) {
+        int n = this.n;
+
+        equations.computeSystemMatrix(time + (0.5 - GAUSS_OFFSET) * h, this.firstSystemMatrix);
+        equations.computeSystemMatrix(time + (0.5 + GAUSS_OFFSET) * h, this.secondSystemMatrix);
+
+        // commutator [A_2, A_1] = A_2 A_1 - A_1 A_2
+        this.kernel.multiply(this.secondSystemMatrix, this.firstSystemMatrix, this.commutator, n);
+        this.kernel.multiply(this.firstSystemMatrix, this.secondSystemMatrix, this.magnusExponent, n);
+
+        double halfH = 0.5 * h;
+        double commutatorFactor = SQRT_3 * h * h / 12.0;
+        for (int i = 0; i < n * n; i++) {
+            this.magnusExponent[i] = halfH * (this.firstSystemMatrix[i] + this.secondSystemMatrix[i])
+                    + commutatorFactor * (this.commutator[i] - this.magnusExponent[i]);
+        }
+
+        this.exponential.compute(this.magnusExponent, this.stepExponential);
+        this.kernel.multiply(this.stepExponential, state, result, n);
+    }
+
+    /**
+     * Returns the Richardson estimate of the normalized local error of the two half steps.
+     */
+    double estimateError(double[] start) {
+        double error = 0.0;
+
+        for (int i = 0; i < this.n * this.n; i++) {
+            double tolerance = this.absoluteTolerance + this.relativeTolerance * FastMath.max(
+                    FastMath.abs(start[i]), FastMath.abs(this.yEnd[i])
+            );
+            double ratio = (this.yEnd[i] - this.yFull[i]) / ((1 << ORDER) - 1) / tolerance;
+            error += ratio * ratio;
+        }
+
+        return FastMath.sqrt(error / (this.n * this.n));
+    }
+
+}
@@ -0,0 +1,328 @@
+package bdmmflow.integration;
+
+import bdmmflow.utils.MatrixExponential;
+import bdmmflow.utils.SmallMatrices;
+import org.apache.commons.math3.exception.NumberIsTooSmallException;
+import org.apache.commons.math3.exception.util.LocalizedFormats;
+import org.apache.commons.math3.util.FastMath;
+import org.apache.commons.math3.util.Precision;
+
+/**
+ * This class integrates stiff ODE systems with the L-stable, stiffly accurate Rosenbrock method RODAS3 of order 3
+ * with an embedded method of order 2 (Sandu et al., 1997).
+ * <p>
+ * Every step evaluates the exact Jacobian J of the system once, factorizes I / (gamma h) - J and solves it for
+ * each of the four stages. The time derivative of the derivatives is approximated by a forward difference.
+ * <p>
+ * The dense output is the cubic Hermite interpolant of the step boundaries, stored as a DenseOutput such that
+ * it can be used like the Runge-Kutta outputs. An instance must only be used by one thread at a time.
+ */
+public class RosenbrockIntegrator {
+
+    static final int ORDER = 3;
+    static final double SAFETY = 0.9;
+    static final double MIN_REDUCTION = 0.2;
+    static final double MAX_GROWTH = 5.0;
+
+    /**
+     * The coefficients of RODAS3 in the formulation without products with the Jacobian. The stage states are
+     * Y_i = y + sum_j A_ij K_j and the stages solve
+     * (I / (gamma h) - J) K_i = f(t + alpha_i h, Y_i) + sum_j C_ij / h K_j + gamma_i h f_t,
+     * where alpha = (0, 0, 1, 1) and the zero coefficients are omitted.
+     */
+    static final double GAMMA = 0.5;
+
+    static final double A31 = 2.0;
+    static final double A41 = 2.0;
+    static final double A43 = 1.0;
+
+    static final double C21 = 4.0;
+    static final double C31 = 1.0;
+    static final double C32 = -1.0;
+    static final double C41 = 1.0;
+    static final double C42 = -1.0;
+    static final double C43 = -8.0 / 3.0;
+
+    static final double GAMMA1 = 0.5;
+    static final double GAMMA2 = 1.5;
+
+    static final double M1 = 2.0;
+    static final double M3 = 1.0;
+    static final double M4 = 1.0;
+
+    double minStep;
+    double maxStep;
+    double scalarAbsoluteTolerance;
+    double scalarRelativeTolerance;
+    double[] vectorAbsoluteTolerance;
+    double[] vectorRelativeTolerance;
+
+    int capacity = 0;
+    double[] jacobian;
+    double[] lu;
+    int[] pivots;
+
+    double[] y;
+    double[] yNew;
+    double[] f0;
+    double[] f1;
+    double[] fT;
+    double[] k1;
+    double[] k2;
+    double[] k3;
+    double[] k4;
+    double[] stageState;
+
+    boolean isIntegrating = false;
+
+    public void setStepBounds(double minStep, double maxStep) {
+        this.minStep = FastMath.abs(minStep);
+        this.maxStep = FastMath.abs(maxStep);
+    }
+
+    public void setTolerances(double absoluteTolerance, double relativeTolerance) {
+        this.scalarAbsoluteTolerance = absoluteTolerance;
+        this.scalarRelativeTolerance = relativeTolerance;
+        this.vectorAbsoluteTolerance = null;
+        this.vectorRelativeTolerance = null;
+    }
+
+    public void setTolerances(double[] absoluteTolerance, double[] relativeTolerance) {
+        this.vectorAbsoluteTolerance = absoluteTolerance;
+        this.vectorRelativeTolerance = relativeTolerance;
+    }
+
+    /**
+     * Returns true while an integration is running on this instance.
+     */
+    public boolean isIntegrating() {
+        return this.isIntegrating;
+    }
+
+    /**
+     * Integrates the equations from t0 to t starting at y0. The state at t is written back to y0.
+     *
+     * @return the dense output of the integration.
+     */
+    public DenseOutput integrate(JacobianEquations equations, double t0, double[] y0, double t) {
+        this.isIntegrating = true;
+        try {
+            return this.doIntegrate(equations, t0, y0, t);
+        } finally {
+            this.isIntegrating = false;
+        }
+    }
+
+    private DenseOutput doIntegrate(JacobianEquations equations, double t0, double[] y0, double t) {
+        int n = equations.getDimension();
+        this.ensureCapacity(n);
+
+        boolean forward = t > t0;
+        double[] y = this.y;
+        System.arraycopy(y0, 0, y, 0, n);
+
+        DenseOutput output = new DenseOutput(n, 3, forward, t0, y0);
+
+        equations.computeDerivatives(t0, y, this.f0);
+        equations.computeJacobian(t0, y, this.jacobian);
+
+        // the first step resolves the fastest time scale of the system, larger steps are found by step size control
+        double initialStep = FastMath.min(this.maxStep, 1.0 / MatrixExponential.oneNorm(this.jacobian, n));
+
+        double stepStart = t0;
+        double hNew = forward
+                ? FastMath.min(initialStep, t - t0)
+                : FastMath.max(-initialStep, t - t0);
+        boolean isLastStep;
+
+        do {
+            this.computeTimeDerivative(equations, stepStart, hNew, n);
+
+            double stepSize;
+            double error;
+
+            while (true) {
+                stepSize = hNew;
+                if (forward ? stepStart + stepSize >= t : stepStart + stepSize <= t) {
+                    stepSize = t - stepStart;
+                }
+
+                error = this.step(equations, stepStart, stepSize, n);
+                if (!Double.isFinite(error)) {
+                    throw new IllegalStateException("NaN detected during integration.");
+                }
+                if (error < 1.0) break;
+
+                // reject the step and attempt to reduce the error by step size control
+                double factor = FastMath.max(MIN_REDUCTION, SAFETY * FastMath.pow(error, -1.0 / ORDER));
+                hNew = stepSize * factor;
+                if (FastMath.abs(hNew) < this.minStep) {
+                    throw new NumberIsTooSmallException(
+                            LocalizedFormats.MINIMAL_STEPSIZE_REACHED_DURING_INTEGRATION,
+                            FastMath.abs(hNew), this.minStep, true
+                    );
+                }
+            }
+
+            // the step is accepted, the derivative at its end is reused by the next step
+            double currentTime = stepStart + stepSize;
+            equations.computeDerivatives(currentTime, this.yNew, this.f1);
+
+            int offset = output.appendStep(currentTime, this.yNew);
+            this.computeDenseCoefficients(stepSize, n, output.coefficients, offset);
+
+            System.arraycopy(this.yNew, 0, y, 0, n);
+            System.arraycopy(this.f1, 0, this.f0, 0, n);
+
+            isLastStep = Precision.equals(currentTime, t, 1);
+            stepStart = currentTime;
+
+            if (!isLastStep) {
+                equations.computeJacobian(stepStart, y, this.jacobian);
+
+                double factor = FastMath.min(
+                        MAX_GROWTH,
+                        FastMath.max(MIN_REDUCTION, SAFETY * FastMath.pow(error, -1.0 / ORDER))
+                );
+                hNew = forward
+                        ? FastMath.min(this.maxStep, stepSize * factor)
+                        : FastMath.max(-this.maxStep, stepSize * factor);
+            }
+        } while (!isLastStep);
+
+        System.arraycopy(y, 0, y0, 0, n);
+        return output;
+    }
+
+    /**
+     * Computes fT = df/dt at the current state by a forward difference in the direction of the next step.
+     */
+    void computeTimeDerivative(JacobianEquations equations, double time, double h, int n) {
+        double delta = FastMath.copySign(
+                FastMath.sqrt(Precision.EPSILON) * FastMath.max(FastMath.abs(time), FastMath.abs(h)), h
+        );
+
+        equations.computeDerivatives(time + delta, this.y, this.fT);
+        for (int i = 0; i < n; i++) {
+            this.fT[i] = (this.fT[i] - this.f0[i]) / delta;
+        }
+    }
+
+    /**
+     * Computes a single step of size h from this.y into this.yNew and returns its normalized error estimate.
+     */
+    double step(JacobianEquations equations, double time, double h, int n) {
+        double[] y = this.y;
+
+        this.factorize(h, n);
+
+        for (int i = 0; i < n; i++) {
+            this.k1[i] = this.f0[i] + GAMMA1 * h * this.fT[i];
+        }
+        this.solve(this.k1, n);
+
+        for (int i = 0; i < n; i++) {
+            this.k2[i] = this.f0[i] + C21 / h * this.k1[i] + GAMMA2 * h * this.fT[i];
+        }
+        this.solve(this.k2, n);
+
+        for (int i = 0; i < n; i++) {
+            this.stageState[i] = y[i] + A31 * this.k1[i];
+        }
+        equations.computeDerivatives(time + h, this.stageState, this.k3);
+        for (int i = 0; i < n; i++) {
+            this.k3[i] += (C31 * this.k1[i] + C32 * this.k2[i]) / h;
+        }
+        this.solve(this.k3, n);
+
+        for (int i = 0; i < n; i++) {
+            this.stageState[i] = y[i] + A41 * this.k1[i] + A43 * this.k3[i];
+        }
+        equations.computeDerivatives(time + h, this.stageState, this.k4);
+        for (int i = 0; i < n; i++) {
+            this.k4[i] += (C41 * this.k1[i] + C42 * this.k2[i] + C43 * this.k3[i]) / h;
+        }
+        this.solve(this.k4, n);
+
+        // the last stage is the difference between the solutions of order 3 and 2
+        double error = 0.0;
+        for (int i = 0; i < n; i++) {
+            this.yNew[i] = y[i] + M1 * this.k1[i] + M3 * this.k3[i] + M4 * this.k4[i];
+
+            double ratio = this.k4[i] / this.getTolerance(i, FastMath.max(FastMath.abs(y[i]), FastMath.abs(this.yNew[i])));
+            error += ratio * ratio;
+        }
+
+        return FastMath.sqrt(error / n);
+    }
+
+    /**
+     * Computes the LU decomposition of I / (gamma h) - J with partial pivoting.
+     */
+    void factorize(double h, int n) {
+        double[] lu = this.lu;
+        double diagonal = 1.0 / (GAMMA * h);
+
+        for (int i = 0; i < n * n; i++) {
+            lu[i] = -this.jacobian[i];
+        }
+        for (int i = 0; i < n; i++) {
+            lu[i * n + i] += diagonal;
+        }
+
+        SmallMatrices.decomposeLU(lu, this.pivots, n);
+    }
+
+    /**
+     * Solves the factorized system for the given right-hand side in place.
+     */
+    void solve(double[] rightHandSide, int n) {
+        SmallMatrices.solveLU(this.lu, this.pivots, rightHandSide, 0, n);
+    }
+
+    /**
+     * Writes the coefficients of the cubic Hermite interpolant of the accepted step in the representation of
+     * DenseOutput.
+     */
+    void computeDenseCoefficients(double h, int n, double[] coefficients, int offset) {
+        for (int i = 0; i < n; i++) {
+            double v1 = (this.yNew[i] - this.y[i]) / h;
+            double v2 = this.f0[i] - v1;
+            double v3 = v1 - v2 - this.f1[i];
+
+            coefficients[offset + i] = v1;
+            coefficients[offset + n + i] = v2;
+            coefficients[offset + 2 * n + i] = v3;
+        }
+    }
+
+    /**
+     * Returns the absolute tolerance of the given component at the given magnitude.
+     */
+    double getTolerance(int i, double yScale) {
+        return this.vectorAbsoluteTolerance == null
+                ? this.scalarAbsoluteTolerance + this.scalarRelativeTolerance * yScale
+                : this.vectorAbsoluteTolerance[i] + this.vectorRelativeTolerance[i] * yScale;
+    }
+
+    void ensureCapacity(int dimension) {
+        if (dimension <= this.capacity) return;
+
+        this.capacity = dimension;
+        this.jacobian = new double[dimension * dimension];
+        this.lu = new double[dimension * dimension];
+        this.pivots = new int[dimension];
+
+        this.y = new double[dimension];
+        this.yNew = new double[dimension];
+        this.f0 = new double[dimension];
+        this.f1 = new double[dimension];
+        this.fT = new double[dimension];
+        this.k1 = new double[dimension];
+        this.k2 = new double[dimension];
+        this.k3 = new double[dimension];
+        this.k4 = new double[dimension];
+        this.stageState = new double[dimension];
+    }
+
+}
@@ -0,0 +1,15 @@
+package bdmmflow.integration;
+
+/**
+ * This exception is thrown by an EmbeddedRungeKuttaIntegrator with enabled stiffness detection if its steps are
+ * repeatedly limited by the stability of the method instead of its accuracy.
+ */
+public class StiffnessDetectedException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public StiffnessDetectedException(double time) {
+        super("The problem seems to become stiff at t = " + time + ".");
+    }
+
+}
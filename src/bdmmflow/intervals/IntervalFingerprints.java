@@ -0,0 +1,99 @@
+package bdmmflow.intervals;
+
+import bdmmprime.parameterization.Parameterization;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class records the values of the parameterization that the extinction probability and flow ODEs read in
+ * every interval: the birth, death, sampling, cross-birth and migration rates and the rho sampling probabilities.
+ * <p>
+ * Both ODEs are integrated backwards in time, such that an interval only depends on its own values and on the
+ * extinction probabilities of the later intervals. Comparing the fingerprints of two parameterizations therefore
+ * shows from which interval on the earlier integration can be reused.
+ * <p>
+ * The removal probabilities do not enter the ODEs but only the likelihood at the sampled nodes. They are recorded
+ * separately per parameterization interval, such that a change of them only requires updating these nodes.
+ */
+public class IntervalFingerprints {
+    final List<Interval> intervals;
+    final double totalProcessLength;
+    final double[] intervalEndTimes;
+    final double[][] fingerprints;
+    final double[][] removalProbabilities;
+
+    public IntervalFingerprints(Parameterization parameterization, List<Interval> intervals) {
+        this.intervals = intervals;
+        this.totalProcessLength = parameterization.getTotalProcessLength();
+        this.intervalEndTimes = parameterization.getIntervalEndTimes().clone();
+        this.fingerprints = new double[intervals.size()][];
+
+        this.removalProbabilities = new double[parameterization.getTotalIntervalCount()][];
+        for (int p = 0; p < this.removalProbabilities.length; p++) {
+            this.removalProbabilities[p] = parameterization.getRemovalProbs()[p].clone();
+        }
+
+        int n = parameterization.getNTypes();
+        for (Interval interval : intervals) {
+            int p = interval.parameterizationInterval();
+            double[] fingerprint = new double[4 * n + 2 * n * n];
+
+            System.arraycopy(parameterization.getBirthRates()[p], 0, fingerprint, 0, n);
+            System.arraycopy(parameterization.getDeathRates()[p], 0, fingerprint, n, n);
+            System.arraycopy(parameterization.getSamplingRates()[p], 0, fingerprint, 2 * n, n);
+            System.arraycopy(parameterization.getRhoValues()[p], 0, fingerprint, 3 * n, n);
+            for (int i = 0; i < n; i++) {
+                System.arraycopy(parameterization.getCrossBirthRates()[p][i], 0, fingerprint, 4 * n + i * n, n);
+                System.arraycopy(parameterization.getMigRates()[p][i], 0, fingerprint, 4 * n + n * n + i * n, n);
+            }
+
+            this.fingerprints[interval.interval()] = fingerprint;
+        }
+    }
+
+    /**
+     * Returns the index of the first interval from which on all intervals are unchanged compared to the given
+     * earlier fingerprints. This is 0 if nothing changed, and the number of intervals if the last interval
+     * changed, the interval times differ or there are no earlier fingerprints.
+     */
+    public int getFirstReusableInterval(IntervalFingerprints previous) {
+        if (!this.hasSameIntervals(previous)) {
+            return this.intervals.size();
+        }
+
+        int firstReusableInterval = this.intervals.size();
+        while (0 < firstReusableInterval && Arrays.equals(
+                previous.fingerprints[firstReusableInterval - 1], this.fingerprints[firstReusableInterval - 1]
+        )) {
+            firstReusableInterval--;
+        }
+        return firstReusableInterval;
+    }
+
+    /**
+     * Returns whether the given earlier fingerprints have the same intervals and process length, such that all
+     * node times and their intervals are unchanged.
+     */
+    public boolean hasSameIntervals(IntervalFingerprints previous) {
+        return previous != null
+                && previous.totalProcessLength == this.totalProcessLength
+                && Arrays.equals(previous.intervalEndTimes, this.intervalEndTimes)
+                && previous.intervals.equals(this.intervals);
+    }
+
+    /**
+     * Returns for every parameterization interval whether its removal probabilities differ from the given earlier
+     * fingerprints, which must have the same intervals.
+     */
+    public boolean[] getChangedRemovalIntervals(IntervalFingerprints previous) {
+        boolean[] changedRemovalIntervals = new boolean[this.removalProbabilities.length];
+        for (int p = 0; p < this.removalProbabilities.length; p++) {
+            changedRemovalIntervals[p] = !Arrays.equals(
+                    previous.removalProbabilities[p], this.removalProbabilities[p]
+            );
+        }
+        return changedRemovalIntervals;
+    }
+
+}
@@ -0,0 +1,185 @@
+package bdmmflow.intervals;
+
+import bdmmflow.integration.IDenseOutput;
+import bdmmprime.parameterization.Parameterization;
+import bdmmprime.util.Utils;
+
+import java.util.Arrays;
+
+/**
+ * This class is an immutable, sorted index of contiguous time intervals. It allows to find the interval of a
+ * given time in O(log K) for K intervals. For monotone sweeps over time, a Cursor finds the interval in O(1)
+ * amortized.
+ * <p>
+ * The intervals are given by ascending boundary times b_0, ..., b_K, where interval k spans from b_k to b_{k+1}.
+ * Times outside of [b_0, b_K] are mapped to the first or the last interval. As the intervals share their
+ * boundaries, there are two variants of every lookup: left-closed intervals [b_k, b_{k+1}) and right-closed
+ * intervals (b_k, b_{k+1}].
+ * <p>
+ * Instances are thread-safe, cursors are not.
+ */
+public class IntervalIndex {
+
+    final double[] boundaries;
+
+    /**
+     * @param boundaries the ascending boundary times, including the start of the first and the end of the
+     *                   last interval.
+     */
+    public IntervalIndex(double[] boundaries) {
+        if (boundaries.length < 2) {
+            throw new IllegalArgumentException("An interval index needs at least two boundaries.");
+        }
+        this.boundaries = boundaries.clone();
+    }
+
+    /**
+     * Returns the index of the parameterization intervals. The lookups using findRightClosed are equivalent
+     * to Parameterization.getIntervalIndex.
+     */
+    public static IntervalIndex fromParameterization(Parameterization parameterization) {
+        double[] endTimes = parameterization.getIntervalEndTimes();
+
+        double[] boundaries = new double[endTimes.length + 1];
+        boundaries[0] = Double.NEGATIVE_INFINITY;
+        System.arraycopy(endTimes, 0, boundaries, 1, endTimes.length);
+
+        return new IntervalIndex(boundaries);
+    }
+
+    /**
+     * Returns the index of the outputs of a backwards integration, where the first output model covers the
+     * latest interval. Interval k of the index corresponds to output model outputModels.length - k - 1.
+     */
+    public static IntervalIndex fromBackwardOutputs(IDenseOutput[] outputModels) {
+        int count = outputModels.length;
+
+        double[] boundaries = new double[count + 1];
+        boundaries[0] = outputModels[count - 1].getFinalTime();
+        for (int k = 0; k < count; k++) {
+            boundaries[k + 1] = outputModels[count - k - 1].getInitialTime();
+        }
+
+        return new IntervalIndex(boundaries);
+    }
+
+    /**
+     * Returns the index of the outputs of a forwards integration, where the first output model covers the
+     * earliest interval. Interval k of the index corresponds to output model k.
+     */
+    public static IntervalIndex fromForwardOutputs(IDenseOutput[] outputModels) {
+        int count = outputModels.length;
+
+        double[] boundaries = new double[count + 1];
+        boundaries[0] = outputModels[0].getInitialTime();
+        for (int k = 0; k < count; k++) {
+            boundaries[k + 1] = outputModels[k].getFinalTime();
+        }
+
+        return new IntervalIndex(boundaries);
+    }
+
+    public int getIntervalCount() {
+        return this.boundaries.length - 1;
+    }
+
+    /**
+     * Returns the interval k with b_k <= time < b_{k+1}.
+     */
+    public int findLeftClosed(double time) {
+        // the number of inner boundaries which are smaller than or equal to the time
+        return this.countInnerBoundariesBelow(time, true);
+    }
+
+    /**
+     * Returns the interval k with b_k < time <= b_{k+1}.
+     */
+    public int findRightClosed(double time) {
+        // the number of inner boundaries which are strictly smaller than the time
+        return this.countInnerBoundariesBelow(time, false);
+    }
+
+    /**
+     * Checks if the given time lies on an inner boundary, i.e. a boundary between two intervals.
+     */
+    public boolean isInnerBoundary(double time) {
+        int k = this.findRightClosed(time);
+
+        // only the boundaries enclosing the time can be close to it
+        return (0 < k && Utils.equalWithPrecision(this.boundaries[k], time))
+                || (k < this.getIntervalCount() - 1 && Utils.equalWithPrecision(this.boundaries[k + 1], time));
+    }
+
+    /**
+     * Returns a new cursor on this index.
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    private int countInnerBoundariesBelow(double time, boolean inclusive) {
+        int low = 1;
+        int high = this.boundaries.length - 1;
+
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            boolean isBelow = inclusive ? this.boundaries[mid] <= time : this.boundaries[mid] < time;
+
+            if (isBelow) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        return low - 1;
+    }
+
+    boolean containsLeftClosed(int k, double time) {
+        return (k == 0 || this.boundaries[k] <= time)
+                && (k == this.getIntervalCount() - 1 || time < this.boundaries[k + 1]);
+    }
+
+    boolean containsRightClosed(int k, double time) {
+        return (k == 0 || this.boundaries[k] < time)
+                && (k == this.getIntervalCount() - 1 || time <= this.boundaries[k + 1]);
+    }
+
+    @Override
+    public String toString() {
+        return "IntervalIndex" + Arrays.toString(this.boundaries);
+    }
+
+    /**
+     * A cursor remembers the last interval found. Queries for the same or a neighbouring interval are answered
+     * without a search, which makes monotone sweeps over time O(1) amortized.
+     */
+    public class Cursor {
+        int current = 0;
+
+        /**
+         * Returns the same as IntervalIndex.findLeftClosed.
+         */
+        public int findLeftClosed(double time) {
+            if (containsLeftClosed(this.current, time)) return this.current;
+            if (0 < this.current && containsLeftClosed(this.current - 1, time)) return --this.current;
+            if (this.current < getIntervalCount() - 1 && containsLeftClosed(this.current + 1, time)) return ++this.current;
+
+            this.current = IntervalIndex.this.findLeftClosed(time);
+            return this.current;
+        }
+
+        /**
+         * Returns the same as IntervalIndex.findRightClosed.
+         */
+        public int findRightClosed(double time) {
+            if (containsRightClosed(this.current, time)) return this.current;
+            if (0 < this.current && containsRightClosed(this.current - 1, time)) return --this.current;
+            if (this.current < getIntervalCount() - 1 && containsRightClosed(this.current + 1, time)) return ++this.current;
+
+            this.current = IntervalIndex.this.findRightClosed(time);
+            return this.current;
+        }
+    }
+
+}
@@ -1,13 +1,20 @@
 package bdmmflow.intervals;
 
+import bdmmflow.integration.ChebyshevDenseOutput;
+import bdmmflow.integration.DenseOutput;
+import bdmmflow.integration.DormandPrince54Integrator;
+import bdmmflow.integration.DormandPrince853Integrator;
+import bdmmflow.integration.EmbeddedRungeKuttaIntegrator;
+import bdmmflow.integration.IDenseOutput;
+import bdmmflow.integration.JacobianEquations;
+import bdmmflow.integration.RosenbrockIntegrator;
+import bdmmflow.integration.StiffnessDetectedException;
 import bdmmflow.utils.Result;
 import bdmmprime.parameterization.Parameterization;
-import bdmmprime.util.Utils;
 import org.apache.commons.math3.exception.*;
-import org.apache.commons.math3.ode.ContinuousOutputModel;
 import org.apache.commons.math3.ode.FirstOrderDifferentialEquations;
-import org.apache.commons.math3.ode.nonstiff.*;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
@@ -32,16 +39,49 @@ import java.util.stream.Stream;
  */
 public abstract class IntervalODESystem implements FirstOrderDifferentialEquations {
 
+    /**
+     * The integrators keep their stage buffers between integrations, so every thread reuses its own.
+     */
+    private static final ThreadLocal<EmbeddedRungeKuttaIntegrator> HIGH_ORDER_INTEGRATORS = ThreadLocal.withInitial(
+            DormandPrince853Integrator::new
+    );
+    private static final ThreadLocal<EmbeddedRungeKuttaIntegrator> LOW_ORDER_INTEGRATORS = ThreadLocal.withInitial(
+            DormandPrince54Integrator::new
+    );
+    private static final ThreadLocal<RosenbrockIntegrator> STIFF_INTEGRATORS = ThreadLocal.withInitial(
+            RosenbrockIntegrator::new
+    );
+
+    /**
+     * The tolerance of the compacted outputs relative to the integration tolerance.
+     */
+    static final double COMPACTION_TOLERANCE_FACTOR = 0.1;
+
     protected List<Interval> intervals;
     protected Parameterization parameterization;
+    protected IntervalIndex parameterizationIntervalIndex;
+
+    /**
+     * The integrator queries the parameterization interval at every step, mostly for neighbouring times.
+     */
+    private final ThreadLocal<IntervalIndex.Cursor> parameterizationIntervalCursor = ThreadLocal.withInitial(
+            () -> this.parameterizationIntervalIndex.cursor()
+    );
 
     protected double absoluteTolerance;
     protected double relativeTolerance;
     protected double integrationMinStep;
     protected double integrationMaxStep;
 
+    /**
+     * Optional per-component tolerances. If set, these are used instead of the scalar tolerances.
+     */
+    protected double[] vectorAbsoluteTolerance;
+    protected double[] vectorRelativeTolerance;
+
     public IntervalODESystem(Parameterization parameterization, List<Interval> intervals, double absoluteTolerance, double relativeTolerance) {
         this.parameterization = parameterization;
+        this.parameterizationIntervalIndex = IntervalIndex.fromParameterization(parameterization);
         this.intervals = intervals;
         this.integrationMinStep = this.parameterization.getTotalProcessLength() * 1e-15;
         this.integrationMaxStep = this.parameterization.getTotalProcessLength() / 5;
@@ -62,8 +102,8 @@ public abstract class IntervalODESystem implements FirstOrderDifferentialEquatio
      *                                  this can increase numerical stability.
      * @return the integration result.
      */
-    public ContinuousOutputModel[] integrateForwards(List<double[]> initialStates, List<Interval> intervals, boolean alwaysStartAtInitialState, boolean parallelize) {
-        ContinuousOutputModel[] outputModels = new ContinuousOutputModel[intervals.size()];
+    public IDenseOutput[] integrateForwards(List<double[]> initialStates, List<Interval> intervals, boolean alwaysStartAtInitialState, boolean parallelize) {
+        IDenseOutput[] outputModels = new IDenseOutput[intervals.size()];
 
         if (alwaysStartAtInitialState && parallelize) {
 
@@ -111,8 +151,8 @@ public abstract class IntervalODESystem implements FirstOrderDifferentialEquatio
      *                                  this can increase numerical stability.
      * @return the integration result.
      */
-    public ContinuousOutputModel[] integrateBackwards(List<double[]> initialStates, List<Interval> intervals, boolean alwaysStartAtInitialState, boolean parallelize) {
-        ContinuousOutputModel[] outputModels = new ContinuousOutputModel[intervals.size()];
+    public IDenseOutput[] integrateBackwards(List<double[]> initialStates, List<Interval> intervals, boolean alwaysStartAtInitialState, boolean parallelize) {
+        IDenseOutput[] outputModels = new IDenseOutput[intervals.size()];
 
         if (alwaysStartAtInitialState && parallelize) {
 
@@ -148,35 +188,109 @@ public abstract class IntervalODESystem implements FirstOrderDifferentialEquatio
     /**
      * Integrate the system along the given interval from start to end using the given initialState.
      */
-    protected ContinuousOutputModel integrate(double[] initialState, double start, double end, Interval interval) {
-        try {
-            ContinuousOutputModel intervalResult = new ContinuousOutputModel();
-
-            DormandPrince853Integrator integrator = new DormandPrince853Integrator(
-                    this.integrationMinStep, this.integrationMaxStep, this.absoluteTolerance, this.relativeTolerance
-            );
-            integrator.addStepHandler(intervalResult);
-            integrator.integrate(this, start, initialState, end, initialState);
-            integrator.clearStepHandlers();
+    protected IDenseOutput integrate(double[] initialState, double start, double end, Interval interval) {
+        return this.integrateWithRungeKutta(initialState, start, end);
+    }
 
-            return intervalResult;
+    /**
+     * Integrate the system from start to end using the given initialState with the Dormand-Prince methods.
+     * <p>
+     * If the system provides its Jacobian, the integration switches to the Rosenbrock method as soon as the
+     * steps of the Dormand-Prince method are limited by its stability.
+     */
+    protected DenseOutput integrateWithRungeKutta(double[] initialState, double start, double end) {
+        try {
+            EmbeddedRungeKuttaIntegrator integrator = acquire(HIGH_ORDER_INTEGRATORS.get());
+            integrator.setStepBounds(this.integrationMinStep, this.integrationMaxStep);
+            if (this.vectorRelativeTolerance == null) {
+                integrator.setTolerances(this.absoluteTolerance, this.relativeTolerance);
+            } else {
+                integrator.setTolerances(this.vectorAbsoluteTolerance, this.vectorRelativeTolerance);
+            }
+            integrator.setStiffnessDetection(this instanceof JacobianEquations);
+
+            return integrator.integrate(this, start, initialState, end);
+        } catch (StiffnessDetectedException e) {
+            try {
+                return this.integrateWithRosenbrock((JacobianEquations) this, initialState, start, end);
+            } catch (IllegalStateException nanException) {
+                return this.integrateWithLowOrderRungeKutta(initialState, start, end);
+            }
         } catch (IllegalStateException e) {
-            // NaN was found during integration
-            // we switch to the slower but more robust DormandPrince54Integrator
-            // with lower relative tolerance and try again
+            return this.integrateWithLowOrderRungeKutta(initialState, start, end);
+        }
+    }
 
-            ContinuousOutputModel intervalResult = new ContinuousOutputModel();
+    /**
+     * Integrate the system from start to end with the Rosenbrock method, which is stable for stiff systems.
+     */
+    private DenseOutput integrateWithRosenbrock(JacobianEquations equations, double[] initialState, double start, double end) {
+        RosenbrockIntegrator integrator = STIFF_INTEGRATORS.get();
+        if (integrator.isIntegrating()) {
+            integrator = new RosenbrockIntegrator();
+        }
+        integrator.setStepBounds(this.integrationMinStep, this.integrationMaxStep);
+        if (this.vectorRelativeTolerance == null) {
+            integrator.setTolerances(this.absoluteTolerance, this.relativeTolerance);
+        } else {
+            integrator.setTolerances(this.vectorAbsoluteTolerance, this.vectorRelativeTolerance);
+        }
 
-            DormandPrince54Integrator integrator = new DormandPrince54Integrator(
-                    this.integrationMinStep, this.integrationMaxStep,
-                    this.absoluteTolerance, this.relativeTolerance / 100.0
-            );
-            integrator.addStepHandler(intervalResult);
-            integrator.integrate(this, start, initialState, end, initialState);
-            integrator.clearStepHandlers();
+        return integrator.integrate(equations, start, initialState, end);
+    }
 
-            return intervalResult;
+    /**
+     * Integrate the system from start to end after NaN was found during integration. We switch to the slower
+     * but more robust DormandPrince54Integrator with lower relative tolerance and try again.
+     */
+    private DenseOutput integrateWithLowOrderRungeKutta(double[] initialState, double start, double end) {
+        EmbeddedRungeKuttaIntegrator integrator = acquire(LOW_ORDER_INTEGRATORS.get());
+        integrator.setStepBounds(this.integrationMinStep, this.integrationMaxStep);
+        if (this.vectorRelativeTolerance == null) {
+            integrator.setTolerances(this.absoluteTolerance, this.relativeTolerance / 100.0);
+        } else {
+            integrator.setTolerances(
+                    this.vectorAbsoluteTolerance, Arrays.stream(this.vectorRelativeTolerance).map(x -> x / 100.0).toArray()
+            );
         }
+        integrator.setStiffnessDetection(false);
+
+        return integrator.integrate(this, start, initialState, end);
+    }
+
+    /**
+     * Replaces the components offset, ..., offset + length - 1 of the given Runge-Kutta outputs by compact
+     * approximations that are accurate to a tenth of the integration tolerance. Other outputs are kept, they
+     * must only contain these components.
+     */
+    protected IDenseOutput[] compactOutputs(IDenseOutput[] outputs, int offset, int length, boolean parallelize) {
+        IDenseOutput[] compactOutputs = new IDenseOutput[outputs.length];
+
+        IntStream indices = IntStream.range(0, outputs.length);
+        (parallelize ? indices.parallel() : indices).forEach(
+                i -> compactOutputs[i] = outputs[i] instanceof DenseOutput output
+                        ? ChebyshevDenseOutput.fit(
+                                output,
+                                offset,
+                                length,
+                                this.absoluteTolerance,
+                                COMPACTION_TOLERANCE_FACTOR * this.relativeTolerance
+                        )
+                        : outputs[i]
+        );
+
+        return compactOutputs;
+    }
+
+    /**
+     * Returns the given integrator of the calling thread, or a new one if it is already in use further up the
+     * call stack.
+     */
+    private static EmbeddedRungeKuttaIntegrator acquire(EmbeddedRungeKuttaIntegrator integrator) {
+        if (!integrator.isIntegrating()) return integrator;
+        return integrator instanceof DormandPrince853Integrator
+                ? new DormandPrince853Integrator()
+                : new DormandPrince54Integrator();
     }
 
     /**
@@ -206,18 +320,14 @@ public abstract class IntervalODESystem implements FirstOrderDifferentialEquatio
      * Returns the parameterization interval for the given time.
      */
     public int getCurrentParameterizationInterval(double time) {
-        return this.parameterization.getIntervalIndex(time);
+        return this.parameterizationIntervalCursor.get().findRightClosed(time);
     }
 
     /**
      * Checks if the given time lies on a parameterization interval boundary.
      */
-    boolean isParameterizationIntervalBoundary(double time) {
-        for (int i = 0; i < this.parameterization.getTotalIntervalCount() - 1; i++) {
-            double endTime = this.parameterization.getIntervalEndTimes()[i];
-            if (Utils.equalWithPrecision(endTime, time)) return true;
-        }
-        return false;
+    protected boolean isParameterizationIntervalBoundary(double time) {
+        return this.parameterizationIntervalIndex.isInnerBoundary(time);
     }
 
 }
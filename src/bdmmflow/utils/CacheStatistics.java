@@ -0,0 +1,17 @@
+package bdmmflow.utils;
+
+/**
+ * The number of hits, misses and evictions of a cache.
+ */
+public record CacheStatistics(long hits, long misses, long evictions) {
+
+    public static final CacheStatistics EMPTY = new CacheStatistics(0, 0, 0);
+
+    public CacheStatistics plus(CacheStatistics other) {
+        return new CacheStatistics(
+                this.hits + other.hits,
+                this.misses + other.misses,
+                this.evictions + other.evictions
+        );
+    }
+}
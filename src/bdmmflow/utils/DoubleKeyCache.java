@@ -0,0 +1,254 @@
+package bdmmflow.utils;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleFunction;
+
+/**
+ * A bounded, thread-safe cache from double keys to values. The keys are stored as their bit patterns in open
+ * addressing tables with linear probing, such that they are never boxed. The tables are split into independently
+ * locked segments.
+ * <p>
+ * When a segment is full, an entry is evicted with the CLOCK algorithm, which approximates least-recently-used
+ * eviction with a single reference bit per entry that is set on every hit. New entries start without the bit,
+ * such that a stream of one-off keys cannot evict entries that are used repeatedly.
+ */
+public class DoubleKeyCache<V> {
+
+    static final int SEGMENT_BITS = 4;
+    static final int SEGMENT_COUNT = 1 << SEGMENT_BITS;
+    static final int INITIAL_SEGMENT_CAPACITY = 8;
+
+    final Segment<V>[] segments;
+
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxSize the maximal number of entries. It is rounded up to a multiple of the number of segments.
+     */
+    public DoubleKeyCache(int maxSize) {
+        this.segments = newSegmentArray(SEGMENT_COUNT);
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            this.segments[i] = new Segment<>();
+        }
+        this.setMaxSize(maxSize);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    static <V> Segment<V>[] newSegmentArray(int length) {
+        return (Segment<V>[]) new Segment[length];
+    }
+
+    /**
+     * Changes the maximal number of entries. A smaller bound is enforced by evictions on the next insertions.
+     */
+    public void setMaxSize(int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("The cache size must be positive.");
+        }
+
+        int segmentMaxSize = (maxSize + SEGMENT_COUNT - 1) / SEGMENT_COUNT;
+        for (Segment<V> segment : this.segments) {
+            synchronized (segment) {
+                segment.maxSize = segmentMaxSize;
+            }
+        }
+    }
+
+    /**
+     * Returns the value cached for the given key, or computes, caches and returns it. The computation runs while
+     * the segment of the key is locked, such that every value is only computed once while it is cached.
+     */
+    public V computeIfAbsent(double key, DoubleFunction<? extends V> function) {
+        long bits = Double.doubleToLongBits(key);
+        long hash = hash(bits);
+        Segment<V> segment = this.segments[(int) (hash >>> (Long.SIZE - SEGMENT_BITS))];
+
+        synchronized (segment) {
+            int slot = segment.find(bits, hash);
+            if (0 <= slot) {
+                this.hits.increment();
+                segment.referenced[slot] = true;
+                return segment.values[slot];
+            }
+
+            this.misses.increment();
+            V value = function.apply(key);
+
+            while (segment.maxSize <= segment.size) {
+                segment.evict();
+                this.evictions.increment();
+            }
+            segment.insert(bits, hash, value);
+
+            return value;
+        }
+    }
+
+    /**
+     * Returns whether a value is cached for the given key, without counting a hit or a miss.
+     */
+    public boolean containsKey(double key) {
+        long bits = Double.doubleToLongBits(key);
+        long hash = hash(bits);
+        Segment<V> segment = this.segments[(int) (hash >>> (Long.SIZE - SEGMENT_BITS))];
+
+        synchronized (segment) {
+            return 0 <= segment.find(bits, hash);
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment<V> segment : this.segments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+
+    public long getHitCount() {
+        return this.hits.sum();
+    }
+
+    public long getMissCount() {
+        return this.misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return this.evictions.sum();
+    }
+
+    public CacheStatistics getStatistics() {
+        return new CacheStatistics(this.getHitCount(), this.getMissCount(), this.getEvictionCount());
+    }
+
+    /**
+     * Spreads the bit pattern of a key, such that times that only differ in their low mantissa bits end up in
+     * different segments and slots.
+     */
+    static long hash(long bits) {
+        long hash = bits * 0x9E3779B97F4A7C15L;
+        return hash ^ (hash >>> 32);
+    }
+
+    /**
+     * An open addressing table with linear probing. Empty slots have a null value. All methods must be called
+     * while holding the lock of the segment.
+     */
+    static class Segment<V> {
+        long[] keys = new long[INITIAL_SEGMENT_CAPACITY];
+        V[] values = newArray(INITIAL_SEGMENT_CAPACITY);
+        boolean[] referenced = new boolean[INITIAL_SEGMENT_CAPACITY];
+
+        int size = 0;
+        int maxSize;
+        int clockHand = 0;
+
+        int find(long bits, long hash) {
+            int mask = this.keys.length - 1;
+            for (int i = (int) hash & mask; this.values[i] != null; i = (i + 1) & mask) {
+                if (this.keys[i] == bits) return i;
+            }
+            return -1;
+        }
+
+        void insert(long bits, long hash, V value) {
+            if (this.keys.length < 2 * (this.size + 1)) {
+                this.grow();
+            }
+
+            int mask = this.keys.length - 1;
+            int i = (int) hash & mask;
+            while (this.values[i] != null) {
+                i = (i + 1) & mask;
+            }
+
+            this.keys[i] = bits;
+            this.values[i] = value;
+            this.referenced[i] = false;
+            this.size++;
+        }
+
+        /**
+         * Advances the clock hand to the next entry without reference bit, clearing the bits it passes, and
+         * removes that entry.
+         */
+        void evict() {
+            int mask = this.keys.length - 1;
+
+            while (true) {
+                int i = this.clockHand;
+                this.clockHand = (i + 1) & mask;
+
+                if (this.values[i] == null) continue;
+
+                if (this.referenced[i]) {
+                    this.referenced[i] = false;
+                } else {
+                    this.remove(i);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Removes the entry in the given slot and shifts the following entries of the probe sequence back, such
+         * that no tombstones are needed.
+         */
+        void remove(int slot) {
+            int mask = this.keys.length - 1;
+            int i = slot;
+            this.values[i] = null;
+
+            for (int j = (i + 1) & mask; this.values[j] != null; j = (j + 1) & mask) {
+                int home = (int) hash(this.keys[j]) & mask;
+
+                // the entry stays if its home slot lies cyclically in (i, j]
+                boolean stays = i <= j ? i < home && home <= j : i < home || home <= j;
+                if (stays) continue;
+
+                this.keys[i] = this.keys[j];
+                this.values[i] = this.values[j];
+                this.referenced[i] = this.referenced[j];
+                this.values[j] = null;
+                i = j;
+            }
+
+            this.size--;
+        }
+
+        void grow() {
+            long[] oldKeys = this.keys;
+            V[] oldValues = this.values;
+            boolean[] oldReferenced = this.referenced;
+
+            int capacity = 2 * oldKeys.length;
+            this.keys = new long[capacity];
+            this.values = newArray(capacity);
+            this.referenced = new boolean[capacity];
+            this.clockHand = 0;
+
+            int mask = capacity - 1;
+            for (int k = 0; k < oldKeys.length; k++) {
+                if (oldValues[k] == null) continue;
+
+                int i = (int) hash(oldKeys[k]) & mask;
+                while (this.values[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                this.keys[i] = oldKeys[k];
+                this.values[i] = oldValues[k];
+                this.referenced[i] = oldReferenced[k];
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        static <V> V[] newArray(int capacity) {
+            return (V[]) new Object[capacity];
+        }
+    }
+
+}
@@ -0,0 +1,100 @@
+package bdmmflow.utils;
+
+import beast.base.core.Log;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.function.Supplier;
+
+/**
+ * This class creates the thread pools of the likelihood calculations and keeps a registry of named pools that are
+ * shared between distributions, such that several partitions or chains in one JVM do not oversubscribe the
+ * machine.
+ * <p>
+ * Parallel streams run in the pool of the thread that starts them. All parallel stages of an evaluation are
+ * therefore started with invoke, which moves them into the given pool instead of the common pool.
+ */
+public class ForkJoinPools {
+
+    private static final Map<String, ForkJoinPool> sharedPools = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the number of worker threads to use for the given thread count, where 0 stands for one thread per
+     * available processor.
+     */
+    public static int getParallelism(int threadCount) {
+        return threadCount == 0 ? Runtime.getRuntime().availableProcessors() : threadCount;
+    }
+
+    /**
+     * Creates a new pool with the given number of worker threads, which are named after the pool.
+     */
+    public static ForkJoinPool create(String name, int parallelism) {
+        return new ForkJoinPool(
+                parallelism,
+                pool -> {
+                    ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                    thread.setName(name + "-worker-" + thread.getPoolIndex());
+                    return thread;
+                },
+                null,
+                false
+        );
+    }
+
+    /**
+     * Returns the shared pool with the given name and creates it on first use. The parallelism is fixed by the
+     * first caller; later callers that request a different one get the existing pool.
+     */
+    public static ForkJoinPool getShared(String name, int parallelism) {
+        ForkJoinPool pool = sharedPools.computeIfAbsent(name, key -> create(key, parallelism));
+
+        if (pool.getParallelism() != parallelism) {
+            Log.warning("The shared executor '" + name + "' already exists with " + pool.getParallelism() +
+                    " threads, ignoring the requested " + parallelism + " threads.");
+        }
+
+        return pool;
+    }
+
+    /**
+     * Runs the given stage in the given pool and waits for its result. If the current thread already belongs to
+     * the pool, the stage runs directly.
+     */
+    public static <T> T invoke(ForkJoinPool pool, Supplier<T> stage) {
+        if (ForkJoinTask.getPool() == pool) {
+            return stage.get();
+        }
+        return pool.invoke(ForkJoinTask.adapt(stage::get));
+    }
+
+    /**
+     * Returns the current size and activity of the given pool.
+     */
+    public static PoolStatistics getStatistics(ForkJoinPool pool) {
+        return new PoolStatistics(
+                pool.getParallelism(),
+                pool.getPoolSize(),
+                pool.getActiveThreadCount(),
+                pool.getStealCount(),
+                pool.getQueuedTaskCount()
+        );
+    }
+
+    /**
+     * The configured and current number of threads of a pool, the number of tasks stolen between its workers so
+     * far and the number of tasks waiting in its queues.
+     */
+    public record PoolStatistics(
+            int parallelism,
+            int poolSize,
+            int activeThreadCount,
+            long stealCount,
+            long queuedTaskCount
+    ) {
+    }
+
+}
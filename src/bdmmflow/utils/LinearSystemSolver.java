@@ -0,0 +1,12 @@
+package bdmmflow.utils;
+
+/**
+ * A factorized square matrix that can solve linear systems for vectors given as arrays.
+ */
+@FunctionalInterface
+public interface LinearSystemSolver {
+    /**
+     * Returns the solution x of A x = b in a new array.
+     */
+    double[] solve(double[] b);
+}
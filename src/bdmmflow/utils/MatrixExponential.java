@@ -0,0 +1,203 @@
+package bdmmflow.utils;
+
+import java.util.Arrays;
+
+/**
+ * This class computes the exponential of a flat n x n matrix in column-major order with the scaling and
+ * squaring method of Higham (2005). Depending on the 1-norm of the matrix, a diagonal Padé approximant of
+ * degree 3, 5, 7, 9 or 13 is used, and only matrices with a large norm are scaled.
+ * <p>
+ * An instance keeps its work buffers between calls, so it must only be used by one thread at a time.
+ */
+public class MatrixExponential {
+
+    static final int[] DEGREES = new int[]{3, 5, 7, 9, 13};
+
+    /**
+     * The largest 1-norm for which the Padé approximant of the corresponding degree is accurate to double
+     * precision.
+     */
+    static final double[] THETAS = new double[]{
+            1.495585217958292e-2, 2.539398330063230e-1, 9.504178996162932e-1, 2.097847961257068, 5.371920351148152
+    };
+
+    static final double[][] PADE_COEFFICIENTS = new double[][]{
+            {120.0, 60.0, 12.0, 1.0},
+            {30240.0, 15120.0, 3360.0, 420.0, 30.0, 1.0},
+            {17297280.0, 8648640.0, 1995840.0, 277200.0, 25200.0, 1512.0, 56.0, 1.0},
+            {
+                    17643225600.0, 8821612800.0, 2075673600.0, 302702400.0, 30270240.0,
+                    2162160.0, 110880.0, 3960.0, 90.0, 1.0
+            },
+            {
+                    64764752532480000.0, 32382376266240000.0, 7771770303897600.0, 1187353796428800.0,
+                    129060195264000.0, 10559470521600.0, 670442572800.0, 33522128640.0,
+                    1323241920.0, 40840800.0, 960960.0, 16380.0, 182.0, 1.0
+            }
+    };
+
+    final int n;
+    final MatrixKernel kernel;
+
+    final double[] scaled;
+    final double[] a2;
+    final double[] a4;
+    final double[] a6;
+    final double[] a8;
+    final double[] u;
+    final double[] v;
+    final double[] work;
+    final int[] pivots;
+
+    public MatrixExponential(int n, MatrixKernel kernel) {
+        this.n = n;
+        this.kernel = kernel;
+
+        this.scaled = new double[n * n];
+        this.a2 = new double[n * n];
+        this.a4 = new double[n * n];
+        this.a6 = new double[n * n];
+        this.a8 = new double[n * n];
+        this.u = new double[n * n];
+        this.v = new double[n * n];
+        this.work = new double[n * n];
+        this.pivots = new int[n];
+    }
+
+    /**
+     * Writes exp(matrix) into result. The result array must not be the input matrix. If the matrix contains
+     * non-finite entries, the result is filled with NaN.
+     */
+    public void compute(double[] matrix, double[] result) {
+        int n = this.n;
+        double norm = oneNorm(matrix, n);
+
+        if (!Double.isFinite(norm)) {
+            Arrays.fill(result, 0, n * n, Double.NaN);
+            return;
+        }
+
+        for (int m = 0; m < DEGREES.length - 1; m++) {
+            if (norm <= THETAS[m]) {
+                this.computeLowDegreeTerms(matrix, m);
+                this.solvePade(result);
+                return;
+            }
+        }
+
+        int squarings = Math.max(0, (int) Math.ceil(Math.log(norm / THETAS[DEGREES.length - 1]) / Math.log(2)));
+        double scale = Math.scalb(1.0, -squarings);
+        for (int i = 0; i < n * n; i++) {
+            this.scaled[i] = scale * matrix[i];
+        }
+
+        this.computeDegree13Terms(this.scaled);
+        this.solvePade(result);
+
+        for (int s = 0; s < squarings; s++) {
+            this.kernel.multiply(result, result, this.work, n);
+            System.arraycopy(this.work, 0, result, 0, n * n);
+        }
+    }
+
+    /**
+     * Computes the odd part u and the even part v of the Padé approximant of degree 3, 5, 7 or 9.
+     */
+    void computeLowDegreeTerms(double[] matrix, int degreeIndex) {
+        int n = this.n;
+        double[] b = PADE_COEFFICIENTS[degreeIndex];
+        int degree = DEGREES[degreeIndex];
+
+        this.kernel.multiply(matrix, matrix, this.a2, n);
+        double[][] powers = new double[][]{null, this.a2, this.a4, this.a6, this.a8};
+        for (int k = 2; 2 * k <= degree; k++) {
+            this.kernel.multiply(powers[k - 1], this.a2, powers[k], n);
+        }
+
+        Arrays.fill(this.work, 0, n * n, 0.0);
+        Arrays.fill(this.v, 0, n * n, 0.0);
+        for (int i = 0; i < n; i++) {
+            this.work[i * n + i] = b[1];
+            this.v[i * n + i] = b[0];
+        }
+        for (int k = 1; 2 * k <= degree; k++) {
+            double[] power = powers[k];
+            double oddCoefficient = b[2 * k + 1];
+            double evenCoefficient = b[2 * k];
+            for (int i = 0; i < n * n; i++) {
+                this.work[i] += oddCoefficient * power[i];
+                this.v[i] += evenCoefficient * power[i];
+            }
+        }
+
+        this.kernel.multiply(matrix, this.work, this.u, n);
+    }
+
+    /**
+     * Computes the odd part u and the even part v of the Padé approximant of degree 13.
+     */
+    void computeDegree13Terms(double[] matrix) {
+        int n = this.n;
+        double[] b = PADE_COEFFICIENTS[DEGREES.length - 1];
+
+        this.kernel.multiply(matrix, matrix, this.a2, n);
+        this.kernel.multiply(this.a2, this.a2, this.a4, n);
+        this.kernel.multiply(this.a4, this.a2, this.a6, n);
+
+        // u = matrix * (a6 * (b13 a6 + b11 a4 + b9 a2) + b7 a6 + b5 a4 + b3 a2 + b1 I)
+        for (int i = 0; i < n * n; i++) {
+            this.a8[i] = b[13] * this.a6[i] + b[11] * this.a4[i] + b[9] * this.a2[i];
+        }
+        this.kernel.multiply(this.a6, this.a8, this.work, n);
+        for (int i = 0; i < n * n; i++) {
+            this.work[i] += b[7] * this.a6[i] + b[5] * this.a4[i] + b[3] * this.a2[i];
+        }
+        for (int i = 0; i < n; i++) {
+            this.work[i * n + i] += b[1];
+        }
+        this.kernel.multiply(matrix, this.work, this.u, n);
+
+        // v = a6 * (b12 a6 + b10 a4 + b8 a2) + b6 a6 + b4 a4 + b2 a2 + b0 I
+        for (int i = 0; i < n * n; i++) {
+            this.a8[i] = b[12] * this.a6[i] + b[10] * this.a4[i] + b[8] * this.a2[i];
+        }
+        this.kernel.multiply(this.a6, this.a8, this.v, n);
+        for (int i = 0; i < n * n; i++) {
+            this.v[i] += b[6] * this.a6[i] + b[4] * this.a4[i] + b[2] * this.a2[i];
+        }
+        for (int i = 0; i < n; i++) {
+            this.v[i * n + i] += b[0];
+        }
+    }
+
+    /**
+     * Solves (v - u) result = (v + u) by an LU decomposition with partial pivoting.
+     */
+    void solvePade(double[] result) {
+        int n = this.n;
+        double[] lu = this.work;
+
+        for (int i = 0; i < n * n; i++) {
+            lu[i] = this.v[i] - this.u[i];
+            result[i] = this.v[i] + this.u[i];
+        }
+
+        SmallMatrices.decomposeLU(lu, this.pivots, n);
+        for (int column = 0; column < n; column++) {
+            SmallMatrices.solveLU(lu, this.pivots, result, column * n, n);
+        }
+    }
+
+    public static double oneNorm(double[] matrix, int n) {
+        double norm = 0.0;
+        for (int j = 0; j < n; j++) {
+            double columnSum = 0.0;
+            for (int i = 0; i < n; i++) {
+                columnSum += Math.abs(matrix[j * n + i]);
+            }
+            norm = Math.max(norm, columnSum);
+        }
+        return norm;
+    }
+
+}
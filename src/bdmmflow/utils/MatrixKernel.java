@@ -0,0 +1,28 @@
+package bdmmflow.utils;
+
+/**
+ * A backend for the dense matrix operations in the inner loops of the flow integration and the edge propagation.
+ * All matrices are flat n x n arrays in column-major order. Implementations must be stateless, such that one
+ * instance can be shared between threads.
+ * <p>
+ * Use MatrixKernels.get to obtain an instance for a given backend name.
+ */
+public interface MatrixKernel {
+
+    /**
+     * Computes result = left * right. The result array must not be one of the two input arrays.
+     */
+    void multiply(double[] left, double[] right, double[] result, int n);
+
+    /**
+     * Computes result = matrix * vector. Only the first n entries of vector are read. The result array must
+     * not be the input vector.
+     */
+    void operate(double[] matrix, double[] vector, double[] result, int n);
+
+    /**
+     * Computes result[resultOffset + k] += alpha * a[aOffset + k] * b[k] for all k < length.
+     */
+    void addScaledProduct(double alpha, double[] a, int aOffset, double[] b, double[] result, int resultOffset, int length);
+
+}
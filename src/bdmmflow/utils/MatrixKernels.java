@@ -0,0 +1,74 @@
+package bdmmflow.utils;
+
+import beast.base.core.Log;
+
+/**
+ * This class provides the matrix kernels for the available backends.
+ */
+public class MatrixKernels {
+
+    public static final String SCALAR = "scalar";
+    public static final String VECTOR = "vector";
+
+    private static final String VECTOR_MODULE = "jdk.incubator.vector";
+    private static final String VECTOR_KERNEL_CLASS = "bdmmflow.utils.VectorMatrixKernel";
+
+    private static final MatrixKernel scalarKernel = new ScalarMatrixKernel();
+    private static volatile MatrixKernel vectorKernel;
+    private static volatile boolean warnedAboutFallback = false;
+
+    /**
+     * Returns whether the Vector API module is available in this JVM. It has to be enabled
+     * with --add-modules jdk.incubator.vector.
+     */
+    public static boolean isVectorBackendAvailable() {
+        return ModuleLayer.boot().findModule(VECTOR_MODULE).isPresent();
+    }
+
+    /**
+     * Returns the matrix kernel for the given backend. If the vector backend is requested but not available,
+     * the scalar backend is returned instead.
+     *
+     * @param backend either 'scalar' or 'vector'.
+     * @return the matrix kernel.
+     */
+    public static MatrixKernel get(String backend) {
+        return switch (backend) {
+            case SCALAR -> scalarKernel;
+            case VECTOR -> {
+                MatrixKernel kernel = getVectorKernel();
+                yield kernel != null ? kernel : scalarKernel;
+            }
+            default -> throw new RuntimeException(
+                    "Error: matrix backend not known."
+            );
+        };
+    }
+
+    private static MatrixKernel getVectorKernel() {
+        if (vectorKernel != null) return vectorKernel;
+
+        if (!isVectorBackendAvailable()) {
+            warnAboutFallback("The module " + VECTOR_MODULE + " is not available. " +
+                    "Start the JVM with --add-modules " + VECTOR_MODULE + " to enable it.");
+            return null;
+        }
+
+        // the class is loaded reflectively, such that it is never linked if the module is missing
+        try {
+            vectorKernel = (MatrixKernel) Class.forName(VECTOR_KERNEL_CLASS).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            warnAboutFallback("Could not load the vector matrix backend: " + e);
+            return null;
+        }
+
+        return vectorKernel;
+    }
+
+    private static void warnAboutFallback(String reason) {
+        if (warnedAboutFallback) return;
+        warnedAboutFallback = true;
+        Log.warning(reason + " Falling back to the scalar matrix backend.");
+    }
+
+}
@@ -0,0 +1,26 @@
+package bdmmflow.utils;
+
+/**
+ * The plain Java implementation of the matrix kernel, which uses the unrolled products of SmallMatrices. It is
+ * always available.
+ */
+public class ScalarMatrixKernel implements MatrixKernel {
+
+    @Override
+    public void multiply(double[] left, double[] right, double[] result, int n) {
+        Utils.multiply(left, right, result, n);
+    }
+
+    @Override
+    public void operate(double[] matrix, double[] vector, double[] result, int n) {
+        SmallMatrices.operate(matrix, vector, result, n);
+    }
+
+    @Override
+    public void addScaledProduct(double alpha, double[] a, int aOffset, double[] b, double[] result, int resultOffset, int length) {
+        for (int k = 0; k < length; k++) {
+            result[resultOffset + k] += alpha * (a[aOffset + k] * b[k]);
+        }
+    }
+
+}
@@ -0,0 +1,259 @@
+package bdmmflow.utils;
+
+import java.util.Arrays;
+
+/**
+ * Dense linear algebra for the small square matrices of the flow, which have one row per type. All matrices are
+ * arrays in column-major order, such that no matrix objects are allocated.
+ * <p>
+ * The products are fully unrolled only for up to four types, as the unrolled code for larger dimensions grows
+ * quadratically and no longer fits the registers. For more types, the matrix-matrix product computes blocks of
+ * four columns, which SmallMatrixBenchmark measured to be faster than both the plain loops and commons-math up to
+ * at least 16 types, and the matrix-vector product streams over the columns. All variants add the terms in the
+ * same order, such that they give identical results.
+ */
+public class SmallMatrices {
+
+    private SmallMatrices() {
+    }
+
+    /**
+     * Multiplies two square matrices and writes the product into the given result array. The result array must
+     * not be one of the two input arrays.
+     */
+    public static void multiply(double[] left, double[] right, double[] result, int n) {
+        switch (n) {
+            case 2 -> multiply2(left, right, result);
+            case 3 -> multiply3(left, right, result);
+            case 4 -> multiply4(left, right, result);
+            default -> multiplyBlocked(left, right, result, n);
+        }
+    }
+
+    /**
+     * Multiplies a square matrix with a vector and writes the product into the given result array. The result
+     * array must not be the input vector.
+     */
+    public static void operate(double[] matrix, double[] vector, double[] result, int n) {
+        switch (n) {
+            case 2 -> operate2(matrix, vector, result);
+            case 3 -> operate3(matrix, vector, result);
+            case 4 -> operate4(matrix, vector, result);
+            default -> operateGeneric(matrix, vector, result, n);
+        }
+    }
+
+    /**
+     * Multiplies two square matrices of any dimension. Four columns of the product are computed at once, such that
+     * every entry of the left matrix is loaded once for four columns, and the remaining columns one by one.
+     */
+    static void multiplyBlocked(double[] left, double[] right, double[] result, int n) {
+        Arrays.fill(result, 0, n * n, 0.0);
+
+        int j = 0;
+        for (; j + 4 <= n; j += 4) {
+            int offset0 = j * n, offset1 = offset0 + n, offset2 = offset1 + n, offset3 = offset2 + n;
+
+            for (int k = 0; k < n; k++) {
+                double right0 = right[offset0 + k], right1 = right[offset1 + k];
+                double right2 = right[offset2 + k], right3 = right[offset3 + k];
+                int leftOffset = k * n;
+
+                for (int i = 0; i < n; i++) {
+                    double leftEntry = left[leftOffset + i];
+                    result[offset0 + i] += leftEntry * right0;
+                    result[offset1 + i] += leftEntry * right1;
+                    result[offset2 + i] += leftEntry * right2;
+                    result[offset3 + i] += leftEntry * right3;
+                }
+            }
+        }
+
+        for (; j < n; j++) {
+            int resultOffset = j * n;
+
+            for (int k = 0; k < n; k++) {
+                double rightEntry = right[resultOffset + k];
+                int leftOffset = k * n;
+
+                for (int i = 0; i < n; i++) {
+                    result[resultOffset + i] += left[leftOffset + i] * rightEntry;
+                }
+            }
+        }
+    }
+
+    static void operateGeneric(double[] matrix, double[] vector, double[] result, int n) {
+        for (int i = 0; i < n; i++) {
+            result[i] = matrix[i] * vector[0];
+        }
+
+        for (int k = 1; k < n; k++) {
+            double vectorEntry = vector[k];
+            int offset = k * n;
+
+            for (int i = 0; i < n; i++) {
+                result[i] += matrix[offset + i] * vectorEntry;
+            }
+        }
+    }
+
+    static void multiply2(double[] a, double[] b, double[] c) {
+        double a00 = a[0], a10 = a[1], a01 = a[2], a11 = a[3];
+
+        for (int j = 0; j < 4; j += 2) {
+            double b0 = b[j], b1 = b[j + 1];
+            c[j] = a00 * b0 + a01 * b1;
+            c[j + 1] = a10 * b0 + a11 * b1;
+        }
+    }
+
+    static void multiply3(double[] a, double[] b, double[] c) {
+        double a00 = a[0], a10 = a[1], a20 = a[2];
+        double a01 = a[3], a11 = a[4], a21 = a[5];
+        double a02 = a[6], a12 = a[7], a22 = a[8];
+
+        for (int j = 0; j < 9; j += 3) {
+            double b0 = b[j], b1 = b[j + 1], b2 = b[j + 2];
+            c[j] = a00 * b0 + a01 * b1 + a02 * b2;
+            c[j + 1] = a10 * b0 + a11 * b1 + a12 * b2;
+            c[j + 2] = a20 * b0 + a21 * b1 + a22 * b2;
+        }
+    }
+
+    static void multiply4(double[] a, double[] b, double[] c) {
+        double a00 = a[0], a10 = a[1], a20 = a[2], a30 = a[3];
+        double a01 = a[4], a11 = a[5], a21 = a[6], a31 = a[7];
+        double a02 = a[8], a12 = a[9], a22 = a[10], a32 = a[11];
+        double a03 = a[12], a13 = a[13], a23 = a[14], a33 = a[15];
+
+        for (int j = 0; j < 16; j += 4) {
+            double b0 = b[j], b1 = b[j + 1], b2 = b[j + 2], b3 = b[j + 3];
+            c[j] = a00 * b0 + a01 * b1 + a02 * b2 + a03 * b3;
+            c[j + 1] = a10 * b0 + a11 * b1 + a12 * b2 + a13 * b3;
+            c[j + 2] = a20 * b0 + a21 * b1 + a22 * b2 + a23 * b3;
+            c[j + 3] = a30 * b0 + a31 * b1 + a32 * b2 + a33 * b3;
+        }
+    }
+
+    static void operate2(double[] a, double[] x, double[] y) {
+        double x0 = x[0], x1 = x[1];
+        y[0] = a[0] * x0 + a[2] * x1;
+        y[1] = a[1] * x0 + a[3] * x1;
+    }
+
+    static void operate3(double[] a, double[] x, double[] y) {
+        double x0 = x[0], x1 = x[1], x2 = x[2];
+        y[0] = a[0] * x0 + a[3] * x1 + a[6] * x2;
+        y[1] = a[1] * x0 + a[4] * x1 + a[7] * x2;
+        y[2] = a[2] * x0 + a[5] * x1 + a[8] * x2;
+    }
+
+    static void operate4(double[] a, double[] x, double[] y) {
+        double x0 = x[0], x1 = x[1], x2 = x[2], x3 = x[3];
+        y[0] = a[0] * x0 + a[4] * x1 + a[8] * x2 + a[12] * x3;
+        y[1] = a[1] * x0 + a[5] * x1 + a[9] * x2 + a[13] * x3;
+        y[2] = a[2] * x0 + a[6] * x1 + a[10] * x2 + a[14] * x3;
+        y[3] = a[3] * x0 + a[7] * x1 + a[11] * x2 + a[15] * x3;
+    }
+
+    /**
+     * Computes the LU decomposition of the given matrix with partial pivoting in place. The unit lower triangle L
+     * and the upper triangle U are stored together, and pivots[k] is the row that was swapped with row k.
+     *
+     * @return whether the matrix is non-singular.
+     */
+    public static boolean decomposeLU(double[] lu, int[] pivots, int n) {
+        boolean isNonSingular = true;
+
+        for (int k = 0; k < n; k++) {
+            int pivot = k;
+            for (int i = k + 1; i < n; i++) {
+                if (Math.abs(lu[k * n + pivot]) < Math.abs(lu[k * n + i])) {
+                    pivot = i;
+                }
+            }
+
+            pivots[k] = pivot;
+            if (pivot != k) {
+                for (int j = 0; j < n; j++) {
+                    swap(lu, j * n + k, j * n + pivot);
+                }
+            }
+
+            double pivotValue = lu[k * n + k];
+            if (pivotValue == 0.0) {
+                isNonSingular = false;
+                continue;
+            }
+
+            for (int i = k + 1; i < n; i++) {
+                lu[k * n + i] /= pivotValue;
+            }
+            for (int j = k + 1; j < n; j++) {
+                double factor = lu[j * n + k];
+                if (factor == 0.0) continue;
+                for (int i = k + 1; i < n; i++) {
+                    lu[j * n + i] -= lu[k * n + i] * factor;
+                }
+            }
+        }
+
+        return isNonSingular;
+    }
+
+    /**
+     * Solves the system given by an LU decomposition for the vector stored at the given offset, in place.
+     */
+    public static void solveLU(double[] lu, int[] pivots, double[] rightHandSide, int offset, int n) {
+        for (int k = 0; k < n; k++) {
+            if (pivots[k] != k) {
+                swap(rightHandSide, offset + k, offset + pivots[k]);
+            }
+        }
+
+        // forward substitution with the unit lower triangle
+        for (int k = 0; k < n; k++) {
+            double value = rightHandSide[offset + k];
+            if (value == 0.0) continue;
+            for (int i = k + 1; i < n; i++) {
+                rightHandSide[offset + i] -= lu[k * n + i] * value;
+            }
+        }
+
+        // back substitution with the upper triangle
+        for (int k = n - 1; k >= 0; k--) {
+            double value = rightHandSide[offset + k] / lu[k * n + k];
+            rightHandSide[offset + k] = value;
+            for (int i = 0; i < k; i++) {
+                rightHandSide[offset + i] -= lu[k * n + i] * value;
+            }
+        }
+    }
+
+    /**
+     * Returns the inverse of the given matrix, computed with an LU decomposition.
+     */
+    public static double[] inverse(double[] matrix, int n) {
+        double[] lu = Arrays.copyOf(matrix, n * n);
+        int[] pivots = new int[n];
+
+        if (!decomposeLU(lu, pivots, n)) {
+            throw new IllegalStateException("Singular matrix found.");
+        }
+
+        double[] inverse = new double[n * n];
+        for (int j = 0; j < n; j++) {
+            inverse[j * n + j] = 1.0;
+            solveLU(lu, pivots, inverse, j * n, n);
+        }
+        return inverse;
+    }
+
+    static void swap(double[] array, int i, int j) {
+        double temp = array[i];
+        array[i] = array[j];
+        array[j] = temp;
+    }
+
+}
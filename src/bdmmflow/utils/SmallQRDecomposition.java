@@ -0,0 +1,111 @@
+package bdmmflow.utils;
+
+import org.apache.commons.math3.util.FastMath;
+
+/**
+ * The QR decomposition of a square matrix by Householder reflections, working on a column-major array. It
+ * performs the same operations as the commons-math QRDecomposition, which stores the transposed matrix, such that
+ * both give identical solutions, but it avoids the matrix and vector objects on every solve.
+ */
+public class SmallQRDecomposition implements LinearSystemSolver {
+    final int n;
+
+    /**
+     * The Householder vectors below and on the diagonal and R above the diagonal, in column-major order.
+     */
+    final double[] qr;
+    final double[] rDiag;
+    final double threshold;
+
+    /**
+     * @param matrix    the column-major matrix to decompose. It is not modified.
+     * @param threshold the absolute value of a diagonal entry of R below which the matrix is singular.
+     */
+    public SmallQRDecomposition(double[] matrix, int n, double threshold) {
+        this.n = n;
+        this.qr = matrix.clone();
+        this.rDiag = new double[n];
+        this.threshold = threshold;
+
+        double[] qr = this.qr;
+        for (int minor = 0; minor < n; minor++) {
+            int minorOffset = minor * n;
+
+            double xNormSqr = 0.0;
+            for (int row = minor; row < n; row++) {
+                double c = qr[minorOffset + row];
+                xNormSqr += c * c;
+            }
+            double a = qr[minorOffset + minor] > 0 ? -FastMath.sqrt(xNormSqr) : FastMath.sqrt(xNormSqr);
+            this.rDiag[minor] = a;
+
+            if (a != 0.0) {
+                qr[minorOffset + minor] -= a;
+
+                for (int col = minor + 1; col < n; col++) {
+                    int colOffset = col * n;
+
+                    double alpha = 0.0;
+                    for (int row = minor; row < n; row++) {
+                        alpha -= qr[colOffset + row] * qr[minorOffset + row];
+                    }
+                    alpha /= a * qr[minorOffset + minor];
+
+                    for (int row = minor; row < n; row++) {
+                        qr[colOffset + row] -= alpha * qr[minorOffset + row];
+                    }
+                }
+            }
+        }
+    }
+
+    public boolean isNonSingular() {
+        for (double diagonal : this.rDiag) {
+            if (FastMath.abs(diagonal) <= this.threshold) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public double[] solve(double[] b) {
+        if (!this.isNonSingular()) {
+            throw new IllegalStateException("Singular matrix found.");
+        }
+
+        int n = this.n;
+        double[] qr = this.qr;
+        double[] y = b.clone();
+
+        // apply Q^T to b
+        for (int minor = 0; minor < n; minor++) {
+            int minorOffset = minor * n;
+
+            double dotProduct = 0.0;
+            for (int row = minor; row < n; row++) {
+                dotProduct += y[row] * qr[minorOffset + row];
+            }
+            dotProduct /= this.rDiag[minor] * qr[minorOffset + minor];
+
+            for (int row = minor; row < n; row++) {
+                y[row] += dotProduct * qr[minorOffset + row];
+            }
+        }
+
+        // back substitution with R
+        double[] x = new double[n];
+        for (int row = n - 1; row >= 0; row--) {
+            y[row] /= this.rDiag[row];
+            double yRow = y[row];
+            x[row] = yRow;
+
+            int rowOffset = row * n;
+            for (int i = 0; i < row; i++) {
+                y[i] -= yRow * qr[rowOffset + i];
+            }
+        }
+
+        return x;
+    }
+}
@@ -146,6 +146,58 @@ public class Utils {
         }
     }
 
+    /**
+     * Returns the given square matrix as an array in column-major order.
+     */
+    public static double[] toColumnMajor(double[][] matrix) {
+        int n = matrix.length;
+        double[] array = new double[n * n];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                array[j * n + i] = matrix[i][j];
+            }
+        }
+        return array;
+    }
+
+    /**
+     * Multiplies two square matrices given as arrays in column-major order and writes the product into the
+     * given result array. The result array must not be one of the two input arrays.
+     */
+    public static void multiply(double[] left, double[] right, double[] result, int n) {
+        SmallMatrices.multiply(left, right, result, n);
+    }
+
+    /**
+     * Returns the inverse of the given square matrix, computed with an LU decomposition on column-major arrays.
+     */
+    public static RealMatrix inverse(RealMatrix matrix) {
+        int n = matrix.getRowDimension();
+        double[] array = new double[n * n];
+        Utils.fillArray(matrix, array);
+        return Utils.toMatrix(SmallMatrices.inverse(array, n), n);
+    }
+
+    /**
+     * Returns a solver for the given column-major matrix. We use a QR decomposition and fall back to an SVD
+     * least-squares solver if the matrix is singular.
+     */
+    public static LinearSystemSolver factorize(double[] matrix, int n) {
+        SmallQRDecomposition qr = new SmallQRDecomposition(matrix, n, 1e-10);
+        if (qr.isNonSingular()) {
+            return qr;
+        }
+
+        SingularValueDecomposition svd = new SingularValueDecomposition(Utils.toMatrix(matrix, n));
+
+        if (Double.isInfinite(svd.getConditionNumber())) {
+            throw new IllegalStateException("Infinite condition number found.");
+        }
+
+        DecompositionSolver solver = svd.getSolver();
+        return b -> solver.solve(new ArrayRealVector(b, false)).toArray();
+    }
+
     /**
      * Converts the given array to a RealVector vector.
      */
@@ -0,0 +1,87 @@
+package bdmmflow.utils;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The matrix kernel based on the incubating Vector API (jdk.incubator.vector), which maps the inner loops to
+ * SIMD instructions. The loops run over contiguous column segments, the remainder which does not fill a whole
+ * vector is handled with scalar code.
+ * <p>
+ * This class must only be loaded if the jdk.incubator.vector module is present, use MatrixKernels.get to
+ * obtain an instance.
+ */
+public class VectorMatrixKernel implements MatrixKernel {
+
+    static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    @Override
+    public void multiply(double[] left, double[] right, double[] result, int n) {
+        int upperBound = SPECIES.loopBound(n);
+
+        for (int j = 0; j < n; j++) {
+            int resultOffset = j * n;
+
+            // the accumulator stays in a register for the whole column segment
+            int i = 0;
+            for (; i < upperBound; i += SPECIES.length()) {
+                DoubleVector sum = DoubleVector.zero(SPECIES);
+                for (int k = 0; k < n; k++) {
+                    DoubleVector leftColumn = DoubleVector.fromArray(SPECIES, left, k * n + i);
+                    sum = leftColumn.fma(DoubleVector.broadcast(SPECIES, right[resultOffset + k]), sum);
+                }
+                sum.intoArray(result, resultOffset + i);
+            }
+
+            for (; i < n; i++) {
+                double sum = 0.0;
+                for (int k = 0; k < n; k++) {
+                    sum += left[k * n + i] * right[resultOffset + k];
+                }
+                result[resultOffset + i] = sum;
+            }
+        }
+    }
+
+    @Override
+    public void operate(double[] matrix, double[] vector, double[] result, int n) {
+        int upperBound = SPECIES.loopBound(n);
+
+        int i = 0;
+        for (; i < upperBound; i += SPECIES.length()) {
+            DoubleVector sum = DoubleVector.zero(SPECIES);
+            for (int k = 0; k < n; k++) {
+                DoubleVector column = DoubleVector.fromArray(SPECIES, matrix, k * n + i);
+                sum = column.fma(DoubleVector.broadcast(SPECIES, vector[k]), sum);
+            }
+            sum.intoArray(result, i);
+        }
+
+        for (; i < n; i++) {
+            double sum = 0.0;
+            for (int k = 0; k < n; k++) {
+                sum += matrix[k * n + i] * vector[k];
+            }
+            result[i] = sum;
+        }
+    }
+
+    @Override
+    public void addScaledProduct(double alpha, double[] a, int aOffset, double[] b, double[] result, int resultOffset, int length) {
+        int upperBound = SPECIES.loopBound(length);
+        DoubleVector alphaVector = DoubleVector.broadcast(SPECIES, alpha);
+
+        int k = 0;
+        for (; k < upperBound; k += SPECIES.length()) {
+            DoubleVector product = DoubleVector.fromArray(SPECIES, a, aOffset + k)
+                    .mul(DoubleVector.fromArray(SPECIES, b, k));
+            product.fma(alphaVector, DoubleVector.fromArray(SPECIES, result, resultOffset + k))
+                    .intoArray(result, resultOffset + k);
+        }
+
+        for (; k < length; k++) {
+            result[resultOffset + k] += alpha * (a[aOffset + k] * b[k]);
+        }
+    }
+
+}
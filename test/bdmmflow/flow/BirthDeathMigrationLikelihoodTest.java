@@ -24,27 +24,32 @@ public class BirthDeathMigrationLikelihoodTest {
     private final String initialStateStrategy;
     private final boolean useInverseFlow;
     private final boolean parallelize;
+    private final boolean useCoupledIntegration;
 
-    @Parameters(name = "strategy={0}, useInverseFlow={1}, parallelize={2}")
+    @Parameters(name = "strategy={0}, useInverseFlow={1}, parallelize={2}, useCoupledIntegration={3}")
     public static Collection<Object[]> data() {
         return Arrays.asList(new Object[][] {
-            { "identity", false,  false },
-            { "identity", false,  true },
-            { "random",  false, false },
-            { "random",  false, true },
-            { "random", true,  false },
-            { "random", true,  true },
-            { "average_inverse",  false, false },
-            { "average_inverse",  false, true },
-            { "average_inverse", true,  false },
-            { "average_inverse", true,  true },
+            { "identity", false,  false, false },
+            { "identity", false,  true, false },
+            { "random",  false, false, false },
+            { "random",  false, true, false },
+            { "random", true,  false, false },
+            { "random", true,  true, false },
+            { "average_inverse",  false, false, false },
+            { "average_inverse",  false, true, false },
+            { "average_inverse", true,  false, false },
+            { "average_inverse", true,  true, false },
+            { "identity", false,  false, true },
+            { "random",  false, false, true },
+            { "average_inverse",  false, false, true },
         });
     }
 
-    public BirthDeathMigrationLikelihoodTest(String initialStateStrategy, boolean useInverseFlow, boolean parallelize) {
+    public BirthDeathMigrationLikelihoodTest(String initialStateStrategy, boolean useInverseFlow, boolean parallelize, boolean useCoupledIntegration) {
         this.initialStateStrategy = initialStateStrategy;
         this.useInverseFlow = useInverseFlow;
         this.parallelize = parallelize;
+        this.useCoupledIntegration = useCoupledIntegration;
     }
 
     /**
@@ -119,6 +124,7 @@ public class BirthDeathMigrationLikelihoodTest {
                 "typeLabel", "state",
                 "initialMatrixStrategy", initialStateStrategy,
                 "useInverseFlow", useInverseFlow,
+                "useCoupledIntegration", useCoupledIntegration,
                 "parallelize", parallelize
         );
 
@@ -181,6 +187,7 @@ public class BirthDeathMigrationLikelihoodTest {
                 "typeLabel", "state",
                 "initialMatrixStrategy", initialStateStrategy,
                 "useInverseFlow", useInverseFlow,
+                "useCoupledIntegration", useCoupledIntegration,
                 "parallelize", parallelize
         );
 
@@ -231,6 +238,7 @@ public class BirthDeathMigrationLikelihoodTest {
                 "typeLabel", "type",
                 "initialMatrixStrategy", initialStateStrategy,
                 "useInverseFlow", useInverseFlow,
+                "useCoupledIntegration", useCoupledIntegration,
                 "parallelize", parallelize
         );
 
@@ -249,6 +257,7 @@ public class BirthDeathMigrationLikelihoodTest {
                 "typeLabel", "type",
                 "initialMatrixStrategy", initialStateStrategy,
                 "useInverseFlow", useInverseFlow,
+                "useCoupledIntegration", useCoupledIntegration,
                 "parallelize", parallelize
         );
 
@@ -297,6 +306,7 @@ public class BirthDeathMigrationLikelihoodTest {
                 "typeLabel", "type",
                 "initialMatrixStrategy", initialStateStrategy,
                 "useInverseFlow", useInverseFlow,
+                "useCoupledIntegration", useCoupledIntegration,
                 "parallelize", parallelize
                 );
 
@@ -311,6 +321,7 @@ public class BirthDeathMigrationLikelihoodTest {
                 "typeLabel", "type",
                 "initialMatrixStrategy", initialStateStrategy,
                 "useInverseFlow", useInverseFlow,
+                "useCoupledIntegration", useCoupledIntegration,
                 "parallelize", parallelize
                 );
 
@@ -365,6 +376,7 @@ public class BirthDeathMigrationLikelihoodTest {
                 "typeLabel", "type",
                 "initialMatrixStrategy", initialStateStrategy,
                 "useInverseFlow", useInverseFlow,
+                "useCoupledIntegration", useCoupledIntegration,
                 "parallelize", parallelize);
 
         double logL = density.calculateLogP();
@@ -409,6 +421,7 @@ public class BirthDeathMigrationLikelihoodTest {
                 "typeLabel", "state",
                 "initialMatrixStrategy", initialStateStrategy,
                 "useInverseFlow", useInverseFlow,
+                "useCoupledIntegration", useCoupledIntegration,
                 "parallelize", parallelize
                 );
 
@@ -450,6 +463,7 @@ public class BirthDeathMigrationLikelihoodTest {
                 "typeLabel", "state",
                 "initialMatrixStrategy", initialStateStrategy,
                 "useInverseFlow", useInverseFlow,
+                "useCoupledIntegration", useCoupledIntegration,
                 "parallelize", parallelize);
 
         assertEquals(-33.7573 + labeledTreeConversionFactor(density), density.calculateLogP(), 1e-4); // Reference BDSKY
@@ -495,6 +509,7 @@ public class BirthDeathMigrationLikelihoodTest {
                 "typeLabel", "state",
                 "initialMatrixStrategy", initialStateStrategy,
                 "useInverseFlow", useInverseFlow,
+                "useCoupledIntegration", useCoupledIntegration,
                 "parallelize", parallelize
                 );
 
@@ -602,6 +617,7 @@ public class BirthDeathMigrationLikelihoodTest {
                 "typeLabel", "type",
                 "initialMatrixStrategy", initialStateStrategy,
                 "useInverseFlow", useInverseFlow,
+                "useCoupledIntegration", useCoupledIntegration,
                 "parallelize", parallelize
         );
 
@@ -652,6 +668,7 @@ public class BirthDeathMigrationLikelihoodTest {
                 "typeLabel", "type",
                 "initialMatrixStrategy", initialStateStrategy,
                 "useInverseFlow", useInverseFlow,
+                "useCoupledIntegration", useCoupledIntegration,
                 "parallelize", parallelize
         );
 
@@ -702,6 +719,7 @@ public class BirthDeathMigrationLikelihoodTest {
                 "typeLabel", "type",
                 "initialMatrixStrategy", initialStateStrategy,
                 "useInverseFlow", useInverseFlow,
+                "useCoupledIntegration", useCoupledIntegration,
                 "parallelize", parallelize
         );
 
@@ -748,6 +766,7 @@ public class BirthDeathMigrationLikelihoodTest {
                 "typeLabel", "type",
                 "initialMatrixStrategy", initialStateStrategy,
                 "useInverseFlow", useInverseFlow,
+                "useCoupledIntegration", useCoupledIntegration,
                 "parallelize", parallelize
         );
 
@@ -784,6 +803,7 @@ public class BirthDeathMigrationLikelihoodTest {
                 "conditionOnSurvival", false,
                 "initialMatrixStrategy", initialStateStrategy,
                 "useInverseFlow", useInverseFlow,
+                "useCoupledIntegration", useCoupledIntegration,
                 "parallelize", parallelize
         );
 
@@ -827,6 +847,7 @@ public class BirthDeathMigrationLikelihoodTest {
                 "typeLabel", "state",
                 "initialMatrixStrategy", initialStateStrategy,
                 "useInverseFlow", useInverseFlow,
+                "useCoupledIntegration", useCoupledIntegration,
                 "parallelize", parallelize
         );
 
@@ -881,6 +902,7 @@ public class BirthDeathMigrationLikelihoodTest {
                 "typeLabel", "type",
                 "initialMatrixStrategy", initialStateStrategy,
                 "useInverseFlow", useInverseFlow,
+                "useCoupledIntegration", useCoupledIntegration,
                 "parallelize", parallelize
         );
 
@@ -929,6 +951,7 @@ public class BirthDeathMigrationLikelihoodTest {
                 "typeLabel", "type",
                 "initialMatrixStrategy", initialStateStrategy,
                 "useInverseFlow", useInverseFlow,
+                "useCoupledIntegration", useCoupledIntegration,
                 "parallelize", parallelize
         );
 
@@ -971,6 +994,7 @@ public class BirthDeathMigrationLikelihoodTest {
                 "typeLabel", "type",
                 "initialMatrixStrategy", initialStateStrategy,
                 "useInverseFlow", useInverseFlow,
+                "useCoupledIntegration", useCoupledIntegration,
                 "parallelize", parallelize
         );
 
@@ -1007,6 +1031,7 @@ public class BirthDeathMigrationLikelihoodTest {
                 "tree", new TreeParser(newick, false, false, true,0),
                 "initialMatrixStrategy", initialStateStrategy,
                 "useInverseFlow", useInverseFlow,
+                "useCoupledIntegration", useCoupledIntegration,
                 "parallelize", parallelize
         );
 
@@ -1053,6 +1078,7 @@ public class BirthDeathMigrationLikelihoodTest {
                 "typeLabel", "type",
                 "initialMatrixStrategy", initialStateStrategy,
                 "useInverseFlow", useInverseFlow,
+                "useCoupledIntegration", useCoupledIntegration,
                 "parallelize", parallelize
         );
 
@@ -1118,6 +1144,7 @@ public class BirthDeathMigrationLikelihoodTest {
                 "typeLabel", "type",
                 "initialMatrixStrategy", initialStateStrategy,
                 "useInverseFlow", useInverseFlow,
+                "useCoupledIntegration", useCoupledIntegration,
                 "parallelize", parallelize
         );
 
@@ -1178,6 +1205,7 @@ public class BirthDeathMigrationLikelihoodTest {
                 "typeLabel", "type",
                 "initialMatrixStrategy", initialStateStrategy,
                 "useInverseFlow", useInverseFlow,
+                "useCoupledIntegration", useCoupledIntegration,
                 "parallelize", parallelize
         );
 
@@ -1255,6 +1283,7 @@ public class BirthDeathMigrationLikelihoodTest {
                 "typeLabel", "type",
                 "initialMatrixStrategy", initialStateStrategy,
                 "useInverseFlow", useInverseFlow,
+                "useCoupledIntegration", useCoupledIntegration,
                 "parallelize", parallelize
         );
 
@@ -1324,6 +1353,7 @@ public class BirthDeathMigrationLikelihoodTest {
                 "typeLabel", "type",
                 "initialMatrixStrategy", initialStateStrategy,
                 "useInverseFlow", useInverseFlow,
+                "useCoupledIntegration", useCoupledIntegration,
                 "parallelize", parallelize
         );
 
@@ -1388,6 +1418,7 @@ public class BirthDeathMigrationLikelihoodTest {
                 "typeLabel", "type",
                 "initialMatrixStrategy", initialStateStrategy,
                 "useInverseFlow", useInverseFlow,
+                "useCoupledIntegration", useCoupledIntegration,
                 "parallelize", parallelize
         );
 
@@ -1436,6 +1467,7 @@ public class BirthDeathMigrationLikelihoodTest {
                 "typeLabel", "type",
                 "initialMatrixStrategy", initialStateStrategy,
                 "useInverseFlow", useInverseFlow,
+                "useCoupledIntegration", useCoupledIntegration,
                 "parallelize", parallelize
         );
 
@@ -1483,6 +1515,7 @@ public class BirthDeathMigrationLikelihoodTest {
                 "typeLabel", "type",
                 "initialMatrixStrategy", initialStateStrategy,
                 "useInverseFlow", useInverseFlow,
+                "useCoupledIntegration", useCoupledIntegration,
                 "parallelize", parallelize
         );
 
@@ -1530,6 +1563,7 @@ public class BirthDeathMigrationLikelihoodTest {
                 "typeLabel", "type",
                 "initialMatrixStrategy", initialStateStrategy,
                 "useInverseFlow", useInverseFlow,
+                "useCoupledIntegration", useCoupledIntegration,
                 "parallelize", parallelize
         );
 
@@ -1579,6 +1613,7 @@ public class BirthDeathMigrationLikelihoodTest {
                 "typeLabel", "type",
                 "initialMatrixStrategy", initialStateStrategy,
                 "useInverseFlow", useInverseFlow,
+                "useCoupledIntegration", useCoupledIntegration,
                 "parallelize", parallelize
         );
 
@@ -1629,6 +1664,7 @@ public class BirthDeathMigrationLikelihoodTest {
                 "typeLabel", "type",
                 "initialMatrixStrategy", initialStateStrategy,
                 "useInverseFlow", useInverseFlow,
+                "useCoupledIntegration", useCoupledIntegration,
                 "parallelize", parallelize
         );
 
@@ -1644,4 +1680,65 @@ public class BirthDeathMigrationLikelihoodTest {
         // assertEquals(-22.348462265673483 + labeledTreeConversionFactor(density), density.calculateLogP(), 1e-5); //Reference value from BDSKY (06/04/2017)
         assertEquals(density.calculateLogP(), primeDensity.calculateLogP(), 1e-5); //Reference value from BDSKY (06/04/2017)
     }
-}
\ No newline at end of file
+
+    /**
+     * Leaves with the same sampling time and type share their boundary vector, which must not change the
+     * likelihood. 6 tips in 3 groups, 2 types, no rate-change
+     */
+    @Test
+    public void testLeafDeduplication() {
+        String newick = "(((t1[&type=0]:1.0,t2[&type=0]:1.0):0.5,(t3[&type=0]:0.7,t4[&type=1]:0.7):0.8):0.5," +
+                "(t5[&type=1]:1.2,t6[&type=0]:0.7):0.8);";
+
+        Parameterization parameterization = new CanonicalParameterization();
+        parameterization.initByName(
+                "typeSet", new TypeSet(2),
+                "processLength", new RealParameter("3.0"),
+                "birthRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("2.0 1.5"), 2),
+                "deathRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("1.0"), 2),
+                "birthRateAmongDemes", new SkylineMatrixParameter(
+                        null,
+                        new RealParameter("0.0"), 2),
+                "migrationRate", new SkylineMatrixParameter(
+                        null,
+                        new RealParameter("0.1 0.2"), 2),
+                "samplingRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("0.5"), 2),
+                "removalProb", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("1.0"), 2));
+
+        double[] logL = new double[2];
+        double[] deduplicationRatios = new double[2];
+        for (boolean deduplicateLeaves : new boolean[]{true, false}) {
+            bdmmflow.BirthDeathMigrationDistribution density = new bdmmflow.BirthDeathMigrationDistribution();
+            density.initByName(
+                    "parameterization", parameterization, "relTolerance", 1e-10,
+                    "startTypePriorProbs", new RealParameter("0.5 0.5"),
+                    "tree", new TreeParser(newick,
+                            false, false,
+                            true, 0),
+                    "conditionOnSurvival", false,
+                    "typeLabel", "type",
+                    "initialMatrixStrategy", initialStateStrategy,
+                    "useInverseFlow", useInverseFlow,
+                    "useCoupledIntegration", useCoupledIntegration,
+                    "parallelize", parallelize,
+                    "deduplicateLeaves", deduplicateLeaves
+            );
+
+            int i = deduplicateLeaves ? 0 : 1;
+            logL[i] = density.calculateLogP();
+            deduplicationRatios[i] = density.getLeafDeduplicationRatio();
+        }
+
+        assertEquals(0.5, deduplicationRatios[0], 1e-15);
+        assertEquals(1.0, deduplicationRatios[1], 1e-15);
+        assertEquals(logL[1], logL[0], 1e-10);
+    }
+}
@@ -0,0 +1,102 @@
+package bdmmflow.flow;
+
+import bdmmflow.integration.ChebyshevDenseOutput;
+import bdmmflow.integration.DenseOutput;
+import bdmmflow.integration.DormandPrince853Integrator;
+import bdmmflow.integration.IDenseOutput;
+import org.apache.commons.math3.ode.FirstOrderDifferentialEquations;
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+public class ChebyshevDenseOutputTest {
+
+    /**
+     * A slowly decaying linear system, y' = A y.
+     */
+    static class TestEquations implements FirstOrderDifferentialEquations {
+        @Override
+        public int getDimension() {
+            return 4;
+        }
+
+        @Override
+        public void computeDerivatives(double t, double[] y, double[] yDot) {
+            yDot[0] = -0.3 * y[0] + 0.1 * y[1];
+            yDot[1] = 0.05 * y[0] - 0.2 * y[1];
+            yDot[2] = -0.3 * y[2] + 0.1 * y[3];
+            yDot[3] = 0.05 * y[2] - 0.2 * y[3];
+        }
+    }
+
+    /**
+     * A system whose first component has a kink, which no segment of the maximal depth can approximate.
+     */
+    static class KinkEquations implements FirstOrderDifferentialEquations {
+        @Override
+        public int getDimension() {
+            return 2;
+        }
+
+        @Override
+        public void computeDerivatives(double t, double[] y, double[] yDot) {
+            yDot[0] = t < 17.3 ? 1.0 : -1.0;
+            yDot[1] = -0.2 * y[1];
+        }
+    }
+
+    @Test
+    public void testFitMatchesDenseOutput() {
+        for (double[] times : new double[][]{{0.0, 50.0}, {50.0, 0.0}}) {
+            DormandPrince853Integrator integrator = new DormandPrince853Integrator();
+            integrator.setStepBounds(1e-12, 1.0);
+            integrator.setTolerances(1e-100, 1e-10);
+            DenseOutput output = integrator.integrate(new TestEquations(), times[0], new double[]{1.0, 0.0, 0.0, 1.0}, times[1]);
+
+            IDenseOutput compactOutput = ChebyshevDenseOutput.fit(output, 2, 2, 1e-100, 1e-10);
+
+            assertTrue(compactOutput instanceof ChebyshevDenseOutput);
+            assertEquals(2, compactOutput.getDimension());
+            assertEquals(times[0], compactOutput.getInitialTime());
+            assertEquals(times[1], compactOutput.getFinalTime());
+
+            for (int k = 0; k <= 1000; k++) {
+                double time = times[0] + (times[1] - times[0]) * k / 1000.0;
+
+                double[] expected = output.getState(time);
+                double[] actual = compactOutput.getState(time);
+
+                for (int i = 0; i < 2; i++) {
+                    assertEquals(expected[i + 2], actual[i], 1e-9 * (1 + Math.abs(expected[i + 2])));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testFitFallsBackToDenseOutput() {
+        DormandPrince853Integrator integrator = new DormandPrince853Integrator();
+        integrator.setStepBounds(1e-12, 1.0);
+        integrator.setTolerances(1e-100, 1e-10);
+        DenseOutput output = integrator.integrate(new KinkEquations(), 0.0, new double[]{0.0, 1.0}, 50.0);
+
+        IDenseOutput compactOutput = ChebyshevDenseOutput.fit(output, 0, 2, 1e-100, 1e-10);
+
+        assertFalse(compactOutput instanceof ChebyshevDenseOutput);
+        assertEquals(2, compactOutput.getDimension());
+
+        for (int k = 0; k <= 1000; k++) {
+            double time = 50.0 * k / 1000.0;
+
+            double[] expected = output.getState(time);
+            double[] actual = compactOutput.getState(time);
+
+            for (int i = 0; i < 2; i++) {
+                assertEquals(expected[i], actual[i], 1e-12);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,85 @@
+package bdmmflow.flow;
+
+import bdmmflow.integration.DenseOutput;
+import bdmmflow.integration.DormandPrince54Integrator;
+import bdmmflow.integration.DormandPrince853Integrator;
+import bdmmflow.integration.EmbeddedRungeKuttaIntegrator;
+import org.apache.commons.math3.ode.ContinuousOutputModel;
+import org.apache.commons.math3.ode.FirstOrderDifferentialEquations;
+import org.apache.commons.math3.ode.nonstiff.AdaptiveStepsizeIntegrator;
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+
+public class DormandPrinceIntegratorTest {
+
+    /**
+     * A small linear system with a time-dependent term, y' = A(t) y.
+     */
+    static class TestEquations implements FirstOrderDifferentialEquations {
+        @Override
+        public int getDimension() {
+            return 3;
+        }
+
+        @Override
+        public void computeDerivatives(double t, double[] y, double[] yDot) {
+            yDot[0] = -0.8 * y[0] + 0.3 * y[1] + Math.sin(t) * y[2];
+            yDot[1] = 0.2 * y[0] - 1.1 * y[1];
+            yDot[2] = 0.5 * y[1] - 0.05 * t * y[2];
+        }
+    }
+
+    @Test
+    public void testDormandPrince853MatchesCommonsMath() {
+        this.testMatchesCommonsMath(
+                new DormandPrince853Integrator(),
+                new org.apache.commons.math3.ode.nonstiff.DormandPrince853Integrator(1e-12, 2.0, 1e-100, 1e-8)
+        );
+    }
+
+    @Test
+    public void testDormandPrince54MatchesCommonsMath() {
+        this.testMatchesCommonsMath(
+                new DormandPrince54Integrator(),
+                new org.apache.commons.math3.ode.nonstiff.DormandPrince54Integrator(1e-12, 2.0, 1e-100, 1e-8)
+        );
+    }
+
+    void testMatchesCommonsMath(EmbeddedRungeKuttaIntegrator integrator, AdaptiveStepsizeIntegrator reference) {
+        FirstOrderDifferentialEquations equations = new TestEquations();
+
+        for (double[] times : new double[][]{{0.0, 10.0}, {10.0, 0.0}}) {
+            double[] state = new double[]{1.0, 0.5, 0.25};
+            double[] referenceState = state.clone();
+
+            integrator.setStepBounds(1e-12, 2.0);
+            integrator.setTolerances(1e-100, 1e-8);
+            DenseOutput output = integrator.integrate(equations, times[0], state, times[1]);
+
+            ContinuousOutputModel referenceOutput = new ContinuousOutputModel();
+            reference.addStepHandler(referenceOutput);
+            reference.integrate(equations, times[0], referenceState, times[1], referenceState);
+            reference.clearStepHandlers();
+
+            assertEquals(times[0], output.getInitialTime());
+            assertEquals(times[1], output.getFinalTime());
+            for (int i = 0; i < 3; i++) {
+                assertEquals(referenceState[i], state[i], 1e-15);
+            }
+
+            for (int k = 0; k <= 100; k++) {
+                double time = times[0] + (times[1] - times[0]) * k / 100.0;
+
+                referenceOutput.setInterpolatedTime(time);
+                double[] expected = referenceOutput.getInterpolatedState();
+                double[] actual = output.getState(time);
+
+                for (int i = 0; i < 3; i++) {
+                    assertEquals(expected[i], actual[i], 1e-15);
+                }
+            }
+        }
+    }
+
+}
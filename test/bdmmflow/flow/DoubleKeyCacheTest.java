@@ -0,0 +1,60 @@
+package bdmmflow.flow;
+
+import bdmmflow.utils.DoubleKeyCache;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class DoubleKeyCacheTest {
+
+    @Test
+    public void testValuesMatchKeys() {
+        DoubleKeyCache<double[]> cache = new DoubleKeyCache<>(1_000);
+        Random random = new Random(42);
+
+        // many lookups of few distinct keys, including keys that only differ in their last bits
+        double[] keys = new double[200];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = i % 2 == 0 ? random.nextDouble() : Math.nextUp(keys[i - 1]);
+        }
+
+        for (int k = 0; k < 10_000; k++) {
+            double key = keys[random.nextInt(keys.length)];
+            assertEquals(key, cache.computeIfAbsent(key, t -> new double[]{t})[0]);
+        }
+
+        assertEquals(keys.length, cache.size());
+        assertTrue(cache.containsKey(keys[0]));
+        assertTrue(!cache.containsKey(-1.0));
+        assertEquals(keys.length, cache.getMissCount());
+        assertEquals(10_000 - keys.length, cache.getHitCount());
+        assertEquals(0, cache.getEvictionCount());
+    }
+
+    @Test
+    public void testSizeIsBounded() {
+        DoubleKeyCache<double[]> cache = new DoubleKeyCache<>(64);
+        Random random = new Random(42);
+
+        for (int k = 0; k < 10_000; k++) {
+            double key = random.nextDouble();
+            assertEquals(key, cache.computeIfAbsent(key, t -> new double[]{t})[0]);
+            assertTrue(cache.size() <= 64);
+        }
+
+        assertEquals(10_000, cache.getMissCount());
+        assertEquals(10_000 - cache.size(), cache.getEvictionCount());
+
+        // a frequently used key survives the eviction of the others
+        cache.computeIfAbsent(-1.0, t -> new double[]{t});
+        for (int k = 0; k < 1_000; k++) {
+            cache.computeIfAbsent(-1.0, t -> new double[]{t});
+            cache.computeIfAbsent(random.nextDouble(), t -> new double[]{t});
+        }
+        assertEquals(10_001, cache.getMissCount() - 1_000);
+    }
+
+}
@@ -0,0 +1,81 @@
+package bdmmflow.flow;
+
+import bdmmflow.flowSystems.Flow;
+import bdmmflow.flowSystems.IntegrationResult;
+import bdmmflow.integration.IDenseOutput;
+import bdmmflow.utils.MatrixKernels;
+import org.junit.Test;
+
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class FlowCacheTest {
+
+    /**
+     * A dense output of a backwards integration over [finalTime, initialTime], whose state at time t is the
+     * identity matrix scaled by 1 + t.
+     */
+    record ScaledIdentityOutput(int n, double initialTime, double finalTime) implements IDenseOutput {
+        @Override
+        public int getDimension() {
+            return this.n * this.n;
+        }
+
+        @Override
+        public double getInitialTime() {
+            return this.initialTime;
+        }
+
+        @Override
+        public double getFinalTime() {
+            return this.finalTime;
+        }
+
+        @Override
+        public double[] getState(double time, int offset, int length, double[] buffer) {
+            for (int i = 0; i < length; i++) {
+                buffer[i] = (offset + i) % (this.n + 1) == 0 ? 1.0 + time : 0.0;
+            }
+            return buffer;
+        }
+    }
+
+    @Test
+    public void testCacheIsBoundedAcrossIntervals() {
+        int n = 4;
+        int intervals = 5;
+        int timesPerInterval = 50;
+        long maxBytes = 64L * Double.BYTES * n * n;
+
+        // the backwards outputs start with the latest interval
+        IDenseOutput[] outputs = new IDenseOutput[intervals];
+        for (int i = 0; i < intervals; i++) {
+            outputs[i] = new ScaledIdentityOutput(n, intervals - i, intervals - i - 1);
+        }
+
+        Flow flow = new Flow(outputs, n, List.of(), false, MatrixKernels.get(MatrixKernels.SCALAR));
+        flow.setCacheSize(maxBytes);
+
+        for (int i = 0; i < intervals; i++) {
+            for (int k = 1; k <= timesPerInterval; k++) {
+                double time = i + k / (timesPerInterval + 1.0);
+                double[] vector = new double[]{1.0, 2.0, 3.0, 4.0};
+
+                IntegrationResult result = flow.operateFlow(time, flow.getRightInterval(time), vector);
+
+                for (int j = 0; j < n; j++) {
+                    double value = result.result()[j] * Math.exp(result.logScalingFactor());
+                    assertEquals((1.0 + time) * (j + 1.0), value, 1e-12 * value);
+                }
+            }
+        }
+
+        // the entries of all intervals together stay within the bound
+        assertTrue(flow.getCachedBytes() > 0);
+        assertTrue(flow.getCachedBytes() <= maxBytes);
+        assertTrue(flow.getCacheStatistics().evictions() >= intervals * timesPerInterval - 64);
+    }
+
+}
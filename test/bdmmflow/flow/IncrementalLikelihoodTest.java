@@ -0,0 +1,474 @@
+package bdmmflow.flow;
+
+import bdmmprime.parameterization.*;
+import beast.base.evolution.alignment.Taxon;
+import beast.base.evolution.alignment.TaxonSet;
+import beast.base.evolution.operator.Exchange;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.TraitSet;
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.CompoundDistribution;
+import beast.base.inference.Distribution;
+import beast.base.inference.State;
+import beast.base.inference.StateNode;
+import beast.base.inference.distribution.Normal;
+import beast.base.inference.distribution.Prior;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * These tests run proposals through the same steps as the MCMC loop of BEAST and check that the likelihoods
+ * that reuse the results of earlier evaluations are equal to the likelihood of a freshly initialized distribution.
+ */
+@RunWith(Parameterized.class)
+public class IncrementalLikelihoodTest {
+
+    /**
+     * 8 tips, 2 types, no sampled ancestors. The root is at height 2.2.
+     */
+    static final String TREE = "((((t1[&type=0]:0.4,t2[&type=1]:0.6):0.3,t3[&type=0]:0.5):0.6," +
+            "(t4[&type=1]:0.2,t5[&type=1]:0.9):0.8):0.4,((t6[&type=0]:0.7,t7[&type=1]:0.3):0.9,t8[&type=0]:1.5):0.6);";
+
+    /**
+     * 6 tips, 2 types, t2 and t6 are sampled ancestors. The root is at height 2.7.
+     */
+    static final String SA_TREE = "(((t1[&type=0]:1.0,t2[&type=1]:0.0)[&type=1]:0.5,t3[&type=0]:1.2):0.8," +
+            "((t4[&type=1]:0.6,t5[&type=1]:0.9):0.7,t6[&type=0]:0.0)[&type=0]:1.1);";
+
+    private final String initialStateStrategy;
+    private final boolean useInverseFlow;
+    private final boolean parallelize;
+    private final boolean useCoupledIntegration;
+
+    private Tree tree;
+    private RealParameter birthRates;
+    private RealParameter removalProbs;
+    private RealParameter startTypePriorProbs;
+    private RealParameter finalSampleOffset;
+    private Parameterization parameterization;
+    private TraitSet typeTraitSet;
+    private State state;
+
+    @Parameters(name = "strategy={0}, useInverseFlow={1}, parallelize={2}, useCoupledIntegration={3}")
+    public static Collection<Object[]> data() {
+        return Arrays.asList(new Object[][] {
+            { "identity", false,  false, false },
+            { "identity", false,  true, false },
+            { "average_inverse", true,  false, false },
+            { "average_inverse", true,  true, false },
+            { "identity", false,  false, true },
+        });
+    }
+
+    public IncrementalLikelihoodTest(String initialStateStrategy, boolean useInverseFlow, boolean parallelize, boolean useCoupledIntegration) {
+        this.initialStateStrategy = initialStateStrategy;
+        this.useInverseFlow = useInverseFlow;
+        this.parallelize = parallelize;
+        this.useCoupledIntegration = useCoupledIntegration;
+    }
+
+    /**
+     * Sets up the tree and a canonical parameterization with birth rate changes at the times 1.0 and 2.0 and a
+     * removal probability change at the time 2.0.
+     */
+    private void setUp(String newick) {
+        this.tree = new TreeParser(newick, false, false, true, 0);
+        this.tree.setID("tree");
+
+        this.birthRates = new RealParameter("2.0 1.5 2.5 1.8 2.2 1.6");
+        this.birthRates.setID("birthRates");
+        this.removalProbs = new RealParameter("0.3 0.4 0.6 0.7");
+        this.removalProbs.setID("removalProbs");
+        this.startTypePriorProbs = new RealParameter("0.5 0.5");
+        this.startTypePriorProbs.setID("startTypePriorProbs");
+        this.finalSampleOffset = new RealParameter("0.0");
+        this.finalSampleOffset.setID("finalSampleOffset");
+
+        this.parameterization = new CanonicalParameterization();
+        this.parameterization.initByName(
+                "typeSet", new TypeSet(2),
+                "processLength", new RealParameter("3.0"),
+                "birthRate", new SkylineVectorParameter(
+                        new RealParameter("1.0 2.0"),
+                        this.birthRates, 2),
+                "deathRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("0.5"), 2),
+                "birthRateAmongDemes", new SkylineMatrixParameter(
+                        null,
+                        new RealParameter("0.0"), 2),
+                "migrationRate", new SkylineMatrixParameter(
+                        null,
+                        new RealParameter("0.2 0.3"), 2),
+                "samplingRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("0.5"), 2),
+                "removalProb", new SkylineVectorParameter(
+                        new RealParameter("2.0"),
+                        this.removalProbs, 2));
+    }
+
+    private bdmmflow.BirthDeathMigrationDistribution getDensity() {
+        bdmmflow.BirthDeathMigrationDistribution density = new bdmmflow.BirthDeathMigrationDistribution();
+        if (this.typeTraitSet != null) {
+            // takes precedence over the type label
+            density.typeTraitSetInput.setValue(this.typeTraitSet, density);
+        }
+        density.initByName(
+                "parameterization", this.parameterization, "relTolerance", 1e-10,
+                "startTypePriorProbs", this.startTypePriorProbs,
+                "finalSampleOffset", this.finalSampleOffset,
+                "tree", this.tree,
+                "typeLabel", "type",
+                "initialMatrixStrategy", this.initialStateStrategy,
+                "useInverseFlow", this.useInverseFlow,
+                "useCoupledIntegration", this.useCoupledIntegration,
+                "parallelize", this.parallelize,
+                "minimalSubtreeSizeForParallelization", 1
+        );
+        return density;
+    }
+
+    /**
+     * Sets up the state of the MCMC chain and evaluates the posterior for the first time.
+     */
+    private double initializeState(Distribution posterior, StateNode... additionalStateNodes) {
+        List<Object> arguments = new ArrayList<>();
+        for (StateNode stateNode : new StateNode[]{
+                this.tree, this.birthRates, this.removalProbs, this.startTypePriorProbs, this.finalSampleOffset
+        }) {
+            arguments.add("stateNode");
+            arguments.add(stateNode);
+        }
+        for (StateNode stateNode : additionalStateNodes) {
+            arguments.add("stateNode");
+            arguments.add(stateNode);
+        }
+
+        this.state = new State();
+        this.state.initByName(arguments.toArray());
+        this.state.initialise();
+        this.state.setPosterior(posterior);
+        return this.state.robustlyCalcPosterior(posterior);
+    }
+
+    /**
+     * Changes the state like an operator and marks the affected calculation nodes as dirty.
+     */
+    private void propose(Runnable proposal) {
+        this.state.store(0);
+        proposal.run();
+        this.state.storeCalculationNodes();
+        this.state.checkCalculationNodesDirtiness();
+    }
+
+    private void accept() {
+        this.state.acceptCalculationNodes();
+        this.state.setEverythingDirty(false);
+    }
+
+    private void reject() {
+        this.state.restore();
+        this.state.restoreCalculationNodes();
+        this.state.setEverythingDirty(false);
+    }
+
+    private void assertEqualToFreshDensity(double logP) {
+        assertEquals(this.getDensity().calculateLogP(), logP, 1e-10);
+    }
+
+    private Node getNode(String id) {
+        for (Node node : this.tree.getExternalNodes()) {
+            if (id.equals(node.getID())) return node;
+        }
+        throw new IllegalArgumentException("No leaf with the ID " + id + ".");
+    }
+
+    @Test
+    public void testNarrowExchange() {
+        this.setUp(TREE);
+        bdmmflow.BirthDeathMigrationDistribution density = this.getDensity();
+        this.assertEqualToFreshDensity(this.initializeState(density));
+
+        Randomizer.setSeed(127);
+        Exchange exchange = new Exchange();
+        exchange.initByName("tree", this.tree, "weight", 1.0, "isNarrow", true);
+
+        for (int i = 0; i < 5; i++) {
+            this.propose(() -> {
+                while (exchange.proposal() == Double.NEGATIVE_INFINITY) {
+                    // try another pair of nodes
+                }
+            });
+            this.assertEqualToFreshDensity(density.calculateLogP());
+            this.accept();
+        }
+    }
+
+    @Test
+    public void testTipHeightChange() {
+        this.setUp(TREE);
+        bdmmflow.BirthDeathMigrationDistribution density = this.getDensity();
+        this.assertEqualToFreshDensity(this.initializeState(density));
+
+        this.propose(() -> this.getNode("t3").setHeight(1.0));
+        this.assertEqualToFreshDensity(density.calculateLogP());
+        this.accept();
+
+        this.propose(() -> this.getNode("t6").setHeight(0.5));
+        this.assertEqualToFreshDensity(density.calculateLogP());
+        this.accept();
+    }
+
+    @Test
+    public void testSampledAncestorTree() {
+        this.setUp(SA_TREE);
+        bdmmflow.BirthDeathMigrationDistribution density = this.getDensity();
+        this.assertEqualToFreshDensity(this.initializeState(density));
+
+        // t1 is the sibling of the sampled ancestor t2, such that the edge to t2 is unchanged
+        this.propose(() -> this.getNode("t1").setHeight(0.9));
+        this.assertEqualToFreshDensity(density.calculateLogP());
+        this.accept();
+
+        // the parent of t3 is the parent of the node of the sampled ancestor t2
+        this.propose(() -> this.getNode("t3").getParent().setHeight(2.2));
+        this.assertEqualToFreshDensity(density.calculateLogP());
+        this.accept();
+    }
+
+    @Test
+    public void testRestoreAfterTreeChange() {
+        this.setUp(TREE);
+        bdmmflow.BirthDeathMigrationDistribution density = this.getDensity();
+        double logP = this.initializeState(density);
+
+        this.propose(() -> this.getNode("t3").setHeight(1.0));
+        density.calculateLogP();
+        this.reject();
+
+        assertEquals(logP, density.calculateLogP(), 0.0);
+    }
+
+    @Test
+    public void testRestoreAfterRateChange() {
+        this.setUp(TREE);
+        bdmmflow.BirthDeathMigrationDistribution density = this.getDensity();
+        double logP = this.initializeState(density);
+
+        this.propose(() -> this.birthRates.setValue(3, 2.4));
+        density.calculateLogP();
+        this.reject();
+
+        assertEquals(logP, density.calculateLogP(), 0.0);
+    }
+
+    /**
+     * Restoring the evaluation plan writes back the nodes the rejected proposal changed, such that the following
+     * evaluation does not read any node of the tree again.
+     */
+    @Test
+    public void testRestoreDoesNotReadCleanNodes() {
+        this.setUp(TREE);
+        bdmmflow.BirthDeathMigrationDistribution density = this.getDensity();
+        this.initializeState(density);
+
+        // the integrals are only stored once a proposal is accepted
+        this.propose(() -> this.getNode("t6").setHeight(0.5));
+        double logP = density.calculateLogP();
+        this.accept();
+
+        this.propose(() -> this.getNode("t3").setHeight(1.0));
+        density.calculateLogP();
+        assertEquals(1, density.getNumReadTreeNodes());
+        this.reject();
+
+        assertEquals(logP, density.calculateLogP(), 0.0);
+        assertEquals(0, density.getNumReadTreeNodes());
+        assertEquals(0, density.getNumUpdatedNodes());
+    }
+
+    @Test
+    public void testChangeAfterAcceptAndReject() {
+        this.setUp(TREE);
+        bdmmflow.BirthDeathMigrationDistribution density = this.getDensity();
+        this.initializeState(density);
+
+        this.propose(() -> this.getNode("t3").setHeight(1.0));
+        density.calculateLogP();
+        this.accept();
+
+        this.propose(() -> this.getNode("t6").setHeight(0.5));
+        this.assertEqualToFreshDensity(density.calculateLogP());
+        this.reject();
+
+        // the partial likelihoods of the accepted state are restored and reused
+        this.propose(() -> this.birthRates.setValue(5, 1.9));
+        this.assertEqualToFreshDensity(density.calculateLogP());
+        this.accept();
+
+        this.propose(() -> this.getNode("t8").setHeight(0.3));
+        this.assertEqualToFreshDensity(density.calculateLogP());
+    }
+
+    @Test
+    public void testUnrelatedStateNodeChange() {
+        this.setUp(TREE);
+        bdmmflow.BirthDeathMigrationDistribution density = this.getDensity();
+
+        RealParameter x = new RealParameter("0.0");
+        x.setID("x");
+        Normal normal = new Normal();
+        normal.initByName("mean", new RealParameter("0.0"), "sigma", new RealParameter("1.0"));
+        Prior prior = new Prior();
+        prior.initByName("x", x, "distr", normal);
+        CompoundDistribution posterior = new CompoundDistribution();
+        posterior.initByName("distribution", density, "distribution", prior);
+
+        this.initializeState(posterior, x);
+        double logL = density.getCurrentLogP();
+        int numEvaluations = density.getNumEvaluations();
+
+        this.propose(() -> x.setValue(0, 0.5));
+        assertFalse(density.requiresRecalculation());
+        double logP = posterior.calculateLogP();
+        this.accept();
+
+        assertEquals(numEvaluations, density.getNumEvaluations());
+        assertEquals(logL, density.getCurrentLogP(), 0.0);
+        assertEquals(logL + prior.getCurrentLogP(), logP, 0.0);
+    }
+
+    @Test
+    public void testInputChanges() {
+        this.setUp(TREE);
+        bdmmflow.BirthDeathMigrationDistribution density = this.getDensity();
+        this.initializeState(density);
+
+        List<Runnable> proposals = Arrays.asList(
+                () -> this.getNode("t3").setHeight(1.0),
+                () -> this.birthRates.setValue(4, 2.6),
+                () -> this.finalSampleOffset.setValue(0, 0.2),
+                () -> {
+                    this.startTypePriorProbs.setValue(0, 0.3);
+                    this.startTypePriorProbs.setValue(1, 0.7);
+                }
+        );
+
+        for (Runnable proposal : proposals) {
+            int numEvaluations = density.getNumEvaluations();
+
+            this.propose(proposal);
+            assertTrue(density.requiresRecalculation());
+            this.assertEqualToFreshDensity(density.calculateLogP());
+            this.accept();
+
+            assertEquals(numEvaluations + 1, density.getNumEvaluations());
+        }
+    }
+
+    /**
+     * The types of the leaves are read from a type trait set once, which takes precedence over the type label and is
+     * treated as fixed.
+     */
+    @Test
+    public void testTypeTraitSet() {
+        this.setUp(TREE);
+
+        this.typeTraitSet = new TraitSet();
+        this.typeTraitSet.initByName(
+                "traitname", "type",
+                "taxa", new TaxonSet(Taxon.createTaxonList(Arrays.asList("t1", "t2", "t3", "t4", "t5", "t6", "t7", "t8"))),
+                "value", "t1=1,t2=1,t3=0,t4=0,t5=1,t6=0,t7=0,t8=1"
+        );
+        bdmmflow.BirthDeathMigrationDistribution density = this.getDensity();
+        this.assertEqualToFreshDensity(this.initializeState(density));
+
+        this.propose(() -> this.getNode("t3").setHeight(1.0));
+        this.assertEqualToFreshDensity(density.calculateLogP());
+        this.accept();
+
+        this.propose(() -> this.getNode("t6").setHeight(0.5));
+        this.assertEqualToFreshDensity(density.calculateLogP());
+        this.accept();
+    }
+
+    /**
+     * Changes a birth rate of the epoch before the time 1.0, such that the extinction probabilities after the time
+     * 1.0 can be reused. The flow of the epoch between 1.0 and 2.0 reads the changed rate at its boundary and is
+     * integrated again, while the flow after the time 2.0 can be reused.
+     */
+    @Test
+    public void testInnerEpochChange() {
+        this.setUp(TREE);
+        bdmmflow.BirthDeathMigrationDistribution density = this.getDensity();
+        this.initializeState(density);
+
+        this.propose(() -> this.birthRates.setValue(1, 1.7));
+        double logP = density.calculateLogP();
+
+        if (!this.useCoupledIntegration) {
+            assertEquals(2, density.getNumReusedExtinctionIntervals());
+            // the inverse flow is integrated forwards in time and is always integrated over all intervals
+            assertEquals(this.useInverseFlow ? 0 : 1, density.getNumReusedFlowIntervals());
+        }
+        this.assertEqualToFreshDensity(logP);
+        this.accept();
+    }
+
+    /**
+     * Changes the removal probability of type 0 before the time 2.0, when only the sampled ancestors t2 and t6 are
+     * sampled. The ODEs do not depend on it, and only these two leaves and their ancestors are updated.
+     */
+    @Test
+    public void testRemovalProbabilityChange() {
+        this.setUp(SA_TREE);
+        bdmmflow.BirthDeathMigrationDistribution density = this.getDensity();
+        this.initializeState(density);
+
+        this.propose(() -> this.removalProbs.setValue(0, 0.5));
+        double logP = density.calculateLogP();
+
+        assertEquals(3, density.getNumReusedExtinctionIntervals());
+        assertEquals(3, density.getNumReusedFlowIntervals());
+        assertEquals(6, density.getNumUpdatedNodes());
+        this.assertEqualToFreshDensity(logP);
+        this.accept();
+    }
+
+    /**
+     * The start type prior probabilities only enter at the root, such that no integral and no node is recomputed.
+     */
+    @Test
+    public void testStartTypePriorChange() {
+        this.setUp(SA_TREE);
+        bdmmflow.BirthDeathMigrationDistribution density = this.getDensity();
+        this.initializeState(density);
+
+        this.propose(() -> {
+            this.startTypePriorProbs.setValue(0, 0.2);
+            this.startTypePriorProbs.setValue(1, 0.8);
+        });
+        double logP = density.calculateLogP();
+
+        assertEquals(3, density.getNumReusedExtinctionIntervals());
+        assertEquals(3, density.getNumReusedFlowIntervals());
+        assertEquals(0, density.getNumUpdatedNodes());
+        this.assertEqualToFreshDensity(logP);
+        this.accept();
+    }
+}
@@ -0,0 +1,65 @@
+package bdmmflow.flow;
+
+import bdmmflow.intervals.IntervalIndex;
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+
+public class IntervalIndexTest {
+
+    static final double[] BOUNDARIES = new double[]{0.0, 1.0, 1.5, 4.0, 4.0001, 10.0};
+    static final double[] QUERIES = new double[]{-1.0, 0.0, 0.5, 1.0, 1.2, 1.5, 3.0, 4.0, 4.00005, 4.0001, 9.0, 10.0, 11.0};
+
+    @Test
+    public void testLookupsMatchLinearScan() {
+        IntervalIndex index = new IntervalIndex(BOUNDARIES);
+
+        for (double time : QUERIES) {
+            assertEquals(linearScan(time, true), index.findLeftClosed(time));
+            assertEquals(linearScan(time, false), index.findRightClosed(time));
+        }
+    }
+
+    @Test
+    public void testCursorMatchesIndex() {
+        IntervalIndex index = new IntervalIndex(BOUNDARIES);
+        IntervalIndex.Cursor cursor = index.cursor();
+
+        // sweep forwards, backwards and jump around
+        for (int i = 0; i < QUERIES.length; i++) {
+            assertEquals(index.findLeftClosed(QUERIES[i]), cursor.findLeftClosed(QUERIES[i]));
+        }
+        for (int i = QUERIES.length - 1; i >= 0; i--) {
+            assertEquals(index.findRightClosed(QUERIES[i]), cursor.findRightClosed(QUERIES[i]));
+        }
+        for (int i = 0; i < QUERIES.length; i++) {
+            double time = QUERIES[(i * 7) % QUERIES.length];
+            assertEquals(index.findRightClosed(time), cursor.findRightClosed(time));
+        }
+    }
+
+    @Test
+    public void testInnerBoundaries() {
+        IntervalIndex index = new IntervalIndex(BOUNDARIES);
+
+        assertEquals(false, index.isInnerBoundary(0.0));
+        assertEquals(true, index.isInnerBoundary(1.0));
+        assertEquals(true, index.isInnerBoundary(4.0001));
+        assertEquals(false, index.isInnerBoundary(3.0));
+        assertEquals(false, index.isInnerBoundary(10.0));
+    }
+
+    /**
+     * Finds the interval by scanning all intervals, where times outside of the boundaries are clamped.
+     */
+    static int linearScan(double time, boolean leftClosed) {
+        int count = BOUNDARIES.length - 1;
+        for (int k = 0; k < count; k++) {
+            boolean isAfterStart = k == 0 || (leftClosed ? BOUNDARIES[k] <= time : BOUNDARIES[k] < time);
+            boolean isBeforeEnd = k == count - 1 || (leftClosed ? time < BOUNDARIES[k + 1] : time <= BOUNDARIES[k + 1]);
+            if (isAfterStart && isBeforeEnd) return k;
+        }
+        throw new IllegalStateException("No interval found.");
+    }
+
+}
@@ -0,0 +1,147 @@
+package bdmmflow.flow;
+
+import bdmmflow.integration.DenseOutput;
+import bdmmflow.integration.DormandPrince853Integrator;
+import bdmmflow.integration.IDenseOutput;
+import bdmmflow.integration.LinearMatrixEquations;
+import bdmmflow.integration.MagnusIntegrator;
+import bdmmflow.utils.MatrixExponential;
+import bdmmflow.utils.MatrixKernel;
+import bdmmflow.utils.MatrixKernels;
+import bdmmflow.utils.Utils;
+import org.apache.commons.math3.ode.FirstOrderDifferentialEquations;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+
+public class MagnusIntegratorTest {
+
+    static final int N = 3;
+
+    /**
+     * Returns a time-dependent system matrix with a stiff part, which decays in the given direction.
+     */
+    static LinearMatrixEquations getEquations(double direction) {
+        return (t, systemMatrix) -> {
+            systemMatrix[0] = direction * (-0.5 - 0.2 * Math.sin(t));
+            systemMatrix[1] = direction * 0.3;
+            systemMatrix[2] = 0.0;
+            systemMatrix[3] = direction * 0.1;
+            systemMatrix[4] = direction * -40.0;
+            systemMatrix[5] = direction * 39.0;
+            systemMatrix[6] = direction * 0.05 * t;
+            systemMatrix[7] = direction * 38.0;
+            systemMatrix[8] = direction * -41.0;
+        };
+    }
+
+    /**
+     * Computes exp(matrix) by a truncated Taylor series of the matrix scaled by 2^-10, followed by squaring.
+     */
+    static double[] taylorExponential(double[] matrix, int n) {
+        double[] scaled = new double[n * n];
+        for (int i = 0; i < n * n; i++) {
+            scaled[i] = Math.scalb(matrix[i], -10);
+        }
+
+        double[] sum = new double[n * n];
+        double[] term = new double[n * n];
+        double[] product = new double[n * n];
+        for (int i = 0; i < n; i++) {
+            sum[i * n + i] = 1.0;
+            term[i * n + i] = 1.0;
+        }
+        for (int k = 1; k < 30; k++) {
+            Utils.multiply(scaled, term, product, n);
+            for (int i = 0; i < n * n; i++) {
+                term[i] = product[i] / k;
+                sum[i] += term[i];
+            }
+        }
+        for (int k = 0; k < 10; k++) {
+            Utils.multiply(sum, sum, product, n);
+            System.arraycopy(product, 0, sum, 0, n * n);
+        }
+
+        return sum;
+    }
+
+    @Test
+    public void testMatrixExponentialMatchesTaylorSeries() {
+        MatrixKernel kernel = MatrixKernels.get(MatrixKernels.SCALAR);
+        Random random = new Random(1);
+
+        for (int n : new int[]{1, 2, 5, 9}) {
+            MatrixExponential exponential = new MatrixExponential(n, kernel);
+
+            // the scales cover all Padé degrees and the scaling and squaring
+            for (double scale : new double[]{1e-3, 0.05, 0.3, 1.0, 2.0, 5.0, 40.0}) {
+                double[] matrix = new double[n * n];
+                for (int i = 0; i < n * n; i++) {
+                    matrix[i] = scale * (random.nextDouble() - 0.5) / n;
+                }
+
+                double[] actual = new double[n * n];
+                exponential.compute(matrix, actual);
+                double[] expected = taylorExponential(matrix, n);
+
+                for (int i = 0; i < n * n; i++) {
+                    assertEquals(expected[i], actual[i], 1e-11 * Math.max(1.0, Math.abs(expected[i])));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testMagnusMatchesDormandPrince() {
+        for (double[] times : new double[][]{{0.0, 3.0}, {3.0, 0.0}}) {
+            this.testMagnusMatchesDormandPrince(getEquations(Math.signum(times[1] - times[0])), times);
+        }
+    }
+
+    void testMagnusMatchesDormandPrince(LinearMatrixEquations equations, double[] times) {
+        FirstOrderDifferentialEquations referenceEquations = new FirstOrderDifferentialEquations() {
+            final double[] systemMatrix = new double[N * N];
+
+            @Override
+            public int getDimension() {
+                return N * N;
+            }
+
+            @Override
+            public void computeDerivatives(double t, double[] y, double[] yDot) {
+                equations.computeSystemMatrix(t, this.systemMatrix);
+                Utils.multiply(this.systemMatrix, y, yDot, N);
+            }
+        };
+
+        double[] state = new double[]{1.0, 0.0, 0.0, 0.0, 1.0, 0.0, 0.0, 0.0, 1.0};
+        double[] referenceState = state.clone();
+
+        MagnusIntegrator integrator = new MagnusIntegrator(N, MatrixKernels.get(MatrixKernels.SCALAR));
+        integrator.setStepBounds(1e-12, 1.0);
+        integrator.setTolerances(1e-100, 1e-9);
+        IDenseOutput output = integrator.integrate(equations, times[0], state, times[1]);
+
+        DormandPrince853Integrator reference = new DormandPrince853Integrator();
+        reference.setStepBounds(1e-12, 1.0);
+        reference.setTolerances(1e-100, 1e-12);
+        DenseOutput referenceOutput = reference.integrate(referenceEquations, times[0], referenceState, times[1]);
+
+        assertEquals(times[1], output.getFinalTime());
+
+        for (int k = 0; k <= 300; k++) {
+            double time = times[0] + (times[1] - times[0]) * k / 300.0;
+
+            double[] expected = referenceOutput.getState(time);
+            double[] actual = output.getState(time);
+
+            for (int i = 0; i < N * N; i++) {
+                assertEquals(expected[i], actual[i], 1e-7 * Math.max(1.0, Math.abs(expected[i])));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,96 @@
+package bdmmflow.flow;
+
+import bdmmflow.utils.MatrixKernel;
+import bdmmflow.utils.MatrixKernels;
+import bdmmflow.utils.Utils;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.junit.Assume;
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+
+public class MatrixKernelTest {
+
+    @Test
+    public void testMultiplyMatchesMatrixPath() {
+        for (int n : new int[]{1, 2, 5, 13}) {
+            RealMatrix left = Utils.getRandomMatrix(n, 1);
+            RealMatrix right = Utils.getRandomMatrix(n, 2);
+
+            double[] leftArray = new double[n * n];
+            double[] rightArray = new double[n * n];
+            Utils.fillArray(left, leftArray);
+            Utils.fillArray(right, rightArray);
+
+            double[] result = new double[n * n];
+            Utils.multiply(leftArray, rightArray, result, n);
+
+            RealMatrix expected = left.multiply(right);
+
+            for (int i = 0; i < n; i++) {
+                for (int j = 0; j < n; j++) {
+                    assertEquals(expected.getEntry(i, j), result[j * n + i], 1e-12);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testScalarKernel() {
+        this.testKernel(MatrixKernels.get(MatrixKernels.SCALAR));
+    }
+
+    @Test
+    public void testVectorKernel() {
+        Assume.assumeTrue(MatrixKernels.isVectorBackendAvailable());
+        this.testKernel(MatrixKernels.get(MatrixKernels.VECTOR));
+    }
+
+    private void testKernel(MatrixKernel kernel) {
+        for (int n : new int[]{1, 3, 4, 10, 13}) {
+            RealMatrix left = Utils.getRandomMatrix(n, 1);
+            RealMatrix right = Utils.getRandomMatrix(n, 2);
+
+            double[] leftArray = new double[n * n];
+            double[] rightArray = new double[n * n];
+            Utils.fillArray(left, leftArray);
+            Utils.fillArray(right, rightArray);
+
+            // matrix product
+
+            double[] result = new double[n * n];
+            kernel.multiply(leftArray, rightArray, result, n);
+
+            RealMatrix expected = left.multiply(right);
+            for (int i = 0; i < n; i++) {
+                for (int j = 0; j < n; j++) {
+                    assertEquals(expected.getEntry(i, j), result[j * n + i], 1e-12);
+                }
+            }
+
+            // matrix-vector product
+
+            double[] vector = right.getColumn(0);
+            double[] vectorResult = new double[n];
+            kernel.operate(leftArray, vector, vectorResult, n);
+
+            double[] expectedVector = left.operate(vector);
+            for (int i = 0; i < n; i++) {
+                assertEquals(expectedVector[i], vectorResult[i], 1e-12);
+            }
+
+            // scaled element-wise product on a column
+
+            double[] column = rightArray.clone();
+            kernel.addScaledProduct(-2.0, leftArray, (n - 1) * n, vector, column, (n - 1) * n, n);
+            for (int i = 0; i < n; i++) {
+                assertEquals(
+                        right.getEntry(i, n - 1) - 2.0 * left.getEntry(i, n - 1) * vector[i],
+                        column[(n - 1) * n + i],
+                        1e-12
+                );
+            }
+        }
+    }
+
+}
@@ -0,0 +1,96 @@
+package bdmmflow.flow;
+
+import bdmmflow.integration.DenseOutput;
+import bdmmflow.integration.DormandPrince853Integrator;
+import bdmmflow.integration.JacobianEquations;
+import bdmmflow.integration.RosenbrockIntegrator;
+import bdmmflow.integration.StiffnessDetectedException;
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+public class RosenbrockIntegratorTest {
+
+    /**
+     * A stiff non-linear system, where the first component quickly relaxes to the square of the slow second one.
+     */
+    static class StiffEquations implements JacobianEquations {
+        @Override
+        public int getDimension() {
+            return 2;
+        }
+
+        @Override
+        public void computeDerivatives(double t, double[] y, double[] yDot) {
+            yDot[0] = -1000.0 * (y[0] - y[1] * y[1]);
+            yDot[1] = -y[1] + 0.5 * Math.sin(t);
+        }
+
+        @Override
+        public void computeJacobian(double t, double[] y, double[] jacobian) {
+            jacobian[0] = -1000.0;
+            jacobian[1] = 0.0;
+            jacobian[2] = 2000.0 * y[1];
+            jacobian[3] = -1.0;
+        }
+    }
+
+    @Test
+    public void testRosenbrockMatchesDormandPrince() {
+        JacobianEquations equations = new StiffEquations();
+
+        double[] state = new double[]{0.0, 1.0};
+        double[] explicitState = state.clone();
+        double[] referenceState = state.clone();
+
+        RosenbrockIntegrator integrator = new RosenbrockIntegrator();
+        integrator.setStepBounds(1e-12, 1.0);
+        integrator.setTolerances(1e-6, 1e-6);
+        DenseOutput output = integrator.integrate(equations, 0.0, state, 5.0);
+
+        DormandPrince853Integrator explicitIntegrator = new DormandPrince853Integrator();
+        explicitIntegrator.setStepBounds(1e-12, 1.0);
+        explicitIntegrator.setTolerances(1e-6, 1e-6);
+        DenseOutput explicitOutput = explicitIntegrator.integrate(equations, 0.0, explicitState, 5.0);
+
+        DormandPrince853Integrator reference = new DormandPrince853Integrator();
+        reference.setStepBounds(1e-12, 1.0);
+        reference.setTolerances(1e-14, 1e-12);
+        DenseOutput referenceOutput = reference.integrate(equations, 0.0, referenceState, 5.0);
+
+        // the explicit method is limited by its stability region, the implicit one only by the accuracy
+        assertTrue(output.getStepCount() < explicitOutput.getStepCount() / 2);
+
+        for (int k = 0; k <= 500; k++) {
+            double time = 5.0 * k / 500.0;
+
+            double[] expected = referenceOutput.getState(time);
+            double[] actual = output.getState(time);
+
+            for (int i = 0; i < 2; i++) {
+                assertEquals(expected[i], actual[i], 1e-5);
+            }
+        }
+    }
+
+    @Test
+    public void testStiffnessDetection() {
+        DormandPrince853Integrator integrator = new DormandPrince853Integrator();
+        integrator.setStepBounds(1e-12, 1.0);
+        integrator.setTolerances(1e-100, 1e-8);
+
+        integrator.setStiffnessDetection(false);
+        integrator.integrate(new StiffEquations(), 0.0, new double[]{0.0, 1.0}, 5.0);
+
+        integrator.setStiffnessDetection(true);
+        try {
+            integrator.integrate(new StiffEquations(), 0.0, new double[]{0.0, 1.0}, 5.0);
+            fail("The stiffness was not detected.");
+        } catch (StiffnessDetectedException e) {
+            // expected
+        }
+    }
+
+}
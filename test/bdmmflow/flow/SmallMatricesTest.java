@@ -0,0 +1,82 @@
+package bdmmflow.flow;
+
+import bdmmflow.utils.SmallMatrices;
+import bdmmflow.utils.SmallQRDecomposition;
+import bdmmflow.utils.Utils;
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.DecompositionSolver;
+import org.apache.commons.math3.linear.MatrixUtils;
+import org.apache.commons.math3.linear.QRDecomposition;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class SmallMatricesTest {
+
+    @Test
+    public void testProductsMatchMatrixPath() {
+        for (int n = 1; n <= 16; n++) {
+            RealMatrix left = Utils.getRandomMatrix(n, 1);
+            RealMatrix right = Utils.getRandomMatrix(n, 2);
+            double[] leftArray = new double[n * n];
+            double[] rightArray = new double[n * n];
+            Utils.fillArray(left, leftArray);
+            Utils.fillArray(right, rightArray);
+
+            double[] product = new double[n * n];
+            SmallMatrices.multiply(leftArray, rightArray, product, n);
+            RealMatrix expectedProduct = left.multiply(right);
+
+            double[] vector = right.getColumn(0);
+            double[] image = new double[n];
+            SmallMatrices.operate(leftArray, vector, image, n);
+            double[] expectedImage = left.operate(vector);
+
+            for (int i = 0; i < n; i++) {
+                assertEquals(expectedImage[i], image[i], 1e-12);
+                for (int j = 0; j < n; j++) {
+                    assertEquals(expectedProduct.getEntry(i, j), product[j * n + i], 1e-12);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testQRSolveMatchesCommonsMath() {
+        for (int n = 1; n <= 16; n++) {
+            RealMatrix matrix = Utils.getRandomMatrix(n, 3);
+            double[] array = new double[n * n];
+            Utils.fillArray(matrix, array);
+            double[] b = Utils.getRandomMatrix(n, 4).getColumn(0);
+
+            SmallQRDecomposition qr = new SmallQRDecomposition(array, n, 1e-10);
+            DecompositionSolver expectedSolver = new QRDecomposition(matrix, 1e-10).getSolver();
+            assertTrue(qr.isNonSingular());
+
+            // both perform the same operations, such that the solutions agree exactly
+            double[] solution = qr.solve(b);
+            double[] expected = expectedSolver.solve(new ArrayRealVector(b)).toArray();
+            for (int i = 0; i < n; i++) {
+                assertEquals(expected[i], solution[i], 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void testInverse() {
+        for (int n = 1; n <= 16; n++) {
+            RealMatrix matrix = Utils.getRandomMatrix(n, 5);
+            RealMatrix inverse = Utils.inverse(matrix);
+            RealMatrix expected = MatrixUtils.inverse(matrix);
+
+            for (int i = 0; i < n; i++) {
+                for (int j = 0; j < n; j++) {
+                    assertEquals(expected.getEntry(i, j), inverse.getEntry(i, j), 1e-9 * Math.max(1.0, Math.abs(expected.getEntry(i, j))));
+                }
+            }
+        }
+    }
+
+}
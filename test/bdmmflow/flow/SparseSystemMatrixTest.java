@@ -0,0 +1,171 @@
+package bdmmflow.flow;
+
+import bdmmflow.extinctionSystem.ExtinctionProbabilities;
+import bdmmflow.extinctionSystem.ExtinctionProbabilitiesODESystem;
+import bdmmflow.flowSystems.FlowODESystem;
+import bdmmflow.flowSystems.InverseFlowODESystem;
+import bdmmflow.flowSystems.SparseSystemMatrix;
+import bdmmflow.intervals.Interval;
+import bdmmflow.intervals.IntervalUtils;
+import bdmmflow.utils.MatrixKernels;
+import bdmmprime.parameterization.*;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.parameter.RealParameter;
+import org.apache.commons.math3.ode.FirstOrderDifferentialEquations;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+
+public class SparseSystemMatrixTest {
+
+    static final int N_TYPES = 10;
+
+    /**
+     * Builds a parameterization with N_TYPES types in which every type only migrates to the next one, such
+     * that 2 n of the n^2 system matrix entries are non-zero.
+     */
+    static Parameterization getRingParameterization() {
+        StringBuilder migrationRates = new StringBuilder();
+        StringBuilder birthRates = new StringBuilder();
+        for (int i = 0; i < N_TYPES; i++) {
+            birthRates.append(1.5 + 0.1 * i).append(" ");
+        }
+        for (int i = 0; i < N_TYPES; i++) {
+            birthRates.append(2.0 - 0.1 * i).append(" ");
+            for (int j = 0; j < N_TYPES; j++) {
+                if (i == j) continue;
+                migrationRates.append(j == (i + 1) % N_TYPES ? 0.2 + 0.05 * i : 0.0).append(" ");
+            }
+        }
+
+        Parameterization parameterization = new CanonicalParameterization();
+        parameterization.initByName(
+                "typeSet", new TypeSet(N_TYPES),
+                "processLength", new RealParameter("5.0"),
+                "birthRate", new SkylineVectorParameter(
+                        new RealParameter("2.0"),
+                        new RealParameter(birthRates.toString().trim()),
+                        N_TYPES),
+                "deathRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("0.5"), N_TYPES),
+                "birthRateAmongDemes", new SkylineMatrixParameter(
+                        null,
+                        new RealParameter("0.0"), N_TYPES),
+                "migrationRate", new SkylineMatrixParameter(
+                        null,
+                        new RealParameter(migrationRates.toString().trim()), N_TYPES),
+                "samplingRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("0.3"), N_TYPES),
+                "removalProb", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("0.5"), N_TYPES));
+        return parameterization;
+    }
+
+    static ExtinctionProbabilities getExtinctionProbabilities(Parameterization parameterization, List<Interval> intervals) {
+        double[] initialState = new double[N_TYPES];
+        Arrays.fill(initialState, 1.0);
+
+        return new ExtinctionProbabilitiesODESystem(parameterization, intervals, 1e-100, 1e-10).integrateBackwards(
+                initialState, null, intervals.size()
+        );
+    }
+
+    void assertSameDerivatives(FirstOrderDifferentialEquations sparse, FirstOrderDifferentialEquations dense) {
+        Random random = new Random(42);
+
+        for (double t : new double[]{0.1, 1.9, 2.5, 4.8}) {
+            double[] y = new double[N_TYPES * N_TYPES];
+            for (int i = 0; i < y.length; i++) {
+                y[i] = random.nextDouble() - 0.5;
+            }
+
+            double[] sparseDerivatives = new double[y.length];
+            double[] denseDerivatives = new double[y.length];
+            sparse.computeDerivatives(t, y.clone(), sparseDerivatives);
+            dense.computeDerivatives(t, y.clone(), denseDerivatives);
+
+            for (int i = 0; i < y.length; i++) {
+                assertEquals(denseDerivatives[i], sparseDerivatives[i], 1e-12);
+            }
+        }
+    }
+
+    @Test
+    public void testRingMigrationIsSparse() {
+        Parameterization parameterization = getRingParameterization();
+
+        assertNotNull(SparseSystemMatrix.buildIfSparse(
+                parameterization.getMigRates(), parameterization.getCrossBirthRates(), N_TYPES
+        ));
+    }
+
+    @Test
+    public void testFlowDerivatives() {
+        Parameterization parameterization = getRingParameterization();
+        List<Interval> intervals = IntervalUtils.getIntervals(parameterization);
+        ExtinctionProbabilities extinctionProbabilities = getExtinctionProbabilities(parameterization, intervals);
+
+        FlowODESystem sparse = new FlowODESystem(
+                parameterization, extinctionProbabilities, intervals, 1e-100, 1e-10,
+                1, 1e8, false, MatrixKernels.get(MatrixKernels.SCALAR), true
+        );
+        FlowODESystem dense = new FlowODESystem(
+                parameterization, extinctionProbabilities, intervals, 1e-100, 1e-10,
+                1, 1e8, false, MatrixKernels.get(MatrixKernels.SCALAR), false
+        );
+
+        this.assertSameDerivatives(sparse, dense);
+    }
+
+    @Test
+    public void testInverseFlowDerivatives() {
+        Parameterization parameterization = getRingParameterization();
+        List<Interval> intervals = IntervalUtils.getIntervals(parameterization);
+        ExtinctionProbabilities extinctionProbabilities = getExtinctionProbabilities(parameterization, intervals);
+
+        InverseFlowODESystem sparse = new InverseFlowODESystem(
+                parameterization, extinctionProbabilities, intervals, 1e-100, 1e-10,
+                1, 1e8, false, MatrixKernels.get(MatrixKernels.SCALAR), true
+        );
+        InverseFlowODESystem dense = new InverseFlowODESystem(
+                parameterization, extinctionProbabilities, intervals, 1e-100, 1e-10,
+                1, 1e8, false, MatrixKernels.get(MatrixKernels.SCALAR), false
+        );
+
+        this.assertSameDerivatives(sparse, dense);
+    }
+
+    @Test
+    public void testLikelihood() {
+        String newick = "((((t0[&type=0]:1.0,t1[&type=1]:0.8):0.5,(t2[&type=2]:1.2,t3[&type=3]:0.6):0.4):0.7," +
+                "(t4[&type=4]:0.9,t5[&type=5]:1.1):1.6):0.3," +
+                "(((t6[&type=6]:0.5,t7[&type=7]:1.3):0.6,t8[&type=8]:1.4):0.8,t9[&type=9]:2.0):0.9);";
+
+        double[] logL = new double[2];
+        for (boolean useSparseKernel : new boolean[]{true, false}) {
+            bdmmflow.BirthDeathMigrationDistribution density = new bdmmflow.BirthDeathMigrationDistribution();
+            density.initByName(
+                    "parameterization", getRingParameterization(), "relTolerance", 1e-10,
+                    "startTypePriorProbs", new RealParameter("0.1 0.1 0.1 0.1 0.1 0.1 0.1 0.1 0.1 0.1"),
+                    "tree", new TreeParser(newick,
+                            false, false,
+                            true, 0),
+                    "conditionOnSurvival", false,
+                    "typeLabel", "type",
+                    "parallelize", false,
+                    "useSparseKernel", useSparseKernel
+            );
+            logL[useSparseKernel ? 0 : 1] = density.calculateLogP();
+        }
+
+        assertEquals(logL[1], logL[0], 1e-8);
+    }
+}
@@ -0,0 +1,58 @@
+package bdmmflow.flow;
+
+import bdmmflow.flowSystems.TransferProductTable;
+import bdmmflow.utils.MatrixKernels;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+
+public class TransferProductTableTest {
+
+    @Test
+    public void testApplyMatchesSequentialProduct() {
+        int n = 3;
+        Random random = new Random(42);
+
+        for (int m = 1; m <= 9; m++) {
+            double[][] transferMatrices = new double[m][n * n];
+            for (double[] matrix : transferMatrices) {
+                for (int i = 0; i < matrix.length; i++) {
+                    matrix[i] = 0.1 + 2.0 * random.nextDouble();
+                }
+            }
+
+            TransferProductTable table = new TransferProductTable(transferMatrices, n, MatrixKernels.get(MatrixKernels.SCALAR));
+
+            for (int first = 0; first < m; first++) {
+                for (int last = first; last < m; last++) {
+                    double[] vector = new double[n];
+                    for (int i = 0; i < n; i++) {
+                        vector[i] = random.nextDouble();
+                    }
+
+                    // apply A_first, ..., A_last one after another
+                    double[] expected = vector.clone();
+                    for (int k = first; k <= last; k++) {
+                        double[] next = new double[n];
+                        for (int i = 0; i < n; i++) {
+                            for (int j = 0; j < n; j++) {
+                                next[i] += transferMatrices[k][j * n + i] * expected[j];
+                            }
+                        }
+                        expected = next;
+                    }
+
+                    double[] actual = vector.clone();
+                    double logScalingFactor = table.apply(first, last, actual, new double[n]);
+
+                    for (int i = 0; i < n; i++) {
+                        assertEquals(expected[i], actual[i] * Math.exp(logScalingFactor), 1e-12 * Math.abs(expected[i]));
+                    }
+                }
+            }
+        }
+    }
+
+}